@@ -0,0 +1,435 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Required;
+
+/**
+ * File system store of generated image thumbnails in a fixed set of
+ * width variants.
+ * 
+ * <p>Thumbnails are addressed by resource ID, resource last modified
+ * time and variant width, so a stored thumbnail never changes and is
+ * never stale: a modified resource simply addresses new thumbnails.
+ * Thumbnails of earlier versions of a resource are removed when a
+ * thumbnail for a newer version is stored. Thumbnails of deleted
+ * resources are not tracked; instead the total size of the store is
+ * capped, and when exceeded, the least recently stored thumbnails are
+ * removed until the store is at most 90% full.
+ * 
+ * <p>Layout: <code>&lt;root&gt;/&lt;shard&gt;/&lt;resource id&gt;/&lt;last modified&gt;-&lt;width&gt;.&lt;format&gt;</code>,
+ * where format is either <code>jpeg</code> or <code>png</code>.
+ * Files are written to a temporary file and moved into place, so
+ * readers never see partially written thumbnails.
+ * 
+ * <p>Configurable JavaBean properties:
+ * <ul>
+ *   <li><code>rootDirectory</code> - the directory to store thumbnails in
+ *   <li><code>variantWidths</code> - the widths (in pixels) thumbnails
+ *   are generated in
+ *   <li><code>defaultWidth</code> - the variant served when no width
+ *   is requested. Must be one of the variant widths.
+ *   <li><code>maxSize</code> - maximum total size (in bytes) of stored
+ *   thumbnails, default 1 GB
+ * </ul>
+ */
+public class ThumbnailStore implements InitializingBean {
+
+    private static final String[] FORMATS = {"jpeg", "png"};
+
+    private static Log logger = LogFactory.getLog(ThumbnailStore.class);
+
+    private File rootDirectory;
+    private int[] variantWidths;
+    private int defaultWidth;
+    private long maxSize = 1024L * 1024 * 1024;
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicBoolean trimming = new AtomicBoolean(false);
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!this.rootDirectory.isDirectory() && !this.rootDirectory.mkdirs()) {
+            throw new IOException("Unable to create thumbnail directory " + this.rootDirectory);
+        }
+        if (!isVariant(this.defaultWidth)) {
+            throw new IllegalArgumentException("Default width " + this.defaultWidth 
+                    + " is not one of the variant widths");
+        }
+        List<File> files = new ArrayList<File>();
+        listThumbnails(this.rootDirectory, files);
+        long total = 0;
+        for (File f: files) {
+            total += f.length();
+        }
+        this.size.set(total);
+        trim();
+    }
+
+    /**
+     * Select the variant to serve for a requested width.
+     * 
+     * @param requestedWidth the requested width, or a non-positive
+     * number for the default variant
+     * @return the smallest variant width not narrower than the requested
+     * width, or the widest variant if all are narrower
+     */
+    public int selectVariant(int requestedWidth) {
+        if (requestedWidth <= 0) {
+            return this.defaultWidth;
+        }
+        for (int w: this.variantWidths) {
+            if (w >= requestedWidth) {
+                return w;
+            }
+        }
+        return this.variantWidths[this.variantWidths.length - 1];
+    }
+
+    public boolean isVariant(int width) {
+        for (int w: this.variantWidths) {
+            if (w == width) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getDefaultWidth() {
+        return this.defaultWidth;
+    }
+
+    public int[] getVariantWidths() {
+        return this.variantWidths.clone();
+    }
+
+    /**
+     * Get a stored thumbnail.
+     * 
+     * @return the thumbnail, or <code>null</code> if it has not been
+     * generated
+     */
+    public Thumbnail get(int resourceId, long lastModified, int width) {
+        File dir = resourceDirectory(resourceId);
+        for (String format: FORMATS) {
+            File file = new File(dir, fileName(lastModified, width, format));
+            if (file.isFile()) {
+                return new Thumbnail(file, resourceId, lastModified, width, format);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store encoded thumbnail data.
+     * 
+     * @param format either <code>jpeg</code> or <code>png</code>
+     * @return the stored thumbnail
+     */
+    public Thumbnail put(int resourceId, long lastModified, int width, 
+            String format, byte[] data) throws IOException {
+        if (!isVariant(width)) {
+            throw new IllegalArgumentException("Not a thumbnail variant width: " + width);
+        }
+        if (!"jpeg".equals(format) && !"png".equals(format)) {
+            throw new IllegalArgumentException("Unsupported thumbnail format: " + format);
+        }
+        File dir = resourceDirectory(resourceId);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        File file = new File(dir, fileName(lastModified, width, format));
+        long replaced = file.length();
+        File tmp = File.createTempFile("thumbnail", ".tmp", dir);
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        this.size.addAndGet(data.length - replaced);
+        removeOlderVersions(dir, lastModified);
+        if (this.size.get() > this.maxSize) {
+            trim();
+        }
+        return new Thumbnail(file, resourceId, lastModified, width, format);
+    }
+
+    /**
+     * Downscale an image to a variant width, encode and store it.
+     * 
+     * @param image the source image, which should be at least as wide
+     * as the variant
+     * @param format either <code>jpeg</code> or <code>png</code>
+     * @return the stored thumbnail
+     */
+    public Thumbnail put(int resourceId, long lastModified, int width, 
+            String format, BufferedImage image) throws IOException {
+        BufferedImage scaled = ImageUtil.downscaleToWidth(image, width);
+        return put(resourceId, lastModified, width, format, ImageUtil.getImageBytes(scaled, format));
+    }
+
+    /**
+     * Generate and store all variants narrower than an image.
+     * 
+     * @param format either <code>jpeg</code> or <code>png</code>
+     * @return the stored thumbnails
+     */
+    public List<Thumbnail> putVariants(int resourceId, long lastModified, 
+            String format, BufferedImage image) throws IOException {
+        List<Thumbnail> result = new ArrayList<Thumbnail>();
+        // Scale from the widest variant down, each from the previous
+        BufferedImage source = image;
+        for (int i = this.variantWidths.length - 1; i >= 0; i--) {
+            int width = this.variantWidths[i];
+            if (width >= image.getWidth()) {
+                continue;
+            }
+            source = ImageUtil.downscaleToWidth(source, width);
+            result.add(put(resourceId, lastModified, width, format, 
+                    ImageUtil.getImageBytes(source, format)));
+        }
+        return result;
+    }
+
+    /**
+     * Get the thumbnail format to use for an image of the given content
+     * type: <code>png</code> for GIF and PNG images (which may have
+     * transparency), <code>jpeg</code> otherwise.
+     */
+    public static String thumbnailFormat(String imageContentType) {
+        if (imageContentType != null) {
+            String format = imageContentType.substring(imageContentType.lastIndexOf('/') + 1);
+            if (format.equalsIgnoreCase("gif") || format.equalsIgnoreCase("png")) {
+                return "png";
+            }
+        }
+        return "jpeg";
+    }
+
+    private void removeOlderVersions(File dir, long lastModified) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        String current = lastModified + "-";
+        for (File f: files) {
+            String name = f.getName();
+            if (name.startsWith(current) || name.endsWith(".tmp")) {
+                continue;
+            }
+            int dash = name.indexOf('-');
+            try {
+                if (dash > 0 && Long.parseLong(name.substring(0, dash)) < lastModified) {
+                    remove(f);
+                }
+            } catch (NumberFormatException e) {
+                // Not a thumbnail file, leave it
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently stored thumbnails until the store is at
+     * most 90% full. Only one thread trims at a time; others continue
+     * without waiting.
+     */
+    private void trim() {
+        if (this.size.get() <= this.maxSize || !this.trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<File> files = new ArrayList<File>();
+            listThumbnails(this.rootDirectory, files);
+            final Map<File, Long> modified = new HashMap<File, Long>();
+            long total = 0;
+            for (File f: files) {
+                modified.put(f, f.lastModified());
+                total += f.length();
+            }
+            // Resynchronize with the file system, in case of concurrent
+            // writes or removals
+            this.size.set(total);
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    return modified.get(f1).compareTo(modified.get(f2));
+                }
+            });
+            long target = this.maxSize / 10 * 9;
+            int removed = 0;
+            for (File f: files) {
+                if (this.size.get() <= target) {
+                    break;
+                }
+                remove(f);
+                removed++;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Removed " + removed + " thumbnails, store size is now " + this.size.get());
+            }
+        } finally {
+            this.trimming.set(false);
+        }
+    }
+
+    private void remove(File f) {
+        long length = f.length();
+        if (f.delete()) {
+            this.size.addAndGet(-length);
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Unable to remove thumbnail " + f);
+        }
+    }
+
+    private static void listThumbnails(File dir, List<File> result) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f: files) {
+            if (f.isDirectory()) {
+                listThumbnails(f, result);
+            } else if (!f.getName().endsWith(".tmp")) {
+                result.add(f);
+            }
+        }
+    }
+
+    private File resourceDirectory(int resourceId) {
+        String shard = Integer.toHexString(0x100 | (resourceId & 0xff)).substring(1);
+        return new File(new File(this.rootDirectory, shard), Integer.toString(resourceId));
+    }
+
+    private static String fileName(long lastModified, int width, String format) {
+        return lastModified + "-" + width + "." + format;
+    }
+
+    @Required
+    public void setRootDirectory(String rootDirectory) {
+        this.rootDirectory = new File(rootDirectory);
+    }
+
+    @Required
+    public void setVariantWidths(List<Integer> variantWidths) {
+        if (variantWidths.isEmpty()) {
+            throw new IllegalArgumentException("At least one variant width is required");
+        }
+        List<Integer> sorted = new ArrayList<Integer>(variantWidths);
+        Collections.sort(sorted);
+        int[] widths = new int[sorted.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sorted.get(i);
+            if (widths[i] < 1) {
+                throw new IllegalArgumentException("Variant widths must be >= 1");
+            }
+        }
+        this.variantWidths = widths;
+    }
+
+    @Required
+    public void setDefaultWidth(int defaultWidth) {
+        this.defaultWidth = defaultWidth;
+    }
+
+    public void setMaxSize(long maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be >= 1");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the approximate total size (in bytes) of stored thumbnails
+     */
+    public long getSize() {
+        return this.size.get();
+    }
+
+    /**
+     * A stored thumbnail file.
+     */
+    public static final class Thumbnail {
+        private final File file;
+        private final String format;
+        private final String etag;
+        private final int width;
+
+        private Thumbnail(File file, int resourceId, long lastModified, int width, String format) {
+            this.file = file;
+            this.format = format;
+            this.width = width;
+            this.etag = "\"" + resourceId + "-" + lastModified + "-" + width + "\"";
+        }
+
+        public File getFile() {
+            return this.file;
+        }
+
+        public String getContentType() {
+            return "image/" + this.format;
+        }
+
+        public int getWidth() {
+            return this.width;
+        }
+
+        /**
+         * @return a strong entity tag, including quotes
+         */
+        public String getEtag() {
+            return this.etag;
+        }
+    }
+}
@@ -609,8 +609,18 @@ public final class AuthorizationManager {
 
         if (resource.isCollection()) {
             Path[] uris = this.dao.discoverACLs(srcUri);
-            for (int i = 0; i < uris.length; i++) {
-                authorizeRead(uris[i], principal);
+            if (uris.length > 0
+                    && !this.roleManager.hasRole(principal, RoleManager.Role.ROOT)
+                    && !this.roleManager.hasRole(principal, RoleManager.Role.READ_EVERYTHING)) {
+                // Load all resources with ACLs in the subtree in one go
+                Map<Path, ResourceImpl> resources = this.dao.load(Arrays.asList(uris));
+                for (Path uri : uris) {
+                    ResourceImpl descendant = resources.get(uri);
+                    if (descendant == null) {
+                        throw new ResourceNotFoundException(uri);
+                    }
+                    aclAuthorize(descendant, principal, PRIVILEGE_HIERARCHY.get(Privilege.READ));
+                }
             }
             
             // For copy of collection we require full CREATE at destination (since we are missing recursive unpublication).
@@ -36,6 +36,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -61,7 +62,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     private Cache cache;
     private Repository wrappedRepository;
     private final Log logger = LogFactory.getLog(LockingCacheControlRepositoryWrapper.class);
-    private final PathLockManager lockManager = new PathLockManager();
+    private PathLockManager lockManager = new PathLockManager();
     private File tempDir = new File(System.getProperty("java.io.tmpdir"));
 
     @Override
@@ -83,18 +84,19 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
 
         // Synchronize on:
         // - Destination parent URI
-        // - Destination URI
-        // - Any cached descendant of destination URI in case of overwrite.
+        // - Destination URI, and its subtree in case of overwrite.
         List<Path> lockUris = new ArrayList<Path>(2);
+        List<Path> lockSubtrees = new ArrayList<Path>(1);
         if (destUri.getParent() != null) {
             lockUris.add(destUri.getParent());
         }
-        lockUris.add(destUri);
         if (overwrite) {
-            lockUris.addAll(getCachedDescendants(destUri));
+            lockSubtrees.add(destUri);
+        } else {
+            lockUris.add(destUri);
         }
                 
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(lockUris, lockSubtrees, true);
         
         try {
             this.wrappedRepository.copy(token, srcUri, destUri, overwrite, preserveACL); // Tx
@@ -105,7 +107,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
                 flushFromCache(destUri.getParent(), false, "copy");
             }
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -115,32 +117,32 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             ResourceLockedException, ResourceNotFoundException, ReadOnlyException, Exception {
 
         // Synchronize on:
-        // - Source URI and any cached descendant of source URI
+        // - Source URI subtree
         // - Source parent URI
         // - Destination parent URI (may be same as source parent URI)
-        // - Destination URI
-        // - Any cached descendant of destination URI in case of overwrite.
+        // - Destination URI, and its subtree in case of overwrite.
         List<Path> lockUris = new ArrayList<Path>();
+        List<Path> lockSubtrees = new ArrayList<Path>(2);
         Path srcParent = srcUri.getParent();
         Path destParent = destUri.getParent();
         
         if (srcParent != null) {
             lockUris.add(srcParent);
         }
-        lockUris.add(srcUri);
-        lockUris.addAll(getCachedDescendants(srcUri));
+        lockSubtrees.add(srcUri);
 
         if (destParent != null && ! destParent.equals(srcParent)) {
             lockUris.add(destParent);
         }
         if (!srcUri.equals(destUri)) {
-            lockUris.add(destUri);
             if (overwrite) {
-                lockUris.addAll(getCachedDescendants(destUri));
+                lockSubtrees.add(destUri);
+            } else {
+                lockUris.add(destUri);
             }
         }
         
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(lockUris, lockSubtrees, true);
         
         try {
             this.wrappedRepository.move(token, srcUri, destUri, overwrite); // Tx
@@ -157,7 +159,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
                 flushFromCache(destParent, false, "move");
             }
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -174,7 +176,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         }
         lockUris.add(uri);
         
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(lockUris, true);
         
         try {
             Resource resource = this.wrappedRepository.createCollection(token, uri); // Tx
@@ -187,7 +189,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             
             return resource;
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
     
@@ -217,7 +219,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             }
             lockUris.add(uri);
 
-            final List<Path> locked = this.lockManager.lock(lockUris, true);
+            final PathLockManager.Claim locked = this.lockManager.lock(lockUris, true);
 
             try {
                 Resource resource = this.wrappedRepository.createDocument(token, uri, byteStream); // Tx
@@ -230,7 +232,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
 
                 return resource;
             } finally {
-                this.lockManager.unlock(locked, true);
+                this.lockManager.unlock(locked);
             }
             
         } finally {
@@ -247,16 +249,13 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
 
         // Synchronize on:
         // - Parent URI
-        // - URI
-        // - Any cached descendants of URI
-        List<Path> lockUris = new ArrayList<Path>();
+        // - URI subtree
+        List<Path> lockUris = new ArrayList<Path>(1);
         if (uri.getParent() != null) {
             lockUris.add(uri.getParent());
         }
-        lockUris.add(uri);
-        lockUris.addAll(getCachedDescendants(uri));
 
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(lockUris, Collections.singletonList(uri), true);
         
         try {
             this.wrappedRepository.delete(token, uri, restorable); // Tx
@@ -267,7 +266,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
                 flushFromCache(parent, false, "delete");
             }
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -288,13 +287,13 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         lockUris.add(parentUri);
         lockUris.add(parentUri.extend(recoverableResource.getName()));
 
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(lockUris, true);
         
         try {
             this.wrappedRepository.recover(token, parentUri, recoverableResource);
             flushFromCache(parentUri, false, "recover");
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -319,11 +318,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     @Override
     public boolean exists(String token, Path uri) throws AuthorizationException, AuthenticationException, Exception {
         // Acquired shared lock
-        final List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.exists(token, uri); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -351,11 +350,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         //     If a slow writer is uploading to the same resource, getting the input stream will block.
         //     On the other hand, not locking can typically result in a bad half-written input stream.
         
-        List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.getInputStream(token, uri, forProcessing); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -363,11 +362,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     public InputStream getInputStream(String token, Path uri, boolean forProcessing, Revision revision) throws ResourceNotFoundException,
             AuthorizationException, AuthenticationException, Exception {
         
-        List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.getInputStream(token, uri, forProcessing, revision); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -375,11 +374,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     public ContentStream getAlternativeContentStream(String token, Path uri, boolean forProcessing, String contentIdentifier)
             throws NoSuchContentException, ResourceNotFoundException, AuthorizationException, AuthenticationException, Exception {
 
-        List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.getAlternativeContentStream(token, uri, forProcessing, contentIdentifier); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -403,11 +402,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             AuthorizationException, AuthenticationException, Exception {
         
         // Acquire a shared read-lock on parent path
-        final List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.listChildren(token, uri, forProcessing); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -418,11 +417,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         
         // Synchronize on:
         // - URI
-        final List<Path> locked = this.lockManager.lock(uri, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, true);
         try {
             return this.wrappedRepository.lock(token, uri, ownerInfo, depth, requestedTimoutSeconds, lockToken); // Tx
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -432,11 +431,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         
         // Synchronize on:
         // - URI
-        final List<Path> locked = this.lockManager.lock(uri, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, true);
         try {
             this.wrappedRepository.unlock(token, uri, lockToken); // Tx
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -444,11 +443,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     public Resource retrieve(String token, Path uri, boolean forProcessing) throws ResourceNotFoundException,
             AuthorizationException, AuthenticationException, Exception {
         // Acquire a shared read-lock on path
-        final List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.retrieve(token, uri, forProcessing); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
     
@@ -456,11 +455,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     public Resource retrieve(String token, Path uri, boolean forProcessing, Revision revision) throws ResourceNotFoundException,
             AuthorizationException, AuthenticationException, Exception {
         // Acquire a shared read-lock on path
-        final List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.retrieve(token, uri, forProcessing, revision); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -473,16 +472,15 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     public Resource store(String token, Resource resource, StoreContext storeContext) throws ResourceNotFoundException, AuthorizationException, AuthenticationException, ResourceLockedException, IllegalOperationException, ReadOnlyException, Exception {
         // Synchronize on:
         // - URI if NOT inheritable properties store
-        // - URI and all descendants if inheritable store
-        List<Path> lockUris = new ArrayList<Path>();
-        lockUris.add(resource.getURI());
+        // - URI subtree if inheritable store
+        final PathLockManager.Claim locked;
         if (storeContext instanceof InheritablePropertiesStoreContext) {
-            // XXX overkill to lock all descendants ?
-            lockUris.addAll(getCachedDescendants(resource.getURI()));
+            locked = this.lockManager.lock(Collections.<Path>emptyList(), 
+                    Collections.singletonList(resource.getURI()), true);
+        } else {
+            locked = this.lockManager.lock(resource.getURI(), true);
         }
         
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
-        
         try {
             Resource r = this.wrappedRepository.store(token, resource, storeContext); // Tx
             if (storeContext instanceof InheritablePropertiesStoreContext) {
@@ -490,7 +488,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             }
             return r;
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
     
@@ -500,12 +498,12 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         // Synchronize on:
         // - URI
         
-        final List<Path> locked = this.lockManager.lock(resource.getURI(), true);
+        final PathLockManager.Claim locked = this.lockManager.lock(resource.getURI(), true);
         
         try {
             return this.wrappedRepository.store(token, resource); // Tx
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -514,13 +512,10 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             AuthenticationException, IllegalOperationException, ReadOnlyException, Exception {
         
         // Synchronize on:
-        // - URI
-        // - Any cached descendant of URI (due to ACL inheritance)
-        List<Path> lockUris = new ArrayList<Path>();
-        lockUris.add(uri);
-        lockUris.addAll(getCachedDescendants(uri));
+        // - URI subtree (due to ACL inheritance)
+        List<Path> lockSubtrees = Collections.singletonList(uri);
         
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(Collections.<Path>emptyList(), lockSubtrees, true);
         
         try {
             Resource resource = this.wrappedRepository.storeACL(token, uri, acl); // Tx
@@ -528,7 +523,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
 
             return resource;
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -537,13 +532,10 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             AuthorizationException, AuthenticationException, IllegalOperationException, ReadOnlyException, Exception {
         
         // Synchronize on:
-        // - URI
-        // - Any cached descendant of URI (due to ACL inheritance)
-        List<Path> lockUris = new ArrayList<Path>();
-        lockUris.add(uri);
-        lockUris.addAll(getCachedDescendants(uri));
+        // - URI subtree (due to ACL inheritance)
+        List<Path> lockSubtrees = Collections.singletonList(uri);
         
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(Collections.<Path>emptyList(), lockSubtrees, true);
         
         try {
             Resource resource = this.wrappedRepository.storeACL(token, uri, acl, validateACL); // Tx
@@ -551,7 +543,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             
             return resource;
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
     
@@ -562,13 +554,10 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             ReadOnlyException, Exception {
         
         // Synchronize on:
-        // - URI
-        // - Any cached descendant of URI (due to ACL inheritance)
-        List<Path> lockUris = new ArrayList<Path>();
-        lockUris.add(uri);
-        lockUris.addAll(getCachedDescendants(uri));
+        // - URI subtree (due to ACL inheritance)
+        List<Path> lockSubtrees = Collections.singletonList(uri);
 
-        final List<Path> locked = this.lockManager.lock(lockUris, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(Collections.<Path>emptyList(), lockSubtrees, true);
         
         try {
             Resource resource = this.wrappedRepository.deleteACL(token, uri); // Tx
@@ -577,7 +566,7 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
             
             return resource;
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -598,11 +587,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         
         // Synchronize on:
         // - URI
-        final List<Path> locked = this.lockManager.lock(uri, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, true);
         try {
            return this.wrappedRepository.storeContent(token, uri, byteStream); // Tx
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }    
     }
 
@@ -613,11 +602,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         
         // Synchronize on:
         // - URI
-        final List<Path> locked = this.lockManager.lock(uri, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, true);
         try {
            return this.wrappedRepository.storeContent(token, uri, byteStream, revision); // Tx
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }    
     }
 
@@ -662,19 +651,15 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         }
     }
     
-    private List<Path> getCachedDescendants(Path uri) {
-        return this.cache.getCachedDescendantPaths(uri);
-    }
-
     @Override
     public List<Revision> getRevisions(String token, Path uri) throws AuthorizationException, ResourceNotFoundException, AuthenticationException, IOException {
         // Synchronize shared read-lock on:
         // - URI
-        final List<Path> locked = this.lockManager.lock(uri, false);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, false);
         try {
             return this.wrappedRepository.getRevisions(token, uri); // Tx
         } finally {
-            this.lockManager.unlock(locked, false);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -682,11 +667,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     public Revision createRevision(String token, Path uri, Revision.Type type) throws AuthorizationException, ResourceNotFoundException, AuthenticationException, IOException {
         // Synchronize on:
         // - URI
-        final List<Path> locked = this.lockManager.lock(uri, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, true);
         try {
             return this.wrappedRepository.createRevision(token, uri, type); // Tx
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -697,11 +682,11 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
         
         // Synchronize on:
         // - URI
-        final List<Path> locked = this.lockManager.lock(uri, true);
+        final PathLockManager.Claim locked = this.lockManager.lock(uri, true);
         try {
             this.wrappedRepository.deleteRevision(token, uri, revision); // Tx
         } finally {
-            this.lockManager.unlock(locked, true);
+            this.lockManager.unlock(locked);
         }
     }
 
@@ -715,6 +700,10 @@ public class LockingCacheControlRepositoryWrapper implements Repository {
     public void setWrappedRepository(Repository wrappedRepository) {
         this.wrappedRepository = wrappedRepository;
     }
+
+    public void setLockManager(PathLockManager lockManager) {
+        this.lockManager = lockManager;
+    }
     
     @Required
     public void setTempDir(String tempDirPath) {
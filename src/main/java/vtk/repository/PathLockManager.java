@@ -31,13 +31,16 @@
 package vtk.repository;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,35 +48,91 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * Manager for locks on cache items (URIs) with support for shared or exclusive
- * access to paths (read and write locking).
+ * access to paths (read and write locking), either to a single path or to a
+ * path and its entire subtree.
  * 
- * There are two main "synchronization domains" in this code.
- * 1. Synchronization on individual lock objects, over which multiple threads
- *    contend for shared or exclusive access to paths.
-
- * 2. Synchronization on the map holding any locks currently in use and management
- *    of lock disposal. This synchronization is exclusively handled by the code
- *    managing the lock map (getLock(Path), returnLock(Lock) and unlockInternal(Path)).
- *
- * TODO return list of lock objects or a lock token instead of list of paths (tighten up API).
- *      Finally unlock(List<Path>) should only accept internal lock tokens/objects
- *      that client code cannot create, as parameter.
+ * <p>Locking is hierarchical. Locking a path implicitly takes intention locks
+ * on all of its ancestors, which is what makes subtree locks possible
+ * without knowing the descendants of a path: a subtree lock conflicts with
+ * the intention locks held on its root by anyone locking a path below it.
+ * Compatibility of lock modes on a single path:
+ * <pre>
+ *           IS   IX   S    X    ST   XT
+ *      IS   +    +    +    +    +    -
+ *      IX   +    +    +    +    -    -
+ *      S    +    +    +    -    +    -
+ *      X    +    +    -    -    -    -
+ *      ST   +    -    +    -    +    -
+ *      XT   -    -    -    -    -    -
+ * </pre>
+ * where IS/IX are intention shared/exclusive (taken on ancestors), S/X are
+ * shared/exclusive locks on the path itself, and ST/XT are shared/exclusive
+ * locks on the path and its subtree. Since a plain path lock does not cover
+ * descendants, an exclusive lock on a collection does not block access to its
+ * children.
+ * 
+ * <p>Lock objects are kept in a concurrent table and reference counted, so
+ * they are disposed of when no longer in use without any global
+ * synchronization. The state of each lock is a single atomic word, and
+ * uncontended acquisition and release never block; threads only synchronize
+ * on an individual lock object while waiting for it.
+ * 
+ * <p>The root path receives an intention lock from every request, so it is
+ * striped over a number of lock objects to avoid a single point of
+ * contention. Intention locks on the root are taken on one stripe, chosen
+ * by thread, while any other lock mode on the root (which is rare) is taken
+ * on all stripes in order. Root locks are never disposed of.
+ * 
+ * <p>All paths of a request are locked in path order (ancestors before
+ * descendants), which prevents deadlocks between requests. Exclusive locks
+ * are reentrant for the owning thread; shared locks cannot be upgraded.
+ * 
+ * <p>Contention statistics are kept per path prefix (the first
+ * <code>statisticsDepth</code> levels of locked paths), see
+ * {@link #getStatistics()}, and can be written to the log
+ * periodically by {@link #logStatistics()}.
  */
 public class PathLockManager {
 
     // How many seconds max to wait for each path lock requested if there is contention.
     private int lockTimeoutSeconds = 100;
 
-    // Fair locking costs some through-put so false by default (should not be needed under normal circumstances)
+    // When true, shared requests do not barge ahead of waiting exclusive requests
     private boolean fairLocking = false;
 
-    // All access to this map must be synchronized on the map object itself
-    // There is room for improvement on how we handle lock disposal and synchronized access to this map, because
-    // ReentrantReadWriteLock can be queried about queue size and hold count natively.
-    private final Map<Path, PathLock> locks = new HashMap<Path, PathLock>();
+    private boolean gatherStatistics = true;
+    private int statisticsDepth = 2;
+
+    private final ConcurrentHashMap<Path, PathLock> locks = new ConcurrentHashMap<Path, PathLock>(256, 0.75f, 64);
+    private final PathLock[] rootLocks = newRootLocks();
+    private final ConcurrentHashMap<Path, ContentionStatistics> statistics = 
+            new ConcurrentHashMap<Path, ContentionStatistics>();
 
     private final Log logger = LogFactory.getLog(getClass());
 
+    // Lock modes
+    private static final int IS = 1;
+    private static final int IX = 2;
+    private static final int S = 4;
+    private static final int X = 8;
+    private static final int ST = 16;
+    private static final int XT = 32;
+
+    // Layout of lock state word: 15 bit hold counts for the shared modes
+    // and a bit for each of the exclusive modes.
+    private static final long COUNT_MASK = 0x7FFFL;
+    private static final int IS_SHIFT = 0;
+    private static final int IX_SHIFT = 15;
+    private static final int S_SHIFT = 30;
+    private static final int ST_SHIFT = 45;
+    private static final long X_BIT = 1L << 60;
+    private static final long XT_BIT = 1L << 61;
+
+    private static final long IS_HELD = COUNT_MASK << IS_SHIFT;
+    private static final long IX_HELD = COUNT_MASK << IX_SHIFT;
+    private static final long S_HELD = COUNT_MASK << S_SHIFT;
+    private static final long ST_HELD = COUNT_MASK << ST_SHIFT;
+
     /**
      * Aquires lock on a single URI. Blocks until lock is
      * obtained, or throws an exception (leaving no lock) if it could not
@@ -82,181 +141,588 @@ public class PathLockManager {
      * @param uri the URI to lock
      * @param exclusive if <code>true</code> then the lock will be exclusive (write lock), else it may be shared with other threads
      *        that do not required exclusive access to the same path.
+     * @return the claimed locks, to be passed to {@link #unlock(Claim)}
      * @throws RuntimeException if URI could not be locked.
      */
-    public List<Path> lock(Path uri, boolean exclusive) {
-        return lockInternal(new Path[]{uri}, exclusive);
+    public Claim lock(Path uri, boolean exclusive) {
+        return lock(Collections.singletonList(uri), Collections.<Path>emptyList(), exclusive);
     }
 
     /**
      * Aquires locks for a list of URIs. Blocks until all locks are
      * obtained, or throws an exception (leaving no locks) if not all
-     * the locks could be obtained. Duplicate paths in list are ignored, and
-     * if  locking is successful, the returned list of locked paths will not
-     * contain any duplicates.
+     * the locks could be obtained. Duplicate paths in list are ignored.
      *
      * @param uris the list of URIs to lock
      * @param exclusive if <code>true</code> then the lock will be exclusive
      *        (write lock), else it may be shared with other threads
      *        that do not required exclusive access to the same path.
+     * @return the claimed locks, to be passed to {@link #unlock(Claim)}
+     * @throws RuntimeException if not all of the requested locks
+     * could be obtained
+     */
+    public Claim lock(List<Path> uris, boolean exclusive) {
+        return lock(uris, Collections.<Path>emptyList(), exclusive);
+    }
+
+    /**
+     * Aquires locks for a list of URIs and a list of subtrees. A subtree
+     * lock covers a URI and all its descendants, whether they are known
+     * or not. Blocks until all locks are obtained, or throws an exception
+     * (leaving no locks) if not all the locks could be obtained. Paths
+     * covered by a requested subtree lock are ignored.
+     *
+     * @param uris the list of URIs to lock
+     * @param subtrees the list of subtree roots to lock
+     * @param exclusive if <code>true</code> then the locks will be exclusive
+     *        (write locks), else they may be shared with other threads
+     *        that do not required exclusive access to the same paths.
+     * @return the claimed locks, to be passed to {@link #unlock(Claim)}
      * @throws RuntimeException if not all of the requested locks
      * could be obtained
      */
-    public List<Path> lock(List<Path> uris, boolean exclusive) {
+    public Claim lock(List<Path> uris, List<Path> subtrees, boolean exclusive) {
+        // Always lock paths in the same order to avoid deadlocking.
+        // Path order has ancestors before descendants.
+        TreeMap<Path, Target> targets = new TreeMap<Path, Target>();
+        Set<Path> subtreeSet = new HashSet<Path>(subtrees);
+        for (Path uri: subtrees) {
+            addTarget(targets, uri, exclusive ? XT : ST, exclusive, subtreeSet);
+        }
+        for (Path uri: uris) {
+            addTarget(targets, uri, exclusive ? X : S, exclusive, subtreeSet);
+        }
 
-        // Do a shallow copy of URI list because we need to sort it
-        // (not nice to directly modify input list).
-        return lockInternal(uris.toArray(new Path[uris.size()]), exclusive);
+        Claim claim = new Claim(targets.size() + this.rootLocks.length - 1, exclusive);
+        for (Target target: targets.values()) {
+            if (!target.uri.isRoot()) {
+                claim(claim, getLock(target.uri), target, true);
+            } else if ((target.modes & ~(IS | IX)) == 0) {
+                PathLock stripe = this.rootLocks[
+                        (int) Thread.currentThread().getId() & (this.rootLocks.length - 1)];
+                claim(claim, stripe, target, true);
+            } else {
+                for (int i = 0; i < this.rootLocks.length; i++) {
+                    claim(claim, this.rootLocks[i], target, i == 0);
+                }
+            }
+        }
+        return claim;
     }
 
     /**
-     * Releases locks on a list of URIs. Wakes up any threads waiting on
+     * Acquires a lock and adds it to a claim, or releases the claim and
+     * throws an exception if the lock could not be acquired.
+     */
+    private void claim(Claim claim, PathLock lock, Target target, boolean count) {
+        if (acquire(lock, target, count)) {
+            claim.add(lock, target.modes);
+            if (count && this.logger.isDebugEnabled()) {
+                this.logger.debug("suceeded: locking " + target);
+            }
+            return;
+        }
+        try {
+            if (this.logger.isDebugEnabled()) {
+                this.logger.debug("failed: locking " + target 
+                        + " due to interrupt or timeout (" + this.lockTimeoutSeconds + " seconds)");
+            }
+
+            throw new RuntimeException(
+                    "Thread " + Thread.currentThread().getName()
+                    + " giving up locking " + target.uri + (claim.exclusive ? " in exclusive mode " : " in shared mode")
+                    + " due to interrupt or timeout (" + this.lockTimeoutSeconds + " seconds)");
+        } finally {
+            // Clean up, we failed.
+            // Return current lock, so it may be disposed of.
+            returnLock(lock);
+
+            // Release any locks we managed to claim as well.
+            unlock(claim);
+        }
+    }
+
+    /**
+     * Releases locks previously claimed. Wakes up any threads waiting on
      * the locks.
      *
-     * @param uris the URIs to unlock.
-     * @param exclusive if the lock in question was claimed with exclusive access, then
-     *                  it should also be unlocked with the same access.
-     * @see #lock(vtk.repository.Path, boolean) 
+     * @param claim the claimed locks, as returned from one of the
+     * <code>lock</code> methods
+     * @throws IllegalStateException if the claimed locks have already been
+     * released
+     */
+    public void unlock(Claim claim) {
+        if (claim.released) {
+            throw new IllegalStateException("Thread "
+                    + Thread.currentThread().getName()
+                    + " tried to release locks " + claim + ", which are already released");
+        }
+        claim.released = true;
+        for (int i = claim.size - 1; i >= 0; i--) {
+            PathLock lock = claim.locks[i];
+            if (logger.isDebugEnabled()) {
+                logger.debug("releasing " + lock.uri);
+            }
+            release(lock, claim.modes[i]);
+            returnLock(lock);
+        }
+    }
+
+    /**
+     * Gets contention statistics for locked paths, keyed on path prefix.
+     * The number of acquisitions counts requested paths and subtrees only,
+     * while waits also include intention locks on ancestors.
      * 
+     * @return a snapshot of current statistics, ordered by path prefix
      */
-    public void unlock(List<Path> uris, boolean exclusive) {
-        for (Path uri: uris) {
-            unlockInternal(uri, exclusive);
+    public Map<Path, ContentionStatistics> getStatistics() {
+        return Collections.unmodifiableMap(new TreeMap<Path, ContentionStatistics>(this.statistics));
+    }
+
+    public void resetStatistics() {
+        this.statistics.clear();
+    }
+
+    /**
+     * Logs contention statistics for all path prefixes on which lock
+     * requests have had to wait since the last reset, then resets the
+     * statistics. Intended to be invoked periodically.
+     */
+    public void logStatistics() {
+        if (!this.logger.isInfoEnabled()) {
+            return;
         }
+        for (ContentionStatistics stats: getStatistics().values()) {
+            if (stats.getWaits() > 0) {
+                this.logger.info("Lock contention for " + stats);
+            }
+        }
+        resetStatistics();
     }
-    
-    private List<Path> lockInternal(final Path[] uris, final boolean exclusive) {
-        // Always try to lock a set of URIs in the same order to reduce chance of deadlocking.
-        Arrays.sort(uris);
-        
-        final List<Path> claimedLocks = new ArrayList<Path>(uris.length);
-
-        for (Path uri : uris) {
-            final PathLock lock = getLock(uri);   // Request lock object for path
-            if (lock.tryLock(this.lockTimeoutSeconds, TimeUnit.SECONDS, exclusive)) {
-                claimedLocks.add(uri);
-                if (this.logger.isDebugEnabled()) {
-                    this.logger.debug("suceeded: locking " + uri);
-                }
+
+    private void addTarget(TreeMap<Path, Target> targets, Path uri, int mode, 
+            boolean exclusive, Set<Path> subtrees) {
+        List<Path> paths = uri.getPaths();
+        for (int i = 0; i < paths.size() - 1; i++) {
+            if (subtrees.contains(paths.get(i))) {
+                // Covered by subtree lock on ancestor
+                return;
+            }
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            Path path = paths.get(i);
+            Target target = targets.get(path);
+            if (target == null) {
+                Path prefix = paths.get(Math.min(i, this.statisticsDepth));
+                target = new Target(path, prefix);
+                targets.put(path, target);
+            }
+            if (i < paths.size() - 1) {
+                target.modes |= exclusive ? IX : IS;
             } else {
-                try {
-                    if (this.logger.isDebugEnabled()) {
-                        this.logger.debug("failed: locking " + uri + (exclusive ? " in exclusive mode" : " in shared mode")
-                                + " due to interrupt or timeout (" + this.lockTimeoutSeconds + " seconds)");
-                    }
+                target.modes |= mode;
+            }
+        }
+    }
+
+    private boolean acquire(PathLock lock, Target target, boolean countAcquisition) {
+        final Thread thread = Thread.currentThread();
+        final boolean count = countAcquisition && (target.modes & (S | X | ST | XT)) != 0;
+
+        if (tryAcquire(lock, target.modes, thread)) {
+            if (this.gatherStatistics && count) {
+                statistics(target.prefix).acquisitions.incrementAndGet();
+            }
+            return true;
+        }
 
-                    throw new RuntimeException(
-                            "Thread " + Thread.currentThread().getName()
-                            + " giving up locking " + uri + (exclusive ? " in exclusive mode " : " in shared mode")
-                            + " due to interrupt or timeout (" + this.lockTimeoutSeconds + " seconds)");
-                } finally {
-                    // Clean up, we failed.
-                    // Return current lock, so it may be disposed of.
-                    returnLock(lock);
-
-                    // Release any locks we managed to claim as well.
-                    unlock(claimedLocks, exclusive);
+        final boolean exclusiveRequest = (target.modes & (IX | X | XT)) != 0;
+        final long start = System.nanoTime();
+        final long timeout = TimeUnit.SECONDS.toNanos(this.lockTimeoutSeconds);
+        boolean acquired = false;
+        synchronized (lock) {
+            lock.waiters++;
+            if (exclusiveRequest) {
+                lock.exclusiveWaiters++;
+            }
+            try {
+                for (;;) {
+                    if (tryAcquire(lock, target.modes, thread)) {
+                        acquired = true;
+                        break;
+                    }
+                    long remaining = timeout - (System.nanoTime() - start);
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            } catch (InterruptedException ie) {
+                logger.warn("InterruptedException while waiting for lock on path " + lock.uri, ie);
+            } finally {
+                lock.waiters--;
+                if (exclusiveRequest && --lock.exclusiveWaiters == 0 && this.fairLocking) {
+                    // Shared requests may be waiting for us to go first
+                    lock.notifyAll();
                 }
             }
         }
 
-        return Collections.unmodifiableList(claimedLocks);
+        if (this.gatherStatistics) {
+            ContentionStatistics stats = statistics(target.prefix);
+            if (count && acquired) {
+                stats.acquisitions.incrementAndGet();
+            }
+            stats.record(System.nanoTime() - start, acquired);
+        }
+        return acquired;
     }
-    
-    private void unlockInternal(Path uri, boolean exclusive) {
-        PathLock lock = null;
-        synchronized (this.locks) {
-            lock = this.locks.get(uri);
-            if (lock == null) {
-                throw new IllegalStateException("Thread "
-                        + Thread.currentThread().getName()
-                        + " tried to release lock on path '"
-                        + uri + "', but there is currently no registered lock for that path.");
+
+    private boolean tryAcquire(PathLock lock, int modes, Thread thread) {
+        final long conflicts = conflicts(modes);
+        final boolean exclusiveOwner = lock.exclusiveOwner == thread;
+        final boolean subtreeOwner = lock.subtreeOwner == thread;
+
+        if (this.fairLocking && !exclusiveOwner && !subtreeOwner
+                && (modes & (IX | X | XT)) == 0 && lock.exclusiveWaiters > 0) {
+            return false;
+        }
+
+        for (;;) {
+            long state = lock.state.get();
+            long held = state;
+            if (exclusiveOwner) {
+                held &= ~X_BIT;
             }
-            if (logger.isDebugEnabled()) {
-                logger.debug("releasing " + uri);
+            if (subtreeOwner) {
+                held &= ~XT_BIT;
+            }
+            if ((held & conflicts) != 0) {
+                return false;
             }
 
-            returnLock(lock);
+            long next = state;
+            if ((modes & IS) != 0) {
+                if ((state & IS_HELD) == IS_HELD) return false;
+                next += 1L << IS_SHIFT;
+            }
+            if ((modes & IX) != 0) {
+                if ((state & IX_HELD) == IX_HELD) return false;
+                next += 1L << IX_SHIFT;
+            }
+            if ((modes & S) != 0) {
+                if ((state & S_HELD) == S_HELD) return false;
+                next += 1L << S_SHIFT;
+            }
+            if ((modes & ST) != 0) {
+                if ((state & ST_HELD) == ST_HELD) return false;
+                next += 1L << ST_SHIFT;
+            }
+            if ((modes & X) != 0) {
+                next |= X_BIT;
+            }
+            if ((modes & XT) != 0) {
+                next |= XT_BIT;
+            }
+
+            if (lock.state.compareAndSet(state, next)) {
+                if ((modes & X) != 0) {
+                    if (exclusiveOwner) {
+                        lock.exclusiveHolds++;
+                    } else {
+                        lock.exclusiveOwner = thread;
+                        lock.exclusiveHolds = 1;
+                    }
+                }
+                if ((modes & XT) != 0) {
+                    if (subtreeOwner) {
+                        lock.subtreeHolds++;
+                    } else {
+                        lock.subtreeOwner = thread;
+                        lock.subtreeHolds = 1;
+                    }
+                }
+                return true;
+            }
         }
+    }
+
+    private void release(PathLock lock, int modes) {
+        long clear = 0;
+        if ((modes & X) != 0 && --lock.exclusiveHolds == 0) {
+            lock.exclusiveOwner = null;
+            clear |= X_BIT;
+        }
+        if ((modes & XT) != 0 && --lock.subtreeHolds == 0) {
+            lock.subtreeOwner = null;
+            clear |= XT_BIT;
+        }
+        long decrement = 0;
+        if ((modes & IS) != 0) decrement += 1L << IS_SHIFT;
+        if ((modes & IX) != 0) decrement += 1L << IX_SHIFT;
+        if ((modes & S) != 0) decrement += 1L << S_SHIFT;
+        if ((modes & ST) != 0) decrement += 1L << ST_SHIFT;
+
+        for (;;) {
+            long state = lock.state.get();
+            long next = (state & ~clear) - decrement;
+            if (lock.state.compareAndSet(state, next)) {
+                break;
+            }
+        }
+
+        // Waiters register under the lock monitor before their last
+        // attempt, so either they see the new state or they are notified.
+        if (lock.waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
 
-        lock.unlock(exclusive); // Allow other threads waiting for this lock to proceed
+    private static long conflicts(int modes) {
+        long conflicts = 0;
+        if ((modes & IS) != 0) conflicts |= XT_BIT;
+        if ((modes & IX) != 0) conflicts |= ST_HELD | XT_BIT;
+        if ((modes & S) != 0) conflicts |= X_BIT | XT_BIT;
+        if ((modes & X) != 0) conflicts |= S_HELD | X_BIT | ST_HELD | XT_BIT;
+        if ((modes & ST) != 0) conflicts |= IX_HELD | X_BIT | XT_BIT;
+        if ((modes & XT) != 0) conflicts |= IS_HELD | IX_HELD | S_HELD | X_BIT | ST_HELD | XT_BIT;
+        return conflicts;
     }
-    
+
     /**
      * Gets a lock instance. The instance maps one to one to resource
-     * URIs. This method itself never blocks for a long time.
+     * URIs, except for the root, which is striped. This method never blocks.
      *
-     * @param uri the URI for which to get the lock
+     * @param uri the URI for which to get the lock, not the root
      * @return the lock object corresponding to the URI
      */
     private PathLock getLock(Path uri) {
-        PathLock lock = null;
-        synchronized(this.locks) {
-            lock = this.locks.get(uri);
+        for (;;) {
+            PathLock lock = this.locks.get(uri);
             if (lock == null) {
-                lock = new PathLock(uri);
-                this.locks.put(uri, lock);
+                PathLock created = new PathLock(uri);
+                lock = this.locks.putIfAbsent(uri, created);
+                if (lock == null) {
+                    return created;
+                }
+            }
+            int useCount = lock.useCount.get();
+            if (useCount > 0) {
+                if (lock.useCount.compareAndSet(useCount, useCount + 1)) {
+                    return lock;
+                }
+            } else {
+                // Being disposed of, help remove it and retry
+                this.locks.remove(uri, lock);
             }
-            ++lock.useCount;
         }
-
-        return lock;
     }
 
     /**
      * Returns a lock object (not the same as releasing the lock) so it may be
-     * disposed of if no longer in use.
+     * disposed of if no longer in use. A lock object whose use count has
+     * reached zero is never used again.
      * @param lock The lock object to return.
      */
     private void returnLock(PathLock lock) {
-        synchronized (this.locks) {
-            if (--lock.useCount <= 0) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Use count for lock on path '"
-                            + lock.uri
-                            + "' reached "
-                            + lock.useCount + ", disposing it.");
-                }
-                this.locks.remove(lock.uri);
+        if (lock.uri.isRoot()) {
+            return;
+        }
+        if (lock.useCount.decrementAndGet() == 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Use count for lock on path '" + lock.uri + "' reached 0, disposing it.");
+            }
+            this.locks.remove(lock.uri, lock);
+        }
+    }
+
+    private ContentionStatistics statistics(Path prefix) {
+        ContentionStatistics stats = this.statistics.get(prefix);
+        if (stats == null) {
+            stats = new ContentionStatistics(prefix);
+            ContentionStatistics existing = this.statistics.putIfAbsent(prefix, stats);
+            if (existing != null) {
+                stats = existing;
             }
         }
+        return stats;
     }
 
-    private final class PathLock {
-        private final ReentrantReadWriteLock lockImpl;
-        private final Path uri;
-        int useCount = 0;
-        
+    private static PathLock[] newRootLocks() {
+        // A power of two, so that stripes can be selected by masking
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        PathLock[] locks = new PathLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new PathLock(Path.ROOT);
+        }
+        return locks;
+    }
+
+    private static final class PathLock {
+        final Path uri;
+        final AtomicInteger useCount = new AtomicInteger(1);
+        final AtomicLong state = new AtomicLong(0);
+
+        // Owners of exclusive modes, hold counts only accessed by owner
+        volatile Thread exclusiveOwner = null;
+        int exclusiveHolds = 0;
+        volatile Thread subtreeOwner = null;
+        int subtreeHolds = 0;
+
+        // Modified while synchronized on this object
+        volatile int waiters = 0;
+        volatile int exclusiveWaiters = 0;
+
         PathLock(Path uri) {
             this.uri = uri;
-            this.lockImpl = new ReentrantReadWriteLock(fairLocking);
         }
-        
-        boolean tryLock(long timeout, TimeUnit timeUnit, boolean exclusive) {
-            try {
-                if (exclusive) {
-                    return this.lockImpl.writeLock().tryLock(timeout, timeUnit);
-                } else {
-                    return this.lockImpl.readLock().tryLock(timeout, timeUnit);
+
+        @Override
+        public String toString() {
+            return "Lock[URI = " + this.uri + ", state = " + Long.toHexString(this.state.get()) + "]";
+        }
+    }
+
+    private static final class Target {
+        final Path uri;
+        final Path prefix;
+        int modes = 0;
+
+        Target(Path uri, Path prefix) {
+            this.uri = uri;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(this.uri.toString()).append(" (");
+            String[] names = {"IS", "IX", "S", "X", "ST", "XT"};
+            for (int i = 0, n = 0; i < names.length; i++) {
+                if ((this.modes & (1 << i)) != 0) {
+                    sb.append(n++ > 0 ? "," : "").append(names[i]);
                 }
-            } catch (InterruptedException ie) {
-                logger.warn("InterruptedException while waiting for lock on path " + this.uri, ie);
-                return false;
             }
+            return sb.append(")").toString();
         }
-        
-        void unlock(boolean exclusive) {
-            if (exclusive) {
-                this.lockImpl.writeLock().unlock();
-            } else {
-                this.lockImpl.readLock().unlock();
+    }
+
+    /**
+     * Locks claimed by a single call to one of the <code>lock</code>
+     * methods. Can only be created by the lock manager.
+     */
+    public static final class Claim {
+        private final PathLock[] locks;
+        private final int[] modes;
+        private final boolean exclusive;
+        private int size = 0;
+        private boolean released = false;
+
+        private Claim(int capacity, boolean exclusive) {
+            this.locks = new PathLock[capacity];
+            this.modes = new int[capacity];
+            this.exclusive = exclusive;
+        }
+
+        private void add(PathLock lock, int modes) {
+            this.locks[this.size] = lock;
+            this.modes[this.size] = modes;
+            this.size++;
+        }
+
+        /**
+         * @return the paths locked, including ancestors locked with
+         * intention locks
+         */
+        public List<Path> getPaths() {
+            List<Path> paths = new ArrayList<Path>(this.size);
+            for (int i = 0; i < this.size; i++) {
+                // Root stripes are consecutive
+                if (i == 0 || this.locks[i].uri != this.locks[i - 1].uri) {
+                    paths.add(this.locks[i].uri);
+                }
+            }
+            return paths;
+        }
+
+        public boolean isExclusive() {
+            return this.exclusive;
+        }
+
+        @Override
+        public String toString() {
+            return "Claim[" + getPaths() + (this.exclusive ? ", exclusive" : "") + "]";
+        }
+    }
+
+    /**
+     * Lock contention statistics for a path prefix.
+     */
+    public static final class ContentionStatistics {
+        private final Path prefix;
+        private final AtomicLong acquisitions = new AtomicLong(0);
+        private final AtomicLong waits = new AtomicLong(0);
+        private final AtomicLong timeouts = new AtomicLong(0);
+        private final AtomicLong waitNanos = new AtomicLong(0);
+        private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+        private ContentionStatistics(Path prefix) {
+            this.prefix = prefix;
+        }
+
+        private void record(long nanos, boolean acquired) {
+            this.waits.incrementAndGet();
+            if (!acquired) {
+                this.timeouts.incrementAndGet();
+            }
+            this.waitNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = this.maxWaitNanos.get())) {
+                if (this.maxWaitNanos.compareAndSet(max, nanos)) {
+                    break;
+                }
             }
         }
-        
+
+        public Path getPrefix() {
+            return this.prefix;
+        }
+
+        /**
+         * @return number of locks acquired on paths with this prefix
+         */
+        public long getAcquisitions() {
+            return this.acquisitions.get();
+        }
+
+        /**
+         * @return number of lock requests which had to wait
+         */
+        public long getWaits() {
+            return this.waits.get();
+        }
+
+        /**
+         * @return number of lock requests which gave up waiting
+         */
+        public long getTimeouts() {
+            return this.timeouts.get();
+        }
+
+        public long getTotalWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.get());
+        }
+
+        public long getMaxWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+        }
+
         @Override
         public String toString() {
-            return "Lock[URI = " + this.uri + (this.lockImpl.isWriteLocked() ? ", locked exclusively" : "") + "]";
+            return this.prefix + ": acquisitions = " + getAcquisitions() + ", waits = " + getWaits()
+                    + ", timeouts = " + getTimeouts() + ", total wait = " + getTotalWaitMillis() 
+                    + " ms, max wait = " + getMaxWaitMillis() + " ms";
         }
     }
 
@@ -267,4 +733,19 @@ public class PathLockManager {
     public void setFairLocking(boolean fairLocking) {
         this.fairLocking = fairLocking;
     }
+
+    public void setGatherStatistics(boolean gatherStatistics) {
+        this.gatherStatistics = gatherStatistics;
+    }
+
+    /**
+     * @param statisticsDepth number of path levels to group contention
+     * statistics on. Default is <code>2</code>.
+     */
+    public void setStatisticsDepth(int statisticsDepth) {
+        if (statisticsDepth < 0) {
+            throw new IllegalArgumentException("JavaBean property 'statisticsDepth' cannot be negative");
+        }
+        this.statisticsDepth = statisticsDepth;
+    }
 }
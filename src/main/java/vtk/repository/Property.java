@@ -32,6 +32,7 @@ package vtk.repository;
 
 import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
 
 import vtk.repository.resourcetype.PropertyType.Type;
 import vtk.repository.resourcetype.PropertyTypeDefinition;
@@ -99,6 +100,8 @@ public interface Property extends Cloneable {
     public Principal getPrincipalValue() throws IllegalOperationException;
     
     public Json.MapContainer getJSONValue() throws IllegalOperationException;
+
+    public Map<String, Object> getUnmodifiableJSONValue() throws IllegalOperationException;
     
     public void setJSONValue(Json.MapContainer value);
 
@@ -305,6 +305,14 @@ public class PropertyImpl implements Cloneable, Property {
         }
         return this.value.getJSONValue();
     }
+
+    @Override
+    public Map<String, Object> getUnmodifiableJSONValue() throws IllegalOperationException {
+        if (this.value == null || getType() != PropertyType.Type.JSON) {
+            throw new IllegalOperationException("Property " + this + " not of type JSON");
+        }
+        return this.value.getUnmodifiableJSONValue();
+    }
     
     @Override
     public void setJSONValue(Json.MapContainer jsonObject) {
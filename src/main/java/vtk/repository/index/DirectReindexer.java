@@ -45,18 +45,46 @@ import vtk.security.Principal;
  * A simple re-indexer that works directly on the provided <code>PropertySetIndex</code> instance.
  * Locking is handled internally.
  * 
+ * <p>With more than one indexing thread, re-indexing runs as a pipeline: rows are
+ * streamed from the database in one thread, property sets are assembled in the
+ * calling thread, mapped to index documents on a pool of threads and added to
+ * the index in batches by a writer thread. Documents are added in the same
+ * order as when indexing sequentially. The pipeline requires a
+ * {@link PropertySetIndexImpl} target; other index implementations are always
+ * re-indexed sequentially.
+ * 
  * @author oyviste
  *
  */
 public class DirectReindexer implements PropertySetIndexReindexer {
 
+    private static final int STREAMING_BUFFER_SIZE = 1000;
+    private static final int PIPELINE_QUEUE_SIZE = 2000;
+    private static final int PIPELINE_BATCH_SIZE = 500;
+
     private PropertySetIndex targetIndex;
     private IndexDao indexDao;
+    private final int indexingThreads;
     private final Log logger = LogFactory.getLog(DirectReindexer.class);
     
     public DirectReindexer(PropertySetIndex targetIndex, IndexDao indexDao) {
+        this(targetIndex, indexDao, 1);
+    }
+    
+    /**
+     * @param targetIndex the index to re-index
+     * @param indexDao the source of property sets
+     * @param indexingThreads the number of threads mapping property sets to
+     * index documents. With a value of 1, everything is done sequentially
+     * in the calling thread.
+     */
+    public DirectReindexer(PropertySetIndex targetIndex, IndexDao indexDao, int indexingThreads) {
+        if (indexingThreads < 1) {
+            throw new IllegalArgumentException("Number of indexing threads must be at least 1");
+        }
         this.targetIndex = targetIndex;
         this.indexDao = indexDao;
+        this.indexingThreads = indexingThreads;
     }
     
     @Override
@@ -91,25 +119,56 @@ public class DirectReindexer implements PropertySetIndexReindexer {
             logger.info("Clearing index contents ..");
             targetIndex.clear();
 
-            logger.info("Starting re-indexing ..");
-            AddAllPropertySetHandler handler = 
-                new AddAllPropertySetHandler(this.targetIndex);
+            int count;
+            if (this.indexingThreads > 1 && this.targetIndex instanceof PropertySetIndexImpl) {
+                logger.info("Starting re-indexing with " + this.indexingThreads + " indexing threads ..");
+                count = runPipeline((PropertySetIndexImpl) this.targetIndex);
+            } else {
+                if (this.indexingThreads > 1) {
+                    // The pipeline adds documents directly to the Lucene index
+                    logger.warn("Index '" + this.targetIndex.getId() + "' of type " 
+                            + this.targetIndex.getClass().getName() 
+                            + " does not support parallel re-indexing, ignoring " 
+                            + this.indexingThreads + " configured indexing threads");
+                }
+                logger.info("Starting re-indexing ..");
+                AddAllPropertySetHandler handler = 
+                    new AddAllPropertySetHandler(this.targetIndex);
             
-            this.indexDao.orderedPropertySetIteration(handler);
+                this.indexDao.orderedPropertySetIteration(handler);
+                count = handler.getCount();
+            }
             
             targetIndex.commit();
             if (logger.isInfoEnabled()) {
                 logger.info("Index '" + this.targetIndex.getId() + "' committed, "
-                        + handler.getCount() + " property sets indexed successfully");
+                        + count + " property sets indexed successfully");
             }
             
-            return handler.getCount();
+            return count;
         } catch (Exception e) {
             logger.warn("Exception while re-indexing", e);
             throw new IndexException(e);
         }
     }
     
+    private int runPipeline(PropertySetIndexImpl index) throws IndexException {
+        ReindexPipeline pipeline = new ReindexPipeline(index, this.indexingThreads, 
+                PIPELINE_QUEUE_SIZE, PIPELINE_BATCH_SIZE);
+        pipeline.start();
+        boolean finished = false;
+        try {
+            this.indexDao.orderedPropertySetIteration(pipeline, STREAMING_BUFFER_SIZE);
+            int count = pipeline.finish();
+            finished = true;
+            return count;
+        } finally {
+            if (!finished) {
+                pipeline.abort();
+            }
+        }
+    }
+    
     private class AddAllPropertySetHandler implements PropertySetHandler {
         
         private final PropertySetIndex index;
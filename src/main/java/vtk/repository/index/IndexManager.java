@@ -8,6 +8,9 @@ package vtk.repository.index;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -16,6 +19,8 @@ import org.apache.lucene.index.CheckIndex;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.SearcherFactory;
 import org.apache.lucene.search.SearcherManager;
@@ -44,22 +49,38 @@ import vtk.util.threads.Mutex;
  * <p>Configurable properties:
  * <ul>
  *   <li><code>indexPath</code> - absolute path to file system directory where index should be created.
+ *   <li><code>maxSearcherStaleSeconds</code> - if greater than zero, searchers are
+ *   refreshed in the background at least this often instead of on every commit.
+ *   <li><code>minSearcherStaleSeconds</code> - minimum time between background
+ *   refreshes when someone is waiting for the latest commit.
+ *   <li><code>formatVersion</code> - the current index format version. New
+ *   indexes are marked with this version, and an index with a different
+ *   version should be rebuilt.
  *   <li>TODO complete me.
  * </ul>
  * 
- * TODO we should support a lazy reader with longer time between refreshes for efficient
- * anonymous queries which do not requre completely up-to-date results.
+ * <p>With background refresh, searchers obtained with {@link #getIndexSearcher() }
+ * always see all committed changes, waiting for a refresh if necessary. Searchers
+ * obtained with {@link #getIndexSearcher(int) } may lag behind commits by the
+ * given dirty age, which lets a burst of commits be covered by a single refresh.
  */
 public class IndexManager implements InitializingBean, DisposableBean {
     
     private final Log logger = LogFactory.getLog(IndexManager.class.getName());
     
+    /** Key of index format version in Lucene commit user data */
+    public static final String FORMAT_VERSION_COMMIT_DATA_KEY = "vtk.formatVersion";
+    
     private File storageRootPath;
     private String storageId;
     private boolean batchIndexingMode = false;
     private int maxLockAcquireTimeOnShutdown = 30; // 30 seconds max to wait for mutex lock when shutting down
     private boolean forceUnlock = true;
     private boolean closeAfterInit = false;
+    private String formatVersion = null;
+    
+    // Format version of the index last opened
+    private volatile String storedFormatVersion = null;
 
     // Lucene directory abstraction
     private volatile Directory directory;
@@ -72,6 +93,15 @@ public class IndexManager implements InitializingBean, DisposableBean {
     
     // Searcher factory is used to create new IndexSearcher instances in SearcherManager
     private SearcherFactory searcherFactory;
+    
+    // Background refresh of searchers, null unless maxSearcherStaleSeconds > 0
+    private TrackingIndexWriter trackingWriter;
+    private volatile ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+    private double maxSearcherStaleSeconds = 0;
+    private double minSearcherStaleSeconds = 0;
+    
+    // Commits not yet known to be visible to searchers, in commit order
+    private final ConcurrentLinkedQueue<CommitPoint> pendingCommits = new ConcurrentLinkedQueue<CommitPoint>();
 
     // Internal mutex lock backing the public locking functions of this class.
     private final Mutex lock = new Mutex();
@@ -110,11 +140,27 @@ public class IndexManager implements InitializingBean, DisposableBean {
 
         writer = new IndexWriter(directory, newIndexWriterConfig());
         
+        // Commit data is kept for all following commits by this writer
+        storedFormatVersion = writer.getCommitData().get(FORMAT_VERSION_COMMIT_DATA_KEY);
+        if (formatVersion != null && !formatVersion.equals(storedFormatVersion)) {
+            logger.warn("Index '" + storageId + "' has format version " + storedFormatVersion
+                    + ", current version is " + formatVersion + ". Index should be rebuilt.");
+        }
+        
         // For Lucene NRT (Near Real Time) searching, the writer instance could be provided to
         // the searcher factory here. However, due to how we update documents, it is
         // undesirable to let searches see uncomitted index changes. So we simply
-        // don't use NRT.
+        // don't use NRT. Background refresh only ever opens committed changes.
         searcherManager = new SearcherManager(directory, searcherFactory);
+        
+        if (maxSearcherStaleSeconds > 0) {
+            trackingWriter = new TrackingIndexWriter(writer);
+            reopenThread = new ControlledRealTimeReopenThread<IndexSearcher>(trackingWriter,
+                    searcherManager, maxSearcherStaleSeconds, minSearcherStaleSeconds);
+            reopenThread.setName("index-refresh-" + storageId);
+            reopenThread.setDaemon(true);
+            reopenThread.start();
+        }
     }
 
     /**
@@ -127,6 +173,13 @@ public class IndexManager implements InitializingBean, DisposableBean {
      * @throws IOException in case of errors closing down.
      */
     public synchronized void close() throws IOException {
+        if (reopenThread != null) {
+            reopenThread.close();
+            reopenThread = null;
+            trackingWriter = null;
+            pendingCommits.clear();
+        }
+        
         if (searcherManager != null) {
             searcherManager.close();
         }
@@ -158,8 +211,10 @@ public class IndexManager implements InitializingBean, DisposableBean {
      * Commit all changes made through the provided {@link #getIndexWriter() IndexWriter }
      * instance and refresh readers for searching.
      * 
-     * This call will block until all changes are flushed to index and reader
-     * instances have been refreshed.
+     * This call will block until all changes are flushed to index. Without
+     * background refresh, it also blocks until reader instances have been
+     * refreshed. With background refresh, the commit is recorded, and the
+     * changes become visible at the next refresh.
      * 
      * @throws IOException in case of errors comitting the changes or if index is closed.
      */
@@ -169,7 +224,13 @@ public class IndexManager implements InitializingBean, DisposableBean {
         }
         
         writer.commit();
-        searcherManager.maybeRefreshBlocking();
+        if (reopenThread != null) {
+            // Any refresh started after this point will see the commit
+            pendingCommits.add(new CommitPoint(trackingWriter.getGeneration(),
+                    System.currentTimeMillis()));
+        } else {
+            searcherManager.maybeRefreshBlocking();
+        }
     }
 
     /**
@@ -187,7 +248,7 @@ public class IndexManager implements InitializingBean, DisposableBean {
     }
     
     /**
-     * Obtain an index searcher.
+     * Obtain an index searcher which sees all changes committed to the index.
      * 
      * You should release the obtained searcher after use in a finally block, by calling
      * {@link #releaseIndexSearcher(org.apache.lucene.search.IndexSearcher) }.
@@ -196,10 +257,32 @@ public class IndexManager implements InitializingBean, DisposableBean {
      * @throws IOException 
      */
     public IndexSearcher getIndexSearcher() throws IOException {
+        return getIndexSearcher(0);
+    }
+
+    /**
+     * Obtain an index searcher which may be missing changes committed less than
+     * <code>maxDirtyAge</code> seconds ago. Only has effect with background
+     * refresh, otherwise all committed changes are always visible.
+     * 
+     * You should release the obtained searcher after use in a finally block, by calling
+     * {@link #releaseIndexSearcher(org.apache.lucene.search.IndexSearcher) }.
+     * 
+     * @param maxDirtyAge max acceptable age in seconds of changes not visible
+     * to the searcher
+     * @return 
+     * @throws IOException 
+     */
+    public IndexSearcher getIndexSearcher(int maxDirtyAge) throws IOException {
         if (isClosed()) {
             throw new IOException("Index is closed");
         }
         
+        ControlledRealTimeReopenThread<IndexSearcher> rt = reopenThread;
+        if (rt != null) {
+            awaitCommits(rt, maxDirtyAge);
+        }
+        
         // Guard against possible NPE if index is being closed at the same time
         // this method is called
         SearcherManager sm = searcherManager;
@@ -233,6 +316,47 @@ public class IndexManager implements InitializingBean, DisposableBean {
         logger.debug("searcher.getIndexReader().getRefCount() = " + searcher.getIndexReader().getRefCount());
     }
     
+    /**
+     * Wait until searchers see all commits older than the given dirty age.
+     */
+    private void awaitCommits(ControlledRealTimeReopenThread<IndexSearcher> rt, int maxDirtyAge)
+            throws IOException {
+        final long cutoff = System.currentTimeMillis() - maxDirtyAge * 1000L;
+        long waitForGen = -1;
+        for (CommitPoint commit: pendingCommits) {
+            if (commit.timestamp > cutoff) {
+                break;
+            }
+            waitForGen = commit.generation;
+        }
+        if (waitForGen == -1) {
+            return;
+        }
+        
+        try {
+            // Returns immediately if a refresh covering the generation is done
+            rt.waitForGeneration(waitForGen);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for index refresh");
+        }
+        
+        // Commits up to the awaited generation are now visible
+        CommitPoint head;
+        while ((head = pendingCommits.peek()) != null && head.generation <= waitForGen) {
+            pendingCommits.remove(head);
+        }
+    }
+    
+    private static final class CommitPoint {
+        final long generation;
+        final long timestamp;
+        CommitPoint(long generation, long timestamp) {
+            this.generation = generation;
+            this.timestamp = timestamp;
+        }
+    }
+    
     /** Check index filesystem-lock, force-unlock if requested. */
     private void checkIndexLock(Directory directory) throws IOException {
         if (IndexWriter.isLocked(directory)) {
@@ -251,7 +375,12 @@ public class IndexManager implements InitializingBean, DisposableBean {
         if (!DirectoryReader.indexExists(directory) || createNew) {
             IndexWriterConfig conf = newIndexWriterConfig();
             conf.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-            new IndexWriter(directory, conf).close();
+            IndexWriter w = new IndexWriter(directory, conf);
+            if (formatVersion != null) {
+                w.setCommitData(Collections.singletonMap(FORMAT_VERSION_COMMIT_DATA_KEY, formatVersion));
+            }
+            w.commit();
+            w.close();
             logger.info("Created new index in directory " + directory);
         }
     }
@@ -385,6 +514,17 @@ public class IndexManager implements InitializingBean, DisposableBean {
         }
     }
 
+    /**
+     * Check if the index has the current format version. Always
+     * <code>true</code> if no format version is configured.
+     * 
+     * @return <code>true</code> if the index was created with the
+     * configured format version, as of when it was last opened.
+     */
+    public boolean isCurrentFormat() {
+        return formatVersion == null || formatVersion.equals(storedFormatVersion);
+    }
+    
     /**
      * 
      * @return storage id as a string
@@ -396,6 +536,10 @@ public class IndexManager implements InitializingBean, DisposableBean {
     // Framework life-cycle
     @Override
     public void afterPropertiesSet() throws IOException {
+        if (maxSearcherStaleSeconds > 0 && minSearcherStaleSeconds > maxSearcherStaleSeconds) {
+            throw new IllegalArgumentException(
+                    "minSearcherStaleSeconds cannot be greater than maxSearcherStaleSeconds");
+        }
         open();
         if (closeAfterInit) {
             close();
@@ -444,6 +588,49 @@ public class IndexManager implements InitializingBean, DisposableBean {
         this.searcherFactory = searcherFactory;
     }
     
+    /**
+     * Set the current index format version. New indexes are marked with this
+     * version, and {@link #isCurrentFormat() } tells if an existing index has
+     * a different version.
+     * 
+     * @param formatVersion the format version
+     */
+    public void setFormatVersion(String formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+    
+    /**
+     * Set the maximum time between background refreshes of index searchers. If
+     * greater than zero, searchers are not refreshed on every commit, but by a
+     * background thread at least this often, or sooner when a searcher which
+     * must see the latest commit is requested. Default is zero, which refreshes
+     * searchers on every commit.
+     * 
+     * <p>Takes effect the next time the index is opened.
+     * 
+     * @param maxSearcherStaleSeconds max time between refreshes in seconds
+     */
+    public void setMaxSearcherStaleSeconds(double maxSearcherStaleSeconds) {
+        if (maxSearcherStaleSeconds < 0) {
+            throw new IllegalArgumentException("Argument cannot be negative");
+        }
+        this.maxSearcherStaleSeconds = maxSearcherStaleSeconds;
+    }
+
+    /**
+     * Set the minimum time between background refreshes of index searchers
+     * when a searcher which must see the latest commit is requested. Must not
+     * be greater than the max stale time. Default is zero.
+     * 
+     * @param minSearcherStaleSeconds min time between refreshes in seconds
+     */
+    public void setMinSearcherStaleSeconds(double minSearcherStaleSeconds) {
+        if (minSearcherStaleSeconds < 0) {
+            throw new IllegalArgumentException("Argument cannot be negative");
+        }
+        this.minSearcherStaleSeconds = minSearcherStaleSeconds;
+    }
+    
     /**
      * Set the storage id of this index. The storage id is the name of the index
      * directory created under the storage root path. Thus the provided id should
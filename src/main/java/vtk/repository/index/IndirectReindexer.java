@@ -54,15 +54,27 @@ public class IndirectReindexer implements PropertySetIndexReindexer {
     private final IndexDao indexDao;
     private final PropertySetIndex targetIndex;
     private final PropertySetIndex temporaryIndex;
+    private final int indexingThreads;
     private static final Log LOG = LogFactory.getLog(IndirectReindexer.class);
     
     public IndirectReindexer(PropertySetIndex targetIndex, 
                              PropertySetIndex temporaryIndex,
                              IndexDao indexDao) {
+        this(targetIndex, temporaryIndex, indexDao, 1);
+    }
+    
+    /**
+     * @see DirectReindexer#DirectReindexer(PropertySetIndex, IndexDao, int)
+     */
+    public IndirectReindexer(PropertySetIndex targetIndex, 
+                             PropertySetIndex temporaryIndex,
+                             IndexDao indexDao,
+                             int indexingThreads) {
         
         this.targetIndex = targetIndex;
         this.temporaryIndex = temporaryIndex;
         this.indexDao = indexDao;
+        this.indexingThreads = indexingThreads;
     }
     
     @Override
@@ -89,7 +101,8 @@ public class IndirectReindexer implements PropertySetIndexReindexer {
             LOG.info("Initiating re-indexing to temporary index '" 
                                             + this.temporaryIndex.getId() + "'");
             int count = 
-                new DirectReindexer(this.temporaryIndex, this.indexDao).runWithExternalLocking();
+                new DirectReindexer(this.temporaryIndex, this.indexDao, this.indexingThreads)
+                        .runWithExternalLocking();
             
             LOG.info("Clearing contents of target index '" + this.targetIndex.getId() + "' now");
             this.targetIndex.clear();
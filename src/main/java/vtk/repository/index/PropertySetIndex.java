@@ -174,6 +174,13 @@ public interface PropertySetIndex {
      */
     public boolean isClosed();
     
+    /**
+     * Determine if the index was built with the current index format. If not,
+     * the index should be rebuilt.
+     * @return <code>true</code> if the index has the current format.
+     */
+    public boolean isCurrentFormat();
+    
     /**
      * Re-initialize the index. Should be used to re-open a previously
      * closed instance.
@@ -32,6 +32,7 @@ package vtk.repository.index;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -76,6 +77,18 @@ public class PropertySetIndexImpl implements PropertySetIndex {
         // NOTE: Write-locking should be done above this level.
         // This is needed to ensure the possibility of efficiently batching
         // together operations without interruption.
+        try {
+            this.index.getIndexWriter().addDocument(createDocument(propertySet, acl));
+        } catch (IOException io) {
+            throw new IndexException(io);
+        }
+    }
+
+    /**
+     * Maps a property set to an index document without adding it to the
+     * index. Safe for concurrent use.
+     */
+    Document createDocument(PropertySet propertySet, Acl acl) throws IndexException {
         try {
             Document doc = this.documentMapper.getDocument((PropertySetImpl) propertySet, acl);
             if (logger.isDebugEnabled()) {
@@ -85,11 +98,20 @@ public class PropertySetIndexImpl implements PropertySetIndex {
                 }
                 logger.debug(docFields.toString());
             }
-
-            this.index.getIndexWriter().addDocument(doc);
+            return doc;
         } catch (DocumentMappingException dme) {
             logger.warn("Could not map property set to index document", dme);
             throw new IndexException("Could not map property set to index document", dme);
+        }
+    }
+
+    /**
+     * Adds a batch of documents created by {@link #createDocument(PropertySet, Acl)}
+     * to the index, in order.
+     */
+    void addDocuments(List<Document> documents) throws IndexException {
+        try {
+            this.index.getIndexWriter().addDocuments(documents);
         } catch (IOException io) {
             throw new IndexException(io);
         }
@@ -266,6 +288,11 @@ public class PropertySetIndexImpl implements PropertySetIndex {
         return this.index.isClosed();
     }
 
+    @Override
+    public boolean isCurrentFormat() {
+        return this.index.isCurrentFormat();
+    }
+
 
     @Override
     public void commit() throws IndexException {
@@ -0,0 +1,272 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+import vtk.repository.Acl;
+import vtk.repository.PropertySet;
+import vtk.repository.store.PropertySetHandler;
+
+/**
+ * Re-indexing pipeline which maps property sets to index documents on a pool
+ * of threads, and adds the documents to the index in batches from a single
+ * writer thread.
+ * 
+ * <p>Documents are added in the order property sets are handed to
+ * {@link #handlePropertySet(PropertySet, Acl)}, so the resulting index is
+ * identical to one built by adding the property sets sequentially. The
+ * number of property sets handed in but not yet written is bounded by the
+ * queue size, and the handing thread blocks when the limit is reached.
+ */
+final class ReindexPipeline implements PropertySetHandler {
+
+    private static final Log LOG = LogFactory.getLog(ReindexPipeline.class);
+
+    private static final Future<Document> END = new FutureTask<Document>(new Callable<Document>() {
+        @Override
+        public Document call() {
+            return null;
+        }
+    });
+
+    private final PropertySetIndexImpl index;
+    private final int batchSize;
+    private final ExecutorService mappers;
+    private final BlockingQueue<Future<Document>> queue;
+    private final Thread writer;
+    private volatile Throwable failure = null;
+
+    private final Stage input = new Stage("input");
+    private final Stage mapping = new Stage("mapping");
+    private final Stage writing = new Stage("writing");
+    private long startTime;
+
+    /**
+     * @param index the index to add documents to
+     * @param mapperThreads the number of threads mapping property sets to
+     * documents
+     * @param queueSize the maximum number of property sets handed in, but not
+     * yet taken by the writer
+     * @param batchSize the number of documents to add to the index at a time
+     */
+    ReindexPipeline(PropertySetIndexImpl index, int mapperThreads, int queueSize, int batchSize) {
+        this.index = index;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<Future<Document>>(queueSize);
+        this.mappers = Executors.newFixedThreadPool(mapperThreads, new ThreadFactory() {
+            private final AtomicInteger n = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "reindexer-mapper-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "reindexer-writer");
+        this.writer.setDaemon(true);
+    }
+
+    void start() {
+        this.startTime = System.currentTimeMillis();
+        this.writer.start();
+    }
+
+    @Override
+    public void handlePropertySet(final PropertySet propertySet, final Acl acl) {
+        long start = System.nanoTime();
+        Future<Document> document = this.mappers.submit(new Callable<Document>() {
+            @Override
+            public Document call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return index.createDocument(propertySet, acl);
+                } finally {
+                    mapping.add(System.nanoTime() - start);
+                }
+            }
+        });
+        put(document);
+        long count = this.input.add(System.nanoTime() - start);
+
+        if (count % 10000 == 0) {
+            LOG.info("Reindexing progress: " + count + " resources handed to pipeline, " 
+                    + this.writing.count() + " indexed.");
+        }
+    }
+
+    /**
+     * Waits for all documents to be written to the index, and stops the
+     * pipeline.
+     * 
+     * @return the number of documents written
+     * @throws IndexException if any stage of the pipeline failed
+     */
+    int finish() throws IndexException {
+        try {
+            put(END);
+            this.writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IndexException("Interrupted while waiting for index writer", ie);
+        } finally {
+            this.mappers.shutdown();
+        }
+        checkFailure();
+
+        if (LOG.isInfoEnabled()) {
+            long elapsed = Math.max(System.currentTimeMillis() - this.startTime, 1);
+            LOG.info("Reindexing pipeline finished in " + elapsed + " ms: " 
+                    + this.input.report(elapsed, "blocked on full queue") + ", " 
+                    + this.mapping.report(elapsed, "busy") + ", " 
+                    + this.writing.report(elapsed, "busy"));
+        }
+        return (int) this.writing.count();
+    }
+
+    /**
+     * Stops the pipeline without waiting for queued documents to be
+     * written.
+     */
+    void abort() {
+        this.mappers.shutdownNow();
+        this.writer.interrupt();
+        try {
+            this.writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(Future<Document> document) {
+        try {
+            while (!this.queue.offer(document, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IndexException("Interrupted while queueing document", ie);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IndexException {
+        Throwable t = this.failure;
+        if (t == null) {
+            return;
+        }
+        if (t instanceof IndexException) {
+            throw (IndexException) t;
+        }
+        throw new IndexException("Reindexing pipeline failed", t);
+    }
+
+    private void write() {
+        List<Document> batch = new ArrayList<Document>(this.batchSize);
+        try {
+            while (true) {
+                Future<Document> document = this.queue.take();
+                if (document != END) {
+                    batch.add(document.get());
+                }
+                if (batch.size() >= this.batchSize || (document == END && !batch.isEmpty())) {
+                    long start = System.nanoTime();
+                    this.index.addDocuments(batch);
+                    this.writing.add(System.nanoTime() - start, batch.size());
+                    batch.clear();
+                }
+                if (document == END) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ie) {
+            // Aborted
+        } catch (ExecutionException ee) {
+            this.failure = ee.getCause();
+        } catch (Throwable t) {
+            this.failure = t;
+        }
+    }
+
+    /**
+     * Item count and time spent in a single stage of the pipeline.
+     */
+    private static final class Stage {
+        private final String name;
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong nanos = new AtomicLong(0);
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        long add(long nanos) {
+            return add(nanos, 1);
+        }
+
+        long add(long nanos, int items) {
+            this.nanos.addAndGet(nanos);
+            return this.count.addAndGet(items);
+        }
+
+        long count() {
+            return this.count.get();
+        }
+
+        String report(long elapsedMillis, String timeDescription) {
+            long n = this.count.get();
+            return this.name + " " + n + " (" + (n * 1000 / elapsedMillis) + "/s, " 
+                    + (this.nanos.get() / 1000000) + " ms " + timeDescription + ")";
+        }
+    }
+}
@@ -65,6 +65,7 @@ public class IndexOperationManagerImpl implements IndexOperationManager {
     private Exception lastConsistencyCheckException = null;
     private Date lastConsistencyCheckCompletionTime = null;
     
+    private int reindexingThreads = 1;
     private boolean isReindexing = false;
     private int resourcesReindexed = -1;
     private Exception lastReindexingException = null;
@@ -168,6 +169,17 @@ public class IndexOperationManagerImpl implements IndexOperationManager {
         return this.lastConsistencyCheckCompletionTime;
     }
 
+    /**
+     * Sets the number of threads mapping property sets to index documents
+     * during re-indexing. Default is 1, which re-indexes sequentially.
+     */
+    public void setReindexingThreads(int reindexingThreads) {
+        if (reindexingThreads < 1) {
+            throw new IllegalArgumentException("Number of re-indexing threads must be at least 1");
+        }
+        this.reindexingThreads = reindexingThreads;
+    }
+
     public synchronized boolean isCheckingConsistency() {
         return this.isCheckingConsistency;
     }
@@ -212,9 +224,9 @@ public class IndexOperationManagerImpl implements IndexOperationManager {
         PropertySetIndexReindexer reindexer;
         if (this.secondaryIndex != null) {
              reindexer = new IndirectReindexer(this.index,
-                            this.secondaryIndex, this.indexDao);
+                            this.secondaryIndex, this.indexDao, this.reindexingThreads);
         } else {
-            reindexer = new DirectReindexer(this.index, this.indexDao);
+            reindexer = new DirectReindexer(this.index, this.indexDao, this.reindexingThreads);
         }
 
         try {
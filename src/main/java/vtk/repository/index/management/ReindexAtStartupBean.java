@@ -41,23 +41,52 @@ import vtk.repository.index.PropertySetIndex;
 import vtk.repository.store.IndexDao;
 
 /**
- * A stupid bean which starts a synchronous re-indexing of the configured
+ * A stupid bean which starts a re-indexing of the configured
  * property set index at bean initialization time. 
- *
+ * 
+ * <p>Re-indexing is done if the bean is <code>enabled</code>, or if
+ * <code>reindexOutdatedFormat</code> is set and the index does not
+ * have the current index format. If a secondary index is configured, it is
+ * used as temporary index, so that the index stays available for searching
+ * while re-indexing. If <code>asynchronous</code> is set, re-indexing runs in
+ * the background and the index is not optimized afterwards. The number of
+ * threads mapping property sets to index documents while re-indexing is set
+ * by <code>reindexingThreads</code> (default <code>1</code>).
  */
 public class ReindexAtStartupBean implements InitializingBean {
     
     private Log logger = LogFactory.getLog(ReindexAtStartupBean.class);
     
     private PropertySetIndex index;
+    private PropertySetIndex secondaryIndex;
     private IndexDao indexDao;
     private boolean enabled = false;
+    private boolean reindexOutdatedFormat = false;
+    private boolean asynchronous = false;
+    private int reindexingThreads = 1;
     
     public void afterPropertiesSet() throws Exception {
-        if (!enabled) return;
+        if (!enabled) {
+            if (!reindexOutdatedFormat || this.index.isCurrentFormat()) return;
+            logger.warn("Index with ID '" + this.index.getId() 
+                    + "' does not have the current index format, re-indexing is required.");
+        }
+        
+        IndexOperationManagerImpl manager;
+        if (this.secondaryIndex != null) {
+            manager = new IndexOperationManagerImpl(this.index, this.secondaryIndex, this.indexDao);
+        } else {
+            manager = new IndexOperationManagerImpl(this.index, this.indexDao);
+        }
+        manager.setReindexingThreads(this.reindexingThreads);
+        
+        if (this.asynchronous) {
+            logger.info("Starting asynchronous re-indexing of index with ID '" 
+                    + this.index.getId() + "' using IndexOperationManager ..");
+            manager.reindex(true);
+            return;
+        }
         
-        IndexOperationManager manager = new IndexOperationManagerImpl(this.index, 
-                                                                      this.indexDao);
         logger.info("Starting synchronous re-indexing of index with ID '" 
                 + this.index.getId() + "' using IndexOperationManager ..");
         manager.reindex(false);
@@ -93,4 +122,36 @@ public class ReindexAtStartupBean implements InitializingBean {
         this.enabled = enabled;
     }
 
+    /**
+     * @param secondaryIndex index to use as temporary index while
+     * re-indexing (optional)
+     */
+    public void setSecondaryIndex(PropertySetIndex secondaryIndex) {
+        this.secondaryIndex = secondaryIndex;
+    }
+
+    /**
+     * @param reindexOutdatedFormat whether to re-index when the index does not
+     * have the current index format, even if not <code>enabled</code>
+     */
+    public void setReindexOutdatedFormat(boolean reindexOutdatedFormat) {
+        this.reindexOutdatedFormat = reindexOutdatedFormat;
+    }
+
+    /**
+     * @param asynchronous whether to run re-indexing in the background
+     */
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * @param reindexingThreads number of threads mapping property sets to
+     * index documents while re-indexing
+     * @see IndexOperationManagerImpl#setReindexingThreads(int)
+     */
+    public void setReindexingThreads(int reindexingThreads) {
+        this.reindexingThreads = reindexingThreads;
+    }
+
 }
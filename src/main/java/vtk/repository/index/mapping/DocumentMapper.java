@@ -71,6 +71,15 @@ import vtk.repository.resourcetype.ValueFactory;
  */
 public class DocumentMapper implements InitializingBean {
 
+    /**
+     * Version of the index document format produced by this mapper. Must be
+     * changed whenever changes to the mapping require existing indexes to be
+     * rebuilt.
+     * 
+     * @see vtk.repository.index.IndexManager#setFormatVersion(java.lang.String) 
+     */
+    public static final String INDEX_FORMAT_VERSION = "3";
+
     private final Log logger = LogFactory.getLog(DocumentMapper.class);
 
     private ResourceTypeTree resourceTypeTree;
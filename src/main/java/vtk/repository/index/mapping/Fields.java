@@ -32,6 +32,7 @@
 package vtk.repository.index.mapping;
 
 import com.ibm.icu.text.Collator;
+import com.ibm.icu.text.RawCollationKey;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -44,6 +45,9 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.FieldInfo;
@@ -96,11 +100,13 @@ public abstract class Fields {
     
     private final Locale locale;
     private final Collator collator;
+    private final Collator frozenCollator; // Thread safe, for doc values sort keys
     private final ICUCollationAttributeFactory collationAttributeFactory;
     
     Fields(Locale locale) {
         this.locale = locale != null ? locale : Locale.getDefault();
         this.collator = Collator.getInstance(this.locale);
+        this.frozenCollator = Collator.getInstance(this.locale).freeze();
         this.collationAttributeFactory = new ICUCollationAttributeFactory(collator);
     }
     
@@ -131,20 +137,57 @@ public abstract class Fields {
     }
 
     /**
-     * Create special field used only for sorting string values in a localized
+     * Create special fields used only for sorting string values in a localized
      * fashion. The field value will be encoded as a collation key using the
-     * configured default locale.
+     * configured default locale, both as an indexed term and as sorted doc
+     * values. Sorting uses the doc values, the indexed term is kept for
+     * compatibility with segments written without doc values.
      * 
      * @param name the field name
      * @param value the field value, a string.
      * @return 
      */
-    public IndexableField makeSortField(String name, String value) {
+    public List<IndexableField> makeSortFields(String name, String value) {
+        List<IndexableField> fields = new ArrayList<IndexableField>(2);
         // Use a "token stream", even though we only have one value. This is due to
         // Lucene API not allowing creation of raw binary indexable terms without going
         // through this path.
         StringArrayTokenStream ts = new StringArrayTokenStream(collationAttributeFactory, value);
-        return new Field(name, ts, STRING_SORT_FIELDTYPE);
+        fields.add(new Field(name, ts, STRING_SORT_FIELDTYPE));
+        
+        // Same encoding as ICUCollatedTermAttributeImpl
+        RawCollationKey key = frozenCollator.getRawCollationKey(value, null);
+        fields.add(new SortedDocValuesField(name, new BytesRef(key.bytes, 0, key.size)));
+        return fields;
+    }
+    
+    /**
+     * Create doc values field for a string value, for sorting and aggregation.
+     * 
+     * @param name the field name
+     * @param value the value
+     * @param multiple whether the field may have multiple values in a document.
+     * Must be the same for all documents with the field.
+     * @return a sorted or sorted set doc values field.
+     */
+    public IndexableField makeDocValuesField(String name, String value, boolean multiple) {
+        BytesRef bytes = new BytesRef(value);
+        if (multiple) {
+            return new SortedSetDocValuesField(name, bytes);
+        }
+        return new SortedDocValuesField(name, bytes);
+    }
+    
+    /**
+     * Create numeric doc values field for a single numeric value, for
+     * sorting and aggregation.
+     * 
+     * @param name the field name
+     * @param value the value
+     * @return a numeric doc values field
+     */
+    public IndexableField makeDocValuesField(String name, long value) {
+        return new NumericDocValuesField(name, value);
     }
     
     public List<IndexableField> makeFields(String fieldName, String value, FieldSpec spec) {
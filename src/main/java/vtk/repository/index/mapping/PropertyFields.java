@@ -44,6 +44,7 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.DateTools;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
 
@@ -55,7 +56,6 @@ import vtk.repository.resourcetype.PropertyType.Type;
 import vtk.repository.resourcetype.PropertyTypeDefinition;
 import vtk.repository.resourcetype.Value;
 import vtk.repository.resourcetype.ValueFactory;
-import vtk.util.text.Json;
 
 /**
  * TODO missing JavaDoc for most methods
@@ -86,7 +86,7 @@ public class PropertyFields extends Fields {
             throw new IllegalArgumentException("Sorting fields cannot be created for multi-value properties");
         }
         String fieldName = sortFieldName(property.getDefinition());
-        fields.add(makeSortField(fieldName, property.getStringValue()));
+        fields.addAll(makeSortFields(fieldName, property.getStringValue()));
     }
 
     /**
@@ -94,6 +94,8 @@ public class PropertyFields extends Fields {
      *
      * @param lowercase if <code>true</code>, then lowercase the value as apporpriate.
      * <em>When lowercased, fields for storing will not be created.</em>
+     * When not lowercased, doc values fields are also created for
+     * {@link #isDocValuesType(vtk.repository.resourcetype.PropertyType.Type) applicable types}.
      */
     void addPropertyFields(final List<IndexableField> fields, Property property, boolean lowercase) throws DocumentMappingException {
         PropertyTypeDefinition def = property.getDefinition();
@@ -102,15 +104,66 @@ public class PropertyFields extends Fields {
         }
         String fieldName = propertyFieldName(def, lowercase);
         FieldSpec spec = lowercase ? INDEXED_LOWERCASE : INDEXED_STORED;
+        boolean docValues = !lowercase && isDocValuesType(def.getType());
         if (def.isMultiple()) {
             for (Value v: property.getValues()) {
                 fields.addAll(valueFields(fieldName, v, spec));
+                if (docValues && !isNumericType(def.getType())) {
+                    fields.add(makeDocValuesField(fieldName, v.getNativeStringRepresentation(), true));
+                }
             }
         } else {
             fields.addAll(valueFields(fieldName, property.getValue(), spec));
+            if (docValues) {
+                fields.add(docValuesField(fieldName, property.getValue()));
+            }
+        }
+    }
+    
+    private IndexableField docValuesField(String fieldName, Value v) {
+        switch (v.getType()) {
+        case DATE:
+        case TIMESTAMP:
+            // Same resolution as indexed value
+            return makeDocValuesField(fieldName, 
+                    DateTools.round(v.getDateValue().getTime(), DateTools.Resolution.SECOND));
+        case LONG:
+            return makeDocValuesField(fieldName, v.getLongValue());
+        case INT:
+            return makeDocValuesField(fieldName, v.getIntValue());
+        default:
+            return makeDocValuesField(fieldName, v.getNativeStringRepresentation(), false);
+        }
+    }
+    
+    /**
+     * Whether properties of the given type have doc values in index, for
+     * sorting and aggregation. Single value properties get sorted or numeric
+     * doc values in the regular property field, multi-value properties of
+     * string types get sorted set doc values. Multi-value numeric properties
+     * get no doc values.
+     */
+    public static boolean isDocValuesType(Type type) {
+        switch (type) {
+        case STRING:
+        case PRINCIPAL:
+        case IMAGE_REF:
+        case BOOLEAN:
+        case DATE:
+        case TIMESTAMP:
+        case LONG:
+        case INT:
+            return true;
+        default:
+            return false;
         }
     }
     
+    private static boolean isNumericType(Type type) {
+        return type == Type.DATE || type == Type.TIMESTAMP 
+                || type == Type.LONG || type == Type.INT;
+    }
+    
     /**
      * Adds all fields for a given JSON property to field list, both lowercased
      * and regular variants, and a stored field for the raw JSON string value.
@@ -147,16 +200,16 @@ public class PropertyFields extends Fields {
         try {
             final List<Object> indexFieldValues = new ArrayList<Object>();
             for (Value jsonValue : jsonPropValues) {
-                Json.MapContainer json = jsonValue.getJSONValue();
+                Map<String, Object> json = jsonValue.getUnmodifiableJSONValue();
                 
                 for (final String jsonAttribute: json.keySet()) {
                     final Object value = json.get(jsonAttribute);
                     if (value == null) {
                         continue;
                     }
+                    indexFieldValues.clear();
                     if (value instanceof List<?>) {
-                        List<Object> list = json.arrayValue(jsonAttribute);
-                        for (Object val: list) {
+                        for (Object val: (List<?>) value) {
                             if (val != null && !(val instanceof List<?>) && !(val instanceof Map<?,?>)) {
                                 indexFieldValues.add(val);
                             }
@@ -180,7 +233,16 @@ public class PropertyFields extends Fields {
                     
                     // Sort field if single value STRING type
                     if (dataType == Type.STRING && indexFieldValues.size() == 1) {
-                        fields.add(makeSortField(jsonSortFieldName(def, jsonAttribute), indexFieldValues.get(0).toString()));
+                        fields.addAll(makeSortFields(jsonSortFieldName(def, jsonAttribute), indexFieldValues.get(0).toString()));
+                    }
+                    
+                    // Numeric doc values if single value numeric type in single value property
+                    if ((dataType == Type.INT || dataType == Type.LONG) 
+                            && !def.isMultiple() && indexFieldValues.size() == 1) {
+                        Long number = jsonNumber(indexFieldValues.get(0));
+                        if (number != null) {
+                            fields.add(makeDocValuesField(fieldName, number));
+                        }
                     }
                 }
             }
@@ -189,6 +251,17 @@ public class PropertyFields extends Fields {
         }
     }
     
+    private Long jsonNumber(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+    
     /**
      * Create a <code>Property</code> instance from a definition and a list of index
      * fields.
@@ -91,7 +91,8 @@ public class ResourceFields extends Fields {
     void addResourceFields(final List<IndexableField> fields, PropertySetImpl propSet) {
         // URI
         fields.addAll(makeFields(URI_FIELD_NAME, propSet.getURI().toString(), INDEXED_STORED));
-        fields.add(makeSortField(URI_SORT_FIELD_NAME, propSet.getURI().toString()));
+        fields.add(makeDocValuesField(URI_FIELD_NAME, propSet.getURI().toString(), false));
+        fields.addAll(makeSortFields(URI_SORT_FIELD_NAME, propSet.getURI().toString()));
 
         // URI depth (not stored, but indexed for use in searches)
         int uriDepth = propSet.getURI().getDepth();
@@ -105,10 +106,11 @@ public class ResourceFields extends Fields {
         // URI name
         fields.addAll(makeFields(NAME_FIELD_NAME, propSet.getName(), INDEXED));
         fields.addAll(makeFields(NAME_LC_FIELD_NAME, propSet.getName(), INDEXED_LOWERCASE));
-        fields.add(makeSortField(NAME_SORT_FIELD_NAME, propSet.getName()));
+        fields.addAll(makeSortFields(NAME_SORT_FIELD_NAME, propSet.getName()));
 
-        // resourceType, stored and indexed
+        // resourceType, stored and indexed, with doc values for sorting and aggregation
         fields.addAll(makeFields(RESOURCETYPE_FIELD_NAME, propSet.getResourceType(), INDEXED_STORED));
+        fields.add(makeDocValuesField(RESOURCETYPE_FIELD_NAME, propSet.getResourceType(), false));
 
         // ID (system field, stored and indexed, but only as a string type)
         fields.addAll(makeFields(ID_FIELD_NAME, Integer.toString(propSet.getID()), INDEXED_STORED));
@@ -30,8 +30,11 @@
  */
 package vtk.repository.resourcetype;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
+import java.util.Map;
 
 import vtk.repository.IllegalOperationException;
 import vtk.repository.resourcetype.PropertyType.Type;
@@ -42,14 +45,19 @@ import vtk.util.text.JsonStreamer;
 /**
  * Holds a single property value of appropriate type. Does not enforce value limits.
  * 
- * JSON values are always stored in the stringValue field, even though they
- * can also be set and get as binary values.
+ * JSON values are stored in the stringValue field, even though they
+ * can also be set and get as binary values. JSON values loaded from binary
+ * storage keep the bytes read at load time, are parsed directly from them,
+ * and the string is only created when requested. The parsed form of JSON 
+ * values is created once and kept in an unmodifiable form, which is shared 
+ * with clones.
  */
 public class Value implements Cloneable, Comparable<Value> { 
 
     private Type type = Type.STRING;
 
-    private String stringValue;
+    private volatile String stringValue;
+    private volatile Map<String, Object> jsonValue;
     private Date dateValue;
     private boolean booleanValue;
     private int intValue;
@@ -182,6 +190,14 @@ public class Value implements Cloneable, Comparable<Value> {
                     throw new IllegalArgumentException("Content type 'application/json' or 'text/*'"
                             + " required for creating " + valueType + " value type from binary storage");
                 }
+                if (valueType == Type.JSON) {
+                    // Read once, since stored binary values are deleted and 
+                    // reinserted when the resource is stored. Parsed directly 
+                    // from the buffer, or copied to the stringValue field when needed.
+                    this.binaryValue = new BufferedBinaryValue(value.getBytes(), valueContentType);
+                    this.type = valueType;
+                    break;
+                }
                 // Copy binary data to stringValue field after sanity checking content type
                 try {
                     this.stringValue = new String(value.getBytes(), "UTF-8");
@@ -222,11 +238,61 @@ public class Value implements Cloneable, Comparable<Value> {
     }
 
     public String getStringValue() {
-        return this.stringValue;
+        String value = this.stringValue;
+        if (value == null && this.type == Type.JSON && this.binaryValue != null) {
+            try {
+                value = new String(this.binaryValue.getBytes(), "UTF-8");
+            } catch (UnsupportedEncodingException ue) {
+                throw new IllegalStateException("UTF-8 encoding not available");
+            }
+            this.stringValue = value;
+        }
+        return value;
     }
 
+    /**
+     * Get the JSON object of a JSON (or other string based) value. 
+     * The returned object is a copy, which the caller may modify.
+     * Use {@link #getUnmodifiableJSONValue()} for read access.
+     */
     public Json.MapContainer getJSONValue() {
-        return Json.parseToContainer(getStringValue()).asObject();
+        return Json.MapContainer.toContainer(getUnmodifiableJSONValue());
+    }
+
+    /**
+     * Get the JSON object of a JSON (or other string based) value, 
+     * in an unmodifiable form. The value is parsed once and shared
+     * by later calls and by clones of this value.
+     * 
+     * @throws Json.ValueException if the value is not a JSON object
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getUnmodifiableJSONValue() {
+        Map<String, Object> json = this.jsonValue;
+        if (json == null) {
+            Json.MapContainer parsed;
+            if (this.stringValue == null && this.type == Type.JSON && this.binaryValue != null) {
+                parsed = parseBinaryValue();
+            } else {
+                parsed = Json.parseToContainer(getStringValue()).asObject();
+            }
+            json = (Map<String, Object>) Json.unmodifiable(parsed);
+            this.jsonValue = json;
+        }
+        return json;
+    }
+
+    private Json.MapContainer parseBinaryValue() {
+        try {
+            InputStream stream = this.binaryValue.getContentStream().getStream();
+            try {
+                return Json.parseToContainer(stream).asObject();
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read JSON value", e);
+        }
     }
 
     /**
@@ -239,8 +305,9 @@ public class Value implements Cloneable, Comparable<Value> {
     public BinaryValue getBinaryValue() {
         // For consistency, we allowing getting binary value for JSON, since we also
         // allow setting JSON through a binary value.
-        if (this.type == Type.JSON && this.stringValue != null) {
-            return new BufferedBinaryValue(this.stringValue, "application/json");
+        if (this.type == Type.JSON) {
+            return this.binaryValue != null 
+                    ? this.binaryValue : new BufferedBinaryValue(this.stringValue, "application/json");
         }
         
         return this.binaryValue;
@@ -359,7 +426,12 @@ public class Value implements Cloneable, Comparable<Value> {
         case BINARY:
             return new Value(this.binaryValue, Type.BINARY);
         case JSON:
-            return new Value(getStringValue(), Type.JSON);
+            Value json = this.binaryValue != null 
+                    ? new Value(this.binaryValue, Type.JSON) : new Value(this.stringValue, Type.JSON);
+            // Share the string and parsed forms, which are immutable
+            json.stringValue = this.stringValue;
+            json.jsonValue = this.jsonValue;
+            return json;
         default:
             return new Value(this.stringValue, this.type);
         }
@@ -0,0 +1,155 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import vtk.repository.Path;
+
+/**
+ * Result of an aggregation as specified by {@link AggregationSpec}.
+ */
+public final class AggregationResult {
+
+    private final Bucket total;
+    private final List<TermCount> terms;
+    private final Map<Path, Bucket> groups;
+
+    /**
+     * Frequency of a single term.
+     */
+    public static final class TermCount {
+        private final String term;
+        private final int count;
+
+        public TermCount(String term, int count) {
+            this.term = term;
+            this.count = count;
+        }
+
+        public String getTerm() {
+            return term;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return term + ":" + count;
+        }
+    }
+
+    /**
+     * Document count and sum for a set of documents.
+     */
+    public static final class Bucket {
+        private int count;
+        private long sum;
+        private int positiveCount;
+
+        /**
+         * Add a single document to this bucket.
+         * @param value the sum value of the document
+         */
+        void add(long value) {
+            this.count++;
+            this.sum += value;
+            if (value > 0) {
+                this.positiveCount++;
+            }
+        }
+
+        /**
+         * @return number of documents
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return sum of the sum values of all documents
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return number of documents with a positive sum value
+         */
+        public int getPositiveCount() {
+            return positiveCount;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", sum=" + sum + ", positiveCount=" + positiveCount;
+        }
+    }
+
+    AggregationResult(Bucket total, List<TermCount> terms, Map<Path, Bucket> groups) {
+        this.total = total;
+        this.terms = Collections.unmodifiableList(terms);
+        this.groups = Collections.unmodifiableMap(groups);
+    }
+
+    /**
+     * @return count and sum of all matching documents
+     */
+    public Bucket getTotal() {
+        return total;
+    }
+
+    /**
+     * @return term frequencies, most frequent first. Empty if term frequencies
+     * were not requested.
+     */
+    public List<TermCount> getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return count and sum by URI prefix, ordered by URI. Empty if grouping
+     * was not requested.
+     */
+    public Map<Path, Bucket> getGroups() {
+        return groups;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[total: " + total 
+                + ", terms: " + terms + ", groups: " + groups + "]";
+    }
+}
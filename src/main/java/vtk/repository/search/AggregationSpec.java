@@ -0,0 +1,227 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import vtk.repository.resourcetype.PropertyType;
+import vtk.repository.resourcetype.PropertyTypeDefinition;
+
+/**
+ * Specification of an aggregation over all documents matching a search.
+ * See {@link Searcher#aggregate(java.lang.String, vtk.repository.search.Search, vtk.repository.search.AggregationSpec) }.
+ * 
+ * <p>An aggregation can consist of:
+ * <ul>
+ *   <li>Term frequencies for the values of one property, optionally limited
+ *   to the most frequent terms.
+ *   <li>A numeric sum, where each document contributes the weighted sum of
+ *   a set of numeric property values or JSON attribute values. Weights are
+ *   typically <code>1</code> or <code>-1</code>.
+ *   <li>Grouping of counts and sums by the URI prefix of documents at a given
+ *   depth.
+ * </ul>
+ * 
+ * <p>Aggregation is done on index doc values, so only properties having
+ * doc values in index can be aggregated on:
+ * <ul>
+ *   <li>Term frequencies: properties of string-like types (single or multi value).
+ *   <li>Sums: single value properties of type <code>INT</code> or <code>LONG</code>,
+ *   and integer attributes of single value indexable JSON properties.
+ * </ul>
+ */
+public final class AggregationSpec {
+
+    private PropertyTypeDefinition termsPropDef;
+    private int termsLimit = -1;
+    private int termsMinCount = 1;
+    private final List<SumTerm> sumTerms = new ArrayList<SumTerm>();
+    private int groupByUriDepth = -1;
+
+    /**
+     * A numeric value which is part of the sum for each document.
+     */
+    public static final class SumTerm {
+        private final PropertyTypeDefinition def;
+        private final String jsonAttribute;
+        private final long weight;
+
+        private SumTerm(PropertyTypeDefinition def, String jsonAttribute, long weight) {
+            this.def = def;
+            this.jsonAttribute = jsonAttribute;
+            this.weight = weight;
+        }
+
+        public PropertyTypeDefinition getDefinition() {
+            return def;
+        }
+
+        /**
+         * @return the JSON attribute, or <code>null</code> if the property
+         * value itself is summed.
+         */
+        public String getJsonAttribute() {
+            return jsonAttribute;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(weight).append("*").append(def.getName());
+            if (jsonAttribute != null) {
+                sb.append("@").append(jsonAttribute);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Count frequencies of the values of a property.
+     * 
+     * @param def the property definition
+     */
+    public void setTermFrequencies(PropertyTypeDefinition def) {
+        if (def != null && !isTermsType(def.getType())) {
+            throw new IllegalArgumentException("Term frequencies not supported for property " 
+                    + def + " of type " + def.getType());
+        }
+        this.termsPropDef = def;
+    }
+
+    /**
+     * @param termsLimit the maximum number of terms to return, most frequent
+     * first. A negative value means no limit (default).
+     */
+    public void setTermsLimit(int termsLimit) {
+        this.termsLimit = termsLimit;
+    }
+
+    /**
+     * @param termsMinCount the minimum frequency of a returned term (default <code>1</code>).
+     */
+    public void setTermsMinCount(int termsMinCount) {
+        this.termsMinCount = termsMinCount;
+    }
+
+    /**
+     * Add the value of a numeric property to the sum.
+     * 
+     * @param def a single value property of type <code>INT</code> or <code>LONG</code>
+     */
+    public void addSum(PropertyTypeDefinition def) {
+        addSum(def, null, 1);
+    }
+
+    /**
+     * Add a weighted numeric value to the sum.
+     * 
+     * @param def the property definition
+     * @param jsonAttribute an integer attribute of the JSON property, or
+     * <code>null</code> for a numeric property
+     * @param weight weight of the value
+     */
+    public void addSum(PropertyTypeDefinition def, String jsonAttribute, long weight) {
+        if (def == null) {
+            throw new IllegalArgumentException("Property definition cannot be null");
+        }
+        if (def.isMultiple()) {
+            throw new IllegalArgumentException("Cannot sum multi-value property " + def);
+        }
+        if (jsonAttribute == null) {
+            if (def.getType() != PropertyType.Type.INT && def.getType() != PropertyType.Type.LONG) {
+                throw new IllegalArgumentException("Cannot sum property " + def + " of type " + def.getType());
+            }
+        } else if (def.getType() != PropertyType.Type.JSON) {
+            throw new IllegalArgumentException("JSON attribute requires a JSON property: " + def);
+        }
+        this.sumTerms.add(new SumTerm(def, jsonAttribute, weight));
+    }
+
+    /**
+     * Group counts and sums by the ancestor URI at the given depth. Only
+     * documents below that depth belong to a group.
+     * 
+     * @param depth the URI depth, where the root has depth 0, or a negative
+     * value for no grouping (default).
+     */
+    public void setGroupByUriDepth(int depth) {
+        this.groupByUriDepth = depth;
+    }
+
+    public PropertyTypeDefinition getTermsPropDef() {
+        return termsPropDef;
+    }
+
+    public int getTermsLimit() {
+        return termsLimit;
+    }
+
+    public int getTermsMinCount() {
+        return termsMinCount;
+    }
+
+    public List<SumTerm> getSumTerms() {
+        return Collections.unmodifiableList(sumTerms);
+    }
+
+    public int getGroupByUriDepth() {
+        return groupByUriDepth;
+    }
+
+    private static boolean isTermsType(PropertyType.Type type) {
+        switch (type) {
+        case STRING:
+        case PRINCIPAL:
+        case IMAGE_REF:
+        case BOOLEAN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getClass().getSimpleName());
+        sb.append("[terms: ").append(termsPropDef != null ? termsPropDef.getName() : null);
+        sb.append(", termsLimit: ").append(termsLimit);
+        sb.append(", termsMinCount: ").append(termsMinCount);
+        sb.append(", sum: ").append(sumTerms);
+        sb.append(", groupByUriDepth: ").append(groupByUriDepth).append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,172 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Encoding of cursor tokens for search-after paging.
+ * 
+ * <p>A token holds the sort values of the last hit on a page, and a checksum
+ * of the sorting it was produced with, so that a token cannot silently be used
+ * with a different sorting. Tokens are URL-safe strings.
+ */
+final class CursorToken {
+
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte BYTES = 1;
+    private static final byte LONG = 2;
+    private static final byte INT = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+
+    private CursorToken() {
+    }
+
+    /**
+     * Encode token for continuing after the given hit.
+     * @param sort the sorting used in search
+     * @param last the last hit of a page, with sort field values filled in
+     * @return a cursor token
+     */
+    static String encode(Sort sort, FieldDoc last) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeInt(sort.toString().hashCode());
+            out.writeShort(last.fields.length);
+            for (Object value: last.fields) {
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else if (value instanceof BytesRef) {
+                    BytesRef ref = (BytesRef) value;
+                    out.writeByte(BYTES);
+                    out.writeInt(ref.length);
+                    out.write(ref.bytes, ref.offset, ref.length);
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Integer) {
+                    out.writeByte(INT);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(FLOAT);
+                    out.writeFloat((Float) value);
+                } else {
+                    throw new IllegalArgumentException("Unsupported sort value type: " + value.getClass());
+                }
+            }
+            out.flush();
+            return Base64.encodeBase64URLSafeString(bytes.toByteArray());
+        } catch (IOException io) {
+            // Cannot happen with in-memory streams
+            throw new IllegalStateException(io);
+        }
+    }
+
+    /**
+     * Decode token to a hit which search can continue after.
+     * @param sort the sorting used in search, must be the same as the token
+     * was produced with
+     * @param token the cursor token
+     * @return a <code>FieldDoc</code> for use with
+     * {@link org.apache.lucene.search.IndexSearcher#searchAfter(org.apache.lucene.search.ScoreDoc, org.apache.lucene.search.Query, org.apache.lucene.search.Filter, int, org.apache.lucene.search.Sort) searchAfter}
+     * @throws QueryException if the token is malformed or does not match the sorting
+     */
+    static FieldDoc decode(Sort sort, String token) throws QueryException {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(Base64.decodeBase64(token)));
+            if (in.readByte() != VERSION) {
+                throw new QueryException("Invalid cursor token: " + token);
+            }
+            if (in.readInt() != sort.toString().hashCode()) {
+                throw new QueryException("Cursor token does not match sorting: " + token);
+            }
+            int n = in.readShort();
+            if (n != sort.getSort().length) {
+                throw new QueryException("Cursor token does not match sorting: " + token);
+            }
+            Object[] fields = new Object[n];
+            for (int i = 0; i < n; i++) {
+                byte type = in.readByte();
+                switch (type) {
+                case NULL:
+                    break;
+                case BYTES:
+                    int length = in.readInt();
+                    if (length < 0 || length > in.available()) {
+                        throw new QueryException("Invalid cursor token: " + token);
+                    }
+                    byte[] b = new byte[length];
+                    in.readFully(b);
+                    fields[i] = new BytesRef(b);
+                    break;
+                case LONG:
+                    fields[i] = in.readLong();
+                    break;
+                case INT:
+                    fields[i] = in.readInt();
+                    break;
+                case DOUBLE:
+                    fields[i] = in.readDouble();
+                    break;
+                case FLOAT:
+                    fields[i] = in.readFloat();
+                    break;
+                default:
+                    throw new QueryException("Invalid cursor token: " + token);
+                }
+            }
+            // Sort values include a unique tiebreaker, so doc id is never
+            // reached when comparing. Max value makes any equal hit count as
+            // already seen.
+            return new FieldDoc(Integer.MAX_VALUE, Float.NaN, fields);
+        } catch (IOException io) {
+            throw new QueryException("Invalid cursor token: " + token, io);
+        }
+    }
+}
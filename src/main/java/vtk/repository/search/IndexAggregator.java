@@ -0,0 +1,414 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import vtk.repository.Path;
+import vtk.repository.index.mapping.PropertyFields;
+import vtk.repository.index.mapping.ResourceFields;
+import vtk.repository.search.AggregationResult.Bucket;
+import vtk.repository.search.AggregationResult.TermCount;
+import vtk.repository.search.AggregationSpec.SumTerm;
+import vtk.util.text.Json;
+
+/**
+ * Aggregates over matching documents segment by segment, using doc values
+ * and without loading or mapping any documents.
+ * 
+ * <p>Term frequencies are counted per segment ordinal and only resolved to
+ * terms once per segment. Segments where a field is indexed without doc 
+ * values (written before the field had doc values) are aggregated from 
+ * stored fields instead, like the URI is when it has no doc values.
+ */
+class IndexAggregator {
+
+    private static final Log logger = LogFactory.getLog(IndexAggregator.class);
+
+    private static final byte SLASH = '/';
+
+    private final AggregationSpec spec;
+    private final String termsField;
+    private final String[] sumFields;
+    private final String[] storedSumFields;
+    private final String[] jsonAttributes;
+    private final long[] sumWeights;
+    private final int groupDepth;
+
+    private final Bucket total = new Bucket();
+    private final Map<String, int[]> termCounts = new HashMap<String, int[]>();
+    private final Map<BytesRef, Bucket> groups = new HashMap<BytesRef, Bucket>();
+    private final BytesRef prefix = new BytesRef();
+
+    IndexAggregator(AggregationSpec spec) {
+        this.spec = spec;
+        this.termsField = spec.getTermsPropDef() != null 
+                ? PropertyFields.propertyFieldName(spec.getTermsPropDef()) : null;
+        List<SumTerm> sumTerms = spec.getSumTerms();
+        this.sumFields = new String[sumTerms.size()];
+        this.storedSumFields = new String[sumTerms.size()];
+        this.jsonAttributes = new String[sumTerms.size()];
+        this.sumWeights = new long[sumTerms.size()];
+        for (int i = 0; i < sumFields.length; i++) {
+            SumTerm st = sumTerms.get(i);
+            storedSumFields[i] = PropertyFields.propertyFieldName(st.getDefinition());
+            jsonAttributes[i] = st.getJsonAttribute();
+            if (st.getJsonAttribute() != null) {
+                sumFields[i] = PropertyFields.jsonFieldName(st.getDefinition(), st.getJsonAttribute(), false);
+            } else {
+                sumFields[i] = PropertyFields.propertyFieldName(st.getDefinition());
+            }
+            sumWeights[i] = st.getWeight();
+        }
+        this.groupDepth = spec.getGroupByUriDepth();
+    }
+
+    /**
+     * Aggregate over all documents matching filter in reader. Filter may be
+     * <code>null</code>, in which case all non-deleted docs are aggregated.
+     */
+    AggregationResult aggregate(IndexReader reader, Filter filter) throws IOException {
+        for (AtomicReaderContext context : reader.leaves()) {
+            aggregateSegment(context, filter);
+        }
+        return result();
+    }
+
+    private void aggregateSegment(AtomicReaderContext context, Filter filter) throws IOException {
+        final AtomicReader r = context.reader();
+        final Bits liveDocs = r.getLiveDocs();
+
+        DocIdSetIterator disi;
+        if (filter != null) {
+            DocIdSet matchedDocs = filter.getDocIdSet(context, liveDocs);
+            if (matchedDocs == null) {
+                return;
+            }
+            disi = matchedDocs.iterator();
+            if (disi == null) {
+                return;
+            }
+        } else {
+            disi = null;
+        }
+
+        if (missingDocValues(r)) {
+            aggregateStoredFields(r, disi, liveDocs);
+            return;
+        }
+
+        SortedSetDocValues termsSet = null;
+        SortedDocValues termsSingle = null;
+        int[] ordCounts = null;
+        if (termsField != null) {
+            termsSet = r.getSortedSetDocValues(termsField);
+            if (termsSet != null) {
+                ordCounts = new int[(int) termsSet.getValueCount()];
+            } else {
+                termsSingle = r.getSortedDocValues(termsField);
+                if (termsSingle != null) {
+                    ordCounts = new int[termsSingle.getValueCount()];
+                }
+            }
+        }
+
+        NumericDocValues[] sumValues = new NumericDocValues[sumFields.length];
+        for (int i = 0; i < sumFields.length; i++) {
+            sumValues[i] = r.getNumericDocValues(sumFields[i]);
+        }
+
+        SortedDocValues uris = null;
+        if (groupDepth >= 0) {
+            uris = r.getSortedDocValues(ResourceFields.URI_FIELD_NAME);
+        }
+        final BytesRef uri = new BytesRef();
+
+        for (int doc = nextDoc(disi, liveDocs, -1, r.maxDoc()); doc != DocIdSetIterator.NO_MORE_DOCS;
+                doc = nextDoc(disi, liveDocs, doc, r.maxDoc())) {
+
+            if (termsSet != null) {
+                termsSet.setDocument(doc);
+                long ord;
+                while ((ord = termsSet.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                    ordCounts[(int) ord]++;
+                }
+            } else if (termsSingle != null) {
+                int ord = termsSingle.getOrd(doc);
+                if (ord >= 0) {
+                    ordCounts[ord]++;
+                }
+            }
+
+            long value = 0;
+            for (int i = 0; i < sumValues.length; i++) {
+                if (sumValues[i] != null) {
+                    value += sumWeights[i] * sumValues[i].get(doc);
+                }
+            }
+            total.add(value);
+
+            if (groupDepth >= 0) {
+                if (uris != null) {
+                    group(uris.get(doc), value);
+                } else {
+                    String storedUri = r.document(doc, 
+                            Collections.singleton(ResourceFields.URI_FIELD_NAME)).get(ResourceFields.URI_FIELD_NAME);
+                    uri.copyChars(storedUri);
+                    group(uri, value);
+                }
+            }
+        }
+
+        if (ordCounts != null) {
+            for (int ord = 0; ord < ordCounts.length; ord++) {
+                if (ordCounts[ord] == 0) {
+                    continue;
+                }
+                BytesRef term;
+                if (termsSet != null) {
+                    term = termsSet.lookupOrd(ord);
+                } else {
+                    term = termsSingle.lookupOrd(ord);
+                }
+                countTerm(term.utf8ToString(), ordCounts[ord]);
+            }
+        }
+    }
+
+    /**
+     * Whether any field aggregated on is indexed in the segment, but without 
+     * doc values. This is the case for segments written before the field had
+     * doc values, until the index is rebuilt. 
+     */
+    private boolean missingDocValues(AtomicReader r) {
+        FieldInfos fieldInfos = r.getFieldInfos();
+        if (termsField != null) {
+            FieldInfo fi = fieldInfos.fieldInfo(termsField);
+            if (fi != null && !fi.hasDocValues()) {
+                return true;
+            }
+        }
+        for (String sumField : sumFields) {
+            FieldInfo fi = fieldInfos.fieldInfo(sumField);
+            if (fi != null && !fi.hasDocValues()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Aggregate a segment from stored fields, which is slower, but does not
+     * require doc values.
+     */
+    private void aggregateStoredFields(AtomicReader r, DocIdSetIterator disi, Bits liveDocs) throws IOException {
+        Set<String> loadFields = new HashSet<String>();
+        if (termsField != null) {
+            loadFields.add(termsField);
+        }
+        for (String storedSumField : storedSumFields) {
+            loadFields.add(storedSumField);
+        }
+        if (groupDepth >= 0) {
+            loadFields.add(ResourceFields.URI_FIELD_NAME);
+        }
+        final BytesRef uri = new BytesRef();
+        final Set<String> docTerms = new HashSet<String>();
+
+        for (int doc = nextDoc(disi, liveDocs, -1, r.maxDoc()); doc != DocIdSetIterator.NO_MORE_DOCS;
+                doc = nextDoc(disi, liveDocs, doc, r.maxDoc())) {
+            Document document = r.document(doc, loadFields);
+
+            if (termsField != null) {
+                // Each term is counted once per document, as with doc values
+                docTerms.clear();
+                for (String term : document.getValues(termsField)) {
+                    if (docTerms.add(term)) {
+                        countTerm(term, 1);
+                    }
+                }
+            }
+
+            long value = 0;
+            for (int i = 0; i < sumFields.length; i++) {
+                value += sumWeights[i] * storedNumber(document, i);
+            }
+            total.add(value);
+
+            if (groupDepth >= 0) {
+                uri.copyChars(document.get(ResourceFields.URI_FIELD_NAME));
+                group(uri, value);
+            }
+        }
+    }
+
+    private long storedNumber(Document document, int sumIndex) {
+        String jsonAttribute = jsonAttributes[sumIndex];
+        if (jsonAttribute == null) {
+            IndexableField field = document.getField(storedSumFields[sumIndex]);
+            Number number = field != null ? field.numericValue() : null;
+            return number != null ? number.longValue() : 0;
+        }
+
+        String json = document.get(storedSumFields[sumIndex]);
+        if (json == null) {
+            return 0;
+        }
+        try {
+            Object object = Json.parse(json);
+            Object value = object instanceof Map<?, ?> ? ((Map<?, ?>) object).get(jsonAttribute) : null;
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            } else if (value != null) {
+                return Long.parseLong(value.toString());
+            }
+        } catch (Json.JsonException e) {
+            logger.debug("Invalid JSON value in field " + storedSumFields[sumIndex], e);
+        } catch (NumberFormatException e) {
+            // Not a number, same as for indexing
+        }
+        return 0;
+    }
+
+    private static int nextDoc(DocIdSetIterator disi, Bits liveDocs, int doc, int maxDoc) throws IOException {
+        if (disi != null) {
+            return disi.nextDoc();
+        }
+        while (++doc < maxDoc) {
+            if (liveDocs == null || liveDocs.get(doc)) {
+                return doc;
+            }
+        }
+        return DocIdSetIterator.NO_MORE_DOCS;
+    }
+
+    private void countTerm(String term, int n) {
+        int[] count = termCounts.get(term);
+        if (count == null) {
+            termCounts.put(term, new int[] { n });
+        } else {
+            count[0] += n;
+        }
+    }
+
+    private void group(BytesRef uri, long value) {
+        if (uriPrefix(uri, groupDepth, prefix)) {
+            Bucket group = groups.get(prefix);
+            if (group == null) {
+                group = new Bucket();
+                groups.put(BytesRef.deepCopyOf(prefix), group);
+            }
+            group.add(value);
+        }
+    }
+
+    /**
+     * Point <code>prefix</code> to the ancestor of <code>uri</code> at the
+     * given depth.
+     * 
+     * @return <code>false</code> if the URI is not below the given depth
+     */
+    static boolean uriPrefix(BytesRef uri, int depth, BytesRef prefix) {
+        // Bytes of '/' never occur within multi-byte UTF-8 sequences
+        int slashes = 0;
+        for (int i = uri.offset + 1; i < uri.offset + uri.length; i++) {
+            if (uri.bytes[i] == SLASH && ++slashes == depth) {
+                prefix.bytes = uri.bytes;
+                prefix.offset = uri.offset;
+                prefix.length = i - uri.offset;
+                return true;
+            }
+        }
+        if (depth == 0 && uri.length > 1) {
+            prefix.bytes = uri.bytes;
+            prefix.offset = uri.offset;
+            prefix.length = 1;
+            return true;
+        }
+        return false;
+    }
+
+    private AggregationResult result() {
+        List<TermCount> terms = new ArrayList<TermCount>();
+        for (Map.Entry<String, int[]> entry : termCounts.entrySet()) {
+            if (entry.getValue()[0] >= spec.getTermsMinCount()) {
+                terms.add(new TermCount(entry.getKey(), entry.getValue()[0]));
+            }
+        }
+        Collections.sort(terms, new Comparator<TermCount>() {
+            @Override
+            public int compare(TermCount o1, TermCount o2) {
+                if (o1.getCount() != o2.getCount()) {
+                    return o1.getCount() > o2.getCount() ? -1 : 1;
+                }
+                return o1.getTerm().compareTo(o2.getTerm());
+            }
+        });
+        if (spec.getTermsLimit() >= 0 && terms.size() > spec.getTermsLimit()) {
+            terms = new ArrayList<TermCount>(terms.subList(0, spec.getTermsLimit()));
+        }
+
+        Map<Path, Bucket> sortedGroups = new TreeMap<Path, Bucket>();
+        for (Map.Entry<BytesRef, Bucket> entry : groups.entrySet()) {
+            sortedGroups.put(Path.fromString(entry.getKey().utf8ToString()), entry.getValue());
+        }
+
+        return new AggregationResult(total, terms, sortedGroups);
+    }
+
+}
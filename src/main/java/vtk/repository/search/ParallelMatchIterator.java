@@ -0,0 +1,380 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import vtk.repository.index.mapping.DocumentMapper;
+import vtk.repository.index.mapping.LazyMappedPropertySet;
+import vtk.repository.search.Searcher.MatchCallback;
+
+/**
+ * Match iteration which loads and maps documents from all index segments
+ * concurrently.
+ * 
+ * <p>Each segment is read in batches of documents by tasks on an executor.
+ * At most one batch per segment is loaded ahead of the callback, and tasks
+ * never wait for each other or for the callback, so any number of
+ * segments and concurrent iterations can share a bounded executor.
+ * 
+ * <p>The callback is always invoked on the calling thread, in the same order
+ * as sequential iteration, so that a cursor skips the same matches every
+ * time. If a sort field is given, the sorted per-segment streams are merged.
+ * Otherwise, segments are delivered one after the other in index order, while
+ * the next batch of every segment is loaded ahead.
+ */
+class ParallelMatchIterator {
+
+    static final int BATCH_SIZE = 250;
+
+    private final ExecutorService executor;
+    private final DocumentMapper documentMapper;
+    private final PropertySelect propertySelect;
+
+    // Set when delivery stops, so that loading tasks finish early
+    private volatile boolean stopped = false;
+
+    ParallelMatchIterator(ExecutorService executor, DocumentMapper documentMapper,
+            PropertySelect propertySelect) {
+        this.executor = executor;
+        this.documentMapper = documentMapper;
+        this.propertySelect = propertySelect;
+    }
+
+    /**
+     * Iterate all docs matching filter. Filter may be <code>null</code>, in
+     * which case all non-deleted docs are iterated. If <code>sortField</code>
+     * is not <code>null</code>, then only docs with the field are iterated,
+     * in lexicographic order of the field terms.
+     * 
+     * <p>Returns when iteration is complete, and no loading tasks are running.
+     */
+    void iterate(IndexReader reader, Filter filter, String sortField,
+            int cursor, int limit, MatchCallback callback) throws Exception {
+        if (limit <= 0) {
+            return;
+        }
+
+        List<Segment> segments = new ArrayList<Segment>();
+        for (AtomicReaderContext context : reader.leaves()) {
+            Segment segment = sortField != null 
+                    ? sortedSegment(context, filter, sortField, segments.size())
+                    : segment(context, filter, segments.size());
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+
+        Delivery delivery = new Delivery(cursor, limit, callback);
+        try {
+            for (Segment segment : segments) {
+                segment.pending = this.executor.submit(segment);
+            }
+            if (sortField != null) {
+                merge(segments, delivery);
+            } else {
+                concatenate(segments, delivery);
+            }
+        } finally {
+            this.stopped = true;
+            // Wait for running tasks, so that the reader is no longer in use when returning
+            for (Segment segment : segments) {
+                if (segment.pending != null) {
+                    try {
+                        segment.pending.get();
+                    } catch (ExecutionException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    private void concatenate(List<Segment> segments, Delivery delivery) throws Exception {
+        for (Segment segment : segments) {
+            while (nextBatch(segment)) {
+                for (Item item : segment.current.items) {
+                    if (!delivery.deliver(item)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void merge(List<Segment> segments, Delivery delivery) throws Exception {
+        PriorityQueue<Segment> heads = new PriorityQueue<Segment>(
+                Math.max(1, segments.size()), new Comparator<Segment>() {
+            @Override
+            public int compare(Segment s1, Segment s2) {
+                int c = s1.head().term.compareTo(s2.head().term);
+                if (c != 0) {
+                    return c;
+                }
+                // Segment order for equal terms, as in sequential iteration
+                return s1.ord < s2.ord ? -1 : (s1.ord == s2.ord ? 0 : 1);
+            }
+        });
+        for (Segment segment : segments) {
+            if (nextBatch(segment)) {
+                heads.add(segment);
+            }
+        }
+        while (!heads.isEmpty()) {
+            Segment segment = heads.poll();
+            if (!delivery.deliver(segment.head())) {
+                return;
+            }
+            segment.position++;
+            if (segment.position < segment.current.items.size() || nextBatch(segment)) {
+                heads.add(segment);
+            }
+        }
+    }
+
+    // Wait for the next non-empty batch of a segment, and start loading the one after it.
+    private boolean nextBatch(Segment segment) throws Exception {
+        while (segment.pending != null) {
+            Batch batch = batch(segment.pending);
+            segment.pending = batch.last ? null : this.executor.submit(segment);
+            if (!batch.items.isEmpty()) {
+                segment.current = batch;
+                segment.position = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Batch batch(Future<Batch> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Segment segment(AtomicReaderContext context, Filter filter, int ord) throws IOException {
+        final AtomicReader r = context.reader();
+        if (filter == null) {
+            return new Segment(ord, r, null, r.getLiveDocs(), null);
+        }
+        DocIdSet matchedDocs = filter.getDocIdSet(context, r.getLiveDocs());
+        if (matchedDocs == null) {
+            return null;
+        }
+        DocIdSetIterator disi = matchedDocs.iterator();
+        if (disi == null) {
+            return null;
+        }
+        return new Segment(ord, r, disi, null, null);
+    }
+
+    private Segment sortedSegment(AtomicReaderContext context, Filter filter, String field, int ord)
+            throws IOException {
+        final AtomicReader r = context.reader();
+        Terms terms = r.terms(field);
+        if (terms == null) {
+            return null;
+        }
+        Bits acceptDocs = r.getLiveDocs();
+        if (filter != null) {
+            DocIdSet matchedDocs = filter.getDocIdSet(context, acceptDocs);
+            if (matchedDocs == null) {
+                return null;
+            }
+            DocIdSetIterator disi = matchedDocs.iterator();
+            if (disi == null) {
+                return null;
+            }
+            FixedBitSet bits = new FixedBitSet(r.maxDoc());
+            bits.or(disi);
+            acceptDocs = bits;
+        }
+        return new Segment(ord, r, null, acceptDocs, terms.iterator(null));
+    }
+
+    /**
+     * Applies cursor and limit, and invokes callback.
+     */
+    private static final class Delivery {
+        private final int cursor;
+        private final int limit;
+        private final MatchCallback callback;
+        private int matchDocCounter = 0;
+        private int callbackCounter = 0;
+
+        Delivery(int cursor, int limit, MatchCallback callback) {
+            this.cursor = cursor;
+            this.limit = limit;
+            this.callback = callback;
+        }
+
+        /**
+         * @return <code>false</code> if iteration should stop
+         */
+        boolean deliver(Item item) throws Exception {
+            if (matchDocCounter++ < cursor) {
+                return true;
+            }
+            boolean continueIteration = callback.matching(
+                    new SearcherImpl.MatchingResultImpl(item.propertySet, item.propertySet.getAcl()));
+            return ++callbackCounter < limit && continueIteration;
+        }
+    }
+
+    private static final class Item {
+        final BytesRef term;
+        final LazyMappedPropertySet propertySet;
+
+        Item(BytesRef term, LazyMappedPropertySet propertySet) {
+            this.term = term;
+            this.propertySet = propertySet;
+        }
+    }
+
+    private static final class Batch {
+        final List<Item> items;
+        final boolean last;
+
+        Batch(List<Item> items, boolean last) {
+            this.items = items;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Iteration state of a single index segment. Loads one batch of matches
+     * each time it is called, and is never called concurrently.
+     */
+    private final class Segment implements Callable<Batch> {
+        final int ord;
+        private final AtomicReader reader;
+
+        // Matching docs when not sorting (null means all accepted docs)
+        private final DocIdSetIterator disi;
+        // Accepted docs, live docs and matching docs when sorting
+        private final Bits liveDocs;
+        private int nextDoc = 0;
+
+        // Terms and matching docs of current term when sorting
+        private final TermsEnum termsEnum;
+        private DocsEnum docsEnum;
+        private DocsEnum reuse;
+        private BytesRef term;
+
+        // Only accessed by the delivering thread
+        Future<Batch> pending;
+        Batch current;
+        int position;
+
+        Segment(int ord, AtomicReader reader, DocIdSetIterator disi, Bits liveDocs,
+                TermsEnum termsEnum) {
+            this.ord = ord;
+            this.reader = reader;
+            this.disi = disi;
+            this.liveDocs = liveDocs;
+            this.termsEnum = termsEnum;
+        }
+
+        Item head() {
+            return current.items.get(position);
+        }
+
+        @Override
+        public Batch call() throws Exception {
+            List<Item> items = new ArrayList<Item>(BATCH_SIZE);
+            while (items.size() < BATCH_SIZE && !stopped) {
+                int doc;
+                if (termsEnum != null) {
+                    if (docsEnum == null) {
+                        BytesRef t = termsEnum.next();
+                        if (t == null) {
+                            return new Batch(items, true);
+                        }
+                        term = BytesRef.deepCopyOf(t);
+                        docsEnum = termsEnum.docs(liveDocs, reuse, DocsEnum.FLAG_NONE);
+                        reuse = docsEnum;
+                        continue;
+                    }
+                    doc = docsEnum.nextDoc();
+                    if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                        docsEnum = null;
+                        continue;
+                    }
+                } else if (disi != null) {
+                    doc = disi.nextDoc();
+                    if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                        return new Batch(items, true);
+                    }
+                } else {
+                    if (nextDoc >= reader.maxDoc()) {
+                        return new Batch(items, true);
+                    }
+                    doc = nextDoc++;
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                }
+
+                DocumentStoredFieldVisitor visitor = documentMapper.newStoredFieldVisitor(propertySelect);
+                reader.document(doc, visitor);
+                items.add(new Item(term, documentMapper.getPropertySet(visitor.getDocument())));
+            }
+            return new Batch(items, stopped);
+        }
+    }
+
+}
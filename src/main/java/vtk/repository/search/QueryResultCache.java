@@ -0,0 +1,389 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+
+import vtk.repository.search.query.NormalizingQueryTreeVisitor;
+
+/**
+ * Cache of search results for unauthenticated searches, shared between
+ * requests. See {@link SearcherImpl#setQueryResultCache(vtk.repository.search.QueryResultCache) }.
+ * The cache is used inside the searcher rather than by a {@link Searcher}
+ * wrapper, since it holds Lucene document ids, which are only meaningful
+ * together with the index reader the search was run on.
+ * 
+ * <p>Entries hold the top document ids and total hits of a search, and are
+ * keyed on:
+ * <ul>
+ *   <li>The canonical form of the query, as produced by {@link NormalizingQueryTreeVisitor}.
+ *   <li>The Lucene sorting.
+ *   <li>The filter flags of the search.
+ *   <li>The version of the index reader searched.
+ * </ul>
+ * 
+ * <p>Property selection is not part of the key, since stored fields are
+ * loaded for each search from the cached document ids. A cached result can
+ * serve any search with the same key which needs no more hits than the
+ * result has.
+ * 
+ * <p>When a search sees a newer index reader version, all entries are
+ * dropped, so results never outlive a reopen of the index. The total size
+ * of entries is bounded, and least recently used entries are evicted first.
+ * 
+ * <p>Entries are spread over a number of independently locked segments by
+ * key hash, so that concurrent searches rarely contend. Each segment gets an
+ * equal share of the maximum size, and evicts its own least recently used
+ * entries. Hits and misses are counted per segment, and can be written to
+ * the log periodically by {@link #logStatistics()}.
+ */
+public class QueryResultCache {
+
+    private static final Log logger = LogFactory.getLog(QueryResultCache.class);
+
+    // Rough size of an entry excluding key and doc ids, counted against max bytes
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private volatile Segment[] segments;
+    private volatile long maxBytes = 16 * 1024 * 1024;
+    private volatile long readerVersion = -1;
+
+    public QueryResultCache() {
+        this.segments = newSegments(16, this.maxBytes);
+    }
+
+    static final class Key {
+        private final String query;
+        private final org.apache.lucene.search.Sort sort;
+        private final String filterFlags;
+        private final long readerVersion;
+        private final int hashCode;
+
+        private Key(String query, org.apache.lucene.search.Sort sort, String filterFlags, long readerVersion) {
+            this.query = query;
+            this.sort = sort;
+            this.filterFlags = filterFlags;
+            this.readerVersion = readerVersion;
+            int h = query.hashCode();
+            h = 31 * h + (sort != null ? sort.hashCode() : 0);
+            h = 31 * h + filterFlags.hashCode();
+            h = 31 * h + (int) (readerVersion ^ (readerVersion >>> 32));
+            this.hashCode = h;
+        }
+
+        long bytes() {
+            return 2 * (query.length() + filterFlags.length()) + 64;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return this.readerVersion == other.readerVersion
+                    && this.query.equals(other.query)
+                    && this.filterFlags.equals(other.filterFlags)
+                    && (this.sort == null ? other.sort == null : this.sort.equals(other.sort));
+        }
+    }
+
+    /**
+     * Cached document ids and total hits of a search.
+     */
+    static final class Entry {
+        final int[] docIds;
+        final int totalHits;
+
+        Entry(ScoreDoc[] scoreDocs, int totalHits) {
+            this.docIds = new int[scoreDocs.length];
+            for (int i = 0; i < scoreDocs.length; i++) {
+                this.docIds[i] = scoreDocs[i].doc;
+            }
+            this.totalHits = totalHits;
+        }
+
+        long bytes() {
+            return ENTRY_OVERHEAD_BYTES + 4L * docIds.length;
+        }
+
+        // Whether entry has the given number of top hits, or all hits
+        boolean covers(int limit) {
+            return docIds.length >= limit || docIds.length == totalHits;
+        }
+    }
+
+    /**
+     * Create cache key for a search on an index reader.
+     * 
+     * @return the key, or <code>null</code> if the reader is not versioned
+     */
+    Key key(Search search, org.apache.lucene.search.Sort luceneSort, IndexReader reader) {
+        if (!(reader instanceof DirectoryReader)) {
+            return null;
+        }
+        String query = search.getQuery() != null 
+                ? (String) search.getQuery().accept(new NormalizingQueryTreeVisitor(), null) : "-";
+        StringBuilder flags = new StringBuilder();
+        for (Search.FilterFlag flag : Search.FilterFlag.values()) {
+            if (search.hasFilterFlag(flag)) {
+                flags.append(flag.name()).append(' ');
+            }
+        }
+        return new Key(query, luceneSort, flags.toString(), ((DirectoryReader) reader).getVersion());
+    }
+
+    /**
+     * Get cached result with at least the given number of top hits.
+     * 
+     * @return the cached entry, or <code>null</code> if none
+     */
+    Entry get(Key key, int limit) {
+        newReaderVersion(key.readerVersion);
+        return segment(key).get(key, limit);
+    }
+
+    void put(Key key, Entry entry) {
+        newReaderVersion(key.readerVersion);
+        segment(key).put(key, entry);
+    }
+
+    private Segment segment(Key key) {
+        Segment[] segments = this.segments;
+        int h = key.hashCode;
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    // Drop all entries when a newer index reader is seen
+    private void newReaderVersion(long version) {
+        if (version <= this.readerVersion) {
+            return;
+        }
+        synchronized (this) {
+            if (version <= this.readerVersion) {
+                return;
+            }
+            // Set before clearing, so that no segment accepts older results
+            // once it has been cleared
+            this.readerVersion = version;
+            for (Segment segment : this.segments) {
+                segment.clear(false);
+            }
+        }
+    }
+
+    /**
+     * Remove all entries and reset statistics.
+     */
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.clear(true);
+        }
+    }
+
+    /**
+     * @param maxBytes the maximum total estimated size of cached entries
+     * (default 16 MiB). Drops all entries.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Argument must be a positive number");
+        }
+        this.maxBytes = maxBytes;
+        this.segments = newSegments(this.segments.length, maxBytes);
+    }
+
+    /**
+     * @param segments the number of independently locked segments, rounded
+     * up to a power of two (default 16). Drops all entries.
+     */
+    public synchronized void setSegments(int segments) {
+        if (segments <= 0) {
+            throw new IllegalArgumentException("Argument must be a positive number");
+        }
+        this.segments = newSegments(segments, this.maxBytes);
+    }
+
+    private Segment[] newSegments(int n, long maxBytes) {
+        int size = Integer.highestOneBit(n);
+        if (size < n) {
+            size <<= 1;
+        }
+        Segment[] segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment(Math.max(1, maxBytes / size));
+        }
+        return segments;
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return the estimated total size of cached entries
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        long hits = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                hits += segment.hits;
+            }
+        }
+        return hits;
+    }
+
+    public long getMisses() {
+        long misses = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                misses += segment.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * @return ratio of lookups which were hits, or <code>0</code> if no lookups
+     */
+    public double getHitRatio() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    /**
+     * Logs size and hit statistics. Intended to be invoked periodically.
+     */
+    public void logStatistics() {
+        if (logger.isInfoEnabled()) {
+            logger.info(this + ", hit ratio: " + String.format("%.3f", getHitRatio()));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size: " + getSize() + ", bytes: " + getBytes()
+                + ", maxBytes: " + this.maxBytes + ", hits: " + getHits() + ", misses: " + getMisses() + "]";
+    }
+
+    /**
+     * Least recently used entries of a share of the keys, with its own lock
+     * and size bound.
+     */
+    private final class Segment {
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        private final long maxBytes;
+        private long bytes = 0;
+        private long hits = 0;
+        private long misses = 0;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Entry get(Key key, int limit) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.covers(limit)) {
+                this.hits++;
+                return entry;
+            }
+            this.misses++;
+            return null;
+        }
+
+        synchronized void put(Key key, Entry entry) {
+            if (key.readerVersion < QueryResultCache.this.readerVersion) {
+                // Old reader, results of no use
+                return;
+            }
+            long entryBytes = key.bytes() + entry.bytes();
+            if (entryBytes > this.maxBytes) {
+                return;
+            }
+            Entry old = this.entries.put(key, entry);
+            if (old != null) {
+                this.bytes -= key.bytes() + old.bytes();
+            }
+            this.bytes += entryBytes;
+            Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+            while (this.bytes > this.maxBytes && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                this.bytes -= eldest.getKey().bytes() + eldest.getValue().bytes();
+                it.remove();
+            }
+        }
+
+        synchronized void clear(boolean statistics) {
+            this.entries.clear();
+            this.bytes = 0;
+            if (statistics) {
+                this.hits = 0;
+                this.misses = 0;
+            }
+        }
+    }
+
+}
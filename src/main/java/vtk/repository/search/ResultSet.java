@@ -131,6 +131,15 @@ public interface ResultSet extends Iterable<PropertySet> {
      */
     public int getTotalHits();
     
+    /**
+     * Get cursor token for fetching the page following this result set.
+     * 
+     * @return a token for {@link Search#setCursorToken(java.lang.String) }, or
+     * <code>null</code> if the search did not use cursor token paging, or if
+     * there are no more results.
+     */
+    public String getNextCursorToken();
+    
     /**
      * Get ACL object of a single result. 
      * 
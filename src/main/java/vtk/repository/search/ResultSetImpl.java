@@ -44,6 +44,7 @@ public class ResultSetImpl implements ResultSet {
 
     protected final List<PropertySet> results;
     protected int totalHits;
+    protected String nextCursorToken;
 
     public ResultSetImpl() {
         this.results = new ArrayList<PropertySet>();
@@ -107,6 +108,15 @@ public class ResultSetImpl implements ResultSet {
         this.totalHits = totalHits;
     }
 
+    @Override
+    public String getNextCursorToken() {
+        return this.nextCursorToken;
+    }
+
+    public void setNextCursorToken(String nextCursorToken) {
+        this.nextCursorToken = nextCursorToken;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(this.getClass().getName());
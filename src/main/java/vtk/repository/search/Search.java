@@ -67,7 +67,9 @@ public final class Search {
     private Sorting sorting;
     private int limit = DEFAULT_LIMIT;
     private int cursor = 0;
+    private String cursorToken = null;
     private EnumSet<FilterFlag> filterFlags;
+    private boolean parallelIteration = false;
 
     public Search() {
         Sorting defaultSorting = new Sorting();
@@ -88,6 +90,35 @@ public final class Search {
         return this;
     }
 
+    /**
+     * @return the cursor token, or <code>null</code> if cursor token paging
+     * is not used.
+     * @see #setCursorToken(java.lang.String) 
+     */
+    public String getCursorToken() {
+        return this.cursorToken;
+    }
+
+    /**
+     * Use cursor token paging. Instead of skipping <code>cursor</code> hits,
+     * results start right after the last hit of a previous page, so any page
+     * costs the same to fetch, and paging is not restricted by the internal
+     * search limit.
+     * 
+     * <p>Use an empty string to fetch the first page, and then the token from
+     * {@link ResultSet#getNextCursorToken()} to fetch each following page with
+     * the same query and sorting. A stable tiebreaker on URI is added to the
+     * sorting in this mode. The numeric cursor must be zero.
+     * 
+     * @param cursorToken the cursor token, or <code>null</code> to not use
+     * cursor token paging
+     * @return this search instance
+     */
+    public Search setCursorToken(String cursorToken) {
+        this.cursorToken = cursorToken;
+        return this;
+    }
+
     public int getLimit() {
         return this.limit;
     }
@@ -129,6 +160,33 @@ public final class Search {
         return this;
     }
 
+    /**
+     * @return whether match iteration may load results in parallel
+     * @see #setParallelIteration(boolean) 
+     */
+    public boolean isParallelIteration() {
+        return this.parallelIteration;
+    }
+
+    /**
+     * Allow {@link Searcher#iterateMatching(java.lang.String, vtk.repository.search.Search, vtk.repository.search.Searcher.MatchCallback) match iteration}
+     * to load results from all index segments in parallel. The callback is
+     * still invoked from the calling thread only.
+     * 
+     * <p>Results come in the same order as with sequential iteration, so
+     * paging with a cursor gives the same pages either way.
+     * 
+     * <p>Default is <code>false</code>. Only has effect if the searcher is
+     * configured for parallel iteration.
+     * 
+     * @param parallelIteration whether to allow parallel iteration
+     * @return this search instance
+     */
+    public Search setParallelIteration(boolean parallelIteration) {
+        this.parallelIteration = parallelIteration;
+        return this;
+    }
+
     public Query getQuery() {
         return query;
     }
@@ -159,7 +217,14 @@ public final class Search {
         sb.append(", propertySelect=").append(this.propertySelect);
         sb.append(", sorting=").append(this.sorting);
         sb.append(", limit=").append(this.limit);
-        sb.append(", cursor=").append(this.cursor).append("]");
+        sb.append(", cursor=").append(this.cursor);
+        if (this.cursorToken != null) {
+            sb.append(", cursorToken=").append(this.cursorToken);
+        }
+        if (this.parallelIteration) {
+            sb.append(", parallelIteration=true");
+        }
+        sb.append("]");
         return sb.toString();
     }
 
@@ -191,6 +256,12 @@ public final class Search {
         if (this.cursor != other.cursor) {
             return false;
         }
+        if (this.cursorToken == null ? other.cursorToken != null : !this.cursorToken.equals(other.cursorToken)) {
+            return false;
+        }
+        if (this.parallelIteration != other.parallelIteration) {
+            return false;
+        }
         return true;
     }
 
@@ -204,6 +275,8 @@ public final class Search {
         hash = 47 * hash + (this.filterFlags.contains(FilterFlag.UNPUBLISHED_COLLECTIONS) ? 1 : 0);
         hash = 47 * hash + this.limit;
         hash = 47 * hash + this.cursor;
+        hash = 47 * hash + (this.cursorToken != null ? this.cursorToken.hashCode() : 0);
+        hash = 47 * hash + (this.parallelIteration ? 1 : 0);
         return hash;
     }
 
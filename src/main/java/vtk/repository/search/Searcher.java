@@ -124,4 +124,21 @@ public interface Searcher {
      */
     public void iterateMatching(String token, Search search, MatchCallback callback) throws QueryException;
     
+    /**
+     * Aggregate over all property sets that match the criteria in the
+     * provided <code>Search</code>, without loading any property sets. This
+     * is much cheaper than counting with {@link #iterateMatching(java.lang.String, vtk.repository.search.Search, vtk.repository.search.Searcher.MatchCallback) match iteration}.
+     * 
+     * <p>Only the query and filter flags of the <code>Search</code> are used.
+     * Sorting, cursor, limit and property selection are ignored.
+     * 
+     * @param token
+     * @param search A <code>Search</code> instance, encapsulating all aspects
+     *        of the index search. The search query itself may be null, in which case
+     *        everything will match.
+     * @param spec the aggregation specification
+     * @return the aggregation result
+     */
+    public AggregationResult aggregate(String token, Search search, AggregationSpec spec) throws QueryException;
+    
 }
@@ -31,6 +31,10 @@
 package vtk.repository.search;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.document.Document;
@@ -45,6 +49,7 @@ import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
@@ -52,11 +57,13 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.FixedBitSet;
 import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Required;
 import vtk.repository.Acl;
 import vtk.repository.PropertySet;
 import vtk.repository.index.IndexManager;
 import vtk.repository.index.mapping.DocumentMapper;
+import vtk.repository.index.mapping.ResourceFields;
 import vtk.repository.index.mapping.LazyMappedPropertySet;
 import vtk.repository.index.mapping.ResultSetWithAcls;
 import vtk.repository.search.Searcher.MatchingResult;
@@ -68,7 +75,7 @@ import vtk.repository.search.query.Query;
  * Implementation of {@link vtk.repository.search.Searcher} based on
  * Lucene.
  */
-public class SearcherImpl implements Searcher {
+public class SearcherImpl implements Searcher, DisposableBean {
 
     private final Log logger = LogFactory.getLog(SearcherImpl.class);
 
@@ -76,9 +83,14 @@ public class SearcherImpl implements Searcher {
     private DocumentMapper documentMapper;
     private LuceneQueryBuilder queryBuilder;
 
-//    private int unauthenticatedQueryMaxDirtyAge = 0;
+    private int unauthenticatedQueryMaxDirtyAge = 0;
     private long totalQueryTimeWarnThreshold = 15000; // Warning threshold in milliseconds
 
+    // Executor for parallel match iteration, null if disabled
+    private ExecutorService iterationExecutor = null;
+
+    private QueryResultCache queryResultCache = null;
+
     /**
      * The internal maximum number of hits allowed for any query <em>before</em>
      * processing of the results by layers above Lucene. A
@@ -104,70 +116,113 @@ public class SearcherImpl implements Searcher {
         int clientLimit = search.getLimit();
         int clientCursor = search.getCursor();
         PropertySelect selectedProperties = search.getPropertySelect();
+        String cursorToken = search.getCursorToken();
+        if (cursorToken != null && clientCursor > 0) {
+            throw new QueryException("Cannot use both cursor token and numeric cursor: " + search);
+        }
 
         IndexSearcher searcher = null;
         try {
-//            if (token == null && this.unauthenticatedQueryMaxDirtyAge > 0) {
-//                // Accept higher dirty age for speedier queries when token is null
-//                searcher = this.indexAccessor.getIndexSearcher(this.unauthenticatedQueryMaxDirtyAge);
-//            } else {
-//                // Authenticated query, no dirty age acceptable.
-//                searcher = this.indexAccessor.getIndexSearcher();
-//            }
-
-            searcher = this.indexAccessor.getIndexSearcher();
-
-            // Build Lucene query
-            org.apache.lucene.search.Query luceneQuery
-                    = this.queryBuilder.buildQuery(query, searcher);
-
-            // Should include ACL filter combined with any other necessary filters ..
-            org.apache.lucene.search.Filter luceneFilter
-                    = this.queryBuilder.buildSearchFilter(token, search, searcher);
+            if (token == null && this.unauthenticatedQueryMaxDirtyAge > 0) {
+                // Accept higher dirty age for speedier queries when token is null
+                searcher = this.indexAccessor.getIndexSearcher(this.unauthenticatedQueryMaxDirtyAge);
+            } else {
+                // Authenticated query, no dirty age acceptable.
+                searcher = this.indexAccessor.getIndexSearcher();
+            }
 
             // Build Lucene sorting
             org.apache.lucene.search.Sort luceneSort
                     = this.queryBuilder.buildSort(sorting);
-
-            if (logger.isDebugEnabled()) {
-                logger.debug("Built Lucene query '" + luceneQuery
-                        + "' from query '"
-                        + query.accept(new DumpQueryTreeVisitor(), null) + "'");
-
-                logger.debug("Built Lucene sorting '" + luceneSort
-                        + "' from sorting '" + sorting + "'");
-
-                logger.debug("Built Lucene filter: " + luceneFilter);
+            if (cursorToken != null) {
+                luceneSort = withUriTiebreaker(luceneSort);
             }
 
             int need = clientCursor + clientLimit;
             long totalTime = 0;
 
             int searchLimit = Math.min(this.luceneSearchLimit, need);
+            FieldDoc after = null;
+            if (cursorToken != null) {
+                // Fetch one extra hit to know if there is a next page
+                need = searchLimit;
+                searchLimit = need + 1;
+                if (!cursorToken.isEmpty()) {
+                    after = CursorToken.decode(luceneSort, cursorToken);
+                }
+            }
 
-            long startTime = System.currentTimeMillis();
-            TopDocs topDocs = doTopDocsQuery(searcher, luceneQuery,
-                    luceneFilter, luceneSort, searchLimit);
-            long endTime = System.currentTimeMillis();
-
-            if (logger.isDebugEnabled()) {
-                logger.debug("Filtered lucene query took " + (endTime - startTime) + "ms");
+            // Only unauthenticated searches are cached, since ACL filtering
+            // is the same for all of them.
+            QueryResultCache.Key cacheKey = null;
+            QueryResultCache.Entry result = null;
+            if (this.queryResultCache != null && token == null && cursorToken == null) {
+                cacheKey = this.queryResultCache.key(search, luceneSort, searcher.getIndexReader());
+                if (cacheKey != null) {
+                    result = this.queryResultCache.get(cacheKey, searchLimit);
+                }
             }
 
-            totalTime += (endTime - startTime);
+            org.apache.lucene.search.Query luceneQuery = null;
+            ScoreDoc[] scoreDocs = null;
+            long startTime, endTime;
+            if (result == null) {
+                // Build Lucene query
+                luceneQuery = this.queryBuilder.buildQuery(query, searcher);
+
+                // Should include ACL filter combined with any other necessary filters ..
+                org.apache.lucene.search.Filter luceneFilter
+                        = this.queryBuilder.buildSearchFilter(token, search, searcher);
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Built Lucene query '" + luceneQuery
+                            + "' from query '"
+                            + query.accept(new DumpQueryTreeVisitor(), null) + "'");
+
+                    logger.debug("Built Lucene sorting '" + luceneSort
+                            + "' from sorting '" + sorting + "'");
 
-            ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+                    logger.debug("Built Lucene filter: " + luceneFilter);
+                }
+
+                startTime = System.currentTimeMillis();
+                TopDocs topDocs;
+                if (cursorToken != null) {
+                    topDocs = searcher.searchAfter(after, luceneQuery, luceneFilter,
+                            searchLimit, luceneSort);
+                } else {
+                    topDocs = doTopDocsQuery(searcher, luceneQuery,
+                            luceneFilter, luceneSort, searchLimit);
+                }
+                endTime = System.currentTimeMillis();
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Filtered lucene query took " + (endTime - startTime) + "ms");
+                }
+
+                totalTime += (endTime - startTime);
+
+                scoreDocs = topDocs.scoreDocs;
+                result = new QueryResultCache.Entry(scoreDocs, topDocs.totalHits);
+                if (cacheKey != null) {
+                    this.queryResultCache.put(cacheKey, result);
+                }
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Using cached result for search " + search);
+            }
+
+            int[] docIds = result.docIds;
 
             ResultSetWithAcls rs;
-            if (clientCursor < scoreDocs.length) {
-                int end = Math.min(need, scoreDocs.length);
+            if (clientCursor < docIds.length) {
+                int end = Math.min(need, docIds.length);
                 rs = new ResultSetWithAcls(end - clientCursor);
 
                 startTime = System.currentTimeMillis();
                 for (int i = clientCursor; i < end; i++) {
                     DocumentStoredFieldVisitor fieldVisitor
                             = documentMapper.newStoredFieldVisitor(selectedProperties);
-                    searcher.doc(scoreDocs[i].doc, fieldVisitor);
+                    searcher.doc(docIds[i], fieldVisitor);
                     Document doc = fieldVisitor.getDocument();
                     LazyMappedPropertySet propSet = this.documentMapper.getPropertySet(doc);
                     rs.addResult(propSet);
@@ -182,13 +237,16 @@ public class SearcherImpl implements Searcher {
             } else {
                 rs = new ResultSetWithAcls(0);
             }
-            rs.setTotalHits(topDocs.totalHits);
+            rs.setTotalHits(result.totalHits);
+            if (cursorToken != null && need > 0 && scoreDocs.length > need) {
+                rs.setNextCursorToken(CursorToken.encode(luceneSort, (FieldDoc) scoreDocs[need - 1]));
+            }
 
             if (totalTime > this.totalQueryTimeWarnThreshold) {
                 // Log a warning, query took too long to complete.
                 StringBuilder msg
                         = new StringBuilder("Total execution time for Lucene query '");
-                msg.append(luceneQuery).append("'");
+                msg.append(luceneQuery != null ? luceneQuery : query).append("'");
                 msg.append(", with a search limit of ").append(searchLimit);
                 msg.append(", was ").append(totalTime).append("ms. ");
                 msg.append("This exceeds the warning threshold of ");
@@ -210,6 +268,30 @@ public class SearcherImpl implements Searcher {
         }
     }
 
+    /**
+     * Add URI as last sort field, unless already present, so that every hit
+     * has a unique position in sort order.
+     */
+    private org.apache.lucene.search.Sort withUriTiebreaker(org.apache.lucene.search.Sort sort) {
+        org.apache.lucene.search.SortField uriField = new org.apache.lucene.search.SortField(
+                ResourceFields.URI_SORT_FIELD_NAME, org.apache.lucene.search.SortField.Type.STRING);
+        if (sort == null) {
+            return new org.apache.lucene.search.Sort(uriField);
+        }
+
+        org.apache.lucene.search.SortField[] fields = sort.getSort();
+        for (org.apache.lucene.search.SortField field : fields) {
+            if (ResourceFields.URI_SORT_FIELD_NAME.equals(field.getField())) {
+                return sort;
+            }
+        }
+        org.apache.lucene.search.SortField[] withUri
+                = new org.apache.lucene.search.SortField[fields.length + 1];
+        System.arraycopy(fields, 0, withUri, 0, fields.length);
+        withUri[fields.length] = uriField;
+        return new org.apache.lucene.search.Sort(withUri);
+    }
+
     private TopDocs doTopDocsQuery(IndexSearcher searcher,
             org.apache.lucene.search.Query query,
             org.apache.lucene.search.Filter filter,
@@ -229,15 +311,13 @@ public class SearcherImpl implements Searcher {
 
         IndexSearcher searcher = null;
         try {
-//            if (token == null && this.unauthenticatedQueryMaxDirtyAge > 0) {
-//                // Accept higher dirty age for speedier queries when token is null
-//                searcher = this.indexAccessor.getIndexSearcher(this.unauthenticatedQueryMaxDirtyAge);
-//            } else {
-//                // Authenticated query, no dirty age acceptable.
-//                searcher = this.indexAccessor.getIndexSearcher();
-//            }
-
-            searcher = this.indexAccessor.getIndexSearcher();
+            if (token == null && this.unauthenticatedQueryMaxDirtyAge > 0) {
+                // Accept higher dirty age for speedier queries when token is null
+                searcher = this.indexAccessor.getIndexSearcher(this.unauthenticatedQueryMaxDirtyAge);
+            } else {
+                // Authenticated query, no dirty age acceptable.
+                searcher = this.indexAccessor.getIndexSearcher();
+            }
 
             // Build iteration filter (may be null)
             Filter iterationFilter = this.queryBuilder.buildIterationFilter(
@@ -260,7 +340,12 @@ public class SearcherImpl implements Searcher {
                 iterationField = sf[0].getField();
             }
 
-            if (iterationField != null) {
+            if (search.isParallelIteration() && this.iterationExecutor != null) {
+                new ParallelMatchIterator(this.iterationExecutor, this.documentMapper,
+                        search.getPropertySelect()).iterate(searcher.getIndexReader(), 
+                                iterationFilter, iterationField, search.getCursor(), search.getLimit(),
+                                callback);
+            } else if (iterationField != null) {
                 iterateOnField(iterationField,
                         iterationFilter,
                         searcher.getIndexReader(),
@@ -286,11 +371,53 @@ public class SearcherImpl implements Searcher {
         }
     }
 
+    @Override
+    public AggregationResult aggregate(String token, Search search, AggregationSpec spec) throws QueryException {
+
+        IndexSearcher searcher = null;
+        try {
+            if (token == null && this.unauthenticatedQueryMaxDirtyAge > 0) {
+                // Accept higher dirty age for speedier queries when token is null
+                searcher = this.indexAccessor.getIndexSearcher(this.unauthenticatedQueryMaxDirtyAge);
+            } else {
+                // Authenticated query, no dirty age acceptable.
+                searcher = this.indexAccessor.getIndexSearcher();
+            }
+
+            // Query and ACL filter, same as for iteration (may be null)
+            Filter filter = this.queryBuilder.buildIterationFilter(token, search, searcher);
+
+            long startTime = System.currentTimeMillis();
+            AggregationResult result = new IndexAggregator(spec).aggregate(searcher.getIndexReader(), filter);
+            long totalTime = System.currentTimeMillis() - startTime;
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Aggregation " + spec + " with filter " + filter + " took " + totalTime + "ms");
+            }
+            if (totalTime > this.totalQueryTimeWarnThreshold) {
+                logger.warn("Total execution time for aggregation " + spec + " with filter '"
+                        + filter + "' was " + totalTime + "ms. This exceeds the warning threshold of "
+                        + this.totalQueryTimeWarnThreshold + "ms");
+            }
+
+            return result;
+        } catch (IOException io) {
+            logger.warn("IOException while performing aggregation on index", io);
+            throw new QueryException("IOException while performing aggregation on index", io);
+        } finally {
+            try {
+                this.indexAccessor.releaseIndexSearcher(searcher);
+            } catch (IOException io) {
+                logger.warn("IOException while releasing index searcher", io);
+            }
+        }
+    }
+
     /**
      * Iterator all docs matching filter in index order. Filter may be
      * <code>null></code>, in which case all non-deleted docs are iterated.
      */
-    private void iterate(org.apache.lucene.search.Filter iterationFilter,
+    void iterate(org.apache.lucene.search.Filter iterationFilter,
             IndexReader reader,
             PropertySelect propertySelect,
             int cursor,
@@ -386,7 +513,7 @@ public class SearcherImpl implements Searcher {
      * Iteration all docs with given field in lexicographic order. Filter may be
      * null.
      */
-    private void iterateOnField(final String field,
+    void iterateOnField(final String field,
             org.apache.lucene.search.Filter iterationFilter,
             IndexReader reader,
             PropertySelect propertySelect,
@@ -509,7 +636,7 @@ public class SearcherImpl implements Searcher {
         return fbs;
     }
 
-    private static final class MatchingResultImpl implements MatchingResult {
+    static final class MatchingResultImpl implements MatchingResult {
         private PropertySet ps;
         private Acl acl;
 
@@ -548,6 +675,54 @@ public class SearcherImpl implements Searcher {
         this.luceneSearchLimit = luceneSearchLimit;
     }
 
+    /**
+     * Set a cache of results for unauthenticated searches. On a cache hit,
+     * the Lucene query is neither built nor run, and only stored fields of
+     * the result documents are loaded. Default is no cache.
+     * 
+     * @param queryResultCache the cache
+     */
+    public void setQueryResultCache(QueryResultCache queryResultCache) {
+        this.queryResultCache = queryResultCache;
+    }
+
+    /**
+     * Set number of threads for loading results of parallel match iteration,
+     * shared by all iterations. Default is <code>0</code>, which means that
+     * match iteration is always sequential.
+     * 
+     * @param iterationThreads the number of threads
+     * @see Search#setParallelIteration(boolean) 
+     */
+    public void setIterationThreads(int iterationThreads) {
+        if (iterationThreads < 0) {
+            throw new IllegalArgumentException("Argument cannot be negative");
+        }
+        if (this.iterationExecutor != null) {
+            this.iterationExecutor.shutdown();
+            this.iterationExecutor = null;
+        }
+        if (iterationThreads > 0) {
+            this.iterationExecutor = Executors.newFixedThreadPool(iterationThreads, new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "index-iteration-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (this.iterationExecutor != null) {
+            this.iterationExecutor.shutdownNow();
+            this.iterationExecutor = null;
+        }
+    }
+
     public void setTotalQueryTimeWarnThreshold(long totalQueryTimeWarnThreshold) {
         if (totalQueryTimeWarnThreshold <= 0) {
             throw new IllegalArgumentException("Argument cannot be zero or negative");
@@ -560,11 +735,17 @@ public class SearcherImpl implements Searcher {
      * Set maximum acceptable dirty age when acquiring index searcher for
      * unauthenticated queries. Value is in seconds.
      *
-     * To get any effect, it should be equal or higher than value set in
-     * {@link vtk.repository.index.LuceneIndexManager#setAgingReadOnlyReaderThreshold(int)}
+     * Authenticated queries always see all changes committed to the index.
+     *
+     * <p>Only has effect when the index accessor refreshes searchers in the
+     * background, see
+     * {@link IndexManager#setMaxSearcherStaleSeconds(double)}.
      */
-//    public void setUnauthenticatedQueryMaxDirtyAge(int unauthenticatedQueryMaxDirtyAge) {
-//        this.unauthenticatedQueryMaxDirtyAge = unauthenticatedQueryMaxDirtyAge;
-//    }
+    public void setUnauthenticatedQueryMaxDirtyAge(int unauthenticatedQueryMaxDirtyAge) {
+        if (unauthenticatedQueryMaxDirtyAge < 0) {
+            throw new IllegalArgumentException("Argument cannot be negative");
+        }
+        this.unauthenticatedQueryMaxDirtyAge = unauthenticatedQueryMaxDirtyAge;
+    }
 
 }
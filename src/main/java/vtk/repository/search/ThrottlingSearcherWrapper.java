@@ -92,4 +92,19 @@ public class ThrottlingSearcherWrapper implements Searcher, InitializingBean {
             this.searchPermits.release();
         }
     }
+
+    @Override
+    public AggregationResult aggregate(String token, Search search, AggregationSpec spec) throws QueryException {
+        try {
+            this.searchPermits.acquire();
+        } catch (InterruptedException e) {
+            throw new QueryException("Thread interrupted while waiting for search permit");
+        }
+        
+        try {
+            return this.searcher.aggregate(token, search, spec);
+        } finally {
+            this.searchPermits.release();
+        }
+    }
 }
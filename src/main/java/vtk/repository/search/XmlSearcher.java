@@ -125,6 +125,20 @@ public class XmlSearcher {
 
     public Document executeDocumentQuery(String query, String sort, int maxResults, int offset, String fields,
             boolean authorizeCurrentPrincipal, boolean includeUnpublished) throws QueryException {
+        return executeDocumentQuery(query, sort, maxResults, offset, null, fields,
+                authorizeCurrentPrincipal, includeUnpublished);
+    }
+
+    /**
+     * Execute query with optional cursor token paging.
+     * 
+     * @param cursorToken cursor token, see {@link Search#setCursorToken(java.lang.String) }.
+     * If not <code>null</code>, the offset is ignored, and the token for the next
+     * page is set as attribute <code>nextCursor</code> on the results element.
+     */
+    public Document executeDocumentQuery(String query, String sort, int maxResults, int offset,
+            String cursorToken, String fields, boolean authorizeCurrentPrincipal,
+            boolean includeUnpublished) throws QueryException {
         // VTK-2460
         if (RequestContext.getRequestContext().isViewUnauthenticated()) {
             authorizeCurrentPrincipal = false;
@@ -135,11 +149,11 @@ public class XmlSearcher {
             RequestContext requestContext = RequestContext.getRequestContext();
             token = requestContext.getSecurityToken();
         }
-        return executeDocumentQuery(token, query, sort, maxResults, offset, fields, includeUnpublished);
+        return executeDocumentQuery(token, query, sort, maxResults, offset, cursorToken, fields, includeUnpublished);
     }
 
     private Document executeDocumentQuery(String token, String query, String sort, int maxResults, int offset,
-            String fields, boolean includeUnpublished) throws QueryException {
+            String cursorToken, String fields, boolean includeUnpublished) throws QueryException {
         int limit = maxResults;
 
         if (maxResults > this.maxResults) {
@@ -162,7 +176,11 @@ public class XmlSearcher {
             if (envir.getSorting() != null)
                 search.setSorting(envir.getSorting());
             search.setLimit(limit);
-            search.setCursor(offset);
+            if (cursorToken != null) {
+                search.setCursorToken(cursorToken);
+            } else {
+                search.setCursor(offset);
+            }
             search.setPropertySelect(envir.getPropertySelect());
             if (includeUnpublished) {
                 search.removeFilterFlag(Search.FilterFlag.UNPUBLISHED_COLLECTIONS, Search.FilterFlag.UNPUBLISHED);
@@ -194,6 +212,9 @@ public class XmlSearcher {
         doc.appendChild(resultElement);
         resultElement.setAttribute("size", String.valueOf(rs.getSize()));
         resultElement.setAttribute("totalHits", String.valueOf(rs.getTotalHits()));
+        if (rs.getNextCursorToken() != null) {
+            resultElement.setAttribute("nextCursor", rs.getNextCursorToken());
+        }
         for (Iterator<PropertySet> i = rs.iterator(); i.hasNext();) {
             PropertySet propSet = i.next();
             addPropertySetToResults(doc, resultElement, propSet, envir);
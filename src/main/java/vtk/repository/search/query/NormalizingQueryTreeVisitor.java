@@ -0,0 +1,224 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import vtk.repository.resourcetype.PropertyTypeDefinition;
+
+/**
+ * Visitor which produces a canonical string form of a query tree, suitable
+ * as a cache key. Queries which are equal in meaning by simple rules get the
+ * same canonical form:
+ * <ul>
+ *   <li>Nested AND and OR queries of the same kind are flattened.
+ *   <li>Sub queries of AND and OR queries are ordered, and duplicates removed.
+ *   <li>AND and OR queries with a single sub query are replaced by the sub query.
+ * </ul>
+ * 
+ * <p>All query node attributes which affect matching are part of the
+ * canonical form. String values are length prefixed, so no value can be
+ * mistaken for query structure.
+ * 
+ * <p>The <code>data</code> argument is not used, and the return value of every
+ * visit method is a <code>String</code>.
+ */
+public class NormalizingQueryTreeVisitor implements QueryTreeVisitor {
+
+    @Override
+    public Object visit(AndQuery andQuery, Object data) {
+        return multiple("AND", AndQuery.class, andQuery);
+    }
+
+    @Override
+    public Object visit(OrQuery orQuery, Object data) {
+        return multiple("OR", OrQuery.class, orQuery);
+    }
+
+    private String multiple(String name, Class<? extends AbstractMultipleQuery> type, 
+            AbstractMultipleQuery query) {
+        TreeSet<String> subQueries = new TreeSet<String>();
+        List<Query> queue = new ArrayList<Query>(query.getQueries());
+        while (!queue.isEmpty()) {
+            Query q = queue.remove(queue.size() - 1);
+            if (type.isInstance(q)) {
+                queue.addAll(((AbstractMultipleQuery) q).getQueries());
+            } else {
+                subQueries.add((String) q.accept(this, null));
+            }
+        }
+        if (subQueries.size() == 1) {
+            return subQueries.first();
+        }
+        StringBuilder buf = new StringBuilder(name).append('(');
+        boolean first = true;
+        for (String subQuery : subQueries) {
+            if (!first) {
+                buf.append(',');
+            }
+            buf.append(subQuery);
+            first = false;
+        }
+        return buf.append(')').toString();
+    }
+
+    @Override
+    public Object visit(NamePrefixQuery npQuery, Object data) {
+        return node("NamePrefix", npQuery.getTerm(), npQuery.isInverted());
+    }
+
+    @Override
+    public Object visit(NameRangeQuery nrQuery, Object data) {
+        return node("NameRange", nrQuery.getFromTerm(), nrQuery.getToTerm(), nrQuery.isInclusive());
+    }
+
+    @Override
+    public Object visit(NameWildcardQuery nwQuery, Object data) {
+        return node("NameWildcard", nwQuery.getTerm(), nwQuery.isInverted());
+    }
+
+    @Override
+    public Object visit(NameTermQuery ntQuery, Object data) {
+        return node("NameTerm", ntQuery.getTerm(), ntQuery.getOperator());
+    }
+
+    @Override
+    public Object visit(PropertyExistsQuery peQuery, Object data) {
+        return property("PropertyExists", peQuery, peQuery.isInverted());
+    }
+
+    @Override
+    public Object visit(PropertyPrefixQuery ppQuery, Object data) {
+        return property("PropertyPrefix", ppQuery, ppQuery.getTerm(), ppQuery.getOperator());
+    }
+
+    @Override
+    public Object visit(PropertyRangeQuery prQuery, Object data) {
+        return property("PropertyRange", prQuery, prQuery.getFromTerm(), prQuery.getToTerm(), 
+                prQuery.isInclusive());
+    }
+
+    @Override
+    public Object visit(PropertyTermQuery ptQuery, Object data) {
+        return property("PropertyTerm", ptQuery, ptQuery.getTerm(), ptQuery.getOperator());
+    }
+
+    @Override
+    public Object visit(PropertyWildcardQuery pwQuery, Object data) {
+        return property("PropertyWildcard", pwQuery, pwQuery.getTerm(), pwQuery.getOperator());
+    }
+
+    @Override
+    public Object visit(TypeTermQuery ttQuery, Object data) {
+        return node("TypeTerm", ttQuery.getTerm(), ttQuery.getOperator());
+    }
+
+    @Override
+    public Object visit(UriDepthQuery udQuery, Object data) {
+        return node("UriDepth", udQuery.getDepth());
+    }
+
+    @Override
+    public Object visit(UriPrefixQuery upQuery, Object data) {
+        return node("UriPrefix", upQuery.getUri(), upQuery.isInverted(), upQuery.isIncludeSelf());
+    }
+
+    @Override
+    public Object visit(UriSetQuery usQuery, Object data) {
+        List<String> uris = new ArrayList<String>(usQuery.getUris());
+        Collections.sort(uris);
+        List<Object> values = new ArrayList<Object>(uris);
+        values.add(usQuery.getOperator());
+        return node("UriSet", values.toArray());
+    }
+
+    @Override
+    public Object visit(UriTermQuery utQuery, Object data) {
+        return node("UriTerm", utQuery.getUri(), utQuery.getOperator());
+    }
+
+    @Override
+    public Object visit(AclExistsQuery aclQuery, Object data) {
+        return node("AclExists", aclQuery.isInverted());
+    }
+
+    @Override
+    public Object visit(AclInheritedFromQuery aclIHFQuery, Object data) {
+        return node("AclInheritedFrom", aclIHFQuery.getUri(), aclIHFQuery.isInverted());
+    }
+
+    @Override
+    public Object visit(AclReadForAllQuery query, Object data) {
+        return node("AclReadForAll", query.isInverted());
+    }
+
+    @Override
+    public Object visit(AclPrivilegeQuery query, Object data) {
+        return node("AclPrivilege", query.getQualifiedName(), 
+                query.getPrivilege() != null ? query.getPrivilege().getName() : null,
+                query.isIncludeSuperPrivileges(), query.isInverted());
+    }
+
+    @Override
+    public Object visit(MatchAllQuery query, Object data) {
+        return node("MatchAll");
+    }
+
+    private String property(String name, PropertyQuery query, Object... values) {
+        PropertyTypeDefinition def = query.getPropertyDefinition();
+        Object[] all = new Object[values.length + 3];
+        all[0] = def.getNamespace().getUri();
+        all[1] = def.getName();
+        all[2] = query.getComplexValueAttributeSpecifier();
+        System.arraycopy(values, 0, all, 3, values.length);
+        return node(name, all);
+    }
+
+    private String node(String name, Object... values) {
+        StringBuilder buf = new StringBuilder(name).append('(');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            if (values[i] == null) {
+                buf.append('-');
+            } else {
+                String value = values[i].toString();
+                buf.append(value.length()).append(':').append(value);
+            }
+        }
+        return buf.append(')').toString();
+    }
+
+}
@@ -43,7 +43,11 @@ import vtk.repository.search.Sorting;
 import vtk.repository.search.TypedSortField;
 
 /**
+ * Builds Lucene sorting from {@link Sorting}.
  * 
+ * <p>Sort fields are indexed with doc values (see {@link PropertyFields#isDocValuesType(vtk.repository.resourcetype.PropertyType.Type) }),
+ * which Lucene sorts on directly. Only segments written without doc values
+ * fall back to un-inverting the field into the field cache.
  */
 public class SortBuilder {
  
@@ -30,23 +30,33 @@
  */
 package vtk.repository.search.query.security;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.lucene.search.CachingWrapperFilter;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
 import vtk.context.BaseContext;
 import vtk.repository.search.query.filter.FilterFactory;
+import vtk.security.Principal;
 
 /**
  * A filter-factory which does caching of filters.
  * 
- * Currently, global caching is only done for ACL read for all filter.
- * Per principal ACL filters are cached only through-out a single request thread.
- *
- * The cached filter bits are keyed on IndexReader instance, so old bitsets are automatically
+ * The ACL read for all filter is cached globally. The cached filter bits are
+ * keyed on IndexReader instance, so old bitsets are automatically
  * discarded when a new index reader instance is used. This is
  * done in {@link CachingWrapperFilter}. A <code>Map</code> with weak keys
  * is used internally, so it does not leak old <code>IndexReader</code> references.
  *
+ * <p>Per principal ACL filters are cached through-out a single request thread,
+ * and their bitsets are cached per index segment across requests, keyed on the
+ * principal and its member groups. See {@link SegmentAclFilterCache}. The
+ * shared cache is bounded by {@link #setAclFilterCacheMaxBytes(long) size},
+ * and can be disabled by setting the size to zero.
+ *
  */
 public class CachingQueryAuthorizationFilterFactory extends SimpleQueryAuthorizationFilterFactory {
 
@@ -55,6 +65,8 @@ public class CachingQueryAuthorizationFilterFactory extends SimpleQueryAuthoriza
 
     private final Filter cachingAclReadForAllFilter = 
             FilterFactory.cacheWrapper(SimpleQueryAuthorizationFilterFactory.ACL_READ_FOR_ALL_FILTER);
+    
+    private SegmentAclFilterCache aclFilterCache = new SegmentAclFilterCache(64 * 1024 * 1024);
             
     @Override
     public Filter authorizationQueryFilter(String token, IndexSearcher searcher) {
@@ -81,11 +93,13 @@ public class CachingQueryAuthorizationFilterFactory extends SimpleQueryAuthoriza
             aclFilter = super.authorizationQueryFilter(token, searcher);
 
             if (aclFilter != null) {
-                // CachingWrapperFilter necessary here, because we might get a
-                // new index reader instance during execution of thread (for
-                // different queries) and the CachingWrapperFilter will automatically
-                // refresh the filter from the source if that happens.
-                aclFilter = FilterFactory.cacheWrapper(aclFilter);
+                if (this.aclFilterCache == null) {
+                    // CachingWrapperFilter necessary here, because we might get a
+                    // new index reader instance during execution of thread (for
+                    // different queries) and the CachingWrapperFilter will automatically
+                    // refresh the filter from the source if that happens.
+                    aclFilter = FilterFactory.cacheWrapper(aclFilter);
+                }
                 baseContext.setAttribute(CACHED_FILTER_THREADLOCAL_ATTRIBUTE_NAME, aclFilter);
             }
 
@@ -97,5 +111,33 @@ public class CachingQueryAuthorizationFilterFactory extends SimpleQueryAuthoriza
     public Filter readForAllFilter(IndexSearcher searcher) {
         return this.cachingAclReadForAllFilter;
     }
+
+    @Override
+    protected Filter buildACLReadFilter(Principal principal, Set<Principal> memberGroups) {
+        SegmentAclFilterCache cache = this.aclFilterCache;
+        if (cache == null) {
+            return super.buildACLReadFilter(principal, memberGroups);
+        }
+        
+        // Sorted, so that the same principal and groups always give the same key
+        List<String> aclTerms = new ArrayList<String>(aclReadTerms(principal, memberGroups));
+        Collections.sort(aclTerms);
+        aclTerms = Collections.unmodifiableList(aclTerms);
+        return cache.wrap(buildACLReadFilter(aclTerms), aclTerms);
+    }
+
+    /**
+     * Set max total size in bytes of per principal ACL filter bitsets cached
+     * across requests. Default is 64 MiB. Set to zero to disable caching
+     * across requests.
+     * 
+     * @param maxBytes max size of cache in bytes
+     */
+    public void setAclFilterCacheMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Argument cannot be negative");
+        }
+        this.aclFilterCache = maxBytes > 0 ? new SegmentAclFilterCache(maxBytes) : null;
+    }
     
 }
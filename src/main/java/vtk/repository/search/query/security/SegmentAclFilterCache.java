@@ -0,0 +1,245 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search.query.security;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Cache of ACL filter bitsets shared between requests, with one entry per
+ * index segment and set of ACL terms.
+ * 
+ * <p>Entries are keyed on segment core and the complete list of principal
+ * and group names the ACL filter is built from. A change in group membership
+ * thus gives a new key, and the old entry ages out. Bitsets are computed
+ * without regard to deleted documents, which are filtered at search time, so
+ * entries stay valid for as long as the segment exists. Changing an ACL
+ * re-indexes the affected documents into new segments. Entries for a segment
+ * are dropped when the segment core is closed.
+ * 
+ * <p>The total size of cached bitsets is bounded, and least recently used
+ * entries are evicted first.
+ */
+final class SegmentAclFilterCache {
+
+    private static final Log logger = LogFactory.getLog(SegmentAclFilterCache.class);
+
+    // Rough size of an entry excluding bitset, counted against max bytes
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    private final Set<Object> registeredCores = new HashSet<Object>();
+    private long bytes = 0;
+
+    SegmentAclFilterCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Max bytes must be greater than zero");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Wrap an ACL filter so that its per-segment bitsets are cached.
+     * @param filter the ACL filter
+     * @param aclTerms the ACL terms the filter matches, used as cache key.
+     * Must determine the filter completely.
+     */
+    Filter wrap(Filter filter, List<String> aclTerms) {
+        return new CachedAclFilter(filter, aclTerms);
+    }
+
+    synchronized int getSize() {
+        return this.entries.size();
+    }
+
+    synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    private synchronized Entry get(Key key) {
+        return this.entries.get(key);
+    }
+
+    private void put(Key key, Entry entry, AtomicReader reader) {
+        boolean register;
+        synchronized (this) {
+            if (entry.bytes > this.maxBytes) {
+                return;
+            }
+            Entry old = this.entries.put(key, entry);
+            if (old != null) {
+                this.bytes -= old.bytes;
+            }
+            this.bytes += entry.bytes;
+            
+            Iterator<Entry> it = this.entries.values().iterator();
+            while (this.bytes > this.maxBytes && it.hasNext()) {
+                this.bytes -= it.next().bytes;
+                it.remove();
+            }
+            register = this.registeredCores.add(key.core);
+        }
+        
+        if (register) {
+            reader.addCoreClosedListener(new AtomicReader.CoreClosedListener() {
+                @Override
+                public void onClose(Object core) {
+                    evictCore(core);
+                }
+            });
+        }
+    }
+
+    private synchronized void evictCore(Object core) {
+        this.registeredCores.remove(core);
+        Iterator<Map.Entry<Key, Entry>> it = this.entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().core == core) {
+                this.bytes -= e.getValue().bytes;
+                it.remove();
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Evicted ACL bitsets of closed segment core " + core
+                    + ", " + this.entries.size() + " entries and " + this.bytes
+                    + " bytes remaining");
+        }
+    }
+
+    private final class CachedAclFilter extends Filter {
+
+        private final Filter filter;
+        private final List<String> aclTerms;
+
+        CachedAclFilter(Filter filter, List<String> aclTerms) {
+            this.filter = filter;
+            this.aclTerms = aclTerms;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            final AtomicReader reader = context.reader();
+            final Key key = new Key(reader.getCoreCacheKey(), this.aclTerms);
+            
+            Entry entry = get(key);
+            if (entry == null) {
+                entry = compute(context);
+                put(key, entry, reader);
+            }
+            
+            if (entry.docs == null) {
+                return null;
+            }
+            return BitsFilteredDocIdSet.wrap(entry.docs, acceptDocs);
+        }
+        
+        private Entry compute(AtomicReaderContext context) throws IOException {
+            DocIdSet docs = this.filter.getDocIdSet(context, null);
+            DocIdSetIterator it = docs != null ? docs.iterator() : null;
+            if (it == null) {
+                return new Entry(null, ENTRY_OVERHEAD_BYTES);
+            }
+            int maxDoc = context.reader().maxDoc();
+            FixedBitSet bits = new FixedBitSet(maxDoc);
+            bits.or(it);
+            return new Entry(bits, ENTRY_OVERHEAD_BYTES + FixedBitSet.bits2words(maxDoc) * 8L);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CachedAclFilter)) return false;
+            return this.aclTerms.equals(((CachedAclFilter) o).aclTerms);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.aclTerms.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "CachedAclFilter(" + this.filter + ")";
+        }
+    }
+
+    private static final class Key {
+        final Object core;
+        final List<String> aclTerms;
+        final int hash;
+
+        Key(Object core, List<String> aclTerms) {
+            this.core = core;
+            this.aclTerms = aclTerms;
+            this.hash = 31 * System.identityHashCode(core) + aclTerms.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return this.core == other.core && this.aclTerms.equals(other.aclTerms);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    private static final class Entry {
+        final DocIdSet docs;
+        final long bytes;
+
+        Entry(DocIdSet docs, long bytes) {
+            this.docs = docs;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -85,20 +85,42 @@ public class SimpleQueryAuthorizationFilterFactory extends
         return ACL_READ_FOR_ALL_FILTER;
     }
     
-    private Filter buildACLReadFilter(Principal principal, Set<Principal> memberGroups) {
+    /**
+     * Build ACL read filter matching documents readable by principal or any of
+     * its member groups.
+     */
+    protected Filter buildACLReadFilter(Principal principal, Set<Principal> memberGroups) {
+        return buildACLReadFilter(aclReadTerms(principal, memberGroups));
+    }
+    
+    /**
+     * Build ACL read filter from a list of ACL terms as produced by
+     * {@link #aclReadTerms(vtk.security.Principal, java.util.Set) }.
+     */
+    protected Filter buildACLReadFilter(List<String> aclTerms) {
+        List<BytesRef> termValues = new ArrayList<BytesRef>(aclTerms.size());
+        for (String term: aclTerms) {
+            termValues.add(new BytesRef(term));
+        }
+        return new TermsFilter(AclFields.AGGREGATED_READ_FIELD_NAME, termValues);
+    }
     
-        List<BytesRef> termValues = new ArrayList<BytesRef>(memberGroups.size()+2);
+    /**
+     * Get the ACL terms a principal with the given member groups may read by.
+     */
+    protected List<String> aclReadTerms(Principal principal, Set<Principal> memberGroups) {
+        List<String> terms = new ArrayList<String>(memberGroups.size()+2);
         for (Principal group: memberGroups) {
-            termValues.add(new BytesRef(group.getQualifiedName()));
+            terms.add(group.getQualifiedName());
         }
 
         // Add ALL principal
-        termValues.add(new BytesRef(PrincipalFactory.ALL.getQualifiedName()));
+        terms.add(PrincipalFactory.ALL.getQualifiedName());
         
         // Add principal executing the query
-        termValues.add(new BytesRef(principal.getQualifiedName()));
+        terms.add(principal.getQualifiedName());
         
-        return new TermsFilter(AclFields.AGGREGATED_READ_FIELD_NAME, termValues);
+        return terms;
     }
     
 }
@@ -31,8 +31,9 @@
 package vtk.repository.store;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -74,7 +75,8 @@ import vtk.security.Principal;
  * <p>
  * When the cache reaches its maximum size, a FIFO scheme is applied; a
  * configurable percentage of the items are removed, starting with the oldest
- * ones.
+ * ones. Subclasses may provide a different storage and eviction scheme by
+ * overriding {@link #createItems(int)}, see {@link SegmentedCache}.
  * 
  * <p>
  * Configurable JavaBean properties:
@@ -103,7 +105,7 @@ import vtk.security.Principal;
  * Example: If a resource has 1000 children, and 951 of those are currently
  * present in the cache, then 49 are missing. 49 is below the default threshold
  * of 5 percent, which will cause only the missing children to be loaded with
- * individual calls to the wrapped {@link DataAccessor#load(Path)}-method. If 51
+ * a single call to the wrapped {@link DataAccessor#load(Collection)}-method. If 51
  * were missing, then this would be above the threshold and all 1000 children
  * would be loaded by calling wrapped
  * {@link DataAccessor#loadChildren(ResourceImpl)}.
@@ -121,8 +123,8 @@ public class Cache implements DataAccessor, InitializingBean {
     private DataAccessor wrappedAccessor;
     private int maxItems = 1000;
     private double evictionRatio = 0.1;
-    private int removeItems;
-    private Items items = new Items(this.maxItems);
+    // Replaced by createItems() in afterPropertiesSet()
+    private Items items = fifoItems(this.maxItems);
 
     private boolean gatherStatistics = false;
     private long hits = 0;
@@ -140,7 +142,7 @@ public class Cache implements DataAccessor, InitializingBean {
             throw new IllegalArgumentException("Cache size must be a positive number");
         }
         this.maxItems = maxItems;
-        this.items = new Items(this.maxItems);
+        this.items = fifoItems(this.maxItems);
     }
 
     public void setEvictionRatio(double evictionRatio) {
@@ -174,11 +176,28 @@ public class Cache implements DataAccessor, InitializingBean {
 
     @Override
     public void afterPropertiesSet() {
-        this.removeItems = (int) (this.maxItems * this.evictionRatio);
+        this.items = createItems(this.maxItems);
+    }
+
+    /**
+     * Creates the storage used for cached resources. The default
+     * implementation creates a FIFO store which evicts
+     * <code>evictionRatio</code> of <code>maxItems</code> at a time.
+     * 
+     * @param maxItems the maximum number of resources to keep
+     * @return the storage to use for cached resources
+     */
+    protected Items createItems(int maxItems) {
+        return fifoItems(maxItems);
+    }
+
+    private Items fifoItems(int maxItems) {
+        int removeItems = (int) (maxItems * this.evictionRatio);
 
-        if (this.removeItems == 0) {
-            this.removeItems = 1;
+        if (removeItems == 0) {
+            removeItems = 1;
         }
+        return new FifoItems(maxItems, removeItems);
     }
 
     /**
@@ -243,6 +262,49 @@ public class Cache implements DataAccessor, InitializingBean {
         return r;
     }
     
+    /**
+     * Loads a number of resources, fetching those not present in cache
+     * (or having timed out DAV locks) with a single call to the wrapped
+     * accessor. Resources loaded from the wrapped accessor are entered into
+     * the cache.
+     */
+    @Override
+    public Map<Path, ResourceImpl> load(Collection<Path> uris) throws DataAccessException {
+        Map<Path, ResourceImpl> result = new HashMap<Path, ResourceImpl>(uris.size() * 2);
+        List<Path> notFound = new ArrayList<Path>();
+        long now = System.currentTimeMillis();
+
+        for (Path uri : uris) {
+            ResourceImpl r = this.items.get(uri);
+            boolean davLockTimedOut = (r != null && r.getLock() != null && r.getLock().getTimeout().getTime() < now);
+
+            if (this.logger.isInfoEnabled() && davLockTimedOut) {
+                this.logger.info("Dropping cached copy of " + uri + " (DAV lock timed out)");
+            }
+            if (r == null || davLockTimedOut) {
+                notFound.add(uri);
+            } else {
+                result.put(uri, r);
+            }
+        }
+
+        if (this.gatherStatistics) {
+            updateStatistics(result.size(), notFound.size());
+        }
+        if (notFound.isEmpty()) {
+            return result;
+        }
+
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Load " + notFound.size() + " resources from wrappedAccessor");
+        }
+        for (ResourceImpl r : this.wrappedAccessor.load(notFound).values()) {
+            enterResource(r);
+            result.put(r.getURI(), r);
+        }
+        return result;
+    }
+
     @Override
     public ResourceImpl[] loadChildren(ResourceImpl parent) throws DataAccessException {
 
@@ -285,25 +347,15 @@ public class Cache implements DataAccessor, InitializingBean {
             if (this.logger.isDebugEnabled()) {
                 this.logger.debug("loadChildren(): Less than " + (this.loadChildrenSelectivelyThreshold * 100)
                         + " percent of children missing from cache for URI '" + parent.getURI() + "', loading "
-                        + notFound.size() + " missing or expired children individually.");
+                        + notFound.size() + " missing or expired children selectively.");
             }
 
             // Below threshold for number of missing children in cache, we
             // load the missing ones selectively from database for better
             // efficiency.
-            List<ResourceImpl> loadedResources = new ArrayList<ResourceImpl>(notFound.size());
-            for (Path missingChild : notFound) {
-                ResourceImpl resourceImpl = this.wrappedAccessor.load(missingChild);
-                if (resourceImpl != null) {
-                    found.add(resourceImpl);
-                    loadedResources.add(resourceImpl);
-                }
-            }
-            
-            synchronized (this.items) {
-                for (ResourceImpl loaded: loadedResources) {
-                    enterResource(loaded);
-                }
+            for (ResourceImpl resourceImpl : this.wrappedAccessor.load(notFound).values()) {
+                found.add(resourceImpl);
+                enterResource(resourceImpl);
             }
 
             return found.toArray(new ResourceImpl[found.size()]);
@@ -317,13 +369,9 @@ public class Cache implements DataAccessor, InitializingBean {
             }
 
 
-            // Treat entire child loading operation as atomic modification of cache,
-            // synchronize on items immediately.
             resources = this.wrappedAccessor.loadChildren(parent);
-            synchronized (this.items) {
-                for (ResourceImpl resourceImpl : resources) {
-                    enterResource(resourceImpl); // Put in cache, replace any existing (full refresh).
-                }
+            for (ResourceImpl resourceImpl : resources) {
+                enterResource(resourceImpl); // Put in cache, replace any existing (full refresh).
             }
         }
 
@@ -401,15 +449,7 @@ public class Cache implements DataAccessor, InitializingBean {
      * @return 
      */
     public List<Path> getCachedDescendantPaths(Path uri) {
-        List<Path> paths = new ArrayList<Path>();
-        
-        for (Path cachedUri: this.items.uriSet()) {
-            if (uri.isAncestorOf(cachedUri)) {
-                paths.add(cachedUri);
-            }
-        }
-        
-        return paths;
+        return this.items.descendants(uri);
     }
 
     @Override
@@ -554,19 +594,7 @@ public class Cache implements DataAccessor, InitializingBean {
      * 
      */
     private void enterResource(ResourceImpl resource) {
-        synchronized (this.items) {
-            if (this.items.size() > (this.maxItems - 1)) {
-                long startTime = System.currentTimeMillis();
-                this.items.removeOldItems(this.removeItems);
-                long processingTime = System.currentTimeMillis() - startTime;
-                if (this.logger.isInfoEnabled()) {
-                    this.logger.info("Maximum cache size (" + this.maxItems + ") reached, removed "
-                            + this.removeItems + " oldest items in " + processingTime + " ms");
-                }
-            }
-
-            this.items.put(resource.getURI(), resource);
-        }
+        this.items.put(resource);
     }
 
     private synchronized void updateStatistics(long hits, long misses) {
@@ -588,6 +616,43 @@ public class Cache implements DataAccessor, InitializingBean {
         this.items.dump(out);
     }
 
+    /**
+     * Storage of cached resources, keyed on URI.
+     * 
+     * <p>Implementations must allow concurrent access, and are responsible
+     * for keeping their own size within the configured maximum on
+     * {@link #put(ResourceImpl)}.
+     */
+    protected interface Items {
+
+        /**
+         * @return the cached resource for a URI, or <code>null</code> if not cached
+         */
+        public ResourceImpl get(Path uri);
+
+        /**
+         * Enters a resource, replacing any existing entry for its URI.
+         * May cause other entries to be evicted.
+         */
+        public void put(ResourceImpl resource);
+
+        /**
+         * Removes a URI, and optionally all cached descendants of it.
+         */
+        public void remove(Path uri, boolean removeDescendants);
+
+        /**
+         * @return all currently cached descendant URIs of a URI
+         */
+        public List<Path> descendants(Path uri);
+
+        public void clear();
+
+        public int size();
+
+        public void dump(java.io.PrintStream out);
+    }
+
     private static class Item {
         Item older = null;
         Item newer = null;
@@ -602,17 +667,25 @@ public class Cache implements DataAccessor, InitializingBean {
      * Simple resource cache with non-blocking reads.
      * - All read operations are concurrent/non-blocking
      * - All write operations are completely synchronized/blocking.
+     * - Cached descendants are looked up in a {@link PathIndex}, so removing
+     *   a subtree costs only the size of the subtree.
      */
-    private class Items {
+    private class FifoItems implements Items {
         private final Map<Path, Item> map;
+        private final PathIndex index = new PathIndex();
+        private final int maxItems;
+        private final int removeItems;
         private volatile int size = 0;
         private Item in = null; // Item eviction list head (newest item)
         private Item out = null;// Item eviction list tail (oldest item)
         
-        public Items(int initialCapacity) {
-            this.map = new ConcurrentHashMap<Path, Item>(initialCapacity);
+        public FifoItems(int maxItems, int removeItems) {
+            this.map = new ConcurrentHashMap<Path, Item>(maxItems);
+            this.maxItems = maxItems;
+            this.removeItems = removeItems;
         }
 
+        @Override
         public ResourceImpl get(Path uri) {
             final Item item = this.map.get(uri);
 
@@ -623,6 +696,7 @@ public class Cache implements DataAccessor, InitializingBean {
             return null;
         }
 
+        @Override
         public int size() {
             // The size() method of ConcurrentHashMap can be expensive. We can
             // however easily avoid it and track it externally, since all
@@ -630,47 +704,60 @@ public class Cache implements DataAccessor, InitializingBean {
             return this.size;
         }
 
-        public Set<Path> uriSet() {
-            return this.map.keySet();
+        @Override
+        public List<Path> descendants(Path uri) {
+            return this.index.descendants(uri);
         }
 
-        public synchronized void put(Path uri, ResourceImpl resource) {
+        @Override
+        public synchronized void put(ResourceImpl resource) {
+            if (this.size > (this.maxItems - 1)) {
+                long startTime = System.currentTimeMillis();
+                removeOldItems(this.removeItems);
+                long processingTime = System.currentTimeMillis() - startTime;
+                if (Cache.this.logger.isInfoEnabled()) {
+                    Cache.this.logger.info("Maximum cache size (" + this.maxItems + ") reached, removed "
+                            + this.removeItems + " oldest items in " + processingTime + " ms");
+                }
+            }
+
             final Item item = new Item(resource);
 
-            final Item replaced = this.map.put(uri, item);
+            final Item replaced = this.map.put(resource.getURI(), item);
             if (replaced != null) {
                 // New Path item will be reinserted at front
                 removeFromEvictionQueue(replaced);
             } else {
                 // Previously uncached URI, we grow.
                 ++this.size;
+                this.index.add(resource.getURI());
             }
 
             addToEvictionQueue(item);
         }
 
+        @Override
         public synchronized void remove(final Path uri, boolean removeDescendants) {
+            removeItem(uri);
+
+            if (removeDescendants) {
+                for (Path descendant: this.index.descendants(uri)) {
+                    removeItem(descendant);
+                }
+            }
+        }
+
+        private void removeItem(final Path uri) {
             Item item = this.map.remove(uri);
             if (item != null) {
                 // Something was actually removed
                 --this.size;
                 removeFromEvictionQueue(item);
-            }
-            
-            if (removeDescendants) {
-                for (Iterator<Map.Entry<Path,Item>> iter = this.map.entrySet().iterator(); iter.hasNext();) {
-                    Map.Entry<Path,Item> entry = iter.next();
-                    
-                    if (uri.isAncestorOf(entry.getKey())) {
-                        removeFromEvictionQueue(entry.getValue());
-                        iter.remove();
-                        --this.size;
-                    }
-                }
+                this.index.remove(uri);
             }
         }
 
-        public synchronized void removeOldItems(int n) {
+        private void removeOldItems(int n) {
             for (int i = 0; i < n; i++) {
                 Item oldest = pollEvictionQueue();
                 if (oldest == null) {
@@ -681,16 +768,20 @@ public class Cache implements DataAccessor, InitializingBean {
                 }
                 if (this.map.remove(oldest.resource.getURI()) != null) {
                     --this.size;
+                    this.index.remove(oldest.resource.getURI());
                 }
             }
         }
         
+        @Override
         public synchronized void clear() {
             this.map.clear();
+            this.index.clear();
             this.size = 0;
             this.in = this.out = null;
         }
 
+        @Override
         public void dump(java.io.PrintStream out) {
             for (Path uri: this.map.keySet()) {
                 out.println(uri);
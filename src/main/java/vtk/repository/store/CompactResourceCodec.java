@@ -0,0 +1,603 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import vtk.repository.Acl;
+import vtk.repository.Lock;
+import vtk.repository.LockImpl;
+import vtk.repository.Path;
+import vtk.repository.Privilege;
+import vtk.repository.Property;
+import vtk.repository.PropertyImpl;
+import vtk.repository.Repository;
+import vtk.repository.ResourceImpl;
+import vtk.repository.ResourceTypeTree;
+import vtk.repository.resourcetype.PropertyType.Type;
+import vtk.repository.resourcetype.PropertyTypeDefinition;
+import vtk.repository.resourcetype.Value;
+import vtk.security.Principal;
+import vtk.security.PrincipalFactory;
+
+/**
+ * Compact binary representation of {@link ResourceImpl} objects, used by
+ * {@link OffHeapCache}.
+ * 
+ * <p>Integers are written as variable length quantities, and principals,
+ * property type definitions and resource type names are replaced by small
+ * integer ids. The objects behind the ids are interned once, principals
+ * through the {@link PrincipalFactory} and property type definitions through
+ * the {@link ResourceTypeTree}, so decoded resources share them instead of
+ * holding private copies. Binary property values are not encoded, but are
+ * collected as attachments which the caller must keep on the heap and supply
+ * when decoding.
+ * 
+ * <p>Dictionaries only grow, so ids handed out remain valid for the lifetime
+ * of the codec. Their size is bounded by the number of distinct principals
+ * and property names in the repository.
+ */
+final class CompactResourceCodec {
+
+    private static final Log logger = LogFactory.getLog(CompactResourceCodec.class);
+
+    private static final Charset UTF_8 = Charset.forName("utf-8");
+
+    private static final Privilege[] PRIVILEGES = Privilege.values();
+    private static final Type[] TYPES = Type.values();
+    private static final Repository.Depth[] DEPTHS = Repository.Depth.values();
+
+    private final PrincipalFactory principalFactory;
+    private final ResourceTypeTree resourceTypeTree;
+
+    private final Dictionary<Principal> principals = new Dictionary<Principal>();
+    private final Dictionary<PropertyTypeDefinition> propDefs = new Dictionary<PropertyTypeDefinition>();
+    private final Dictionary<String> resourceTypes = new Dictionary<String>();
+
+    CompactResourceCodec(PrincipalFactory principalFactory, ResourceTypeTree resourceTypeTree) {
+        this.principalFactory = principalFactory;
+        this.resourceTypeTree = resourceTypeTree;
+    }
+
+    /**
+     * Signals that a resource cannot be faithfully represented in the
+     * compact format. Such resources must be kept as objects.
+     */
+    static final class UnsupportedResourceException extends Exception {
+        private static final long serialVersionUID = -6016813735045569473L;
+
+        UnsupportedResourceException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Interns the principals of a resource, so that encoding it does not
+     * call the principal factory. Callers encoding under a lock should
+     * call this method before taking it.
+     * 
+     * @param resource the resource which is about to be encoded
+     */
+    void internPrincipals(ResourceImpl resource) {
+        try {
+            Lock lock = resource.getLock();
+            if (lock != null) {
+                principalId(lock.getPrincipal());
+            }
+            Acl acl = resource.getAcl();
+            if (acl != null) {
+                for (Privilege action: acl.getActions()) {
+                    for (Principal p: acl.getPrincipalSet(action)) {
+                        principalId(p);
+                    }
+                }
+            }
+            for (Property property: resource.getProperties()) {
+                PropertyTypeDefinition def = property.getDefinition();
+                if (def == null || def.getType() != Type.PRINCIPAL || !property.isValueInitialized()) {
+                    continue;
+                }
+                if (def.isMultiple()) {
+                    for (Value value: property.getValues()) {
+                        principalId(value.getPrincipalValue());
+                    }
+                } else {
+                    principalId(property.getValue().getPrincipalValue());
+                }
+            }
+        } catch (UnsupportedResourceException e) {
+            // Reported by encode
+        }
+    }
+
+    /**
+     * Encodes a resource.
+     * 
+     * @param resource the resource to encode
+     * @param out the buffer to write to
+     * @param attachments receives values which are not encoded, and
+     * which are referred to by index in the encoded form
+     * @throws UnsupportedResourceException if the resource cannot be encoded
+     */
+    void encode(ResourceImpl resource, Output out, List<Object> attachments)
+            throws UnsupportedResourceException {
+        out.writeSignedVarInt(resource.getID());
+        out.writeSignedVarInt(resource.getAclInheritedFrom());
+        out.writeByte(resource.isInheritedAcl() ? 1 : 0);
+        String resourceType = resource.getResourceType();
+        out.writeVarInt(resourceType == null ? 0 : resourceTypeId(resourceType) + 1);
+
+        List<Path> childURIs = resource.getChildURIs();
+        if (childURIs == null) {
+            out.writeVarInt(0);
+        } else {
+            Path uri = resource.getURI();
+            out.writeVarInt(childURIs.size() + 1);
+            for (Path child: childURIs) {
+                if (!uri.equals(child.getParent())) {
+                    throw new UnsupportedResourceException(
+                            "Child " + child + " is not a child of " + uri);
+                }
+                out.writeString(child.getName());
+            }
+        }
+
+        Lock lock = resource.getLock();
+        if (lock == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.writeString(lock.getLockToken());
+            out.writeVarInt(principalId(lock.getPrincipal()));
+            out.writeString(lock.getOwnerInfo());
+            out.writeByte(lock.getDepth().ordinal());
+            writeDate(lock.getTimeout(), out);
+        }
+
+        Acl acl = resource.getAcl();
+        if (acl == null) {
+            out.writeVarInt(0);
+        } else {
+            Set<Privilege> actions = acl.getActions();
+            out.writeVarInt(actions.size() + 1);
+            for (Privilege action: actions) {
+                Set<Principal> principalSet = acl.getPrincipalSet(action);
+                out.writeByte(action.ordinal());
+                out.writeVarInt(principalSet.size());
+                for (Principal p: principalSet) {
+                    out.writeVarInt(principalId(p));
+                }
+            }
+        }
+
+        List<Property> properties = resource.getProperties();
+        out.writeVarInt(properties.size());
+        for (Property property: properties) {
+            PropertyTypeDefinition def = property.getDefinition();
+            if (def == null) {
+                throw new UnsupportedResourceException("Property " + property + " has no definition");
+            }
+            if (!property.isValueInitialized()) {
+                throw new UnsupportedResourceException("Property " + property + " has no value");
+            }
+            out.writeVarInt(propDefId(def));
+            out.writeByte(property.isInherited() ? 1 : 0);
+            if (def.isMultiple()) {
+                Value[] values = property.getValues();
+                out.writeVarInt(values.length);
+                for (Value value: values) {
+                    writeValue(value, out, attachments);
+                }
+            } else {
+                writeValue(property.getValue(), out, attachments);
+            }
+        }
+    }
+
+    /**
+     * Decodes a resource.
+     * 
+     * @param uri the URI of the resource
+     * @param in the encoded resource
+     * @param attachments the attachments collected when the resource was encoded
+     * @return the decoded resource
+     */
+    ResourceImpl decode(Path uri, Input in, Object[] attachments) {
+        ResourceImpl resource = new ResourceImpl(uri);
+        resource.setID(in.readSignedVarInt());
+        resource.setAclInheritedFrom(in.readSignedVarInt());
+        resource.setInheritedAcl(in.readByte() == 1);
+        int resourceType = in.readVarInt();
+        if (resourceType > 0) {
+            resource.setResourceType(this.resourceTypes.get(resourceType - 1));
+        }
+
+        int children = in.readVarInt();
+        if (children > 0) {
+            List<Path> childURIs = new ArrayList<Path>(children - 1);
+            for (int i = 0; i < children - 1; i++) {
+                childURIs.add(uri.extend(in.readString()));
+            }
+            resource.setChildURIs(childURIs);
+        }
+
+        if (in.readByte() == 1) {
+            String lockToken = in.readString();
+            Principal principal = this.principals.get(in.readVarInt());
+            String ownerInfo = in.readString();
+            Repository.Depth depth = DEPTHS[in.readByte()];
+            Date timeout = readDate(in);
+            resource.setLock(new LockImpl(lockToken, principal, ownerInfo, depth, timeout));
+        }
+
+        int actions = in.readVarInt();
+        if (actions == 1) {
+            resource.setAcl(Acl.EMPTY_ACL);
+        } else if (actions > 1) {
+            Map<Privilege, Set<Principal>> actionSets = new EnumMap<Privilege, Set<Principal>>(Privilege.class);
+            for (int i = 0; i < actions - 1; i++) {
+                Privilege action = PRIVILEGES[in.readByte()];
+                int n = in.readVarInt();
+                Set<Principal> principalSet = new HashSet<Principal>(n * 2);
+                for (int j = 0; j < n; j++) {
+                    principalSet.add(this.principals.get(in.readVarInt()));
+                }
+                actionSets.put(action, principalSet);
+            }
+            resource.setAcl(new Acl(actionSets));
+        }
+
+        int properties = in.readVarInt();
+        for (int i = 0; i < properties; i++) {
+            PropertyTypeDefinition def = this.propDefs.get(in.readVarInt());
+            boolean inherited = in.readByte() == 1;
+            PropertyImpl property = new PropertyImpl();
+            property.setDefinition(def);
+            if (def.isMultiple()) {
+                Value[] values = new Value[in.readVarInt()];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = readValue(in, attachments);
+                }
+                property.setValues(values, false);
+            } else {
+                property.setValue(readValue(in, attachments), false);
+            }
+            property.setInherited(inherited);
+            resource.addProperty(property);
+        }
+        return resource;
+    }
+
+    private void writeValue(Value value, Output out, List<Object> attachments) 
+            throws UnsupportedResourceException {
+        Type type = value.getType();
+        out.writeByte(type.ordinal());
+        switch (type) {
+        case STRING:
+        case HTML:
+        case IMAGE_REF:
+        case JSON:
+            out.writeString(value.getStringValue());
+            break;
+        case BOOLEAN:
+            out.writeByte(value.getBooleanValue() ? 1 : 0);
+            break;
+        case INT:
+            out.writeSignedVarInt(value.getIntValue());
+            break;
+        case LONG:
+            out.writeSignedVarLong(value.getLongValue());
+            break;
+        case DATE:
+        case TIMESTAMP:
+            writeDate(value.getDateValue(), out);
+            break;
+        case PRINCIPAL:
+            out.writeVarInt(principalId(value.getPrincipalValue()));
+            break;
+        case BINARY:
+            out.writeVarInt(attachments.size());
+            attachments.add(value);
+            break;
+        default:
+            throw new UnsupportedResourceException("Unsupported value type: " + type);
+        }
+    }
+
+    private Value readValue(Input in, Object[] attachments) {
+        Type type = TYPES[in.readByte()];
+        switch (type) {
+        case STRING:
+        case HTML:
+        case IMAGE_REF:
+        case JSON:
+            return new Value(in.readString(), type);
+        case BOOLEAN:
+            return new Value(in.readByte() == 1);
+        case INT:
+            return new Value(in.readSignedVarInt());
+        case LONG:
+            return new Value(in.readSignedVarLong());
+        case DATE:
+        case TIMESTAMP:
+            return new Value(readDate(in), type == Type.DATE);
+        case PRINCIPAL:
+            return new Value(this.principals.get(in.readVarInt()));
+        case BINARY:
+            return (Value) attachments[in.readVarInt()];
+        default:
+            throw new IllegalStateException("Unsupported value type: " + type);
+        }
+    }
+
+    private void writeDate(Date date, Output out) {
+        if (date == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.writeSignedVarLong(date.getTime());
+        }
+    }
+
+    private Date readDate(Input in) {
+        if (in.readByte() == 0) {
+            return null;
+        }
+        return new Date(in.readSignedVarLong());
+    }
+
+    private int resourceTypeId(String resourceType) {
+        Integer id = this.resourceTypes.id(resourceType);
+        if (id == null) {
+            id = this.resourceTypes.add(resourceType, resourceType.intern());
+        }
+        return id;
+    }
+
+    private int principalId(Principal principal) throws UnsupportedResourceException {
+        if (principal == null || principal.getType() == null) {
+            throw new UnsupportedResourceException("Cannot encode principal: " + principal);
+        }
+        String key = principal.getType().ordinal() + principal.getQualifiedName();
+        Integer id = this.principals.id(key);
+        if (id == null) {
+            Principal interned = null;
+            try {
+                interned = this.principalFactory.getPrincipal(
+                        principal.getQualifiedName(), principal.getType());
+            } catch (Exception e) {
+                logger.warn("Unable to look up principal " + principal 
+                        + ", encoding it as is", e);
+            }
+            if (interned == null || !interned.equals(principal)) {
+                // Not obtainable from principal factory, use as is
+                interned = principal;
+            }
+            id = this.principals.add(key, interned);
+        }
+        return id;
+    }
+
+    private int propDefId(PropertyTypeDefinition def) throws UnsupportedResourceException {
+        String namespace = def.getNamespace().getUri();
+        String key = namespace == null ? def.getName() : namespace + ":" + def.getName();
+        Integer id = this.propDefs.id(key);
+        if (id == null) {
+            PropertyTypeDefinition interned = this.resourceTypeTree.getPropertyTypeDefinition(
+                    def.getNamespace(), def.getName());
+            if (interned == null) {
+                interned = def;
+            }
+            id = this.propDefs.add(key, interned);
+        }
+        PropertyTypeDefinition interned = this.propDefs.get(id);
+        if (interned != def && (interned.getType() != def.getType()
+                || interned.isMultiple() != def.isMultiple())) {
+            throw new UnsupportedResourceException("Property definition " + def 
+                    + " does not match definition in resource type tree: " + interned);
+        }
+        return id;
+    }
+
+
+    /**
+     * Mapping between keys, objects and dense integer ids. Lookups do not
+     * lock. An id becomes visible to other threads through whatever safe
+     * publication mechanism is used for the encoded data referring to it.
+     */
+    private static final class Dictionary<T> {
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+        private volatile Object[] entries = new Object[64];
+        private int size = 0;
+
+        Integer id(String key) {
+            return this.ids.get(key);
+        }
+
+        synchronized int add(String key, T value) {
+            Integer id = this.ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            Object[] entries = this.entries;
+            if (this.size == entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[this.size] = value;
+            this.entries = entries;
+            this.ids.put(key, this.size);
+            return this.size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(int id) {
+            return (T) this.entries[id];
+        }
+    }
+
+
+    /**
+     * Growable output buffer.
+     */
+    static final class Output {
+        private byte[] buffer;
+        private int length = 0;
+
+        Output(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        byte[] buffer() {
+            return this.buffer;
+        }
+
+        int length() {
+            return this.length;
+        }
+
+        void reset() {
+            this.length = 0;
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            this.buffer[this.length++] = (byte) b;
+        }
+
+        void writeVarInt(int v) {
+            ensureCapacity(5);
+            while ((v & ~0x7F) != 0) {
+                this.buffer[this.length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            this.buffer[this.length++] = (byte) v;
+        }
+
+        void writeSignedVarInt(int v) {
+            writeVarInt((v << 1) ^ (v >> 31));
+        }
+
+        void writeSignedVarLong(long v) {
+            v = (v << 1) ^ (v >> 63);
+            ensureCapacity(10);
+            while ((v & ~0x7FL) != 0) {
+                this.buffer[this.length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            this.buffer[this.length++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(UTF_8);
+            writeVarInt(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+            this.length += bytes.length;
+        }
+
+        private void ensureCapacity(int n) {
+            if (this.length + n > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, 
+                        Math.max(this.buffer.length * 2, this.length + n));
+            }
+        }
+    }
+
+
+    /**
+     * Reads encoded data from a byte array.
+     */
+    static final class Input {
+        private final byte[] buffer;
+        private int position = 0;
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int readByte() {
+            return this.buffer[this.position++] & 0xFF;
+        }
+
+        int readVarInt() {
+            int v = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = this.buffer[this.position++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        int readSignedVarInt() {
+            int v = readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readSignedVarLong() {
+            long v = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = this.buffer[this.position++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+        }
+
+        String readString() {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            String s = new String(this.buffer, this.position, length - 1, UTF_8);
+            this.position += length - 1;
+            return s;
+        }
+    }
+}
@@ -75,7 +75,10 @@ public interface ContentStore {
     public void deleteResource(Path uri) throws DataAccessException;
 
     /**
-     * Get an input stream for file node at path.
+     * Get an input stream for file node at path. Stores backed by
+     * local files should return a {@link java.io.FileInputStream}, whose
+     * channel is used for positional transfers when content is
+     * served (see {@link vtk.web.view.DisplayResourceView}).
      * @param uri
      * @return
      * @throws DataAccessException 
@@ -30,8 +30,10 @@
  */
 package vtk.repository.store;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import vtk.repository.Path;
@@ -57,6 +59,17 @@ public interface DataAccessor {
      */
     public ResourceImpl load(Path uri) throws DataAccessException;
 
+    /**
+     * Loads a number of resources by uri in one operation. Implementations
+     * should use a fixed number of round trips to the backing store,
+     * regardless of the number of uris.
+     * 
+     * @param uris the uris of the resources to load
+     * @return a map from uri to resource. Resources which do not exist are
+     * not present in the map.
+     */
+    public Map<Path, ResourceImpl> load(Collection<Path> uris) throws DataAccessException;
+
     /**
      * Loads the children of a given resource
      */
@@ -45,6 +45,19 @@ public interface IndexDao {
     public void orderedPropertySetIteration(PropertySetHandler handler)
         throws DataAccessException;
     
+    /**
+     * Like {@link #orderedPropertySetIteration(PropertySetHandler)}, but
+     * streams rows from the database in a separate thread from the one
+     * assembling property sets, so that the two overlap. The handler is
+     * called from the calling thread, in iteration order.
+     * 
+     * @param handler the handler to call for each property set
+     * @param bufferSize the maximum number of resources streamed from the
+     * database, but not yet assembled into property sets
+     */
+    public void orderedPropertySetIteration(PropertySetHandler handler, int bufferSize)
+        throws DataAccessException;
+    
     public void orderedPropertySetIteration(Path startUri, 
                                             PropertySetHandler handler) 
         throws DataAccessException;
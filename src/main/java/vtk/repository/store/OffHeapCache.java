@@ -0,0 +1,387 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Required;
+
+import vtk.repository.Path;
+import vtk.repository.ResourceImpl;
+import vtk.repository.ResourceTypeTree;
+import vtk.security.PrincipalFactory;
+
+/**
+ * Resource cache which keeps cached resources outside of the Java heap.
+ * Drop-in replacement for {@link Cache}, with which it shares all
+ * {@link DataAccessor} behaviour; only the storage of cached resources
+ * differs.
+ * 
+ * <p>Resources are serialized to a compact binary form (see
+ * {@link CompactResourceCodec}) and appended to fixed size slabs of direct
+ * memory. Every hit decodes a fresh {@link ResourceImpl}, trading some CPU
+ * per hit for a much smaller heap footprint, which allows large caches
+ * without corresponding garbage collection overhead. Principals and
+ * property type definitions are interned through the
+ * {@link PrincipalFactory} and the {@link ResourceTypeTree}. Binary
+ * property values, and the rare resource which cannot be encoded, are kept
+ * on the heap.
+ * 
+ * <p>Only the encoded resources are kept off-heap. Each entry still costs
+ * some heap for its lookup structures: the {@link Path} key with its
+ * strings, the hash map node, the entry itself (slab reference, offset and
+ * length) and the descendant index node. For typical paths this comes to
+ * roughly 400 bytes per entry (see <code>OffHeapCacheBenchmark</code>),
+ * against some 3 kB per entry for {@link Cache}, and should be accounted
+ * for when sizing <code>maxItems</code>.
+ * 
+ * <p>Slabs are filled one at a time. When memory is exhausted, or
+ * <code>maxItems</code> is reached, the oldest slab is discarded as a
+ * whole, along with all resources it holds (FIFO eviction). A discarded
+ * slab is never overwritten, since readers may still be copying from it;
+ * new memory is allocated for it instead, and the old buffer is reclaimed
+ * by the garbage collector. Reads never block.
+ * 
+ * <p>Configurable JavaBean properties, in addition to those of {@link Cache}:
+ * <ul>
+ * <li><code>principalFactory</code> - required
+ * <li><code>resourceTypeTree</code> - required
+ * <li><code>maxMemory</code> - the maximum number of bytes of direct memory
+ * to use. Default is <code>64 MB</code>.
+ * <li><code>slabSize</code> - the size in bytes of each memory slab, which
+ * is also the unit of eviction. Default is <code>1 MB</code>.
+ * </ul>
+ * The <code>evictionRatio</code> property has no effect on this cache.
+ */
+public class OffHeapCache extends Cache {
+
+    private final Log logger = LogFactory.getLog(OffHeapCache.class);
+
+    private PrincipalFactory principalFactory;
+    private ResourceTypeTree resourceTypeTree;
+    private long maxMemory = 64 * 1024 * 1024;
+    private int slabSize = 1024 * 1024;
+    private OffHeapItems offHeapItems;
+
+    @Required
+    public void setPrincipalFactory(PrincipalFactory principalFactory) {
+        this.principalFactory = principalFactory;
+    }
+
+    @Required
+    public void setResourceTypeTree(ResourceTypeTree resourceTypeTree) {
+        this.resourceTypeTree = resourceTypeTree;
+    }
+
+    public void setMaxMemory(long maxMemory) {
+        if (maxMemory <= 0) {
+            throw new IllegalArgumentException("JavaBean property 'maxMemory' must be a positive number");
+        }
+        this.maxMemory = maxMemory;
+    }
+
+    public void setSlabSize(int slabSize) {
+        if (slabSize <= 0) {
+            throw new IllegalArgumentException("JavaBean property 'slabSize' must be a positive number");
+        }
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * @return the number of bytes of direct memory currently holding
+     * encoded resources, including superseded entries not yet evicted
+     */
+    public long getMemoryUsed() {
+        return this.offHeapItems.memoryUsed();
+    }
+
+    @Override
+    protected Items createItems(int maxItems) {
+        if (this.slabSize > this.maxMemory) {
+            throw new IllegalArgumentException("JavaBean property 'slabSize' cannot exceed 'maxMemory'");
+        }
+        int slabs = (int) Math.max(2, this.maxMemory / this.slabSize);
+        CompactResourceCodec codec = new CompactResourceCodec(this.principalFactory, this.resourceTypeTree);
+        this.offHeapItems = new OffHeapItems(codec, maxItems, slabs, this.slabSize);
+        return this.offHeapItems;
+    }
+
+    private static final Object[] NO_ATTACHMENTS = new Object[0];
+
+    private static final class Entry {
+        final Slab slab;
+        final int epoch;
+        final ByteBuffer buffer;
+        final int offset;
+        final int length;
+        final Object[] attachments;
+        // Set for resources which are kept on heap
+        final ResourceImpl resource;
+
+        Entry(Slab slab, ByteBuffer buffer, int offset, int length, Object[] attachments) {
+            this.slab = slab;
+            this.epoch = slab.epoch;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.attachments = attachments;
+            this.resource = null;
+        }
+
+        Entry(Slab slab, ResourceImpl resource) {
+            this.slab = slab;
+            this.epoch = slab.epoch;
+            this.buffer = null;
+            this.offset = 0;
+            this.length = 0;
+            this.attachments = NO_ATTACHMENTS;
+            this.resource = resource;
+        }
+    }
+
+    private static final class Slab {
+        ByteBuffer buffer = null;
+        int position = 0;
+        // Incremented each time the slab is discarded
+        int epoch = 0;
+        // URIs of entries added to this slab, for eviction
+        final List<Path> uris = new ArrayList<Path>();
+    }
+
+    private class OffHeapItems implements Items {
+        private final CompactResourceCodec codec;
+        private final ConcurrentHashMap<Path, Entry> map;
+        private final PathIndex index = new PathIndex();
+        private final int maxItems;
+        private final int slabSize;
+        private final Slab[] slabs;
+        private volatile int size = 0;
+        private volatile long memoryUsed = 0;
+
+        // Guarded by this:
+        private int current = 0;
+        private final CompactResourceCodec.Output out;
+        private final List<Object> attachments = new ArrayList<Object>();
+
+        OffHeapItems(CompactResourceCodec codec, int maxItems, int slabs, int slabSize) {
+            this.codec = codec;
+            this.map = new ConcurrentHashMap<Path, Entry>(maxItems);
+            this.maxItems = maxItems;
+            this.slabSize = slabSize;
+            this.slabs = new Slab[slabs];
+            for (int i = 0; i < slabs; i++) {
+                this.slabs[i] = new Slab();
+            }
+            this.out = new CompactResourceCodec.Output(4096);
+        }
+
+        @Override
+        public ResourceImpl get(Path uri) {
+            Entry entry = this.map.get(uri);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.resource != null) {
+                return entry.resource;
+            }
+            // Slab buffers are never modified after an entry is published,
+            // so the copy is consistent.
+            byte[] data = new byte[entry.length];
+            ByteBuffer buffer = entry.buffer.duplicate();
+            buffer.position(entry.offset);
+            buffer.get(data);
+            return this.codec.decode(uri, new CompactResourceCodec.Input(data), entry.attachments);
+        }
+
+        @Override
+        public void put(ResourceImpl resource) {
+            // The principal factory may be slow, so principals are
+            // resolved before taking the lock
+            this.codec.internPrincipals(resource);
+            putEncoded(resource);
+        }
+
+        private synchronized void putEncoded(ResourceImpl resource) {
+            Path uri = resource.getURI();
+            boolean encoded = encode(resource);
+            if (!this.map.containsKey(uri)) {
+                while (this.size >= this.maxItems && evictOldest()) { }
+            }
+            int length = this.out.length();
+            Slab slab = this.slabs[this.current];
+            if (encoded && slab.position + length > this.slabSize) {
+                this.current = (this.current + 1) % this.slabs.length;
+                slab = this.slabs[this.current];
+                discard(slab);
+            }
+
+            Entry entry;
+            if (encoded) {
+                if (slab.buffer == null) {
+                    slab.buffer = ByteBuffer.allocateDirect(this.slabSize);
+                }
+                slab.buffer.position(slab.position);
+                slab.buffer.put(this.out.buffer(), 0, length);
+                entry = new Entry(slab, slab.buffer, slab.position, length, 
+                        this.attachments.isEmpty() ? NO_ATTACHMENTS : this.attachments.toArray());
+                slab.position += length;
+                this.memoryUsed += length;
+            } else {
+                entry = new Entry(slab, resource);
+            }
+            slab.uris.add(uri);
+            if (this.map.put(uri, entry) == null) {
+                this.index.add(uri);
+                this.size++;
+            }
+        }
+
+        /**
+         * Encodes a resource into the output buffer.
+         * @return <code>false</code> if the resource must be kept on heap
+         */
+        private boolean encode(ResourceImpl resource) {
+            this.out.reset();
+            this.attachments.clear();
+            try {
+                this.codec.encode(resource, this.out, this.attachments);
+            } catch (CompactResourceCodec.UnsupportedResourceException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Keeping " + resource.getURI() + " on heap: " + e.getMessage());
+                }
+                return false;
+            }
+            if (this.out.length() > this.slabSize) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Keeping " + resource.getURI() + " on heap: "
+                            + this.out.length() + " bytes exceeds slab size");
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private boolean evictOldest() {
+            for (int i = 1; i <= this.slabs.length; i++) {
+                Slab slab = this.slabs[(this.current + i) % this.slabs.length];
+                if (!slab.uris.isEmpty()) {
+                    discard(slab);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Removes all entries added to a slab, and detaches its buffer so
+         * that it will not be written to again.
+         */
+        private void discard(Slab slab) {
+            if (logger.isInfoEnabled() && !slab.uris.isEmpty()) {
+                logger.info("Evicting " + slab.uris.size() + " items, cache size " + this.size);
+            }
+            for (Path uri: slab.uris) {
+                Entry entry = this.map.get(uri);
+                if (entry != null && entry.slab == slab && entry.epoch == slab.epoch) {
+                    removeEntry(uri);
+                }
+            }
+            slab.uris.clear();
+            this.memoryUsed -= slab.position;
+            slab.position = 0;
+            slab.buffer = null;
+            slab.epoch++;
+        }
+
+        private void removeEntry(Path uri) {
+            if (this.map.remove(uri) != null) {
+                this.index.remove(uri);
+                this.size--;
+            }
+        }
+
+        @Override
+        public synchronized void remove(Path uri, boolean removeDescendants) {
+            if (removeDescendants) {
+                for (Path descendant: this.index.descendants(uri)) {
+                    removeEntry(descendant);
+                }
+            }
+            removeEntry(uri);
+        }
+
+        @Override
+        public List<Path> descendants(Path uri) {
+            return this.index.descendants(uri);
+        }
+
+        @Override
+        public synchronized void clear() {
+            for (Slab slab: this.slabs) {
+                slab.uris.clear();
+                slab.position = 0;
+                slab.buffer = null;
+                slab.epoch++;
+            }
+            this.current = 0;
+            this.map.clear();
+            this.index.clear();
+            this.size = 0;
+            this.memoryUsed = 0;
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        long memoryUsed() {
+            return this.memoryUsed;
+        }
+
+        @Override
+        public void dump(java.io.PrintStream out) {
+            out.println("Off-heap resource cache: " + this.size + " items, " 
+                    + this.memoryUsed + " bytes in " + this.slabs.length + " slabs");
+            List<Path> uris = new ArrayList<Path>(this.map.keySet());
+            Collections.sort(uris);
+            for (Path uri: uris) {
+                out.println("  " + uri);
+            }
+        }
+    }
+}
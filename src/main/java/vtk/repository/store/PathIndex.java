@@ -0,0 +1,203 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import vtk.repository.Path;
+
+/**
+ * Hierarchical index of a set of {@link Path paths}, organized as a trie
+ * keyed on path elements. Used by cache implementations to find cached
+ * descendants of a path in time proportional to the size of the subtree,
+ * instead of scanning every cached path.
+ * 
+ * <p>Lookups are non-blocking. Modifications synchronize only on the trie
+ * node being modified and, when pruning, its parent, so additions and
+ * removals in different parts of the tree do not contend. A node which is
+ * not marked as removed is always linked all the way up to the root, since
+ * only childless nodes are unlinked. Trie nodes which neither hold a path nor
+ * have any children are pruned on removal. Modifications of the same path
+ * must be serialized by the caller.
+ */
+public final class PathIndex {
+
+    private final Node root = new Node(null, Path.ROOT);
+
+    /**
+     * Adds a path to the index.
+     * @param uri the path
+     */
+    public void add(Path uri) {
+        final List<String> elements = uri.getElements();
+        List<Path> paths = null;
+        retry: for (;;) {
+            Node node = this.root;
+            for (int i = 1; i < elements.size(); i++) {
+                String name = elements.get(i);
+                Node child = node.children.get(name);
+                if (child == null) {
+                    synchronized (node) {
+                        if (node.removed) {
+                            continue retry;
+                        }
+                        child = node.children.get(name);
+                        if (child == null) {
+                            if (paths == null) {
+                                paths = uri.getPaths();
+                            }
+                            child = new Node(node, paths.get(i));
+                            node.children.put(name, child);
+                        }
+                    }
+                }
+                node = child;
+            }
+            synchronized (node) {
+                if (node.removed) {
+                    continue retry;
+                }
+                node.present = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a path from the index. Descendants of the path are not
+     * affected.
+     * @param uri the path
+     */
+    public void remove(Path uri) {
+        Node node = find(uri);
+        if (node == null) {
+            return;
+        }
+        synchronized (node) {
+            node.present = false;
+        }
+        prune(node);
+    }
+
+    /**
+     * @param uri the path
+     * @return <code>true</code> if the path is present in the index
+     */
+    public boolean contains(Path uri) {
+        Node node = find(uri);
+        return node != null && node.present;
+    }
+
+    /**
+     * Gets all indexed descendants of a path. The path itself is not
+     * included.
+     * @param uri the path
+     * @return list of descendant paths, in no particular order
+     */
+    public List<Path> descendants(Path uri) {
+        List<Path> result = new ArrayList<Path>();
+        Node node = find(uri);
+        if (node != null) {
+            collect(node, result);
+        }
+        return result;
+    }
+
+    /**
+     * Removes all paths from the index. Must not be called concurrently with
+     * other modifications.
+     */
+    public void clear() {
+        synchronized (this.root) {
+            this.root.children.clear();
+            this.root.present = false;
+        }
+    }
+
+    private Node find(Path uri) {
+        if (uri.isRoot()) {
+            return this.root;
+        }
+        Node node = this.root;
+        List<String> elements = uri.getElements();
+        for (int i = 1; i < elements.size(); i++) {
+            node = node.children.get(elements.get(i));
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private void collect(Node node, List<Path> result) {
+        for (Node child: node.children.values()) {
+            if (child.present) {
+                result.add(child.path);
+            }
+            collect(child, result);
+        }
+    }
+
+    // Unlinks empty nodes, from the given node and upwards. Locks are always
+    // taken parent first, then child.
+    private void prune(Node node) {
+        while (node.parent != null) {
+            Node parent = node.parent;
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || node.present || !node.children.isEmpty()) {
+                        return;
+                    }
+                    node.removed = true;
+                    parent.children.remove(node.path.getName(), node);
+                }
+            }
+            node = parent;
+        }
+    }
+
+    private static final class Node {
+        final Node parent;
+        final Path path;
+        final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4, 0.75f, 1);
+        volatile boolean present = false;
+        boolean removed = false; // Guarded by node monitor
+
+        Node(Node parent, Path path) {
+            this.parent = parent;
+            this.path = path;
+        }
+    }
+
+}
@@ -0,0 +1,401 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import vtk.repository.Path;
+import vtk.repository.ResourceImpl;
+import vtk.util.cache.FrequencySketch;
+
+/**
+ * Resource cache with lock striped storage and frequency aware eviction.
+ * Drop-in replacement for {@link Cache}, with which it shares all
+ * {@link DataAccessor} behaviour; only the storage of cached resources
+ * differs.
+ * 
+ * <p>Cached URIs are spread over a number of independently locked segments,
+ * so writes to different parts of the cache do not contend. Reads never
+ * block. Each segment keeps its entries in a small LRU admission window
+ * and a main segmented LRU area (probation and protected). Entries leaving
+ * the window are only admitted into the main area if they have been
+ * requested more often than the entry they would replace, according to a
+ * shared {@link FrequencySketch} (W-TinyLFU). Resources are evicted one at a
+ * time, instead of in batches.
+ * 
+ * <p>Descendants of a URI are found through a {@link PathIndex}, in time
+ * proportional to the number of cached descendants.
+ * 
+ * <p>Configurable JavaBean properties, in addition to those of {@link Cache}:
+ * <ul>
+ * <li><code>concurrencyLevel</code> - estimated number of concurrently
+ * writing threads, which determines the number of segments. Default is
+ * <code>16</code>.
+ * </ul>
+ * The <code>evictionRatio</code> property has no effect on this cache.
+ */
+public class SegmentedCache extends Cache {
+
+    private int concurrencyLevel = 16;
+
+    public void setConcurrencyLevel(int concurrencyLevel) {
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("JavaBean property 'concurrencyLevel' must be a positive number");
+        }
+        this.concurrencyLevel = concurrencyLevel;
+    }
+
+    @Override
+    protected Items createItems(int maxItems) {
+        return new SegmentedItems(maxItems, this.concurrencyLevel);
+    }
+
+    // Queue membership of a node
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int DEAD = 3;
+
+    // Segment sizing, all relative to segment capacity.
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int MIN_SEGMENT_CAPACITY = 32;
+
+    private static final class Node {
+        final Path uri;
+        volatile ResourceImpl resource;
+        int queue = WINDOW;  // Guarded by segment lock
+        Node prev, next;     // Guarded by segment lock
+
+        Node(Path uri, ResourceImpl resource) {
+            this.uri = uri;
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * Doubly linked access order queue of nodes, least recently used first.
+     */
+    private static final class AccessQueue {
+        private final Node head = new Node(null, null);
+        int size = 0;
+
+        AccessQueue() {
+            this.head.prev = this.head.next = this.head;
+        }
+
+        void addLast(Node node) {
+            node.prev = this.head.prev;
+            node.next = this.head;
+            this.head.prev.next = node;
+            this.head.prev = node;
+            ++this.size;
+        }
+
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = node.next = null;
+            --this.size;
+        }
+
+        void moveToLast(Node node) {
+            remove(node);
+            addLast(node);
+        }
+
+        Node peekFirst() {
+            return this.head.next == this.head ? null : this.head.next;
+        }
+
+        Node pollFirst() {
+            Node first = peekFirst();
+            if (first != null) {
+                remove(first);
+            }
+            return first;
+        }
+
+        void clear() {
+            this.head.prev = this.head.next = this.head;
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Segmented W-TinyLFU storage.
+     */
+    private static final class SegmentedItems implements Items {
+        private final ConcurrentHashMap<Path, Node> map;
+        private final Segment[] segments;
+        private final int segmentMask;
+        private final FrequencySketch<Path> sketch;
+        private final PathIndex index = new PathIndex();
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        SegmentedItems(int maxItems, int concurrencyLevel) {
+            int n = 1;
+            while (n < concurrencyLevel && maxItems / (n << 1) >= MIN_SEGMENT_CAPACITY) {
+                n <<= 1;
+            }
+            this.segments = new Segment[n];
+            this.segmentMask = n - 1;
+            for (int i = 0; i < n; i++) {
+                // Distribute remainder over the first segments
+                this.segments[i] = new Segment(maxItems / n + (i < maxItems % n ? 1 : 0));
+            }
+            this.map = new ConcurrentHashMap<Path, Node>(maxItems, 0.75f, n);
+            this.sketch = new FrequencySketch<Path>(maxItems);
+        }
+
+        @Override
+        public ResourceImpl get(Path uri) {
+            final Node node = this.map.get(uri);
+            if (node == null) {
+                return null;
+            }
+            this.sketch.increment(uri);
+
+            // Reordering on hits is best effort, a contended segment is
+            // not waited for.
+            final Segment segment = segmentFor(uri);
+            if (segment.tryLock()) {
+                try {
+                    segment.onAccess(node);
+                } finally {
+                    segment.unlock();
+                }
+            }
+            return node.resource;
+        }
+
+        @Override
+        public void put(ResourceImpl resource) {
+            final Path uri = resource.getURI();
+            final Segment segment = segmentFor(uri);
+            this.sketch.increment(uri);
+
+            segment.lock();
+            try {
+                Node node = this.map.get(uri);
+                if (node != null) {
+                    node.resource = resource;
+                    segment.onAccess(node);
+                    return;
+                }
+                node = new Node(uri, resource);
+                this.map.put(uri, node);
+                this.index.add(uri);
+                this.size.incrementAndGet();
+                segment.add(node);
+            } finally {
+                segment.unlock();
+            }
+        }
+
+        @Override
+        public void remove(Path uri, boolean removeDescendants) {
+            removeEntry(uri);
+            if (removeDescendants) {
+                for (Path descendant: this.index.descendants(uri)) {
+                    removeEntry(descendant);
+                }
+            }
+        }
+
+        @Override
+        public List<Path> descendants(Path uri) {
+            return this.index.descendants(uri);
+        }
+
+        @Override
+        public void clear() {
+            for (Segment segment: this.segments) {
+                segment.lock();
+            }
+            try {
+                this.map.clear();
+                this.index.clear();
+                for (Segment segment: this.segments) {
+                    segment.clear();
+                }
+                this.size.set(0);
+            } finally {
+                for (Segment segment: this.segments) {
+                    segment.unlock();
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.size.get();
+        }
+
+        @Override
+        public void dump(java.io.PrintStream out) {
+            for (Path uri: this.map.keySet()) {
+                out.println(uri);
+            }
+        }
+
+        private void removeEntry(Path uri) {
+            final Segment segment = segmentFor(uri);
+            segment.lock();
+            try {
+                Node node = this.map.remove(uri);
+                if (node != null) {
+                    segment.unlink(node);
+                    this.index.remove(uri);
+                    this.size.decrementAndGet();
+                }
+            } finally {
+                segment.unlock();
+            }
+        }
+
+        // Removes an evicted node from map and index. Caller holds segment lock.
+        private void evicted(Node node) {
+            if (this.map.remove(node.uri, node)) {
+                this.index.remove(node.uri);
+                this.size.decrementAndGet();
+            }
+        }
+
+        private Segment segmentFor(Path uri) {
+            int h = uri.hashCode();
+            h ^= (h >>> 16);
+            return this.segments[h & this.segmentMask];
+        }
+
+        private final class Segment extends ReentrantLock {
+            private static final long serialVersionUID = 1L;
+
+            final AccessQueue window = new AccessQueue();
+            final AccessQueue probation = new AccessQueue();
+            final AccessQueue protectedQueue = new AccessQueue();
+            final int windowMax;
+            final int mainMax;
+            final int protectedMax;
+
+            Segment(int capacity) {
+                this.windowMax = Math.max(1, (int) (capacity * WINDOW_RATIO));
+                this.mainMax = Math.max(1, capacity - this.windowMax);
+                this.protectedMax = Math.max(1, (int) (this.mainMax * PROTECTED_RATIO));
+            }
+
+            // Records a hit on a node. Caller holds lock.
+            void onAccess(Node node) {
+                switch (node.queue) {
+                case WINDOW:
+                    this.window.moveToLast(node);
+                    break;
+                case PROBATION:
+                    this.probation.remove(node);
+                    node.queue = PROTECTED;
+                    this.protectedQueue.addLast(node);
+                    while (this.protectedQueue.size > this.protectedMax) {
+                        Node demoted = this.protectedQueue.pollFirst();
+                        demoted.queue = PROBATION;
+                        this.probation.addLast(demoted);
+                    }
+                    break;
+                case PROTECTED:
+                    this.protectedQueue.moveToLast(node);
+                    break;
+                default:
+                    // Removed concurrently
+                }
+            }
+
+            // Adds a new node and evicts as necessary. Caller holds lock.
+            void add(Node node) {
+                node.queue = WINDOW;
+                this.window.addLast(node);
+
+                while (this.window.size > this.windowMax) {
+                    Node candidate = this.window.pollFirst();
+                    if (this.probation.size + this.protectedQueue.size < this.mainMax) {
+                        candidate.queue = PROBATION;
+                        this.probation.addLast(candidate);
+                        continue;
+                    }
+
+                    Node victim = this.probation.peekFirst();
+                    if (victim == null) {
+                        victim = this.protectedQueue.peekFirst();
+                    }
+                    if (victim == null
+                            || SegmentedItems.this.sketch.frequency(candidate.uri) 
+                               > SegmentedItems.this.sketch.frequency(victim.uri)) {
+                        unlink(victim);
+                        evicted(victim);
+                        candidate.queue = PROBATION;
+                        this.probation.addLast(candidate);
+                    } else {
+                        candidate.queue = DEAD;
+                        evicted(candidate);
+                    }
+                }
+            }
+
+            // Unlinks a node from its queue. Caller holds lock.
+            void unlink(Node node) {
+                if (node == null) {
+                    return;
+                }
+                switch (node.queue) {
+                case WINDOW:
+                    this.window.remove(node);
+                    break;
+                case PROBATION:
+                    this.probation.remove(node);
+                    break;
+                case PROTECTED:
+                    this.protectedQueue.remove(node);
+                    break;
+                default:
+                    return;
+                }
+                node.queue = DEAD;
+            }
+
+            void clear() {
+                this.window.clear();
+                this.probation.clear();
+                this.protectedQueue.clear();
+            }
+        }
+    }
+}
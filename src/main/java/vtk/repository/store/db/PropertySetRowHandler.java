@@ -114,11 +114,7 @@ class PropertySetRowHandler implements RowHandler {
         
         if (this.currentId != null && !this.currentId.equals(id)) {
             // New property set encountered in row iteration, flush out current.
-            PropertySetImpl propertySet = createPropertySet(this.rowValueBuffer);
-            
-            // Get ACL 
-            Acl acl = getAcl(propertySet);
-            this.clientHandler.handlePropertySet(propertySet, acl);
+            handlePropertySetRows(this.rowValueBuffer);
             
             // Clear current row buffer
             this.rowValueBuffer.clear();
@@ -137,7 +133,17 @@ class PropertySetRowHandler implements RowHandler {
             return;
         }
         
-        PropertySetImpl propertySet = createPropertySet(this.rowValueBuffer);
+        handlePropertySetRows(this.rowValueBuffer);
+    }
+    
+    /**
+     * Assembles a property set from all rows of a single resource and
+     * hands it to the client handler along with its ACL.
+     * 
+     * @param rowBuffer the rows of a single resource, in iteration order
+     */
+    void handlePropertySetRows(List<Map<String, Object>> rowBuffer) {
+        PropertySetImpl propertySet = createPropertySet(rowBuffer);
         
         // Get ACL
         Acl acl = getAcl(propertySet);
@@ -33,7 +33,9 @@ package vtk.repository.store.db;
 import java.io.ByteArrayInputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -117,6 +119,86 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
         return resource;
     }
 
+    private int loadBatchSize = 500;
+
+    /**
+     * Loads a number of resources using a fixed number of queries per
+     * batch of <code>loadBatchSize</code> uris: one for the resources
+     * themselves, and one each for locks, properties, inherited properties,
+     * ACLs and child uris of collections.
+     */
+    @Override
+    public Map<Path, ResourceImpl> load(Collection<Path> uris) {
+        Map<Path, ResourceImpl> result = new HashMap<Path, ResourceImpl>(uris.size() * 2);
+        if (uris.isEmpty()) {
+            return result;
+        }
+        List<Path> uriList = new ArrayList<Path>(new HashSet<Path>(uris));
+        int total = uriList.size();
+        for (int start = 0; start < total; start += this.loadBatchSize) {
+            int end = Math.min(start + this.loadBatchSize, total);
+            for (ResourceImpl resource : loadBatch(uriList.subList(start, end))) {
+                result.put(resource.getURI(), resource);
+            }
+        }
+        return result;
+    }
+
+    private ResourceImpl[] loadBatch(List<Path> uris) {
+        List<String> uriStrings = new ArrayList<String>(uris.size());
+        for (Path uri : uris) {
+            uriStrings.add(uri.toString());
+        }
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("uris", uriStrings);
+
+        String sqlMap = getSqlMap("loadResourcesByUris");
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> rows = getSqlMapClientTemplate().queryForList(sqlMap, parameters);
+        if (rows.isEmpty()) {
+            return new ResourceImpl[0];
+        }
+
+        ResourceImpl[] resources = new ResourceImpl[rows.size()];
+        Path[] found = new Path[rows.size()];
+        List<Integer> resourceIds = new ArrayList<Integer>(rows.size());
+        for (int i = 0; i < resources.length; i++) {
+            Map<String, Object> resourceMap = rows.get(i);
+            Path uri = Path.fromString((String) resourceMap.get("uri"));
+            ResourceImpl resource = new ResourceImpl(uri);
+            populateStandardProperties(resource, resourceMap);
+
+            Integer aclInheritedFrom = (Integer) resourceMap.get("aclInheritedFrom");
+            boolean aclInherited = aclInheritedFrom != null;
+            resource.setInheritedAcl(aclInherited);
+            resource.setAclInheritedFrom(aclInherited ? aclInheritedFrom.intValue() : PropertySetImpl.NULL_RESOURCE_ID);
+
+            resources[i] = resource;
+            found[i] = uri;
+            resourceIds.add(resource.getID());
+        }
+
+        Map<Path, Lock> locks = loadLocks(found);
+        for (ResourceImpl resource : resources) {
+            Lock lock = locks.get(resource.getURI());
+            if (lock != null) {
+                resource.setLock(lock);
+            }
+        }
+
+        parameters = new HashMap<String, Object>();
+        parameters.put("resourceIds", resourceIds);
+        sqlMap = getSqlMap("loadPropertiesForResources");
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> propertyList = getSqlMapClientTemplate().queryForList(sqlMap, parameters);
+        populateCustomProperties(resources, propertyList);
+
+        loadInheritedProperties(resources);
+        loadACLs(resources);
+        loadChildUris(resources);
+        return resources;
+    }
+
     /**
      * Loads everthing except:
      * - ACL
@@ -526,8 +608,9 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
             getSqlMapClientTemplate().update(sqlMap, parameters);
 
             // Update inheritance to nearest node:
-            int srcNearestACL = findNearestACL(resource.getURI());
-            int destNearestACL = findNearestACL(destURI);
+            Map<Path, Integer> nearestACLs = findNearestACLs(Arrays.asList(resource.getURI(), destURI));
+            int srcNearestACL = nearestACLs.get(resource.getURI());
+            int destNearestACL = nearestACLs.get(destURI);
 
             parameters = new HashMap<String, Object>();
             parameters.put("uri", destURI.toString());
@@ -661,8 +744,9 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
         storeProperties(created);
 
         if (newResource.isInheritedAcl()) {
-            int srcNearestAcl = findNearestACL(resource.getURI());
-            int nearestAclNode = findNearestACL(newResource.getURI());
+            Map<Path, Integer> nearestACLs = findNearestACLs(Arrays.asList(resource.getURI(), newResource.getURI()));
+            int srcNearestAcl = nearestACLs.get(resource.getURI());
+            int nearestAclNode = nearestACLs.get(newResource.getURI());
             parameters = new HashMap<String, Object>();
             parameters.put("uri", newResource.getURI().toString());
             parameters.put("uriWildcard", SqlDaoUtils.getUriSqlWildcard(newResource.getURI(), SQL_ESCAPE_CHAR));
@@ -690,6 +774,50 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
         parent.setChildURIs(resourceUriList);
     }
 
+    /**
+     * Loads child uris for all collections among a set of resources in a
+     * single query.
+     */
+    private void loadChildUris(ResourceImpl[] resources) {
+        Map<Path, List<Path>> childMap = new HashMap<Path, List<Path>>();
+        List<Map<String, Object>> parents = new ArrayList<Map<String, Object>>();
+        for (ResourceImpl resource : resources) {
+            if (resource.isCollection()) {
+                childMap.put(resource.getURI(), new ArrayList<Path>());
+                Map<String, Object> parent = new HashMap<String, Object>();
+                parent.put("uriWildcard", SqlDaoUtils.getUriSqlWildcard(resource.getURI(), SQL_ESCAPE_CHAR));
+                parent.put("depth", resource.getURI().getDepth() + 1);
+                parents.add(parent);
+            }
+        }
+        if (parents.isEmpty()) {
+            return;
+        }
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("parents", parents);
+        String sqlMap = getSqlMap("loadChildUrisForParents");
+
+        @SuppressWarnings("unchecked")
+        List<Path> resourceUris = getSqlMapClientTemplate().queryForList(sqlMap, parameters);
+
+        for (Path uri : resourceUris) {
+            Path parentUri = uri.getParent();
+            if (parentUri != null) {
+                List<Path> childUriList = childMap.get(parentUri);
+                if (childUriList != null) {
+                    childUriList.add(uri);
+                }
+            }
+        }
+
+        for (ResourceImpl resource : resources) {
+            if (resource.isCollection()) {
+                resource.setChildURIs(childMap.get(resource.getURI()));
+            }
+        }
+    }
+
     private void loadChildUrisForChildren(ResourceImpl parent, ResourceImpl[] children) {
 
         // Initialize a map from child collection URI to the list of
@@ -862,42 +990,59 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
     }
 
     private int findNearestACL(Path uri) {
+        return findNearestACLs(Collections.singletonList(uri)).get(uri);
+    }
 
-        List<Path> path = uri.getPaths();
+    /**
+     * Number of uris per query when loading data for the ancestor chains of
+     * a set of resources. Normally the union of all ancestor chains fits in
+     * a single query.
+     */
+    private int ancestorBatchSize = 1000;
 
-        // Reverse list to get deepest URI first
-        Collections.reverse(path);
+    /**
+     * Finds the nearest resource having an ACL for each of a set of uris.
+     * The union of the ancestor chains is looked up with a single query, and
+     * the nearest ACL for each uri is resolved in memory.
+     * 
+     * @param uris the uris to find the nearest ACL for. Each uri itself is
+     * also considered a candidate.
+     * @return a map from each of the uris to the resource id of the nearest
+     * resource with an ACL
+     */
+    Map<Path, Integer> findNearestACLs(Collection<Path> uris) {
+        Set<Path> paths = new HashSet<Path>();
+        for (Path uri : uris) {
+            paths.addAll(uri.getPaths());
+        }
 
-        Map<String, Object> parameters = new HashMap<String, Object>();
-        parameters.put("path", path);
+        Map<Path, Integer> aclNodes = new HashMap<Path, Integer>();
         String sqlMap = getSqlMap("findNearestAclResourceId");
+        for (List<Path> batch : batches(paths)) {
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("path", batch);
 
-        @SuppressWarnings("unchecked")
-        List<Map<String, Object>> list = getSqlMapClientTemplate().queryForList(sqlMap, parameters);
-
-        Map<String, Integer> uris = new HashMap<String, Integer>();
-        for (Map<String, Object> map : list) {
-            uris.put((String) map.get("uri"), (Integer) map.get("resourceId"));
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> list = getSqlMapClientTemplate().queryForList(sqlMap, parameters);
+            for (Map<String, Object> map : list) {
+                aclNodes.put(Path.fromString((String) map.get("uri")), (Integer) map.get("resourceId"));
+            }
         }
 
-        int nearestResourceId = -1;
-        for (Path p : path) {
-            String candidateUri = p.toString();
-            if (uris.containsKey(candidateUri)) {
-                nearestResourceId = uris.get(candidateUri).intValue();
-                break;
+        Map<Path, Integer> result = new HashMap<Path, Integer>(uris.size() * 2);
+        for (Path uri : uris) {
+            Integer nearestResourceId = null;
+            for (Path p = uri; p != null && nearestResourceId == null; p = p.getParent()) {
+                nearestResourceId = aclNodes.get(p);
             }
+            if (nearestResourceId == null) {
+                throw new DataAccessException("Database inconsistency: no acl to inherit " + "from for resource " + uri);
+            }
+            result.put(uri, nearestResourceId);
         }
-        if (nearestResourceId == -1) {
-            throw new DataAccessException("Database inconsistency: no acl to inherit " + "from for resource " + uri);
-        }
-        return nearestResourceId;
+        return result;
     }
 
-    
-    
-    private int inheritedPropertiesBatch = 200;
-    
     /**
      * Loads and populates only properties inherited from ancestors
      * for all resources. Does not overwrite existing properties, allowing
@@ -909,34 +1054,79 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
         if (resources.length == 0) {
             return;
         }
-        List<Map<String, Object>> propertyRows = new ArrayList<Map<String, Object>>();
-        String sqlMap = getSqlMap("loadInheritableProperties");
-        Map<String, Object> parameterMap = new HashMap<String, Object>();
         
-        Set<Path> handled = new HashSet<Path>();
-        Set<Path> paths = new HashSet<Path>();
-        // Load inheritable properties from all ancestors
-        for (int i = 0; i < resources.length; i++) {
-            Path parent = resources[i].getURI().getParent();
+        // Load inheritable properties from the union of all ancestor chains
+        Set<Path> ancestors = new HashSet<Path>();
+        for (ResourceImpl r : resources) {
+            Path parent = r.getURI().getParent();
             if (parent != null) {
-                for (Path p : parent.getPaths()) {
-                    if (handled.add(p)) {
-                        paths.add(p);
+                ancestors.addAll(parent.getPaths());
+            }
+        }
+        Map<Path, List<PropHolder>> inheritableMap = loadInheritablePropHolders(ancestors);
+        
+        // Create Property instances from PropHolders in inheritableMap
+        final Map<Path, List<Property>> inheritableProperties
+                = new HashMap<Path, List<Property>>(inheritableMap.size(), 1.0f);
+        for (Map.Entry<Path, List<PropHolder>> entry: inheritableMap.entrySet()) {
+            List<PropHolder> holderList = entry.getValue();
+            List<Property> propList = new ArrayList<Property>(holderList.size());
+            for (PropHolder ph: holderList) {
+                propList.add(createInheritedProperty(ph));
+            }
+            inheritableProperties.put(entry.getKey(), propList);
+        }
+
+        // Populate loaded resources with inheritable props, handling override from bottom up in paths
+        final Set<PropertyTypeDefinition> encountered = new HashSet<PropertyTypeDefinition>();
+        for (ResourceImpl r : resources) {
+            Path parent = r.getURI().getParent();
+            if (parent == null) {
+                continue; // root resource cannot inherit anything
+            }
+            
+            List<Path> pathList = parent.getPaths();
+            for (int i = pathList.size() - 1; i >= 0; i--) {
+                Path p = pathList.get(i);
+                List<Property> propList = inheritableProperties.get(p);
+                if (propList != null) {
+                    for (Property prop : propList) {
+                        if (encountered.add(prop.getDefinition())) {
+                            if (r.getProperty(prop.getDefinition()) == null) {
+                                r.addProperty(prop);
+                            }
+                        }
                     }
                 }
             }
-            if ((i == resources.length - 1 || i % inheritedPropertiesBatch == 0) && !paths.isEmpty()) {
-                parameterMap.put("uris", new ArrayList<Path>(paths));
-                @SuppressWarnings("unchecked")
-                List<Map<String, Object>> rows = getSqlMapClientTemplate().queryForList(sqlMap, parameterMap);
-                propertyRows.addAll(rows);
-                paths.clear();
-            }
+            encountered.clear();
         }
+    }
 
-        // Aggregate all properties in resultset rows, and also link paths to PropHolder instances
-        // Map linking path to list of PropHolder instances
+    /**
+     * Loads the inheritable properties set on a number of resources,
+     * aggregating values of multi-value properties.
+     * 
+     * @param uris the uris of the resources
+     * @return map from uri to the inheritable properties set on the resource
+     */
+    Map<Path, List<PropHolder>> loadInheritablePropHolders(Collection<Path> uris) {
         final Map<Path, List<PropHolder>> inheritableMap = new HashMap<Path, List<PropHolder>>();
+        if (uris.isEmpty()) {
+            return inheritableMap;
+        }
+        
+        String sqlMap = getSqlMap("loadInheritableProperties");
+        List<Map<String, Object>> propertyRows = new ArrayList<Map<String, Object>>();
+        for (List<Path> batch : batches(uris)) {
+            Map<String, Object> parameterMap = new HashMap<String, Object>();
+            parameterMap.put("uris", batch);
+            @SuppressWarnings("unchecked")
+            List<Map<String, Object>> rows = getSqlMapClientTemplate().queryForList(sqlMap, parameterMap);
+            propertyRows.addAll(rows);
+        }
+
+        // Aggregate all properties in resultset rows, and also link paths to PropHolder instances
         // Map for PropHolder value aggregation
         final Map<PropHolder, List<Object>> holderValues = new HashMap<PropHolder, List<Object>>();
         for (Map<String, Object> propEntry : propertyRows) {
@@ -971,46 +1161,18 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
                 values.add(propEntry.get("value"));
             }
         }
-        
-        // Create Property instances from PropHolders in inheritableMap
-        final Map<Path, List<Property>> inheritableProperties
-                = new HashMap<Path, List<Property>>(inheritableMap.size(), 1.0f);
-        for (Map.Entry<Path, List<PropHolder>> entry: inheritableMap.entrySet()) {
-            List<PropHolder> holderList = entry.getValue();
-            List<Property> propList = new ArrayList<Property>(holderList.size());
-            for (PropHolder ph: holderList) {
-                propList.add(createInheritedProperty(ph));
-            }
-            inheritableProperties.put(entry.getKey(), propList);
-        }
+        return inheritableMap;
+    }
 
-        // Populate loaded resources with inheritable props, handling override from bottom up in paths
-        final Set<PropertyTypeDefinition> encountered = new HashSet<PropertyTypeDefinition>();
-        for (ResourceImpl r : resources) {
-            Path parent = r.getURI().getParent();
-            if (parent == null) {
-                continue; // root resource cannot inherit anything
-            }
-            
-            List<Path> pathList = parent.getPaths();
-            for (int i = pathList.size() - 1; i >= 0; i--) {
-                Path p = pathList.get(i);
-                List<Property> propList = inheritableProperties.get(p);
-                if (propList != null) {
-                    for (Property prop : propList) {
-                        if (encountered.add(prop.getDefinition())) {
-                            if (r.getProperty(prop.getDefinition()) == null) {
-                                r.addProperty(prop);
-                            }
-                        }
-                    }
-                }
-            }
-            encountered.clear();
+    private List<List<Path>> batches(Collection<Path> uris) {
+        List<Path> list = new ArrayList<Path>(uris);
+        List<List<Path>> batches = new ArrayList<List<Path>>();
+        for (int start = 0; start < list.size(); start += this.ancestorBatchSize) {
+            batches.add(list.subList(start, Math.min(start + this.ancestorBatchSize, list.size())));
         }
+        return batches;
     }
     
-    
     private void loadACLs(ResourceImpl[] resources) {
 
         if (resources.length == 0) {
@@ -1122,7 +1284,7 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
                 // If any binary value is of type BinaryValueReference (created only by this class)
                 // then DataAccessException will be thrown if the reference is STALE.
                 // We only do this for BINARY type, since other types stored in binary columns are always
-                // copied to string in memory at load time.
+                // copied to memory at load time.
                 ensureBinaryValueBuffered(p);
             }
         }
@@ -1531,6 +1693,13 @@ public class SqlMapDataAccessor extends AbstractSqlMapDataAccessor implements Da
         this.resourceTypeTree = resourceTypeTree;
     }
     
+    public void setLoadBatchSize(int loadBatchSize) {
+        if (loadBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be a positive number");
+        }
+        this.loadBatchSize = loadBatchSize;
+    }
+
     public void setOptimizedAclCopySupported(boolean optimizedAclCopySupported) {
         this.optimizedAclCopySupported = optimizedAclCopySupported;
     }
@@ -31,11 +31,15 @@
 package vtk.repository.store.db;
 
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,6 +59,7 @@ import vtk.security.PrincipalFactory;
 import static vtk.repository.store.db.SqlMapDataAccessor.AclHolder;
 
 import com.ibatis.sqlmap.client.SqlMapExecutor;
+import com.ibatis.sqlmap.client.event.RowHandler;
 import java.util.ArrayList;
 import vtk.repository.Acl;
 import vtk.repository.Namespace;
@@ -67,6 +72,8 @@ public class SqlMapIndexDao extends AbstractSqlMapDataAccessor implements IndexD
 
     private static final Log LOG = LogFactory.getLog(SqlMapIndexDao.class);
     
+    public static final String STREAMER_THREAD_NAME = "propertySetStreamer";
+    
     private ResourceTypeTree resourceTypeTree;
 
     private PrincipalFactory principalFactory;
@@ -88,6 +95,72 @@ public class SqlMapIndexDao extends AbstractSqlMapDataAccessor implements IndexD
         rowHandler.handleLastBufferedRows();
     }
     
+    @Override
+    public void orderedPropertySetIteration(PropertySetHandler handler, int bufferSize)
+        throws DataAccessException {
+
+        final SqlMapClientTemplate client = getSqlMapClientTemplate();
+        final String statementId = getSqlMap("orderedPropertySetIteration");
+        final RowStreamer streamer = new RowStreamer(bufferSize);
+        
+        Thread streamerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    client.queryWithRowHandler(statementId, streamer);
+                    streamer.flush();
+                } catch (Throwable t) {
+                    streamer.fail(t);
+                } finally {
+                    streamer.end();
+                }
+            }
+        });
+        streamerThread.setName(STREAMER_THREAD_NAME);
+        streamerThread.setDaemon(true);
+
+        PropertySetRowHandler rowHandler = 
+            new PropertySetRowHandler(handler, this.resourceTypeTree, this.principalFactory, this);
+        
+        long start = System.currentTimeMillis();
+        long waitNanos = 0;
+        int count = 0;
+        boolean completed = false;
+        streamerThread.start();
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                List<Map<String, Object>> rows = streamer.take();
+                waitNanos += System.nanoTime() - waitStart;
+                if (rows == RowStreamer.END) {
+                    break;
+                }
+                rowHandler.handlePropertySetRows(rows);
+                ++count;
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                streamer.cancel();
+            }
+            try {
+                streamerThread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        streamer.rethrowFailure();
+
+        if (LOG.isInfoEnabled()) {
+            long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+            LOG.info("Streamed " + streamer.getRowCount() + " rows for " + count + " property sets in " 
+                    + elapsed + " ms: streaming " + (streamer.getRowCount() * 1000 / elapsed) 
+                    + " rows/s (" + (streamer.getWaitNanos() / 1000000) + " ms blocked on full buffer), "
+                    + "assembly " + (count * 1000L / elapsed) + " property sets/s (" 
+                    + (waitNanos / 1000000) + " ms waiting for rows)");
+        }
+    }
+    
     @Override
     public void orderedPropertySetIteration(Path startUri, PropertySetHandler handler) 
         throws DataAccessException {
@@ -217,6 +290,113 @@ public class SqlMapIndexDao extends AbstractSqlMapDataAccessor implements IndexD
         return this.sqlMapDataAccessor.createProperty(ns, name, value);
     }
 
+    /**
+     * Groups rows streamed from the database by resource and hands them over
+     * to the assembling thread through a bounded queue.
+     */
+    private static final class RowStreamer implements RowHandler {
+        
+        static final List<Map<String, Object>> END = Collections.emptyList();
+        
+        private final BlockingQueue<List<Map<String, Object>>> queue;
+        private List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        private Integer currentId = null;
+        private long rowCount = 0;
+        private long waitNanos = 0;
+        private volatile boolean cancelled = false;
+        private volatile Throwable failure = null;
+        
+        RowStreamer(int bufferSize) {
+            this.queue = new ArrayBlockingQueue<List<Map<String, Object>>>(bufferSize);
+        }
+
+        @Override
+        public void handleRow(Object valueObject) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> rowMap = (Map<String, Object>) valueObject;
+            Integer id = (Integer) rowMap.get("id");
+            if (this.currentId != null && !this.currentId.equals(id)) {
+                flush();
+            }
+            this.currentId = id;
+            this.rows.add(rowMap);
+            ++this.rowCount;
+        }
+        
+        void flush() {
+            if (this.rows.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            put(this.rows);
+            this.waitNanos += System.nanoTime() - start;
+            this.rows = new ArrayList<Map<String, Object>>();
+        }
+        
+        void end() {
+            try {
+                put(END);
+            } catch (RuntimeException e) {
+                // Cancelled, nobody is waiting for the end marker
+            }
+        }
+        
+        void fail(Throwable t) {
+            if (!this.cancelled) {
+                this.failure = t;
+            }
+        }
+        
+        void cancel() {
+            this.cancelled = true;
+            this.queue.clear();
+        }
+        
+        List<Map<String, Object>> take() {
+            try {
+                return this.queue.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new vtk.repository.store.DataAccessException("Interrupted while waiting for rows", ie);
+            }
+        }
+        
+        void rethrowFailure() {
+            Throwable t = this.failure;
+            if (t == null) {
+                return;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new vtk.repository.store.DataAccessException("Failed to stream property set rows", t);
+        }
+        
+        long getRowCount() {
+            return this.rowCount;
+        }
+        
+        long getWaitNanos() {
+            return this.waitNanos;
+        }
+        
+        private void put(List<Map<String, Object>> element) {
+            try {
+                while (!this.queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                    if (this.cancelled) {
+                        throw new IllegalStateException("Property set iteration cancelled");
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while streaming rows", ie);
+            }
+        }
+    }
+
     @Required
     public void setSqlMapDataAccessor(SqlMapDataAccessor sqlMapDataAccessor){
         this.sqlMapDataAccessor = sqlMapDataAccessor;
@@ -39,6 +39,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
 import vtk.graphics.ImageUtil;
+import vtk.graphics.ThumbnailStore;
 import vtk.repository.Path;
 import vtk.repository.Property;
 import vtk.repository.Repository;
@@ -57,6 +58,7 @@ public class ImageMetadataJob extends AbstractResourceJob {
     private Set<String> supportedFormats;
     private long maxSourceImageFileSize = 35000000;
     private long maxSourceImageRawMemoryUsage = 100000000;
+    private ThumbnailStore thumbnailStore;
 
     private PropertyTypeDefinition thumbnailPropDef;
     private PropertyTypeDefinition mediaMetadataStatusPropDef;
@@ -172,6 +174,15 @@ public class ImageMetadataJob extends AbstractResourceJob {
 
         resource.removeProperty(mediaMetadataStatusPropDef);
         storeIfUnmodified(resource, ctx);
+
+        if (thumbnailStore != null) {
+            try {
+                thumbnailStore.putVariants(resource.getID(), resource.getLastModified().getTime(),
+                        thumbnailFormat, image);
+            } catch (Exception e) {
+                logger.warn("Failed to store thumbnail variants for " + path, e);
+            }
+        }
     }
     
     private void storeWithStatus(Resource resource, ExecutionContext ctx, String status) {
@@ -256,6 +267,14 @@ public class ImageMetadataJob extends AbstractResourceJob {
         this.maxSourceImageRawMemoryUsage = maxSourceImageRawMemoryUsage;
     }
 
+    /**
+     * Set store to pre-generate thumbnail variants in, in addition to
+     * the <code>thumbnail</code> property. Optional.
+     */
+    public void setThumbnailStore(ThumbnailStore thumbnailStore) {
+        this.thumbnailStore = thumbnailStore;
+    }
+
     @Required
     public void setThumbnailPropDef(PropertyTypeDefinition thumbnailPropDef) {
         this.thumbnailPropDef = thumbnailPropDef;
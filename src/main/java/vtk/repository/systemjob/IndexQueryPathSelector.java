@@ -32,9 +32,13 @@
 package vtk.repository.systemjob;
 
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Required;
+import vtk.repository.Path;
 import vtk.repository.PropertySet;
 import vtk.repository.Repository;
 import vtk.repository.ResourceTypeTree;
@@ -81,6 +85,30 @@ public class IndexQueryPathSelector implements PathSelector {
             search.clearAllFilterFlags();
         }
         search.setPropertySelect(PropertySelect.NONE);
+        
+        if (sort == null) {
+            // No particular order required, load matches from all index segments in parallel
+            search.setParallelIteration(true);
+            final List<Path> uris = new ArrayList<Path>();
+            this.searcher.iterateMatching(token, search, new Searcher.MatchCallback() {
+                @Override
+                public boolean matching(Searcher.MatchingResult result) throws Exception {
+                    uris.add(result.propertySet().getURI());
+                    return true;
+                }
+            });
+            
+            if (logger.isDebugEnabled()) {
+                logger.debug("Iterated query " + query + " with " + uris.size() + " results");
+            }
+            
+            callback.beginBatch(uris.size());
+            for (Path uri: uris) {
+                callback.select(uri);
+            }
+            return;
+        }
+        
         ResultSet results = this.searcher.execute(token, search);
 
         if (logger.isDebugEnabled()) {
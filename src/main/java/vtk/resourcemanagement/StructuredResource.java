@@ -47,13 +47,21 @@ public class StructuredResource {
 
     private StructuredResourceDescription desc;
     private Map<String, Object> properties;
+    private final boolean immutable;
+    private volatile Map<String, Object> json;
 
     private StructuredResource(StructuredResourceDescription desc, Map<String, Object> properties) {
+        this(desc, properties, false);
+    }
+
+    private StructuredResource(StructuredResourceDescription desc, Map<String, Object> properties, 
+            boolean immutable) {
         if (desc == null) {
             throw new IllegalArgumentException("Description cannot be null");
         }
         this.desc = desc;
         this.properties = properties;
+        this.immutable = immutable;
     }
 
     @SuppressWarnings("unchecked")
@@ -81,6 +89,22 @@ public class StructuredResource {
         return new StructuredResource(desc, properties);
     }
 
+    /**
+     * Creates a structured resource which cannot be modified, from a
+     * document built on unmodifiable maps and lists. Such resources
+     * may be shared between threads (see {@link StructuredResourceCache}).
+     */
+    @SuppressWarnings("unchecked")
+    static StructuredResource createImmutable(StructuredResourceDescription desc, Object json) {
+        ValidationResult validation = validateInternal(desc, json);
+        if (!validation.isValid()) {
+            throw new RuntimeException("Invalid document: " + validation.getErrors());
+        }
+        Map<?,?> jsonObject = (Map<?,?>) json;
+        Map<String, Object> properties = (Map<String, Object>) jsonObject.get("properties");
+        return new StructuredResource(desc, Collections.unmodifiableMap(properties), true);
+    }
+
     public boolean isValidDocument(Object document) {
         try {
             ValidationResult validation = validateInternal(this.desc, document);
@@ -92,6 +116,18 @@ public class StructuredResource {
 
     // XXX: make recursive:
     public Map<String, Object> toJSON() {
+        if (this.immutable) {
+            Map<String, Object> json = this.json;
+            if (json == null) {
+                json = Collections.unmodifiableMap(toJSONInternal());
+                this.json = json;
+            }
+            return json;
+        }
+        return toJSONInternal();
+    }
+
+    private Map<String, Object> toJSONInternal() {
         Map<String, Object> json = new HashMap<String, Object>();
         json.put("resourcetype", desc.getName());
         Map<String, Object> props = new HashMap<String, Object>();
@@ -108,7 +144,7 @@ public class StructuredResource {
                 props.put(name, this.properties.get(name));
             }
         }
-        json.put("properties", props);
+        json.put("properties", this.immutable ? Collections.unmodifiableMap(props) : props);
         return json;
     }
 
@@ -0,0 +1,273 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.resourcemanagement;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationListener;
+
+import vtk.repository.Path;
+import vtk.repository.Repository;
+import vtk.repository.Resource;
+import vtk.repository.Revision;
+import vtk.repository.event.RepositoryEvent;
+import vtk.repository.event.ResourceMovedEvent;
+import vtk.util.text.Json;
+
+/**
+ * Cache of parsed JSON documents and the structured resources built
+ * from them, so that structured resources are not read and parsed on
+ * every view.
+ * 
+ * <p>Documents are keyed on URI, revision and last modified time of
+ * the resource, so a changed resource is never served from the cache.
+ * Cached documents are shared between requests and are therefore made
+ * immutable: JSON objects and arrays are wrapped in unmodifiable maps
+ * and lists, and the properties of cached structured resources cannot
+ * be changed. Callers must retrieve the resource (checking access)
+ * before using the cache.
+ * 
+ * <p>The cache is bounded by the total size of the source documents and
+ * evicts the least recently used entries. Entries are also removed on
+ * repository events for the resource, to release memory early.
+ * 
+ * <p>Configurable JavaBean properties:
+ * <ul>
+ *   <li><code>maxSize</code> - maximum total size in bytes of the cached
+ *   documents (as stored in the repository), default 32 MiB. Documents
+ *   larger than a quarter of this are not cached.
+ * </ul>
+ */
+public class StructuredResourceCache implements ApplicationListener<RepositoryEvent> {
+
+    private static Log logger = LogFactory.getLog(StructuredResourceCache.class);
+
+    private long maxSize = 32 * 1024 * 1024;
+    private long size = 0;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public void setMaxSize(long maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be >= 1");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the parsed (immutable) JSON document of a resource.
+     * 
+     * @param repository the repository
+     * @param token the security token
+     * @param resource the resource, retrieved using <code>token</code>
+     * @param revision the revision of the resource, or <code>null</code>
+     * for the current revision
+     * @return the JSON document, built on unmodifiable maps and lists
+     */
+    public Object getDocument(Repository repository, String token, 
+            Resource resource, Revision revision) throws Exception {
+        return getEntry(repository, token, resource, revision).document;
+    }
+
+    /**
+     * Gets the structured resource built from the JSON document of a
+     * resource. The returned structured resource cannot be modified.
+     * 
+     * @param repository the repository
+     * @param token the security token
+     * @param resource the resource, retrieved using <code>token</code>
+     * @param revision the revision of the resource, or <code>null</code>
+     * for the current revision
+     * @param desc the description of the resource type
+     * @return the structured resource
+     */
+    public StructuredResource getResource(Repository repository, String token, 
+            Resource resource, Revision revision, StructuredResourceDescription desc) throws Exception {
+        Entry entry = getEntry(repository, token, resource, revision);
+        StructuredResource res = entry.resource;
+        // Descriptions may be replaced when resource types are reloaded
+        if (res == null || res.getType() != desc) {
+            res = StructuredResource.createImmutable(desc, entry.document);
+            entry.resource = res;
+        }
+        return res;
+    }
+
+    public synchronized int getItems() {
+        return this.entries.size();
+    }
+
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.size = 0;
+    }
+
+    @Override
+    public void onApplicationEvent(RepositoryEvent event) {
+        invalidate(event.getURI());
+        if (event instanceof ResourceMovedEvent) {
+            invalidate(((ResourceMovedEvent) event).getFrom().getURI());
+        }
+    }
+
+    synchronized void invalidate(Path uri) {
+        if (uri == null || this.entries.isEmpty()) {
+            return;
+        }
+        Iterator<Map.Entry<Key, Entry>> i = this.entries.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key, Entry> e = i.next();
+            Path path = e.getKey().uri;
+            if (path.equals(uri) || uri.isAncestorOf(path)) {
+                this.size -= e.getValue().size;
+                i.remove();
+            }
+        }
+    }
+
+    private Entry getEntry(Repository repository, String token, 
+            Resource resource, Revision revision) throws Exception {
+        Key key = new Key(resource, revision);
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+        if (entry != null) {
+            this.hits.incrementAndGet();
+            return entry;
+        }
+        this.misses.incrementAndGet();
+
+        InputStream stream;
+        if (revision != null) {
+            stream = repository.getInputStream(token, resource.getURI(), true, revision);
+        } else {
+            stream = repository.getInputStream(token, resource.getURI(), true);
+        }
+        Object document;
+        try {
+            document = Json.unmodifiable(Json.parseToContainer(stream));
+        } finally {
+            stream.close();
+        }
+        entry = new Entry(document, Math.max(resource.getContentLength(), 1));
+        put(key, entry);
+        return entry;
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        if (entry.size > this.maxSize / 4) {
+            return;
+        }
+        Entry previous = this.entries.put(key, entry);
+        if (previous != null) {
+            this.size -= previous.size;
+        }
+        this.size += entry.size;
+        Iterator<Entry> i = this.entries.values().iterator();
+        while (this.size > this.maxSize && i.hasNext()) {
+            this.size -= i.next().size;
+            i.remove();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Cached " + key + ", " + this.entries.size() + " items, " + this.size + " bytes");
+        }
+    }
+
+    private static final class Entry {
+        private final Object document;
+        private final long size;
+        private volatile StructuredResource resource;
+
+        Entry(Object document, long size) {
+            this.document = document;
+            this.size = size;
+        }
+    }
+
+    private static final class Key {
+        private final Path uri;
+        private final String revision;
+        private final long lastModified;
+
+        Key(Resource resource, Revision revision) {
+            this.uri = resource.getURI();
+            if (revision != null) {
+                this.revision = revision.getName() + ":" + revision.getChecksum();
+            } else {
+                this.revision = null;
+            }
+            this.lastModified = resource.getLastModified().getTime();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return this.lastModified == other.lastModified
+                    && this.uri.equals(other.uri)
+                    && (this.revision == null ? other.revision == null : this.revision.equals(other.revision));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = this.uri.hashCode();
+            h = 31 * h + (this.revision == null ? 0 : this.revision.hashCode());
+            h = 31 * h + (int) (this.lastModified ^ (this.lastModified >>> 32));
+            return h;
+        }
+
+        @Override
+        public String toString() {
+            return "Key[" + this.uri + ", revision=" + this.revision + ", lastModified=" + this.lastModified + "]";
+        }
+    }
+}
@@ -51,6 +51,7 @@ import vtk.repository.Resource;
 import vtk.repository.Revision;
 import vtk.resourcemanagement.ComponentDefinition;
 import vtk.resourcemanagement.StructuredResource;
+import vtk.resourcemanagement.StructuredResourceCache;
 import vtk.resourcemanagement.StructuredResourceDescription;
 import vtk.resourcemanagement.StructuredResourceManager;
 import vtk.resourcemanagement.view.tl.ComponentInvokerNodeFactory;
@@ -86,6 +87,8 @@ public class StructuredResourceDisplayController implements Controller, Initiali
 
     private List<HtmlPageFilter> postFilters;
 
+    private StructuredResourceCache resourceCache;
+
     // XXX: clean up this mess:
     private Map<StructuredResourceDescription,
     Map<String, TemplateLanguageDecoratorComponent>> components = 
@@ -114,13 +117,6 @@ public class StructuredResourceDisplayController implements Controller, Initiali
             r = repository.retrieve(token, uri, true);
         }
 
-        InputStream stream;
-        if (revision != null) {
-            stream = repository.getInputStream(token, uri, true, revision);
-        } else {
-            stream = repository.getInputStream(token, uri, true);
-        }
-
         StructuredResourceDescription desc = this.resourceManager.get(r.getResourceType());
         if (desc == null) {
             throw new IllegalStateException("Unable to find resource type description '" 
@@ -130,8 +126,20 @@ public class StructuredResourceDisplayController implements Controller, Initiali
             initComponentDefs(desc);
         }
 
+        StructuredResource res;
+        if (this.resourceCache != null) {
+            res = this.resourceCache.getResource(repository, token, r, revision, desc);
+        } else {
+            InputStream stream;
+            if (revision != null) {
+                stream = repository.getInputStream(token, uri, true, revision);
+            } else {
+                stream = repository.getInputStream(token, uri, true);
+            }
+            res = desc.buildResource(stream);
+        }
+
         Map<String, Object> model = new HashMap<String, Object>();
-        StructuredResource res = desc.buildResource(stream);
         model.put("structured-resource", res);
         model.put("resource", r);
         model.put(this.resourceModelKey, res);
@@ -275,5 +283,13 @@ public class StructuredResourceDisplayController implements Controller, Initiali
     public void setDirectiveHandlers(List<DirectiveHandler> directiveHandlers) {
         this.directiveHandlers = directiveHandlers;
     }
+
+    /**
+     * Sets an optional cache of parsed structured resources. If not 
+     * set, the resource is parsed on every request.
+     */
+    public void setResourceCache(StructuredResourceCache resourceCache) {
+        this.resourceCache = resourceCache;
+    }
     
 }
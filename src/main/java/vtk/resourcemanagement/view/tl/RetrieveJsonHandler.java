@@ -34,6 +34,8 @@ import java.io.InputStream;
 
 import vtk.repository.Path;
 import vtk.repository.Repository;
+import vtk.repository.Resource;
+import vtk.resourcemanagement.StructuredResourceCache;
 import vtk.text.tl.Context;
 import vtk.text.tl.Symbol;
 import vtk.text.tl.expr.Function;
@@ -42,10 +44,21 @@ import vtk.web.RequestContext;
 
 public class RetrieveJsonHandler extends Function {
 
+    private StructuredResourceCache cache;
+
     public RetrieveJsonHandler(Symbol symbol) {
         super(symbol, 1);
     }
 
+    /**
+     * Creates a function which gets parsed documents from a cache. 
+     * Documents from the cache cannot be modified.
+     */
+    public RetrieveJsonHandler(Symbol symbol, StructuredResourceCache cache) {
+        super(symbol, 1);
+        this.cache = cache;
+    }
+
     @Override
     public Object eval(Context ctx, Object... args) {
 
@@ -62,6 +75,10 @@ public class RetrieveJsonHandler extends Function {
                 uri = Path.fromString(ref);
             }
             String token = requestContext.getSecurityToken();
+            if (this.cache != null) {
+                Resource resource = repository.retrieve(token, uri, false);
+                return this.cache.getDocument(repository, token, resource, null);
+            }
             InputStream is = repository.getInputStream(token, uri, false);
             return Json.parseToContainer(is);
         } catch (Throwable t) {
@@ -60,6 +60,7 @@ public class HtmlElementImpl implements HtmlElement {
     }
     
     private List<HtmlElement> getChildElementsInternal() {
+        expandMarkup();
         List<HtmlElement> result = new ArrayList<HtmlElement>();
         for (HtmlContent c : this.contentList) {
             if (c instanceof HtmlElement) {
@@ -70,6 +71,7 @@ public class HtmlElementImpl implements HtmlElement {
     }
         
     public HtmlElement[] getChildElements(String name) {
+        expandMarkup();
         List<HtmlElement> list = new ArrayList<HtmlElement>();
         for (HtmlContent c : this.contentList) {
             if (c instanceof HtmlElement) {
@@ -83,6 +85,7 @@ public class HtmlElementImpl implements HtmlElement {
     }
 
     public HtmlContent[] getChildNodes() {
+        expandMarkup();
         return this.contentList.toArray(
             new HtmlContent[this.contentList.size()]);
     }
@@ -95,6 +98,7 @@ public class HtmlElementImpl implements HtmlElement {
     }
 
     public HtmlContent[] getChildNodes(HtmlNodeFilter filter) {
+        expandMarkup();
         List<HtmlContent> list = new ArrayList<HtmlContent>();
         for (HtmlContent content : this.contentList) {
             content = filter.filterNode(content);
@@ -118,6 +122,35 @@ public class HtmlElementImpl implements HtmlElement {
         this.contentList.remove(child);
     }
 
+    /**
+     * Replaces any {@link HtmlMarkup} children with their parsed 
+     * nodes, so that the structure is visible to callers. 
+     * Serialization does not need this and writes the markup as is.
+     */
+    private void expandMarkup() {
+        boolean found = false;
+        for (HtmlContent c : this.contentList) {
+            if (c instanceof HtmlMarkup) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return;
+        }
+        List<HtmlContent> expanded = new ArrayList<HtmlContent>(this.contentList.size());
+        for (HtmlContent c : this.contentList) {
+            if (c instanceof HtmlMarkup) {
+                for (HtmlContent child : ((HtmlMarkup) c).getChildNodes()) {
+                    expanded.add(child);
+                }
+            } else {
+                expanded.add(c);
+            }
+        }
+        this.contentList = expanded;
+    }
+
     
     public HtmlAttribute[] getAttributes() {
         return this.attributes.toArray(
@@ -165,81 +198,47 @@ public class HtmlElementImpl implements HtmlElement {
 
     public String getContent() {
         StringBuilder sb = new StringBuilder();
-        for (HtmlContent child : this.contentList) {
-            if (child instanceof EnclosingHtmlContent) {
-                sb.append(((EnclosingHtmlContent) child).getEnclosedContent());
-            } else {
-                sb.append(child.getContent());
-            }
-        }
+        appendContent(sb, null);
         return sb.toString();
     }
         
     public String getContent(HtmlNodeFilter filter) {
         StringBuilder sb = new StringBuilder();
-        for (HtmlContent child : this.contentList) {
-            child = filter.filterNode(child);
-            if (child != null) {
-                if (child instanceof HtmlElement) {
-                    sb.append(((HtmlElement) child).getEnclosedContent(filter));
-                } else if (child instanceof EnclosingHtmlContent) {
-                    sb.append(((EnclosingHtmlContent) child).getEnclosedContent());
-                } else {
-                    sb.append(child.getContent());
-                }
-            }
-        }
+        appendContent(sb, filter);
         return sb.toString();
     }
 
     public String getEnclosedContent() {
         StringBuilder sb = new StringBuilder();
-        sb.append("<").append(this.name);
-        HtmlAttribute[] attributes = getAttributes();
-        if (attributes.length > 0) {
-            for (HtmlAttribute attr : attributes) {
-                if (attr.hasValue()) {
-                    sb.append(" ").append(attr.getName()).append("=");
-                    sb.append(attr.isSingleQuotes() ? "'" : "\"");
-                    sb.append(attr.getValue());
-                    sb.append(attr.isSingleQuotes() ? "'" : "\"");
-                } else if (this.xhtml) {
-                    sb.append(" ").append(attr.getName()).append("=");
-                    sb.append(attr.isSingleQuotes() ? "''" : "\"\"");
-                } else {
-                    sb.append(" ").append(attr.getName());
-                }
-            }
-        }
-        if (this.contentList.isEmpty() && this.emptyTag && this.xhtml) {
-            sb.append("/>");
-        }
-        else if (this.contentList.isEmpty() && this.emptyTag) {
-            sb.append(">");
-        } else {
-            sb.append(">").append(getContent());
-            sb.append("</").append(this.name).append(">");    
-        }
+        appendEnclosedContent(sb, null);
         return sb.toString();
     }
 
     public String getEnclosedContent(HtmlNodeFilter filter) {
         StringBuilder sb = new StringBuilder();
+        appendEnclosedContent(sb, filter);
+        return sb.toString();
+    }
+
+    /**
+     * Serializes this element and its descendants into a single
+     * buffer. Nested elements of this class append directly to the
+     * same buffer instead of building intermediate strings for every
+     * level of the tree.
+     */
+    void appendEnclosedContent(StringBuilder sb, HtmlNodeFilter filter) {
         sb.append("<").append(this.name);
-        HtmlAttribute[] attributes = getAttributes();
-        if (attributes.length > 0) {
-            for (HtmlAttribute attr : attributes) {
-                if (attr.hasValue()) {
-                    sb.append(" ").append(attr.getName()).append("=");
-                    sb.append(attr.isSingleQuotes() ? "'" : "\"");
-                    sb.append(attr.getValue());
-                    sb.append(attr.isSingleQuotes() ? "'" : "\"");
-                } else if (this.xhtml) {
-                    sb.append(" ").append(attr.getName()).append("=");
-                    sb.append(attr.isSingleQuotes() ? "''" : "\"\"");
-                } else {
-                    sb.append(" ").append(attr.getName());
-                }
+        for (HtmlAttribute attr : this.attributes) {
+            if (attr.hasValue()) {
+                sb.append(" ").append(attr.getName()).append("=");
+                sb.append(attr.isSingleQuotes() ? "'" : "\"");
+                sb.append(attr.getValue());
+                sb.append(attr.isSingleQuotes() ? "'" : "\"");
+            } else if (this.xhtml) {
+                sb.append(" ").append(attr.getName()).append("=");
+                sb.append(attr.isSingleQuotes() ? "''" : "\"\"");
+            } else {
+                sb.append(" ").append(attr.getName());
             }
         }
         if (this.contentList.isEmpty() && this.emptyTag && this.xhtml) {
@@ -248,10 +247,30 @@ public class HtmlElementImpl implements HtmlElement {
         else if (this.contentList.isEmpty() && this.emptyTag) {
             sb.append(">");
         } else {
-            sb.append(">").append(getContent(filter));
+            sb.append(">");
+            appendContent(sb, filter);
             sb.append("</").append(this.name).append(">");    
         }
-        return sb.toString();
+    }
+
+    void appendContent(StringBuilder sb, HtmlNodeFilter filter) {
+        for (HtmlContent child : this.contentList) {
+            if (filter != null) {
+                child = filter.filterNode(child);
+                if (child == null) {
+                    continue;
+                }
+            }
+            if (child instanceof HtmlElementImpl) {
+                ((HtmlElementImpl) child).appendEnclosedContent(sb, filter);
+            } else if (filter != null && child instanceof HtmlElement) {
+                sb.append(((HtmlElement) child).getEnclosedContent(filter));
+            } else if (child instanceof EnclosingHtmlContent) {
+                sb.append(((EnclosingHtmlContent) child).getEnclosedContent());
+            } else {
+                sb.append(child.getContent());
+            }
+        }
     }
 
     public String toString() {
@@ -0,0 +1,96 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.text.html;
+
+import java.util.List;
+
+/**
+ * A node containing markup which is known to be well-formed, for
+ * example output from a template or the serialized form of an already
+ * parsed element. The markup is written verbatim when the tree is
+ * serialized and is only parsed if the child nodes are requested
+ * (e.g. when the tree is filtered or selected from).
+ * 
+ * <p>{@link HtmlElementImpl} and {@link HtmlPage#filterContent} replace
+ * instances of this class with the parsed nodes whenever the structure
+ * of the tree is inspected, so code traversing the tree does not need
+ * to know about this node type.
+ */
+public final class HtmlMarkup implements EnclosingHtmlContent {
+
+    private final String markup;
+    private final HtmlPageParser parser;
+
+    /**
+     * @param markup the (well-formed) markup
+     * @param parser the parser used if the markup needs to be 
+     * turned into nodes
+     */
+    public HtmlMarkup(String markup, HtmlPageParser parser) {
+        if (markup == null) {
+            throw new IllegalArgumentException("Markup cannot be NULL");
+        }
+        if (parser == null) {
+            throw new IllegalArgumentException("Parser cannot be NULL");
+        }
+        this.markup = markup;
+        this.parser = parser;
+    }
+
+    @Override
+    public String getContent() {
+        return this.markup;
+    }
+
+    @Override
+    public String getEnclosedContent() {
+        return this.markup;
+    }
+
+    /**
+     * Parses the markup into new nodes. If the markup cannot be 
+     * parsed, a single text node containing the markup is returned.
+     */
+    @Override
+    public HtmlContent[] getChildNodes() {
+        try {
+            List<HtmlContent> content = this.parser.parseFragment(this.markup).getContent();
+            return content.toArray(new HtmlContent[content.size()]);
+        } catch (Exception e) {
+            return new HtmlContent[] { new HtmlTextImpl(this.markup) };
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.markup;
+    }
+}
@@ -119,7 +119,11 @@ public final class HtmlPage {
     public String getStringRepresentation() {
         StringBuilder sb = new StringBuilder();
         sb.append("<!DOCTYPE ").append(this.doctype).append(">\n");
-        sb.append(this.root.getEnclosedContent());
+        if (this.root instanceof HtmlElementImpl) {
+            ((HtmlElementImpl) this.root).appendEnclosedContent(sb, null);
+        } else {
+            sb.append(this.root.getEnclosedContent());
+        }
         return sb.toString();
     }
 
@@ -133,10 +137,61 @@ public final class HtmlPage {
     }
     
     
+    /**
+     * Applies a list of filters in a single traversal of the page.
+     * The result is the same as calling {@link #filter(HtmlPageFilter)}
+     * for each filter in turn, provided that the filters only inspect
+     * the node they are given: every node is passed through the
+     * filters in list order, and a node that is excluded or skipped
+     * by one filter is not seen by the following ones (the children
+     * of a skipped node are still visited by all filters). Whether a
+     * filter {@link HtmlPageFilter#match(HtmlPage) matches} is decided
+     * for all filters before the traversal starts.
+     * 
+     * @param filters the filters to apply
+     */
+    public void filter(List<HtmlPageFilter> filters) {
+        final List<HtmlPageFilter> matching = new ArrayList<HtmlPageFilter>(filters.size());
+        for (HtmlPageFilter filter: filters) {
+            if (filter.match(this)) {
+                matching.add(filter);
+            }
+        }
+        if (matching.isEmpty()) {
+            return;
+        }
+        if (matching.size() == 1) {
+            filter(matching.get(0));
+            return;
+        }
+        HtmlPageFilter chain = new HtmlPageFilter() {
+            @Override
+            public boolean match(HtmlPage page) {
+                return true;
+            }
+            @Override
+            public NodeResult filter(HtmlContent node) {
+                for (HtmlPageFilter filter: matching) {
+                    NodeResult result = filter.filter(node);
+                    if (result != NodeResult.keep) {
+                        return result;
+                    }
+                }
+                return NodeResult.keep;
+            }
+        };
+        filter(chain);
+    }
+    
     static List<HtmlContent> filterContent(List<HtmlContent> nodeList, HtmlPageFilter filter) {
         List<HtmlContent> resultList = new ArrayList<HtmlContent>();
 
         for (HtmlContent node: nodeList) {
+            if (node instanceof HtmlMarkup) {
+                List<HtmlContent> parsed = Arrays.asList(((HtmlMarkup) node).getChildNodes());
+                resultList.addAll(filterContent(parsed, filter));
+                continue;
+            }
             NodeResult result = filter.filter(node);
 
             if (result == NodeResult.keep) {
@@ -30,53 +30,59 @@
  */
 package vtk.text.tl;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public final class Context {
 
-    private static final Pattern VALID_NAME_PATTERN = Pattern.compile("[a-zA-Z_]([a-zA-Z0-9\\-_]*[a-zA-Z0-9_])?");
     private Locale locale = Locale.getDefault();
-    // Visible from templates and functions:
-    private Stack<Map<String, Object>> stack = new Stack<Map<String, Object>>();
+    // Visible from templates and functions. A context is confined to
+    // the rendering thread, so the scope stack is a plain array:
+    @SuppressWarnings("unchecked")
+    private Map<String, Object>[] stack = new Map[8];
+    private int depth = 0;
     // For use by "runtime system":
     private Map<String, Object> attributes = new HashMap<String, Object>();
     
     private static final String NULL = "null";
 
+    // Returned by lookup() for names that are not bound:
+    static final Object UNDEFINED = new Object();
+
     public Context(Locale locale) {
         Map<String, Object> toplevel = new HashMap<String, Object>();
         toplevel.put(NULL, null);
-        this.stack.push(toplevel);
+        this.stack[this.depth++] = toplevel;
         this.locale = locale;
     }
 
     public boolean isDefined(String name) {
-        Map<String, Object> ctx;
-        int idx = this.stack.size() - 1;
-        while (idx >= 0) {
-            ctx = this.stack.get(idx--);
-            if (ctx.containsKey(name)) {
-                return true;
-            }
-        }
-        return false;
+        return lookup(name) != UNDEFINED;
     }
 
     public Object get(String name) {
-        Map<String, Object> ctx;
-        int idx = this.stack.size() - 1;
-        while (idx >= 0) {
-            ctx = this.stack.get(idx--);
-            if (ctx.containsKey(name)) {
-                return ctx.get(name);
+        Object value = lookup(name);
+        return value == UNDEFINED ? null : value;
+    }
+
+    /**
+     * Looks up a name in a single pass over the scopes, innermost
+     * first.
+     * 
+     * @return the bound value, or {@link #UNDEFINED} if the name is
+     * not bound in any scope
+     */
+    Object lookup(String name) {
+        for (int idx = this.depth - 1; idx >= 0; idx--) {
+            Map<String, Object> ctx = this.stack[idx];
+            Object value = ctx.get(name);
+            if (value != null || ctx.containsKey(name)) {
+                return value;
             }
         }
-        return null;
+        return UNDEFINED;
     }
 
     // Defines a binding in the context.
@@ -85,14 +91,14 @@ public final class Context {
             throw new IllegalArgumentException("Illegal name: '" + name + "'");
         }
         if (!global) {
-            Map<String, Object> ctx = this.stack.peek();
+            Map<String, Object> ctx = this.stack[this.depth - 1];
             ctx.put(name, value);
         } else {
             boolean found = false;
             Map<String, Object> ctx;
-            int idx = this.stack.size() - 1;
+            int idx = this.depth - 1;
             while (idx >= 0) {
-                ctx = this.stack.get(idx--);
+                ctx = this.stack[idx--];
                 if (ctx.containsKey(name)) {
                     ctx.put(name, value);
                     found = true;
@@ -100,18 +106,24 @@ public final class Context {
             }
             if (!found) {
                 // Define variable in root context
-                Map<String, Object> root = this.stack.get(0);
+                Map<String, Object> root = this.stack[0];
                 root.put(name, value);
             }
         }
     }
 
     public void push() {
-        this.stack.push(new HashMap<String, Object>());
+        if (this.depth == this.stack.length) {
+            this.stack = Arrays.copyOf(this.stack, this.depth * 2);
+        }
+        this.stack[this.depth++] = new HashMap<String, Object>();
     }
 
     public void pop() {
-        this.stack.pop();
+        if (this.depth == 0) {
+            throw new IllegalStateException("Scope stack is empty");
+        }
+        this.stack[--this.depth] = null;
     }
 
     public Locale getLocale() {
@@ -147,7 +159,7 @@ public final class Context {
     }
 
     public String toString() {
-        return this.stack.toString();
+        return Arrays.asList(this.stack).subList(0, this.depth).toString();
     }
     
     public boolean hasAttribute(String name) {
@@ -185,7 +197,33 @@ public final class Context {
         if (NULL.equals(symbol)) {
             return false;
         }
-        Matcher m = VALID_NAME_PATTERN.matcher(symbol);
-        return m.matches();
+        // Equivalent to [a-zA-Z_]([a-zA-Z0-9\-_]*[a-zA-Z0-9_])?
+        int len = symbol.length();
+        if (len == 0) {
+            return false;
+        }
+        char c = symbol.charAt(0);
+        if (!(isLetter(c) || c == '_')) {
+            return false;
+        }
+        for (int i = 1; i < len; i++) {
+            c = symbol.charAt(i);
+            if (isLetter(c) || isDigit(c) || c == '_') {
+                continue;
+            }
+            if (c == '-' && i < len - 1) {
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
     }
 }
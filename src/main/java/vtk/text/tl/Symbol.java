@@ -58,11 +58,12 @@ public final class Symbol implements Token {
     }
     
     public Object getValue(Context ctx) {
-        if (!ctx.isDefined(this.value)) {
+        Object value = ctx.lookup(this.value);
+        if (value == Context.UNDEFINED) {
             throw new RuntimeException(
                     "Symbol '" + this.value + "' not defined");
         }
-        return ctx.get(this.value);
+        return value;
     }
     
     public String toString() {
@@ -37,6 +37,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import vtk.text.tl.Context;
 import vtk.text.tl.Literal;
@@ -205,7 +207,7 @@ public class Expression {
         while (lookingAt(LOGICAL_OPERATORS)) {
             Symbol s = readSymbol();
             ExpressionNode rel = relationalExpression();
-            node = new InfixOperation(node, s, rel);
+            node = infix(node, s, rel);
         }
         return node;
     }
@@ -219,7 +221,7 @@ public class Expression {
         while (lookingAt(RELATIONAL_OPERATORS)) {
             Symbol s = readSymbol();
             ExpressionNode simple = simpleExpression();
-            node = new InfixOperation(node, s, simple);
+            node = infix(node, s, simple);
         }
         return node;
     }
@@ -229,7 +231,7 @@ public class Expression {
         while (lookingAt(ADDITIVE_OPERATORS)) {
             Symbol s = readSymbol();
             ExpressionNode operand = operand();
-            node = new InfixOperation(node, s, operand);
+            node = infix(node, s, operand);
         }
         return node;
     }
@@ -272,7 +274,7 @@ public class Expression {
         while (lookingAt(MULTIPLICATIVE_OPERATORS)) {
             Symbol s = readSymbol();
             ExpressionNode factor = factor();
-            node = new InfixOperation(node, s, factor);
+            node = infix(node, s, factor);
         }
         return node;
     }
@@ -384,8 +386,37 @@ public class Expression {
     private ExpressionNode invExpression() {
         Symbol s = readSymbol();
         ExpressionNode rel = logicalExpression();
+        if (NOT.equals(s)) {
+            return new NotNode(rel);
+        }
         return new UnaryOperation(s, rel);
     }
+
+    /**
+     * Creates the node for a binary operation. The logical, equality
+     * and match operators get specialised nodes that evaluate their
+     * operands directly; the remaining operators are dispatched
+     * through their {@link Operator} with a preallocated argument
+     * array. Both produce the same results.
+     */
+    private static ExpressionNode infix(ExpressionNode left, Symbol symbol, ExpressionNode right) {
+        if (AND.equals(symbol)) {
+            return new AndNode(left, right);
+        }
+        if (OR.equals(symbol)) {
+            return new OrNode(left, right);
+        }
+        if (EQ.equals(symbol)) {
+            return new EqNode(left, right, false);
+        }
+        if (NEQ.equals(symbol)) {
+            return new EqNode(left, right, true);
+        }
+        if (MATCH.equals(symbol)) {
+            return new MatchNode(left, right);
+        }
+        return new InfixOperation(left, symbol, right);
+    }
     
     private Token cur() {
         if (this.pos < this.tokens.size()) {
@@ -486,15 +517,17 @@ public class Expression {
         private ExpressionNode left;
         private Operator operator;
         private ExpressionNode right;
+        private ExpressionNode[] args;
         public InfixOperation(ExpressionNode left, Symbol symbol, ExpressionNode right) {
             this.left = left;
             this.operator = OPERATORS.get(symbol);
             this.right = right;
+            this.args = new ExpressionNode[]{left, right};
         }
 
         @Override
         public Object eval(Context ctx) {
-            return this.operator.eval(ctx, new ExpressionNode[]{left, right});
+            return this.operator.eval(ctx, this.args);
         }
         
         @Override
@@ -506,14 +539,16 @@ public class Expression {
     private static class UnaryOperation implements ExpressionNode {
         private Operator operator;
         private ExpressionNode node;
+        private ExpressionNode[] args;
         public UnaryOperation(Symbol symbol, ExpressionNode node) {
             this.operator = OPERATORS.get(symbol);
             this.node = node;
+            this.args = new ExpressionNode[]{node};
         }
 
         @Override
         public Object eval(Context ctx) {
-            return this.operator.eval(ctx, new ExpressionNode[]{node});
+            return this.operator.eval(ctx, this.args);
         }
         @Override
         public String toString() {
@@ -521,6 +556,152 @@ public class Expression {
         }
     }
 
+    // Same semantics as {@link And}: a null operand is false,
+    // non-boolean operands are parsed as booleans.
+    private static class AndNode implements ExpressionNode {
+        private ExpressionNode left;
+        private ExpressionNode right;
+        public AndNode(ExpressionNode left, ExpressionNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        public Object eval(Context ctx) {
+            return truth(this.left.eval(ctx)) && truth(this.right.eval(ctx));
+        }
+        @Override
+        public String toString() {
+            return "(" + this.left + " " + AND.getSymbol() + " " + this.right + ")";
+        }
+    }
+
+    // Same semantics as {@link Or}: note that a null left operand
+    // yields false without evaluating the right operand.
+    private static class OrNode implements ExpressionNode {
+        private ExpressionNode left;
+        private ExpressionNode right;
+        public OrNode(ExpressionNode left, ExpressionNode right) {
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        public Object eval(Context ctx) {
+            Object o = this.left.eval(ctx);
+            if (o == null) {
+                return false;
+            }
+            if (truth(o)) {
+                return true;
+            }
+            o = this.right.eval(ctx);
+            return o != null && truth(o);
+        }
+        @Override
+        public String toString() {
+            return "(" + this.left + " " + OR.getSymbol() + " " + this.right + ")";
+        }
+    }
+
+    private static boolean truth(Object o) {
+        if (o == null) {
+            return false;
+        }
+        if (o instanceof Boolean) {
+            return (Boolean) o;
+        }
+        return Boolean.parseBoolean(o.toString());
+    }
+
+    // Same semantics as {@link Not}
+    private static class NotNode implements ExpressionNode {
+        private ExpressionNode node;
+        public NotNode(ExpressionNode node) {
+            this.node = node;
+        }
+        @Override
+        public Object eval(Context ctx) {
+            Object o = this.node.eval(ctx);
+            if (o == null) {
+                return true;
+            }
+            if (o instanceof Boolean) {
+                return !((Boolean) o);
+            }
+            return false;
+        }
+        @Override
+        public String toString() {
+            return NOT.getSymbol() + " " + this.node.toString();
+        }
+    }
+
+    // Same semantics as {@link Eq} and {@link Neq}
+    private static class EqNode implements ExpressionNode {
+        private ExpressionNode left;
+        private ExpressionNode right;
+        private boolean negate;
+        public EqNode(ExpressionNode left, ExpressionNode right, boolean negate) {
+            this.left = left;
+            this.right = right;
+            this.negate = negate;
+        }
+        @Override
+        public Object eval(Context ctx) {
+            Object o1 = this.left.eval(ctx);
+            Object o2 = this.right.eval(ctx);
+            boolean equal;
+            if (o1 == null || o2 == null) {
+                equal = o1 == o2;
+            } else {
+                equal = o1 == o2 || o1.equals(o2);
+            }
+            return equal != this.negate;
+        }
+        @Override
+        public String toString() {
+            return "(" + this.left + " " + (this.negate ? NEQ : EQ).getSymbol() 
+                    + " " + this.right + ")";
+        }
+    }
+
+    // Same semantics as {@link Match}. A literal pattern is compiled
+    // once instead of on every evaluation.
+    private static class MatchNode implements ExpressionNode {
+        private ExpressionNode left;
+        private ExpressionNode right;
+        private Pattern pattern;
+        public MatchNode(ExpressionNode left, ExpressionNode right) {
+            this.left = left;
+            this.right = right;
+            if (right instanceof LiteralNode) {
+                Object value = ((LiteralNode) right).literal.getValue(null);
+                if (value != null) {
+                    try {
+                        this.pattern = Pattern.compile(value.toString());
+                    } catch (PatternSyntaxException e) {
+                        // Reported on evaluation, as before
+                    }
+                }
+            }
+        }
+        @Override
+        public Object eval(Context ctx) {
+            Object o1 = this.left.eval(ctx);
+            Object o2 = this.right.eval(ctx);
+            if (o1 == null || o2 == null) {
+                return false;
+            }
+            if (this.pattern != null) {
+                return this.pattern.matcher(o1.toString()).matches();
+            }
+            return o1.toString().matches(o2.toString());
+        }
+        @Override
+        public String toString() {
+            return "(" + this.left + " " + MATCH.getSymbol() + " " + this.right + ")";
+        }
+    }
+
     private static class ListNode implements ExpressionNode {
         private List<ExpressionNode> list;
         public ListNode(List<ExpressionNode> list) {
@@ -675,6 +856,7 @@ public class Expression {
     private static class FunctionCall implements ExpressionNode {
         private Symbol name;
         private List<ExpressionNode> args = null;
+        private volatile ExpressionNode[] argArray = null;
         private FunctionResolver resolver;
         
         public FunctionCall(Symbol name, FunctionResolver resolver) {
@@ -694,11 +876,16 @@ public class Expression {
             if (fun == null) {
                 throw new IllegalStateException("Undefined function: " + this.name);
             }
-            List<ExpressionNode> args = this.args;
-            if (args == null) {
-                args = Collections.emptyList();
+            ExpressionNode[] argArray = this.argArray;
+            if (argArray == null) {
+                List<ExpressionNode> args = this.args;
+                if (args == null) {
+                    args = Collections.emptyList();
+                }
+                argArray = args.toArray(new ExpressionNode[args.size()]);
+                this.argArray = argArray;
             }
-            return fun.eval(ctx, args.toArray(new ExpressionNode[args.size()]));
+            return fun.eval(ctx, argArray);
         }
 
         @Override
@@ -31,12 +31,24 @@
 package vtk.util.cache;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -58,6 +70,13 @@ import org.springframework.beans.factory.InitializingBean;
  * as it never shrinks (it does not contain a <code>remove()</code>
  * method, although a size limit can be specified). 
  *
+ * <p>At most one load per key is in progress at any time: threads
+ * requesting a key which is already being loaded wait for that load
+ * instead of calling the loader themselves. Asynchronous refreshes are
+ * run on a bounded executor shared by all cache instances; when it is
+ * saturated, refreshes are dropped and the stale item is served until a
+ * later request gets a refresh through.
+ *
  * <p>Configurable JavaBean properties:
  * <ul>
  *   <li><code>cacheLoader</code> - the {@link ContentCacheLoader}
@@ -67,22 +86,30 @@ import org.springframework.beans.factory.InitializingBean;
  *   this property is <code>true</code>, the item is returned as is
  *   and a refresh is triggered in a separate thread. Otherwise, the
  *   current thread blocks while the item is refreshed.
+ *   <li><code>refreshAheadFraction</code> - with asynchronous refresh,
+ *   the fraction of the cache timeout before expiry in which an access
+ *   may trigger an early refresh. Each item gets a random point within
+ *   this window, so that items loaded together do not all expire
+ *   together. Default is <code>0.1</code>, <code>0</code> disables
+ *   refresh-ahead.
+ *   <li><code>refreshExecutor</code> - executor to run asynchronous
+ *   refreshes on. Defaults to a bounded pool shared by all instances.
  *   <li><code>refreshInterval</code> - if set to a positive number of
  *   seconds, a thread is created at initialization time, triggering a
  *   refresh of expired items at regular intervals (in a separate
  *   thread).
  *   <li><code>maxItems</code> - the maximum number of items to allow
  *   in the cache. A negative number means no limit (the default).
+ *   <li><code>weigher</code> and <code>maxWeight</code> - alternative
+ *   to <code>maxItems</code>, limiting the cache by the total weight of
+ *   the items as computed by a {@link ContentCacheWeigher}.
  * </ul>
  *
+ * <p>When a limit is exceeded, the least recently loaded items are
+ * evicted first.
+ *
  * @param <K> key of the cached objects
  * @param <V> value of the cached objects
- * 
- * XXX Should probably not allow unlimited number of asynchronous refresh threads
- * to be created. What if the loader is slow and a common and expired key is requested
- * several times ? That will dispatch a new async refresh thread for each
- * get on that key, which will all hit loader pretty hard or bog down system.
- * Switch to a queue and fixed max number of refresh threads instead ?
  */
 public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, InitializingBean, DisposableBean {
     
@@ -93,9 +120,32 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
     private int cacheTimeout;
     private ConcurrentHashMap<K, Item> cache = new ConcurrentHashMap<K, Item>();
     private boolean asynchronousRefresh = false;
+    private double refreshAheadFraction = 0.1;
+    private Executor refreshExecutor;
     private int refreshInterval = -1;
     private RefreshThread refreshThread;
     private int maxItems = -1;
+    private ContentCacheWeigher<K, V> weigher;
+    private long maxWeight = -1;
+
+    // Loads in progress, at most one per key
+    private final ConcurrentHashMap<K, LoadTask> inFlight = new ConcurrentHashMap<K, LoadTask>();
+
+    // Items in load order, for eviction. May contain items which have
+    // since been replaced or evicted, these are skipped (and purged
+    // when they become too many).
+    private final ConcurrentLinkedQueue<Item> evictionQueue = new ConcurrentLinkedQueue<Item>();
+    private final AtomicInteger evictionQueueLength = new AtomicInteger(0);
+    private final AtomicLong weight = new AtomicLong(0);
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong staleHits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong loads = new AtomicLong(0);
+    private final AtomicLong loadFailures = new AtomicLong(0);
+    private final AtomicLong loadNanos = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong droppedRefreshes = new AtomicLong(0);
     
     public void setName(String name) {
         this.name = name;
@@ -116,6 +166,17 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
     public void setAsynchronousRefresh(boolean asynchronousRefresh) {
         this.asynchronousRefresh = asynchronousRefresh;
     }
+
+    public void setRefreshAheadFraction(double refreshAheadFraction) {
+        if (refreshAheadFraction < 0 || refreshAheadFraction >= 1) {
+            throw new IllegalArgumentException("Refresh ahead fraction must be in range [0, 1)");
+        }
+        this.refreshAheadFraction = refreshAheadFraction;
+    }
+
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
     
     public void setRefreshInterval(int refreshInterval) {
         this.refreshInterval = refreshInterval;
@@ -124,7 +185,14 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
     public void setMaxItems(int maxItems) {
         this.maxItems = maxItems;
     }
-    
+
+    public void setWeigher(ContentCacheWeigher<K, V> weigher) {
+        this.weigher = weigher;
+    }
+
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
 
     @Override
     public void afterPropertiesSet() {
@@ -139,6 +207,13 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
                 "JavaBean property 'maxItems' has an illegal value: specify "
                 + "either a positive or negative integer");
         }
+        if (this.weigher != null && this.maxWeight <= 0) {
+            throw new BeanInitializationException(
+                "JavaBean property 'maxWeight' must be positive when 'weigher' is set");
+        }
+        if (this.refreshExecutor == null) {
+            this.refreshExecutor = SharedRefreshExecutor.INSTANCE;
+        }
 
         if (this.refreshInterval > 0) {
             this.refreshThread = new RefreshThread(this.refreshInterval);
@@ -171,22 +246,26 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
             if (logger.isDebugEnabled()) {
                 logger.debug("Caching object: '" + identifier + "'");
             } 
-            item = cacheItem(identifier);
-        }
-        
-        if (item.getTimestamp().getTime() + this.cacheTimeout <= System.currentTimeMillis()) {
-            if (this.asynchronousRefresh) {
-                triggerAsynchronousRefresh(identifier);
+            this.misses.incrementAndGet();
+            item = load(identifier, null);
+        } else {
+            long now = System.currentTimeMillis();
+            if (now >= item.expires) {
+                if (this.asynchronousRefresh) {
+                    this.staleHits.incrementAndGet();
+                    refreshAsynchronously(identifier, item);
+                } else {
+                    this.misses.incrementAndGet();
+                    item = load(identifier, item);
+                }
             } else {
-                item = cacheItem(identifier);
+                this.hits.incrementAndGet();
+                if (this.asynchronousRefresh && now >= item.refreshAt) {
+                    refreshAsynchronously(identifier, item);
+                }
             }
         }
         
-        if (this.refreshThread == null && this.cache.size() > this.maxItems) {
-            // Shrink cache synchronously (no refresh thread)
-            removeOldestExceedingSizeLimit();
-        }
-        
         if (logger.isTraceEnabled()) {
             logger.trace("Returning object '" + item + "' from cache");
         }
@@ -201,95 +280,219 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
     @Override
     public void clear() {
         this.cache.clear();
+        this.evictionQueue.clear();
+        this.evictionQueueLength.set(0);
+        this.weight.set(0);
     }
-    
+
     /**
-     * 
-     * @param identifier cache key to pass to laoder
-     * @return newly loaded item, or item already in cache if it has not
-     *         expired.
-     * @throws Exception in case of loader failure
+     * @return number of requests served by a fresh cached item
      */
-    private Item cacheItem(K identifier) throws Exception {
+    public long getHits() {
+        return this.hits.get();
+    }
 
-        Item item = this.cache.get(identifier);
-        long now = System.currentTimeMillis();
+    /**
+     * @return number of requests served by an expired item while
+     *         it was being refreshed asynchronously
+     */
+    public long getStaleHits() {
+        return this.staleHits.get();
+    }
 
-        if (item == null ||
-            (item.getTimestamp().getTime() + this.cacheTimeout <= now)) {
-            V object = this.loader.load(identifier);
-            Item newItem = new Item(identifier, object);
-            this.cache.put(identifier, newItem);
-            item = newItem;
-        }
-        
-        return item;
+    /**
+     * @return number of requests which had to wait for a load
+     */
+    public long getMisses() {
+        return this.misses.get();
     }
 
+    /**
+     * @return number of completed loader invocations, including failures
+     */
+    public long getLoadCount() {
+        return this.loads.get();
+    }
 
-    private void triggerAsynchronousRefresh(final K identifier) {
-        Runnable fetcher = new Runnable() {
-           @Override
-           public void run() {
-              try {
-                 cacheItem(identifier);
-              } catch (Exception e) {
-                 logger.info("Error refreshing object '" + identifier + "'", e);
-              }
-           }
-        };
-        new Thread(fetcher, this.name + ".async-refresh").start();
+    public long getLoadFailureCount() {
+        return this.loadFailures.get();
     }
 
+    /**
+     * @return number of loads currently in progress
+     */
+    public int getInFlightLoads() {
+        return this.inFlight.size();
+    }
 
-    private synchronized void removeOldestExceedingSizeLimit() {
-        if (this.maxItems <= 0) return;
-        int size = this.cache.size();
-        int n = size - this.maxItems;
-        if (n <= 0) return;
+    /**
+     * @return total time spent in the loader, in milliseconds
+     */
+    public long getTotalLoadTime() {
+        return TimeUnit.NANOSECONDS.toMillis(this.loadNanos.get());
+    }
 
+    /**
+     * @return average time spent per loader invocation, in milliseconds
+     */
+    public double getAverageLoadTime() {
+        long n = this.loads.get();
+        if (n == 0) return 0;
+        return this.loadNanos.get() / (n * 1000000.0);
+    }
 
-        List<Map.Entry<K, Item>> sortedList =
-            new ArrayList<Map.Entry<K, Item>>(this.cache.entrySet());
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
 
-        Collections.sort(sortedList, new Comparator<Map.Entry<K, Item>>() {
-                @Override
-                public int compare(Map.Entry<K, Item> entry1, Map.Entry<K, Item> entry2) {
-                    Item i1 = entry1.getValue();
-                    Item i2 = entry2.getValue();
+    /**
+     * @return number of asynchronous refreshes dropped because the
+     *         refresh executor was saturated
+     */
+    public long getDroppedRefreshCount() {
+        return this.droppedRefreshes.get();
+    }
 
-                    return new Long(i1.getTimestamp().getTime()).compareTo(
-                        new Long(i2.getTimestamp().getTime()));
-                }
-            });
-        
-        List<Map.Entry<K, Item>> removeList = sortedList.subList(0, n);
-        if (logger.isDebugEnabled()) {
-            logger.debug("Cache size limit exceeded, removing " + n
-                         + " oldest items (of total " + size + ")");
+    /**
+     * @return the current total weight of the cached items (the
+     *         number of items when no weigher is configured)
+     */
+    public long getWeight() {
+        return this.weight.get();
+    }
+
+    /**
+     * Loads an item in the calling thread, or waits for a load of the
+     * same key already in progress.
+     * 
+     * @param identifier cache key to pass to loader
+     * @param observed the item the caller found in the cache, if any
+     * @return newly loaded item, or an item stored since the caller
+     *         observed the cache
+     * @throws Exception in case of loader failure
+     */
+    private Item load(K identifier, Item observed) throws Exception {
+        LoadTask task = new LoadTask(identifier, observed, false);
+        LoadTask existing = this.inFlight.putIfAbsent(identifier, task);
+        if (existing != null) {
+            task = existing;
+        } else {
+            task.run();
         }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
 
-        for (Map.Entry<K, Item> entry: removeList) {
-            Item item = entry.getValue();
-            this.cache.remove(item.getKey());
+    private void refreshAsynchronously(K identifier, Item observed) {
+        LoadTask task = new LoadTask(identifier, observed, true);
+        if (this.inFlight.putIfAbsent(identifier, task) != null) {
+            return;
+        }
+        try {
+            this.refreshExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            this.inFlight.remove(identifier, task);
+            this.droppedRefreshes.incrementAndGet();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Refresh executor saturated, dropped refresh of '" 
+                        + identifier + "'");
+            }
         }
     }
-    
-    private synchronized void refreshExpired() {
-        int size = this.cache.size();
-        if (size > this.maxItems) {
-            removeOldestExceedingSizeLimit();
-            size = this.cache.size();
+
+    private Item store(K identifier, V object) {
+        int w = 1;
+        if (this.weigher != null) {
+            w = this.weigher.weigh(identifier, object);
+            if (w < 0) {
+                throw new IllegalStateException("Negative weight " + w 
+                        + " for object '" + identifier + "'");
+            }
+        }
+        long now = System.currentTimeMillis();
+        long refreshAt = now + this.cacheTimeout;
+        if (this.asynchronousRefresh && this.refreshAheadFraction > 0) {
+            refreshAt -= (long) (ThreadLocalRandom.current().nextDouble() 
+                    * this.refreshAheadFraction * this.cacheTimeout);
+        }
+        Item item = new Item(identifier, object, now, refreshAt, w);
+
+        Item previous = this.cache.put(identifier, item);
+        this.weight.addAndGet(previous == null ? w : w - previous.weight);
+
+        long limit = limit();
+        if (limit > 0) {
+            this.evictionQueue.add(item);
+            int length = this.evictionQueueLength.incrementAndGet();
+            if (this.weight.get() > limit) {
+                evict(limit);
+            } else if (length > 2 * this.cache.size() + 16) {
+                purgeEvictionQueue();
+            }
         }
+        return item;
+    }
+
+    private long limit() {
+        return this.weigher != null ? this.maxWeight : this.maxItems;
+    }
 
-        List<K> refreshList = new ArrayList<K>();
+    /**
+     * Removes items in load order until the total weight is within the
+     * limit. Queue entries for items which are no longer current are
+     * discarded along the way.
+     */
+    private void evict(long limit) {
+        int n = 0;
+        while (this.weight.get() > limit) {
+            Item head = this.evictionQueue.poll();
+            if (head == null) {
+                break;
+            }
+            this.evictionQueueLength.decrementAndGet();
+            if (this.cache.remove(head.key, head)) {
+                this.weight.addAndGet(-head.weight);
+                n++;
+            }
+        }
+        if (n > 0) {
+            this.evictions.addAndGet(n);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Cache size limit exceeded, removed " + n
+                        + " oldest items (remaining " + this.cache.size() + ")");
+            }
+        }
+    }
 
+    private void purgeEvictionQueue() {
+        Iterator<Item> i = this.evictionQueue.iterator();
+        while (i.hasNext()) {
+            Item item = i.next();
+            if (this.cache.get(item.key) != item) {
+                i.remove();
+                this.evictionQueueLength.decrementAndGet();
+            }
+        }
+    }
+    
+    private void refreshExpired() {
+        int size = this.cache.size();
+        List<Map.Entry<K, Item>> refreshList = new ArrayList<Map.Entry<K, Item>>();
+
+        long now = System.currentTimeMillis();
         for (Map.Entry<K, Item> entry: this.cache.entrySet()) {
-            K identifier = entry.getKey();
-            Item item =  entry.getValue();
-            long now = System.currentTimeMillis();
-            if (item.getTimestamp().getTime() + this.cacheTimeout < now) {
-                refreshList.add(identifier);
+            if (entry.getValue().expires < now) {
+                refreshList.add(entry);
             }
         }
 
@@ -298,9 +501,10 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
                          + " expired items found (of total " + size + ")");
         }
 
-        for (K identifier: refreshList) {
+        for (Map.Entry<K, Item> entry: refreshList) {
+            K identifier = entry.getKey();
             try {
-                cacheItem(identifier);
+                load(identifier, entry.getValue());
                 if (logger.isDebugEnabled()) {
                     logger.debug("Refreshed expired cache item: '" + identifier + "'");
                 }
@@ -310,39 +514,104 @@ public final class ContentCacheImpl<K,V> implements ContentCache<K,V>, Initializ
         }
     }
 
+    private class LoadTask extends FutureTask<Item> {
+        private final K key;
+        private final boolean background;
 
-    private class Item {
-        private K key;
-        private V object;
-        private Date timestamp;
+        public LoadTask(final K key, final Item observed, boolean background) {
+            super(new Callable<Item>() {
+                @Override
+                public Item call() throws Exception {
+                    Item current = cache.get(key);
+                    if (current != null && current != observed) {
+                        // Loaded by someone else since observed
+                        return current;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        V object = loader.load(key);
+                        return store(key, object);
+                    } catch (Exception e) {
+                        loadFailures.incrementAndGet();
+                        throw e;
+                    } finally {
+                        loadNanos.addAndGet(System.nanoTime() - start);
+                        loads.incrementAndGet();
+                    }
+                }
+            });
+            this.key = key;
+            this.background = background;
+        }
 
-        public Item(K key, V object) {
+        @Override
+        protected void done() {
+            inFlight.remove(this.key, this);
+            if (this.background && !isCancelled()) {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    logger.info("Error refreshing object '" + this.key + "'", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private class Item {
+        private final K key;
+        private final V object;
+        private final long timestamp;
+        private final long expires;
+        private final long refreshAt;
+        private final int weight;
+
+        public Item(K key, V object, long timestamp, long refreshAt, int weight) {
             this.key = key;
             this.object = object;
-            this.timestamp = new Date();
-        }
-        public K getKey() {
-            return this.key;
+            this.timestamp = timestamp;
+            this.expires = timestamp + cacheTimeout;
+            this.refreshAt = refreshAt;
+            this.weight = weight;
         }
         public V getObject() {
             return this.object;
         }
-        public Date getTimestamp() {
-            return this.timestamp;
-        }
 
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder("item: [");
             sb.append(this.key.toString()).append("=");
-            sb.append(this.object.getClass().getName());
-            sb.append("; timestamp=").append(this.timestamp);
+            sb.append(this.object == null ? null : this.object.getClass().getName());
+            sb.append("; timestamp=").append(new Date(this.timestamp));
             sb.append("]");
             return sb.toString();
         }
         
     }
 
+    /**
+     * Bounded pool for asynchronous refreshes, shared by all cache
+     * instances in the JVM.
+     */
+    private static final class SharedRefreshExecutor {
+        private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+        private static final int QUEUE_SIZE = 1000;
+
+        static final Executor INSTANCE = new ThreadPoolExecutor(THREADS, THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger(0);
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "content-cache-refresh-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
     private class RefreshThread extends Thread {
 
         private long sleepSeconds;
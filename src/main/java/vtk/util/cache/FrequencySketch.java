@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Modified by the University of Oslo: the table is sized once, at
+ * construction, and dependencies on the rest of Caffeine are removed.
+ */
+package vtk.util.cache;
+
+/**
+ * Probabilistic estimate of how often elements have been seen, used for
+ * frequency based cache admission (TinyLFU).
+ * 
+ * <p>The sketch is a count-min sketch with four 4-bit counters per element,
+ * packed into a <code>long[]</code> sized to the cache capacity. Counters
+ * saturate at 15. When the number of recorded increments reaches ten times
+ * the capacity, all counters are halved, so that old popularity fades away.
+ * 
+ * <p>This class does no synchronization. Concurrent updates may be lost, which
+ * only affects the accuracy of the estimates, never the consistency of the
+ * cache using it.
+ * 
+ * <p>Derived from <code>com.github.benmanes.caffeine.cache.FrequencySketch</code>
+ * in the Caffeine library (https://github.com/ben-manes/caffeine) by Ben
+ * Manes, including its hash seeds, and distributed under the Apache License,
+ * Version 2.0.
+ * 
+ * @param <E> type of elements counted
+ */
+public final class FrequencySketch<E> {
+
+    private static final long[] SEED = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * Construct a sketch for a cache of the given capacity.
+     * @param maximumSize the maximum number of elements in the cache
+     */
+    public FrequencySketch(int maximumSize) {
+        int maximum = Math.max(1, Math.min(maximumSize, 1 << 30));
+        this.table = new long[ceilingPowerOfTwo(maximum)];
+        this.tableMask = this.table.length - 1;
+        this.sampleSize = (maximum > Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE : 10 * maximum;
+    }
+
+    /**
+     * @param e the element
+     * @return the estimated number of occurrences of the element, in the
+     * range [0..15]
+     */
+    public int frequency(E e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of an element.
+     * @param e the element
+     */
+    public void increment(E e) {
+        int hash = spread(e.hashCode());
+        int start = (hash & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+
+        if (added && ++this.size >= this.sampleSize) {
+            reset();
+        }
+    }
+
+    // Increments counter j (0..15) of table slot i, unless saturated
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((this.table[i] & mask) != mask) {
+            this.table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    // Halves all counters (aging)
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < this.table.length; i++) {
+            odd += Long.bitCount(this.table[i] & ONE_MASK);
+            this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+        }
+        this.size = (this.size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & this.tableMask;
+    }
+
+    // Applies a supplemental hash function to defend against poor quality hashes
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << (32 - Integer.numberOfLeadingZeros(x - 1));
+    }
+}
@@ -40,6 +40,7 @@ import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 
@@ -319,6 +320,40 @@ public abstract class StreamUtil {
         return pos;
     }
 
+    /**
+     * Copies a region of a file channel to an output stream using
+     * positional transfers. The channel position is not used or
+     * modified, so no bytes before <code>position</code> are read,
+     * and neither the channel nor the output stream is closed. Since
+     * the output stream is wrapped in a channel, data is still copied
+     * through a buffer on the heap.
+     *
+     * @param src the file channel to copy from
+     * @param position the offset in the file to start copying from
+     * @param count the number of bytes to copy
+     * @param out the destination
+     * @return number of bytes transferred
+     * @throws IOException if the file ends before <code>count</code>
+     * bytes have been transferred
+     */
+    public static long transfer(FileChannel src, long position, long count, OutputStream out) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Position must be >= 0");
+        }
+        WritableByteChannel dst = Channels.newChannel(out);
+        long transferred = 0;
+        while (transferred < count) {
+            long n = src.transferTo(position + transferred,
+                    Math.min(NIO_CHANNEL_CHUNK_SIZE, count - transferred), dst);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of file at position "
+                        + (position + transferred));
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
     /**
      * Dump all data in buffer to output stream. Optionally close output stream
      * when all data has been written.
@@ -30,6 +30,8 @@
  */
 package vtk.util.repository;
 
+import java.util.Map;
+
 import vtk.repository.Path;
 import vtk.repository.Property;
 import vtk.repository.Resource;
@@ -62,10 +64,14 @@ public class PropertyAspectResolver {
             public boolean callback(Resource resource) {
                 Property property = resource.getProperty(aspectsPropdef);
                 if (property != null) {
-                    Json.MapContainer value = property.getJSONValue();
+                    Object aspectValue = property.getUnmodifiableJSONValue().get(aspect);
                     
-                    if (value.get(aspect) != null) {
-                        value = value.objectValue(aspect);
+                    if (aspectValue != null) {
+                        if (!(aspectValue instanceof Map<?, ?>)) {
+                            throw new Json.ValueException("Not a JSON object: " + aspect);
+                        }
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> value = (Map<String, Object>) aspectValue;
 
                         for (PropertyAspectField field : fieldConfig.getFields()) {
                             String key = field.getIdentifier();
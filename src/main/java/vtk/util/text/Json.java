@@ -36,9 +36,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -148,6 +150,35 @@ public final class Json {
         return (Container)parseInternal(reader, true);
     }
     
+    /**
+     * Makes a parsed JSON structure unmodifiable, by recursively replacing
+     * all maps and lists with unmodifiable views. The structure is changed
+     * in place, so it must not be shared before calling this method. The
+     * result may be shared freely between threads, and a modifiable copy
+     * can be made with {@link MapContainer#toContainer(java.util.Map)}.
+     * 
+     * @param value a parsed JSON value
+     * @return the unmodifiable value
+     */
+    @SuppressWarnings("unchecked")
+    public static Object unmodifiable(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            for (Map.Entry<String, Object> entry: map.entrySet()) {
+                entry.setValue(unmodifiable(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(map);
+        }
+        if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            for (ListIterator<Object> i = list.listIterator(); i.hasNext();) {
+                i.set(unmodifiable(i.next()));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        return value;
+    }
+
     private static Object parseInternal(Reader input, boolean useContainer) throws IOException {
         try {
             if (! (input instanceof CommentStripFilter)) {
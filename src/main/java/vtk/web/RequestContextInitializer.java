@@ -76,6 +76,10 @@ import vtk.web.service.URL;
  *   <li><code>services</code> - a list of {@link Service services}
  *   to construct a service tree of.
  *   <li><code>indexFileResolver</code> - an optional {@link IndexFileResolver}
+ *   <li><code>compiledServiceDispatch</code> - whether to resolve
+ *   services using a {@link ServiceDispatcher} compiled from the service
+ *   tree at startup (default <code>true</code>), or by walking the
+ *   tree and evaluating every assertion on each request
  * </ul>
  *
  */
@@ -95,6 +99,9 @@ public class RequestContextInitializer implements ContextInitializer {
     
     private String viewUnauthenticatedParameter = null;
     
+    private boolean compiledServiceDispatch = true;
+    private ServiceDispatcher serviceDispatcher;
+    
     @Required public void setRepository(Repository repository) {
         this.repository = repository;
     }
@@ -134,6 +141,8 @@ public class RequestContextInitializer implements ContextInitializer {
             Collections.sort(children, orderComparator);
         }
 
+        this.serviceDispatcher = new ServiceDispatcher(this.rootServices, this.childServices);
+
         for (Service root: this.rootServices) {
             List<Service> children = this.childServices.get(root);
             if (children != null) {
@@ -219,6 +228,12 @@ public class RequestContextInitializer implements ContextInitializer {
         }
         final boolean viewUnauthenticated = isViewUnauthenticated(request);
         
+        ServiceDispatcher.Resolution resolution = null;
+        if (this.compiledServiceDispatch) {
+            resolution = this.serviceDispatcher.resolution(
+                    request, resource, securityContext.getPrincipal());
+        }
+
         for (Service service: this.rootServices) {
 
             // Set an initial request context (with the resource, but
@@ -228,7 +243,11 @@ public class RequestContextInitializer implements ContextInitializer {
                         uri, indexFileUri, isIndexFile, viewUnauthenticated, inRepository, this.repository));
             
             // Resolve the request to a service:
-            if (resolveService(service, request, resource, securityContext)) {
+            if (resolution != null) {
+                if (resolveService(resolution, service, request, resource, securityContext)) {
+                    break;
+                }
+            } else if (resolveService(service, request, resource, securityContext)) {
                 break;
             }
              
@@ -246,6 +265,45 @@ public class RequestContextInitializer implements ContextInitializer {
     }
 
 
+    /**
+     * Resolves a request to a service using the compiled service
+     * tree. Equivalent to {@link #resolveService(Service,
+     * HttpServletRequest, Resource, SecurityContext)}.
+     */
+    private boolean resolveService(ServiceDispatcher.Resolution resolution, Service root,
+            HttpServletRequest request, Resource resource, SecurityContext securityContext) {
+        RequestContext requestContext = RequestContext.getRequestContext();
+        boolean matched;
+        try {
+            matched = resolution.resolve(root);
+        } catch (AuthenticationException e) {
+            RequestContext.setRequestContext(
+                new RequestContext(request, securityContext, resolution.getService(), resource,
+                                   requestContext.getResourceURI(),
+                                   requestContext.getIndexFileURI(), 
+                                   requestContext.isIndexFile(),
+                                   requestContext.isViewUnauthenticated(),
+                                   requestContext.isInRepository(),
+                                   this.repository));
+            throw(e);
+        }
+        if (!matched) {
+            return false;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Service matching produced result: " + resolution.getService().getName());
+        }
+        RequestContext.setRequestContext(
+            new RequestContext(request, securityContext, resolution.getService(), resource,
+                               requestContext.getResourceURI(),
+                               requestContext.getIndexFileURI(), 
+                               requestContext.isIndexFile(),
+                               requestContext.isViewUnauthenticated(),
+                               requestContext.isInRepository(),
+                               this.repository));
+        return true;
+    }
+
     /**
      * Resolves a request recursively to a service and creates the
      * request context.
@@ -417,6 +475,10 @@ public class RequestContextInitializer implements ContextInitializer {
         return this.viewUnauthenticatedParameter != null && request.getParameter(this.viewUnauthenticatedParameter) != null;
     }
     
+    public void setCompiledServiceDispatch(boolean compiledServiceDispatch) {
+        this.compiledServiceDispatch = compiledServiceDispatch;
+    }
+
     public void setViewUnauthenticatedParameter(String viewUnauthenticatedParameter) {
         this.viewUnauthenticatedParameter = viewUnauthenticatedParameter;
     }
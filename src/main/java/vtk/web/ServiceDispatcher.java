@@ -0,0 +1,379 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import vtk.repository.Resource;
+import vtk.security.Principal;
+import vtk.web.service.Assertion;
+import vtk.web.service.RequestHostNameAssertion;
+import vtk.web.service.RequestMethodAssertion;
+import vtk.web.service.RequestParameterAssertion;
+import vtk.web.service.RequestPortAssertion;
+import vtk.web.service.Service;
+
+/**
+ * Compiled form of the service tree(s), built once at startup and
+ * used by {@link RequestContextInitializer} to map requests to
+ * services.
+ *
+ * <p>Resolution visits services in exactly the same order as a
+ * plain depth-first walk of the tree, and yields the same service,
+ * but avoids most of the assertion evaluation:
+ * <ul>
+ *   <li>The leading run of cheap assertions of each service
+ *   ({@link RequestMethodAssertion}, {@link RequestParameterAssertion}
+ *   on the <code>vrtx</code> parameter, {@link RequestHostNameAssertion}
+ *   and {@link RequestPortAssertion}) is compiled into plain set
+ *   lookups against values read from the request once.
+ *   <li>The children of every service are indexed on the values of
+ *   the <code>vrtx</code> parameter they accept, so siblings that
+ *   cannot match the current action are never visited.
+ *   <li>The result of every other assertion is remembered for the
+ *   duration of the request, so an assertion shared by several
+ *   services (resource type, resource property, regexp assertions)
+ *   is evaluated at most once.
+ * </ul>
+ *
+ * <p>Only the leading run of cheap assertions is compiled, because
+ * a later assertion could otherwise be skipped although an earlier
+ * one would have thrown (for instance an
+ * {@link vtk.security.AuthenticationException}). Cheap assertions
+ * themselves never throw, so skipping a service on the basis of its
+ * leading run is indistinguishable from evaluating it.
+ */
+final class ServiceDispatcher {
+
+    static final String ACTION_PARAMETER = "vrtx";
+
+    private static Log logger = LogFactory.getLog(ServiceDispatcher.class);
+
+    private final Map<Service, Node> nodes = new IdentityHashMap<Service, Node>();
+
+    ServiceDispatcher(List<Service> rootServices, Map<Service, List<Service>> childServices) {
+        for (Service root: rootServices) {
+            compile(root, childServices);
+        }
+    }
+
+    /**
+     * Starts the resolution of a single request. The returned
+     * object remembers assertion results and must not be shared
+     * between requests.
+     */
+    Resolution resolution(HttpServletRequest request, Resource resource, Principal principal) {
+        return new Resolution(request, resource, principal);
+    }
+
+    private Node compile(Service service, Map<Service, List<Service>> childServices) {
+        Node node = this.nodes.get(service);
+        if (node != null) {
+            return node;
+        }
+        node = new Node(service);
+        this.nodes.put(service, node);
+
+        List<Service> children = childServices.get(service);
+        if (children == null || children.isEmpty()) {
+            return node;
+        }
+        Node[] compiled = new Node[children.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(children.get(i), childServices);
+        }
+        node.children = compiled;
+
+        // Index children on the action parameter:
+        Set<String> actions = new LinkedHashSet<String>();
+        List<Node> unconstrained = new ArrayList<Node>();
+        for (Node child: compiled) {
+            if (child.actions == null) {
+                unconstrained.add(child);
+            } else {
+                actions.addAll(child.actions);
+            }
+        }
+        if (actions.isEmpty()) {
+            return node;
+        }
+        Map<String, Node[]> byAction = new HashMap<String, Node[]>();
+        for (String action: actions) {
+            List<Node> candidates = new ArrayList<Node>();
+            for (Node child: compiled) {
+                if (child.actions == null || child.actions.contains(action)) {
+                    candidates.add(child);
+                }
+            }
+            byAction.put(action, candidates.toArray(new Node[candidates.size()]));
+        }
+        node.childrenByAction = byAction;
+        node.unconstrainedChildren = unconstrained.toArray(new Node[unconstrained.size()]);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Service " + service.getName() + ": indexed " + compiled.length
+                    + " child services on " + byAction.size() + " values of parameter '"
+                    + ACTION_PARAMETER + "', " + unconstrained.size() + " unconstrained");
+        }
+        return node;
+    }
+
+    private static final class Node {
+        final Service service;
+        final Assertion[] assertions;
+
+        // Compiled leading run of cheap assertions, null means
+        // "not constrained":
+        Set<String> methods;
+        Set<String> actions;
+        String[] hostNames;
+        boolean anyHostName;
+        int[] ports;
+        boolean anyPort;
+        // Index of the first assertion not covered by the above:
+        int firstAssertion;
+
+        Node[] children;
+        Map<String, Node[]> childrenByAction;
+        Node[] unconstrainedChildren;
+
+        Node(Service service) {
+            this.service = service;
+            List<Assertion> list = service.getAssertions();
+            this.assertions = list.toArray(new Assertion[list.size()]);
+
+            int i = 0;
+            for (; i < this.assertions.length; i++) {
+                if (!compileAssertion(this.assertions[i])) {
+                    break;
+                }
+            }
+            this.firstAssertion = i;
+        }
+
+        private boolean compileAssertion(Assertion assertion) {
+            // Exact class checks: subclasses may override matches()
+            Class<?> type = assertion.getClass();
+            if (type == RequestMethodAssertion.class && this.methods == null) {
+                this.methods = new HashSet<String>(((RequestMethodAssertion) assertion).getMethods());
+                return true;
+            }
+            if (type == RequestParameterAssertion.class && this.actions == null) {
+                RequestParameterAssertion param = (RequestParameterAssertion) assertion;
+                if (!ACTION_PARAMETER.equals(param.getParameterName())) {
+                    return false;
+                }
+                if (param.getLegalParameters() != null) {
+                    this.actions = new HashSet<String>(param.getLegalParameters());
+                } else if (param.getParameterValue() != null) {
+                    this.actions = Collections.singleton(param.getParameterValue());
+                } else {
+                    // Left to the assertion itself
+                    return false;
+                }
+                return true;
+            }
+            if (type == RequestHostNameAssertion.class && this.hostNames == null) {
+                String[] names = ((RequestHostNameAssertion) assertion).getHostNames();
+                if (names == null) {
+                    return false;
+                }
+                // No host names matches nothing, as for the assertion
+                this.hostNames = names.clone();
+                this.anyHostName = Arrays.asList(this.hostNames).contains("*");
+                return true;
+            }
+            if (type == RequestPortAssertion.class && this.ports == null) {
+                int[] p = ((RequestPortAssertion) assertion).getPorts();
+                if (p == null) {
+                    return false;
+                }
+                // No ports matches nothing, as for the assertion
+                this.ports = p;
+                for (int port: this.ports) {
+                    if (port == RequestPortAssertion.PORT_ANY) {
+                        this.anyPort = true;
+                        break;
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        Node[] candidates(String action) {
+            if (this.childrenByAction == null) {
+                return this.children;
+            }
+            Node[] candidates = this.childrenByAction.get(action);
+            return candidates != null ? candidates : this.unconstrainedChildren;
+        }
+    }
+
+    /**
+     * State of a single request resolution.
+     */
+    final class Resolution {
+        private final HttpServletRequest request;
+        private final Resource resource;
+        private final Principal principal;
+        private final Map<Assertion, Boolean> results = new IdentityHashMap<Assertion, Boolean>();
+
+        private final String method;
+        private final String action;
+        private final String hostName;
+        private final int port;
+
+        private Service service;
+        private int evaluated = 0;
+
+        private Resolution(HttpServletRequest request, Resource resource, Principal principal) {
+            this.request = request;
+            this.resource = resource;
+            this.principal = principal;
+            this.method = request.getMethod();
+            this.action = request.getParameter(ACTION_PARAMETER);
+            this.hostName = request.getServerName();
+            this.port = request.getServerPort();
+        }
+
+        /**
+         * Resolves the request against the tree rooted at the given
+         * service.
+         *
+         * @return <code>true</code> if the root service matches, in
+         * which case {@link #getService()} returns the deepest
+         * matching service
+         */
+        boolean resolve(Service root) {
+            Node node = nodes.get(root);
+            if (node == null) {
+                throw new IllegalArgumentException("Not a root service: " + root);
+            }
+            return resolve(node);
+        }
+
+        /**
+         * The matched service after a successful {@link #resolve},
+         * or the service being evaluated if an assertion threw an
+         * exception.
+         */
+        Service getService() {
+            return this.service;
+        }
+
+        /**
+         * The number of assertions actually evaluated so far.
+         */
+        int getEvaluatedAssertions() {
+            return this.evaluated;
+        }
+
+        private boolean resolve(Node node) {
+            this.service = node.service;
+            if (!matches(node)) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Unmatched service " + node.service.getName());
+                }
+                return false;
+            }
+            if (node.children != null) {
+                for (Node child: node.candidates(this.action)) {
+                    if (resolve(child)) {
+                        return true;
+                    }
+                }
+            }
+            this.service = node.service;
+            return true;
+        }
+
+        private boolean matches(Node node) {
+            if (node.methods != null && !node.methods.contains(this.method)) {
+                return false;
+            }
+            if (node.actions != null && !node.actions.contains(this.action)) {
+                return false;
+            }
+            if (node.hostNames != null && !node.anyHostName) {
+                boolean found = false;
+                for (String name: node.hostNames) {
+                    if (name.equals(this.hostName)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            if (node.ports != null && !node.anyPort) {
+                boolean found = false;
+                for (int p: node.ports) {
+                    if (p == this.port) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            for (int i = node.firstAssertion; i < node.assertions.length; i++) {
+                Assertion assertion = node.assertions[i];
+                Boolean result = this.results.get(assertion);
+                if (result == null) {
+                    this.evaluated++;
+                    result = assertion.matches(this.request, this.resource, this.principal);
+                    this.results.put(assertion, result);
+                }
+                if (!result) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
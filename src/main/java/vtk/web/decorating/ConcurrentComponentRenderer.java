@@ -0,0 +1,320 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web.decorating;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import vtk.context.BaseContext;
+import vtk.security.SecurityContext;
+import vtk.web.RequestContext;
+
+/**
+ * Renders selected decorator components ahead of time on a bounded
+ * executor, so that a template invoking several slow components (for
+ * instance search or feed backed ones) waits for the slowest of them
+ * instead of for all of them in turn.
+ * 
+ * <p>Only components listed in <code>components</code> are rendered
+ * concurrently. A listed component must not depend on the order of
+ * rendering: it may not modify the user page, the MVC model or request
+ * attributes, nor rely on such modifications made by other components.
+ * Since servlet requests are not thread safe, a listed component must
+ * not use the servlet request either, neither directly, through request
+ * dispatchers, nor by rendering views with it. The request and security
+ * contexts of the requesting thread are made available to the
+ * rendering thread.
+ * 
+ * <p>None of the standard components qualify: the slow ones (menus,
+ * events, feeds and includes) render views with the servlet request or
+ * forward through request dispatchers. The renderer is therefore not
+ * configured by default. It is meant for installation specific
+ * components which only search the repository or fetch external
+ * content, and is enabled by setting it as
+ * <code>concurrentRenderer</code> on a
+ * {@link ParsedHtmlDecoratorTemplateFactory}.
+ * 
+ * <p>Each component has a timeout, counted from when it was submitted.
+ * When a component has not finished in time, its rendering is
+ * interrupted and <code>fallbackContent</code> is used in its place.
+ * The requesting thread still waits for an interrupted rendering to
+ * stop, so no rendering outlives the request. A component still waiting
+ * in the queue when its result is needed is rendered by the requesting
+ * thread, as is any component rejected by a saturated executor.
+ * 
+ * <p>Configurable JavaBean properties:
+ * <ul>
+ *   <li><code>components</code> - map from component reference
+ *   (<code>namespace:name</code>) to timeout in milliseconds
+ *   <li><code>fallbackContent</code> - content to use for components
+ *   which time out, default empty
+ *   <li><code>threads</code> - number of rendering threads, default 16
+ *   <li><code>queueSize</code> - maximum number of queued renderings,
+ *   default 256
+ * </ul>
+ */
+public class ConcurrentComponentRenderer implements InitializingBean, DisposableBean {
+
+    private static Log logger = LogFactory.getLog(ConcurrentComponentRenderer.class);
+
+    private Map<String, Integer> timeouts = Collections.emptyMap();
+    private String fallbackContent = "";
+    private int threads = 16;
+    private int queueSize = 256;
+    private ThreadPoolExecutor executor;
+
+    public void setComponents(Map<String, Integer> components) {
+        Map<String, Integer> timeouts = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry: components.entrySet()) {
+            if (entry.getValue() == null || entry.getValue() <= 0) {
+                throw new IllegalArgumentException("Timeout for component " 
+                        + entry.getKey() + " must be a positive number");
+            }
+            timeouts.put(entry.getKey(), entry.getValue());
+        }
+        this.timeouts = timeouts;
+    }
+
+    public void setFallbackContent(String fallbackContent) {
+        this.fallbackContent = fallbackContent == null ? "" : fallbackContent;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        this.threads = threads;
+    }
+
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be >= 1");
+        }
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        this.executor = new ThreadPoolExecutor(this.threads, this.threads, 
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this.queueSize), 
+                new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger(0);
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "decorator-component-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return whether the component is configured to be rendered
+     * concurrently
+     */
+    public boolean isConcurrent(DecoratorComponent component) {
+        return this.timeouts.containsKey(component.getNamespace() + ":" + component.getName());
+    }
+
+    /**
+     * Submit a component rendering.
+     * 
+     * @param component the component to render
+     * @param rendering the rendering of the component
+     * @return a handle to the result, or <code>null</code> if the component
+     * is not configured for concurrent rendering or the executor is
+     * saturated, in which case the caller should render it itself
+     */
+    public <T> Rendering<T> submit(DecoratorComponent component, final Callable<T> rendering) {
+        Integer timeout = this.timeouts.get(component.getNamespace() + ":" + component.getName());
+        if (timeout == null) {
+            return null;
+        }
+        final RequestContext requestContext = 
+                RequestContext.exists() ? RequestContext.getRequestContext() : null;
+        final SecurityContext securityContext = 
+                SecurityContext.exists() ? SecurityContext.getSecurityContext() : null;
+
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        final CountDownLatch finished = new CountDownLatch(1);
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (!claimed.compareAndSet(false, true)) {
+                    // Cancelled before it was started
+                    return null;
+                }
+                try {
+                    return render();
+                } finally {
+                    finished.countDown();
+                }
+            }
+
+            private T render() throws Exception {
+                BaseContext.pushContext();
+                try {
+                    if (requestContext != null) {
+                        RequestContext.setRequestContext(requestContext);
+                    }
+                    if (securityContext != null) {
+                        SecurityContext.setSecurityContext(securityContext);
+                    }
+                    return rendering.call();
+                } finally {
+                    BaseContext.popContext();
+                }
+            }
+        });
+        try {
+            this.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Executor saturated, rendering " + component.getNamespace() 
+                        + ":" + component.getName() + " in requesting thread");
+            }
+            return null;
+        }
+        return new Rendering<T>(component, task, claimed, finished, 
+                System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * The result of a submitted component rendering.
+     */
+    public final class Rendering<T> {
+        private final DecoratorComponent component;
+        private final FutureTask<T> task;
+        private final AtomicBoolean claimed;
+        private final CountDownLatch finished;
+        private final long deadline;
+
+        private Rendering(DecoratorComponent component, FutureTask<T> task, 
+                AtomicBoolean claimed, CountDownLatch finished, long deadline) {
+            this.component = component;
+            this.task = task;
+            this.claimed = claimed;
+            this.finished = finished;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Waits for the rendering, running it in the calling thread if
+         * it has not been started yet.
+         * 
+         * @return the rendered result, or <code>null</code> if the
+         * rendering timed out or was cancelled, in which case the
+         * fallback content should be used
+         * @throws Exception if the rendering failed
+         */
+        public T get() throws Exception {
+            // No-op if already started by a rendering thread
+            this.task.run();
+            try {
+                long remaining = this.deadline - System.currentTimeMillis();
+                return this.task.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                cancel();
+                logger.warn("Rendering of component " + this.component.getNamespace() 
+                        + ":" + this.component.getName() + " timed out");
+                return null;
+            } catch (CancellationException e) {
+                return null;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Cancels the rendering unless it has completed. A rendering
+         * not yet started will never start, and a running rendering is
+         * interrupted and waited for, so that the rendering thread no
+         * longer uses the request when this method returns.
+         */
+        public void cancel() {
+            if (this.claimed.compareAndSet(false, true)) {
+                this.task.cancel(false);
+                return;
+            }
+            this.task.cancel(true);
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public String getFallbackContent() {
+            return fallbackContent;
+        }
+    }
+}
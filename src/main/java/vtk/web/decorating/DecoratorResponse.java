@@ -33,8 +33,11 @@ package vtk.web.decorating;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.util.List;
 import java.util.Locale;
 
+import vtk.text.html.HtmlContent;
+
 
 public interface DecoratorResponse {
 
@@ -47,4 +50,24 @@ public interface DecoratorResponse {
     public OutputStream getOutputStream() throws IOException;
 
     public Writer getWriter() throws IOException;
+
+    /**
+     * Writes markup which is known to be well-formed (e.g. output
+     * from a template). Unlike output written to the stream or
+     * writer, the markup is not parsed and serialized again when it
+     * is placed in an HTML template. Output written to the stream or
+     * writer must be flushed before this method is called.
+     * 
+     * @param markup the markup
+     */
+    public void writeMarkup(String markup) throws IOException;
+
+    /**
+     * Writes HTML nodes, which are placed in an HTML template as
+     * they are. Output written to the stream or writer must be
+     * flushed before this method is called.
+     * 
+     * @param content the nodes
+     */
+    public void writeContent(List<HtmlContent> content) throws IOException;
 }
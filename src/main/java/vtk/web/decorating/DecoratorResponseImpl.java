@@ -35,13 +35,26 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
+import vtk.text.html.EnclosingHtmlContent;
+import vtk.text.html.HtmlContent;
+import vtk.text.html.HtmlMarkup;
+import vtk.text.html.HtmlPageParser;
+import vtk.text.html.HtmlTextImpl;
+
 
 public class DecoratorResponseImpl implements DecoratorResponse {
 
     private ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
+    // Output in the order it was written: byte[] for stream output, 
+    // String for markup and HtmlContent for nodes. Only used once
+    // markup or nodes have been written.
+    private List<Object> parts = null;
+
     private String doctype;
     private Locale locale;
     private String characterEncoding;
@@ -91,12 +104,101 @@ public class DecoratorResponseImpl implements DecoratorResponse {
         return new OutputStreamWriter(this.outputStream, this.characterEncoding);
     }
     
+    @Override
+    public void writeMarkup(String markup) {
+        if (markup == null) {
+            throw new IllegalArgumentException("Markup cannot be NULL");
+        }
+        addPart(markup);
+    }
+
+    @Override
+    public void writeContent(List<HtmlContent> content) {
+        if (content == null) {
+            throw new IllegalArgumentException("Content cannot be NULL");
+        }
+        for (HtmlContent c: content) {
+            addPart(c);
+        }
+    }
+
+    private void addPart(Object part) {
+        if (this.parts == null) {
+            this.parts = new ArrayList<Object>();
+        }
+        flushOutputStream();
+        this.parts.add(part);
+    }
+
+    private void flushOutputStream() {
+        if (this.outputStream.size() > 0) {
+            this.parts.add(this.outputStream.toByteArray());
+            this.outputStream.reset();
+        }
+    }
+
+    /**
+     * Gets the output as HTML nodes. Markup and nodes written
+     * through {@link #writeMarkup(String)} and {@link
+     * #writeContent(List)} are used as they are, while output
+     * written to the stream or writer is parsed.
+     * 
+     * @param parser the parser used for stream output
+     */
+    public List<HtmlContent> getHtmlContent(HtmlPageParser parser) throws Exception {
+        List<HtmlContent> result = new ArrayList<HtmlContent>();
+        if (this.parts == null) {
+            if (this.outputStream.size() > 0) {
+                parse(this.outputStream.toString(this.characterEncoding), parser, result);
+            }
+            return result;
+        }
+        flushOutputStream();
+        for (Object part: this.parts) {
+            if (part instanceof byte[]) {
+                parse(new String((byte[]) part, this.characterEncoding), parser, result);
+            } else if (part instanceof String) {
+                result.add(new HtmlMarkup((String) part, parser));
+            } else {
+                result.add((HtmlContent) part);
+            }
+        }
+        return result;
+    }
+
+    private void parse(String html, HtmlPageParser parser, List<HtmlContent> result) {
+        try {
+            result.addAll(parser.parseFragment(html).getContent());
+        } catch (Exception e) {
+            result.add(new HtmlTextImpl(html));
+        }
+    }
+
     public String getContentAsString() throws Exception {
-        return this.outputStream.toString(this.characterEncoding);
+        if (this.parts == null) {
+            return this.outputStream.toString(this.characterEncoding);
+        }
+        flushOutputStream();
+        StringBuilder sb = new StringBuilder();
+        for (Object part: this.parts) {
+            if (part instanceof byte[]) {
+                sb.append(new String((byte[]) part, this.characterEncoding));
+            } else if (part instanceof String) {
+                sb.append((String) part);
+            } else if (part instanceof EnclosingHtmlContent) {
+                sb.append(((EnclosingHtmlContent) part).getEnclosedContent());
+            } else {
+                sb.append(((HtmlContent) part).getContent());
+            }
+        }
+        return sb.toString();
     }
     
     public byte[] getContent() throws Exception {
-        return this.outputStream.toByteArray();
+        if (this.parts == null) {
+            return this.outputStream.toByteArray();
+        }
+        return getContentAsString().getBytes(this.characterEncoding);
     }
     
 }
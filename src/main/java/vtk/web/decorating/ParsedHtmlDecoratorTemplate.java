@@ -36,10 +36,12 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
@@ -56,11 +58,18 @@ import vtk.text.html.HtmlPageParser;
 import vtk.text.html.HtmlText;
 import vtk.text.html.HtmlUtil;
 import vtk.util.io.InputSource;
+import vtk.web.decorating.ConcurrentComponentRenderer.Rendering;
 
 
 /**
  * Template that uses a parsed HTML document as 
  * its internal template representation.
+ * 
+ * <p>If a {@link ConcurrentComponentRenderer} is supplied, the
+ * components it is configured for are submitted for rendering before
+ * the template is generated, and their results are stitched into the
+ * output in document order. Other components are rendered in document
+ * order by the requesting thread.
  */
 public class ParsedHtmlDecoratorTemplate implements Template {
 
@@ -70,6 +79,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
     private TextualComponentParser componentParser;
     private ComponentResolver componentResolver;
     private InputSource templateSource;
+    private ConcurrentComponentRenderer concurrentRenderer;
 
     private CompiledTemplate compiledTemplate;
     private long lastModified = -1;
@@ -78,6 +88,14 @@ public class ParsedHtmlDecoratorTemplate implements Template {
             TextualComponentParser componentParser,
             ComponentResolver componentResolver,
             InputSource templateSource) throws Exception {
+        this(htmlParser, componentParser, componentResolver, templateSource, null);
+    }
+
+    public ParsedHtmlDecoratorTemplate(HtmlPageParser htmlParser, 
+            TextualComponentParser componentParser,
+            ComponentResolver componentResolver,
+            InputSource templateSource,
+            ConcurrentComponentRenderer concurrentRenderer) throws Exception {
 
         if (htmlParser == null) {
             throw new IllegalArgumentException("Argument 'htmlParser' is NULL");
@@ -95,6 +113,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
         this.componentParser = componentParser;
         this.componentResolver = componentResolver;
         this.templateSource = templateSource;
+        this.concurrentRenderer = concurrentRenderer;
 
         compile();
     }
@@ -166,6 +185,11 @@ public class ParsedHtmlDecoratorTemplate implements Template {
 
         private Node root;
 
+        // Component invocations which may be rendered concurrently,
+        // and whether they are rendered as HTML nodes or as text
+        private Map<ComponentInvocation, Boolean> invocations = 
+                new IdentityHashMap<ComponentInvocation, Boolean>();
+
         private final Pattern ELEMENT_NAME_REGEX_PATTERN = Pattern.compile("[a-z-]+:[a-z-]+");
 
         public CompiledTemplate(HtmlPageParser htmlParser, 
@@ -194,8 +218,22 @@ public class ParsedHtmlDecoratorTemplate implements Template {
 
         public HtmlPage generate(HtmlPage userPage, ComponentResolver componentResolver, 
                 HttpServletRequest request, Map<String, Object> model) throws Exception {
-            List<HtmlContent> transformedContent = 
-                this.root.generate(userPage, componentResolver, request, model);
+            Map<ComponentInvocation, Rendering<Object>> renderings = null;
+            if (concurrentRenderer != null && !this.invocations.isEmpty()) {
+                renderings = submitRenderings(userPage, componentResolver, request, model);
+            }
+            List<HtmlContent> transformedContent;
+            try {
+                transformedContent = 
+                    this.root.generate(userPage, componentResolver, request, model, renderings);
+            } finally {
+                // Renderings not reached (or abandoned) must not outlive the request
+                if (renderings != null) {
+                    for (Rendering<Object> rendering: renderings.values()) {
+                        rendering.cancel();
+                    }
+                }
+            }
             if (transformedContent.size() != 1) {
                 throw new IllegalStateException("Invalid HTML result: " + transformedContent);
             }
@@ -211,86 +249,193 @@ public class ParsedHtmlDecoratorTemplate implements Template {
             return userPage;
         }
 
+        private Map<ComponentInvocation, Rendering<Object>> submitRenderings(HtmlPage userPage, 
+                ComponentResolver componentResolver, HttpServletRequest request, Map<String, Object> model) {
+            Map<ComponentInvocation, Rendering<Object>> renderings = 
+                    new IdentityHashMap<ComponentInvocation, Rendering<Object>>();
+            Locale locale = null;
+            for (Map.Entry<ComponentInvocation, Boolean> entry: this.invocations.entrySet()) {
+                ComponentInvocation inv = entry.getKey();
+                final boolean html = entry.getValue();
+                final DecoratorComponent component = 
+                        componentResolver.resolveComponent(inv.getNamespace(), inv.getName());
+                if (component == null || !concurrentRenderer.isConcurrent(component)) {
+                    continue;
+                }
+                if (locale == null) {
+                    locale = new org.springframework.web.servlet.support.RequestContext(request).getLocale();
+                }
+                final DecoratorRequest decoratorRequest = new DecoratorRequestImpl(
+                        userPage, request, model, inv.getParameters(), userPage.getDoctype(), locale);
+                Rendering<Object> rendering = concurrentRenderer.submit(component, new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        if (html) {
+                            return renderComponentAsHtml(component, decoratorRequest);
+                        }
+                        return renderComponentAsString(component, decoratorRequest);
+                    }
+                });
+                if (rendering != null) {
+                    renderings.put(inv, rendering);
+                }
+            }
+            return renderings;
+        }
+
         private Node createNode(HtmlContent c, 
                 TextualComponentParser componentParser) {
 
             if (c instanceof HtmlElement) {
                 HtmlElement e = (HtmlElement) c;
                 if (ELEMENT_NAME_REGEX_PATTERN.matcher(e.getName()).matches()) {
-                    return new VrtxComponentNode(e);
+                    VrtxComponentNode node = new VrtxComponentNode(e);
+                    if (node.elementComponent != null) {
+                        this.invocations.put(node.elementComponent, true);
+                    }
+                    return node;
                 }
                 List<Node> children = new ArrayList<Node>();
                 for (HtmlContent child: e.getChildNodes()) {
                     children.add(createNode(child, componentParser));
                 }
-                return new ElementNode(e, children);
+                ElementNode node = new ElementNode(e, children);
+                if (node.error == null && node.copyAttributesExpression == null) {
+                    for (ComponentInvocation[] value: node.attributesMap.values()) {
+                        addTextInvocations(value);
+                    }
+                }
+                return node;
             } 
 
             if (c instanceof HtmlText) {
-                return new TextNode((HtmlText) c);
+                TextNode node = new TextNode((HtmlText) c);
+                if (node.error == null) {
+                    addTextInvocations(node.parsedContent);
+                }
+                return node;
             } 
             if (c instanceof HtmlComment) {
                 return new CommentNode((HtmlComment) c);
             } 
             return new DefaultContentNode(c);
         }
+
+        private void addTextInvocations(ComponentInvocation[] invocations) {
+            for (ComponentInvocation inv: invocations) {
+                if (!(inv instanceof StaticTextFragment)) {
+                    this.invocations.put(inv, false);
+                }
+            }
+        }
     }
 
     private abstract class Node {
 
         public abstract List<HtmlContent> generate(HtmlPage userPage, 
                 ComponentResolver componentResolver,
-                HttpServletRequest req, Map<String, Object> model) 
+                HttpServletRequest req, Map<String, Object> model,
+                Map<ComponentInvocation, Rendering<Object>> renderings) 
                 throws Exception;
 
-        protected List<HtmlContent> renderComponentAsHtml(DecoratorComponent c, DecoratorRequest request) {
-            if (c instanceof HtmlDecoratorComponent) {
-                try {
-                    return ((HtmlDecoratorComponent) c).render(request);
-                } catch (Throwable t) {
-                    final String msg = c.getNamespace() + ":" 
-                    + c.getName() + ": " + t.getMessage();
-                    HtmlContent err = new HtmlText() {
-                        public String getContent() {
-                            return msg;
-                        }
-                    };
-                    return Collections.singletonList(err);
-                }
+        protected List<HtmlContent> renderHtml(ComponentInvocation inv, DecoratorComponent c, 
+                DecoratorRequest request, Map<ComponentInvocation, Rendering<Object>> renderings) {
+            Rendering<Object> rendering = renderings == null ? null : renderings.get(inv);
+            if (rendering == null) {
+                return renderComponentAsHtml(c, request);
+            }
+            Object result = awaitRendering(rendering, c);
+            if (result instanceof String) {
+                return htmlFromString((String) result);
             }
-            final String rendered = renderComponentAsString(c, request);
+            @SuppressWarnings("unchecked")
+            List<HtmlContent> nodes = (List<HtmlContent>) result;
+            return nodes;
+        }
+
+        protected String renderString(ComponentInvocation inv, DecoratorComponent c, 
+                DecoratorRequest request, Map<ComponentInvocation, Rendering<Object>> renderings) {
+            Rendering<Object> rendering = renderings == null ? null : renderings.get(inv);
+            if (rendering == null) {
+                return renderComponentAsString(c, request);
+            }
+            return (String) awaitRendering(rendering, c);
+        }
+
+        private Object awaitRendering(Rendering<Object> rendering, DecoratorComponent c) {
             try {
-                HtmlFragment fragment = htmlParser.parseFragment(rendered);
-                return fragment.getContent();
-            } catch (Exception e) {
+                Object result = rendering.get();
+                return result == null ? rendering.getFallbackContent() : result;
+            } catch (Throwable t) {
+                return errorMessage(c, t);
+            }
+        }
+    }
+
+    private List<HtmlContent> renderComponentAsHtml(DecoratorComponent c, DecoratorRequest request) {
+        if (c instanceof HtmlDecoratorComponent) {
+            try {
+                return ((HtmlDecoratorComponent) c).render(request);
+            } catch (Throwable t) {
+                final String msg = c.getNamespace() + ":" 
+                + c.getName() + ": " + t.getMessage();
                 HtmlContent err = new HtmlText() {
                     public String getContent() {
-                        return rendered;
+                        return msg;
                     }
                 };
                 return Collections.singletonList(err);
             }
         }
+        // Markup and nodes written by the component are used directly,
+        // only stream output needs to be parsed
+        DecoratorResponseImpl response = createResponse(request);
+        try {
+            c.render(request, response);
+            return response.getHtmlContent(htmlParser);
+        } catch (Throwable t) {
+            return htmlFromString(errorMessage(c, t));
+        }
+    }
 
-        protected String renderComponentAsString(DecoratorComponent c, 
-                DecoratorRequest request) {
-
-            String defaultResponseDoctype = request.getDoctype();
-            String defaultResponseEncoding = "utf-8";
-            Locale defaultResponseLocale = Locale.getDefault();
+    private List<HtmlContent> htmlFromString(final String rendered) {
+        try {
+            HtmlFragment fragment = htmlParser.parseFragment(rendered);
+            return fragment.getContent();
+        } catch (Exception e) {
+            HtmlContent err = new HtmlText() {
+                public String getContent() {
+                    return rendered;
+                }
+            };
+            return Collections.singletonList(err);
+        }
+    }
 
-            DecoratorResponseImpl response = new DecoratorResponseImpl(
-                    defaultResponseDoctype, defaultResponseLocale, defaultResponseEncoding);
-            String result = null;
-            try {
-                c.render(request, response);
-                result = response.getContentAsString();
-            } catch (Throwable t) {
-                result = c.getNamespace() + ":" + c.getName() + ": " + HtmlUtil.encodeBasicEntities(t.getMessage());
-            }
-            return result;
+    private String renderComponentAsString(DecoratorComponent c, 
+            DecoratorRequest request) {
+        DecoratorResponseImpl response = createResponse(request);
+        String result = null;
+        try {
+            c.render(request, response);
+            result = response.getContentAsString();
+        } catch (Throwable t) {
+            result = errorMessage(c, t);
         }
+        return result;
+    }
+
+    private DecoratorResponseImpl createResponse(DecoratorRequest request) {
+        String defaultResponseDoctype = request.getDoctype();
+        String defaultResponseEncoding = "utf-8";
+        Locale defaultResponseLocale = Locale.getDefault();
+
+        return new DecoratorResponseImpl(
+                defaultResponseDoctype, defaultResponseLocale, defaultResponseEncoding);
+    }
 
+    private String errorMessage(DecoratorComponent c, Throwable t) {
+        return c.getNamespace() + ":" + c.getName() + ": " + HtmlUtil.encodeBasicEntities(t.getMessage());
     }
 
 
@@ -324,7 +469,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
 
         @Override
         public List<HtmlContent> generate(HtmlPage userPage, ComponentResolver componentResolver, HttpServletRequest req, 
-                Map<String, Object> model) throws Exception {
+                Map<String, Object> model, Map<ComponentInvocation, Rendering<Object>> renderings) throws Exception {
             List<HtmlContent> result = new ArrayList<HtmlContent>();
             if (this.error != null) {
                 result.add(userPage.createTextNode(this.error.getMessage()));
@@ -346,7 +491,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
                 }
 
                 List<HtmlContent> nodes = 
-                    renderComponentAsHtml(component, decoratorRequest);
+                    renderHtml(this.elementComponent, component, decoratorRequest, renderings);
                 if (nodes != null) {
                     result.addAll(nodes);
                 }
@@ -412,7 +557,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
 
         @Override
         public List<HtmlContent> generate(HtmlPage userPage, ComponentResolver componentResolver, HttpServletRequest req, 
-                Map<String, Object> model) throws Exception {
+                Map<String, Object> model, Map<ComponentInvocation, Rendering<Object>> renderings) throws Exception {
             List<HtmlContent> result = new ArrayList<HtmlContent>();
             if (this.error != null) {
                 result.add(userPage.createTextNode(this.error.getMessage()));
@@ -464,7 +609,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
                                     value.append("Unknown component: " + compNamespace + ":" + compName);
                                     return result;
                                 } else {
-                                    value.append(renderComponentAsString(component, decoratorRequest));
+                                    value.append(renderString(inv, component, decoratorRequest, renderings));
                                 }
                             }
                         }
@@ -477,7 +622,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
 
                 List<HtmlContent> newElementContent = new ArrayList<HtmlContent>();
                 for (Node childNode: this.children) {
-                    newElementContent.addAll(childNode.generate(userPage, componentResolver, req, model));
+                    newElementContent.addAll(childNode.generate(userPage, componentResolver, req, model, renderings));
                 }
                 newElem.setChildNodes(newElementContent.toArray(new HtmlContent[newElementContent.size()]));
                 result.add(newElem);
@@ -503,7 +648,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
         }
         @Override
         public List<HtmlContent> generate(HtmlPage userPage, ComponentResolver componentResolver, HttpServletRequest req, 
-                Map<String, Object> model) throws Exception {
+                Map<String, Object> model, Map<ComponentInvocation, Rendering<Object>> renderings) throws Exception {
             List<HtmlContent> result = new ArrayList<HtmlContent>();
             if (this.error != null) {
                 result.add(userPage.createTextNode(this.error.getMessage()));
@@ -527,7 +672,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
                         if (component == null) {
                             sb.append("Unknown component: " + compNamespace + ":" + compName);
                         } else {
-                            sb.append(renderComponentAsString(component, decoratorRequest));
+                            sb.append(renderString(inv, component, decoratorRequest, renderings));
                         }
                     }
                 }
@@ -550,7 +695,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
 
         @Override
         public List<HtmlContent> generate(HtmlPage userPage, ComponentResolver componentResolver, HttpServletRequest req, 
-                Map<String, Object> model) throws Exception {
+                Map<String, Object> model, Map<ComponentInvocation, Rendering<Object>> renderings) throws Exception {
             List<HtmlContent> result = new ArrayList<HtmlContent>();
             result.add(userPage.createComment(this.comment));
             return result;
@@ -568,7 +713,7 @@ public class ParsedHtmlDecoratorTemplate implements Template {
         }
 
         public List<HtmlContent> generate(HtmlPage userPage, ComponentResolver componentResolver, HttpServletRequest req, 
-                Map<String, Object> model) throws Exception {
+                Map<String, Object> model, Map<ComponentInvocation, Rendering<Object>> renderings) throws Exception {
             List<HtmlContent> result = new ArrayList<HtmlContent>();
             result.add(userPage.createTextNode(this.content));
             return result;
@@ -39,11 +39,13 @@ public class ParsedHtmlDecoratorTemplateFactory implements TemplateFactory {
     private HtmlPageParser htmlParser;
     private ComponentResolver componentResolver;
     private TextualComponentParser componentParser;
+    private ConcurrentComponentRenderer concurrentRenderer;
     
     public Template newTemplate(InputSource templateSource) throws InvalidTemplateException {
         try {
             return new ParsedHtmlDecoratorTemplate(
-                    this.htmlParser, this.componentParser, this.componentResolver, templateSource);
+                    this.htmlParser, this.componentParser, this.componentResolver, templateSource,
+                    this.concurrentRenderer);
         } catch (Exception e) {
             throw new InvalidTemplateException(
                     "Unable to instantiate template from source " 
@@ -63,4 +65,11 @@ public class ParsedHtmlDecoratorTemplateFactory implements TemplateFactory {
         this.componentResolver = componentResolver;
     }
 
+    /**
+     * Optional renderer of components which may be rendered concurrently.
+     */
+    public void setConcurrentRenderer(ConcurrentComponentRenderer concurrentRenderer) {
+        this.concurrentRenderer = concurrentRenderer;
+    }
+
 }
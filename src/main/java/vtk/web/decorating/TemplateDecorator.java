@@ -143,14 +143,13 @@ public class TemplateDecorator implements Decorator {
             }
         }
         
-        if (this.postFilters != null) {
+        if (this.postFilters != null && !this.postFilters.isEmpty()) {
+            // Page filters need the element tree of the decorated page.
+            // Templates usually render to text, which must be parsed again
+            // here; a template rendering to parsed content is not re-parsed.
             htmlContent = parseHtml(content, null);
             HtmlPage p = htmlContent.getHtmlContent();
-            for (HtmlPageFilter f: this.postFilters) {
-                if (f.match(p)) {
-                    p.filter(f);
-                }
-            }
+            p.filter(this.postFilters);
             content = new HtmlPageContentImpl(
                     content.getOriginalCharacterEncoding(), p);
         }
@@ -34,6 +34,8 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -57,6 +59,7 @@ import vtk.repository.Resource;
 import vtk.repository.ResourceNotFoundException;
 import vtk.repository.search.preprocessor.QueryStringPreProcessor;
 import vtk.security.AuthenticationException;
+import vtk.security.Principal;
 import vtk.text.html.HtmlElement;
 import vtk.text.html.HtmlPage;
 import vtk.text.html.HtmlPageParser;
@@ -67,6 +70,7 @@ import vtk.util.repository.ContentTypeHelper;
 import vtk.web.RequestContext;
 import vtk.web.decorating.DecoratorRequest;
 import vtk.web.decorating.DecoratorResponse;
+import vtk.web.decorating.components.IncludeFragmentCache.Fragment;
 import vtk.web.service.URL;
 import vtk.web.servlet.BufferedResponse;
 import vtk.web.servlet.ConfigurableRequestWrapper;
@@ -107,6 +111,7 @@ implements ServletContextAware {
     private ContentCache<String, URLObject> httpIncludeCache;
     private HtmlPageParser htmlParser;
     private QueryStringPreProcessor uriPreProcessor;
+    private IncludeFragmentCache fragmentCache;
 
     @Required
     @Override
@@ -123,6 +128,15 @@ implements ServletContextAware {
         this.httpIncludeCache = httpIncludeCache;
     }
 
+    /**
+     * Optional cache of rendered virtual includes. When set, virtual
+     * includes of an unmodified resource are served from the cache
+     * instead of being dispatched.
+     */
+    public void setFragmentCache(IncludeFragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
     @Required public void setHtmlParser(HtmlPageParser htmlParser) {
         this.htmlParser = htmlParser;
     }
@@ -276,14 +290,10 @@ implements ServletContextAware {
         if (elementParam != null && ContentTypeHelper.isHTMLOrXHTMLContentType(r.getContentType())) {
             HtmlPage page = htmlParser.parse(is, characterEncoding);
 
-            String result = "";
             List<HtmlElement> elements = page.select(elementParam);
             if (elements.size() > 0) {
-                result = elements.get(0).getContent();
+                response.writeContent(Arrays.asList(elements.get(0).getChildNodes()));
             }
-            Writer writer = response.getWriter();
-            writer.write(result);
-            writer.close();
         } else {
             byte[] bytes = StreamUtil.readInputStream(is);
             response.setCharacterEncoding(characterEncoding);
@@ -335,6 +345,32 @@ implements ServletContextAware {
                     "Error including URI '" + uri + "': possible include loop detected ");
         }
 
+        String elementParam = request.getStringParameter(PARAMETER_ELEMENT);
+
+        IncludeFragmentCache.Key key = null;
+        long lastModified = -1;
+        if (this.fragmentCache != null) {
+            RequestContext requestContext = RequestContext.getRequestContext();
+            try {
+                // Last modified is read before dispatching, so that a
+                // concurrent modification invalidates the stored fragment
+                Resource resource = requestContext.getRepository().retrieve(
+                        requestContext.getSecurityToken(), uri, true);
+                lastModified = resource.getLastModified().getTime();
+                Principal principal = requestContext.getPrincipal();
+                key = new IncludeFragmentCache.Key(url, elementParam,
+                        principal == null ? null : principal.getQualifiedName());
+                Fragment fragment = this.fragmentCache.get(key, lastModified);
+                if (fragment != null) {
+                    writeFragment(fragment, response);
+                    return;
+                }
+            } catch (Exception e) {
+                // Not cacheable, errors are reported by the dispatch
+                key = null;
+            }
+        }
+
         ConfigurableRequestWrapper requestWrapper =
             new ConfigurableRequestWrapper(servletRequest, url);
         
@@ -371,8 +407,7 @@ implements ServletContextAware {
                     "Reported content type is '" + servletResponse.getContentType() + "'");
         }
 
-        String elementParam = request.getStringParameter(PARAMETER_ELEMENT);
-
+        Fragment fragment;
         if (elementParam != null && ContentTypeHelper.isHTMLOrXHTMLContentType(servletResponse.getContentType())) {
             byte[] bytes = servletResponse.getContentBuffer();
             InputStream is = new ByteArrayInputStream(bytes);
@@ -384,18 +419,47 @@ implements ServletContextAware {
             if (elements.size() > 0) {
                 result = elements.get(0).getContent();
             }
-            Writer writer = response.getWriter();
-            writer.write(result);
-            writer.close();
+            fragment = Fragment.content(result, lastModified);
+        } else {
+            fragment = Fragment.bytes(servletResponse.getContentBuffer(), 
+                    servletResponse.getCharacterEncoding(), lastModified);
+        }
+        if (key != null && isCacheable(servletResponse)) {
+            this.fragmentCache.put(key, fragment);
+        }
+        writeFragment(fragment, response);
+    }
 
+    private void writeFragment(Fragment fragment, DecoratorResponse response) throws Exception {
+        if (fragment.getContent() != null) {
+            // Serialized from a parsed page
+            response.writeMarkup(fragment.getContent());
         } else {
-            byte[] bytes = servletResponse.getContentBuffer();
-            response.setCharacterEncoding(servletResponse.getCharacterEncoding());
+            response.setCharacterEncoding(fragment.getCharacterEncoding());
             OutputStream out = response.getOutputStream();
-            out.write(bytes);
+            out.write(fragment.getBytes());
             out.close();
         }
     }
+
+    private boolean isCacheable(BufferedResponse servletResponse) {
+        if (!servletResponse.getCookies().isEmpty()) {
+            return false;
+        }
+        for (String header: servletResponse.getHeaderNames()) {
+            Collection<Object> values = servletResponse.getHeaderValues(header);
+            if (values == null || !"Cache-Control".equalsIgnoreCase(header)) {
+                continue;
+            }
+            for (Object value: values) {
+                String v = value.toString().toLowerCase();
+                if (v.contains("no-cache") || v.contains("no-store") || v.contains("private")) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
     
     
     private void handleHttpInclude(String uri,
@@ -409,8 +473,9 @@ implements ServletContextAware {
                 HtmlPage page = htmlParser.parse(obj.getInputStream(), obj.getCharacterEncoding());
                 List<HtmlElement> elements = page.select(elementParam);
                 if (elements.size() > 0) {
-                    result = elements.get(0).getContent();
+                    response.writeContent(Arrays.asList(elements.get(0).getChildNodes()));
                 }
+                return;
             } catch (Exception e) {
                 result = e.getMessage();
             }
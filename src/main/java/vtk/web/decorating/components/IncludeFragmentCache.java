@@ -0,0 +1,329 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web.decorating.components;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationListener;
+
+import vtk.repository.Path;
+import vtk.repository.event.RepositoryEvent;
+import vtk.repository.event.ResourceMovedEvent;
+import vtk.repository.store.PathIndex;
+import vtk.web.service.URL;
+
+/**
+ * Cache of rendered virtual include fragments, used by
+ * {@link IncludeComponent} to avoid an internal request dispatch for
+ * every include of the same resource.
+ * 
+ * <p>Fragments are keyed on the included URL (protocol, host, port, path
+ * and query), selected element and viewing principal (anonymous viewers
+ * share entries). Each fragment
+ * records the last modified time of the included resource, which the
+ * include component checks before using it. In addition, fragments are
+ * invalidated by repository events on the included resource, its
+ * ancestors and its children (a collection is usually displayed through
+ * its index file), and expire after a timeout, which bounds staleness
+ * caused by changes elsewhere, for instance in decorator templates.
+ * 
+ * <p>Fragments are indexed on the path of the included resource, so
+ * invalidation only visits the fragments of the changed resource, its
+ * ancestors and its descendants, not the whole cache.
+ * 
+ * <p>Configurable JavaBean properties:
+ * <ul>
+ *   <li><code>cacheSeconds</code> - maximum age of fragments, default 300
+ *   <li><code>maxItems</code> - maximum number of fragments, default 1000.
+ *   When full, the least recently used fragment is evicted.
+ * </ul>
+ */
+public class IncludeFragmentCache implements ApplicationListener<RepositoryEvent> {
+
+    private static Log logger = LogFactory.getLog(IncludeFragmentCache.class);
+
+    private long timeout = 300 * 1000;
+    private int maxItems = 1000;
+    private long hits = 0;
+    private long misses = 0;
+
+    // All guarded by this:
+    private final Map<Key, Fragment> fragments = new LinkedHashMap<Key, Fragment>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Fragment> eldest) {
+            if (size() > maxItems) {
+                unindex(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Map<Path, Set<Key>> keysByPath = new HashMap<Path, Set<Key>>();
+    private final PathIndex paths = new PathIndex();
+
+    public void setCacheSeconds(int cacheSeconds) {
+        if (cacheSeconds < 1) {
+            throw new IllegalArgumentException("cacheSeconds must be >= 1");
+        }
+        this.timeout = cacheSeconds * 1000L;
+    }
+
+    public void setMaxItems(int maxItems) {
+        if (maxItems < 1) {
+            throw new IllegalArgumentException("maxItems must be >= 1");
+        }
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * Get a fragment, if cached and rendered from the given version of
+     * the included resource.
+     * 
+     * @param key the fragment key
+     * @param lastModified the current last modified time of the included
+     * resource
+     * @return the fragment, or <code>null</code>
+     */
+    public synchronized Fragment get(Key key, long lastModified) {
+        Fragment fragment = this.fragments.get(key);
+        if (fragment != null) {
+            if (fragment.lastModified == lastModified 
+                    && fragment.timestamp + this.timeout > System.currentTimeMillis()) {
+                this.hits++;
+                return fragment;
+            }
+            this.fragments.remove(key);
+            unindex(key);
+        }
+        this.misses++;
+        return null;
+    }
+
+    public synchronized void put(Key key, Fragment fragment) {
+        if (this.fragments.put(key, fragment) == null) {
+            index(key);
+        }
+    }
+
+    public synchronized int getSize() {
+        return this.fragments.size();
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized void clear() {
+        this.fragments.clear();
+        this.keysByPath.clear();
+        this.paths.clear();
+    }
+
+    @Override
+    public void onApplicationEvent(RepositoryEvent event) {
+        invalidate(event.getURI());
+        if (event instanceof ResourceMovedEvent) {
+            invalidate(((ResourceMovedEvent) event).getFrom().getURI());
+        }
+    }
+
+    synchronized void invalidate(Path uri) {
+        if (uri == null || this.fragments.isEmpty()) {
+            return;
+        }
+        List<Path> descendants = this.paths.descendants(uri);
+        for (Path path: uri.getPaths()) {
+            invalidateFragments(path);
+        }
+        for (Path path: descendants) {
+            invalidateFragments(path);
+        }
+    }
+
+    private void invalidateFragments(Path path) {
+        Set<Key> keys = this.keysByPath.remove(path);
+        if (keys != null) {
+            for (Key key: keys) {
+                this.fragments.remove(key);
+            }
+            this.paths.remove(path);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Invalidated " + keys.size() + " fragments of " + path);
+            }
+        }
+    }
+
+    private void index(Key key) {
+        Set<Key> keys = this.keysByPath.get(key.path);
+        if (keys == null) {
+            keys = new HashSet<Key>(4);
+            this.keysByPath.put(key.path, keys);
+            this.paths.add(key.path);
+        }
+        keys.add(key);
+    }
+
+    private void unindex(Key key) {
+        Set<Key> keys = this.keysByPath.get(key.path);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            this.keysByPath.remove(key.path);
+            this.paths.remove(key.path);
+        }
+    }
+
+    /**
+     * Identifies an include: URL, selected element and principal.
+     */
+    public static final class Key {
+        private final String origin;
+        private final Path path;
+        private final String query;
+        private final String element;
+        private final String principal;
+        private final int hashCode;
+
+        /**
+         * @param url the URL of the include, as dispatched
+         * @param element the selected element expression, or <code>null</code>
+         * @param principal the qualified name of the viewing principal, or
+         * <code>null</code> for anonymous viewers
+         */
+        public Key(URL url, String element, String principal) {
+            this.origin = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+            this.path = url.getPath();
+            this.query = canonicalQuery(url);
+            this.element = element;
+            this.principal = principal;
+            int h = this.origin.hashCode();
+            h = 31 * h + this.path.hashCode();
+            h = 31 * h + this.query.hashCode();
+            h = 31 * h + (element == null ? 0 : element.hashCode());
+            h = 31 * h + (principal == null ? 0 : principal.hashCode());
+            this.hashCode = h;
+        }
+
+        private static String canonicalQuery(URL url) {
+            List<String> names = new ArrayList<String>(url.getParameterNames());
+            if (names.isEmpty()) {
+                return "";
+            }
+            Collections.sort(names);
+            StringBuilder sb = new StringBuilder();
+            for (String name: names) {
+                // Separators which cannot occur unescaped in parameters
+                sb.append(name).append('\u0000');
+                sb.append(url.getParameters(name)).append('\u0001');
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return this.hashCode == other.hashCode
+                    && this.origin.equals(other.origin)
+                    && this.path.equals(other.path)
+                    && this.query.equals(other.query)
+                    && (this.element == null ? other.element == null : this.element.equals(other.element))
+                    && (this.principal == null ? other.principal == null : this.principal.equals(other.principal));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public String toString() {
+            return "Key[" + this.origin + this.path + ", element=" + this.element + ", principal=" + this.principal + "]";
+        }
+    }
+
+    /**
+     * A rendered include: either the selected element content, or the
+     * raw bytes of the included response.
+     */
+    public static final class Fragment {
+        private final String content;
+        private final byte[] bytes;
+        private final String characterEncoding;
+        private final long lastModified;
+        private final long timestamp;
+
+        private Fragment(String content, byte[] bytes, String characterEncoding, long lastModified) {
+            this.content = content;
+            this.bytes = bytes;
+            this.characterEncoding = characterEncoding;
+            this.lastModified = lastModified;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        public static Fragment content(String content, long lastModified) {
+            return new Fragment(content, null, null, lastModified);
+        }
+
+        public static Fragment bytes(byte[] bytes, String characterEncoding, long lastModified) {
+            return new Fragment(null, bytes, characterEncoding, lastModified);
+        }
+
+        /**
+         * @return the selected element content, or <code>null</code> if
+         * this fragment holds raw bytes
+         */
+        public String getContent() {
+            return this.content;
+        }
+
+        public byte[] getBytes() {
+            return this.bytes;
+        }
+
+        public String getCharacterEncoding() {
+            return this.characterEncoding;
+        }
+    }
+}
@@ -30,7 +30,6 @@
  */
 package vtk.web.decorating.components;
 
-import java.io.Writer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -78,9 +77,6 @@ public class LocalizedTextComponent extends AbstractDecoratorComponent
         } else {
             result = rc.getMessage(code);
         }
-        Writer writer = response.getWriter();
-        writer.write(result);
-        writer.flush();
-        writer.close();
+        response.writeMarkup(result);
     }
 }
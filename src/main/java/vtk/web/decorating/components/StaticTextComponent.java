@@ -30,7 +30,6 @@
  */
 package vtk.web.decorating.components;
 
-import java.io.Writer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -47,10 +46,7 @@ public class StaticTextComponent extends AbstractDecoratorComponent
     @Override
     public void render(DecoratorRequest request, DecoratorResponse response)
         throws Exception {
-        Writer writer = response.getWriter();
-        writer.write(this.text);
-        writer.flush();
-        writer.close();
+        response.writeMarkup(this.text);
     }
 
     @Required 
@@ -52,6 +52,7 @@ public class ViewRenderingDecoratorComponent extends AbstractDecoratorComponent
     private View view;
     private Set<String> exposedParameters = new HashSet<String>();
     private boolean exposeMvcModel = false;
+    private boolean wellFormed = false;
 
     @Required
     public void setView(View view) {
@@ -66,6 +67,16 @@ public class ViewRenderingDecoratorComponent extends AbstractDecoratorComponent
         this.exposeMvcModel = exposeMvcModel;
     }
 
+    /**
+     * Sets whether the view is known to produce well-formed markup.
+     * If so, the output is written as markup and placed in HTML
+     * templates without being parsed again. Default is
+     * <code>false</code>.
+     */
+    public void setWellFormed(boolean wellFormed) {
+        this.wellFormed = wellFormed;
+    }
+
     @Override
     public final void render(DecoratorRequest request, DecoratorResponse response) throws Exception {
         Map<String, Object> model = new HashMap<String, Object>();
@@ -123,6 +134,11 @@ public class ViewRenderingDecoratorComponent extends AbstractDecoratorComponent
         HttpServletRequest servletRequest = request.getServletRequest();
         BufferedResponse bufferedResponse = new BufferedResponse();
         this.view.render(model, servletRequest, bufferedResponse);
+        if (this.wellFormed) {
+            response.writeMarkup(new String(bufferedResponse.getContentBuffer(), 
+                    bufferedResponse.getCharacterEncoding()));
+            return;
+        }
         response.setCharacterEncoding(bufferedResponse.getCharacterEncoding());
         OutputStream out = response.getOutputStream();
         out.write(bufferedResponse.getContentBuffer());
@@ -64,6 +64,7 @@ public class XmlQueryController implements Controller, InitializingBean {
     private String expressionParameterName = "query";
     private String limitParameterName = "limit";
     private String offsetParameterName = "offset";
+    private String cursorParameterName = "cursor";
     private String sortParameterName = "sort";
     private String fieldsParameterName = "fields";
     private String authenticatedParameterName = "authenticated";
@@ -84,6 +85,10 @@ public class XmlQueryController implements Controller, InitializingBean {
         this.limitParameterName = limitParameterName;
     }
 
+    public void setCursorParameterName(String cursorParameterName) {
+        this.cursorParameterName = cursorParameterName;
+    }
+
     public void setSortParameterName(String sortParameterName) {
         this.sortParameterName = sortParameterName;
     }
@@ -134,6 +139,9 @@ public class XmlQueryController implements Controller, InitializingBean {
             } catch (NumberFormatException e) { }
         }
         
+        // Cursor token paging, empty value for first page
+        String cursorToken = request.getParameter(this.cursorParameterName);
+        
         String sortStr = request.getParameter(this.sortParameterName);
         String fields = request.getParameter(this.fieldsParameterName);
 
@@ -146,7 +154,7 @@ public class XmlQueryController implements Controller, InitializingBean {
         boolean includeUnpublished = "true".equals(request.getParameter(unpublishedParameter));
 
         Document result = this.xmlSearcher.executeDocumentQuery(query, sortStr,
-                maxResults, offset, fields, authenticated, includeUnpublished);
+                maxResults, offset, cursorToken, fields, authenticated, includeUnpublished);
 
         OutputStream outputStream = null;
         response.setContentType("text/xml");
@@ -30,7 +30,13 @@
  */
 package vtk.web.display.thumbnail;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -40,6 +46,8 @@ import org.apache.log4j.Logger;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.Controller;
 import org.springframework.web.servlet.mvc.LastModified;
+import vtk.graphics.ThumbnailStore;
+import vtk.graphics.ThumbnailStore.Thumbnail;
 import vtk.repository.ContentStream;
 import vtk.repository.Namespace;
 import vtk.repository.Path;
@@ -48,10 +56,25 @@ import vtk.repository.Repository;
 import vtk.repository.Resource;
 import vtk.repository.TypeInfo;
 import vtk.repository.resourcetype.PropertyType;
+import vtk.repository.resourcetype.PropertyTypeDefinition;
 import vtk.util.io.StreamUtil;
 import vtk.web.RequestContext;
 import vtk.web.service.URL;
 
+/**
+ * Serves resource thumbnails.
+ * 
+ * <p>Without a {@link ThumbnailStore}, the <code>thumbnail</code> binary
+ * property is streamed from the database on every request. With a store,
+ * image thumbnails are served from the store in the variant selected by
+ * the optional <code>width</code> request parameter, with a strong ETag.
+ * Missing variants are generated on demand: the default variant is
+ * copied from the <code>thumbnail</code> property, narrower variants are
+ * scaled from it and wider variants are scaled from the image itself.
+ * Images narrower than the selected variant, and requests arriving while
+ * <code>maxConcurrentGenerations</code> scale operations are already
+ * running, fall back to the property.
+ */
 public class DisplayThumbnailController implements Controller, LastModified {
 
     private static final Logger log = Logger.getLogger(DisplayThumbnailController.class);
@@ -60,6 +83,15 @@ public class DisplayThumbnailController implements Controller, LastModified {
     private static final String VIDEO_LOGO_CONTENT_TYPE = "image/png";
     private static final String ADUIO_LOGO = "/web/themes/default/icons/audio-icon.png";
     private static final String AUDIO_LOGO_CONTENT_TYPE = "image/png";
+    private static final String WIDTH_PARAMETER = "width";
+    private static final String MEDIA_METADATA_STATUS_PROP_NAME = "media-metadata-status";
+
+    private ThumbnailStore thumbnailStore;
+    private PropertyTypeDefinition imageWidthPropDef;
+    private PropertyTypeDefinition imageHeightPropDef;
+    private long maxSourceImageFileSize = 35000000;
+    private long maxSourceImageRawMemoryUsage = 100000000;
+    private Semaphore generations = new Semaphore(2);
 
     @Override
     public long getLastModified(HttpServletRequest request) {
@@ -84,6 +116,14 @@ public class DisplayThumbnailController implements Controller, LastModified {
         Resource resource = repository.retrieve(token, uri, true);
         Property thumbnail = resource.getProperty(Namespace.DEFAULT_NAMESPACE, PropertyType.THUMBNAIL_PROP_NAME);
 
+        if (this.thumbnailStore != null && "image".equals(resource.getResourceType())) {
+            Thumbnail stored = storedThumbnail(request, resource, thumbnail, repository, token);
+            if (stored != null) {
+                serve(stored, request, response);
+                return null;
+            }
+        }
+
         if (thumbnail == null || StringUtils.isBlank(thumbnail.getBinaryContentType())) {
             String resourceType = resource.getResourceType();
             TypeInfo type = repository.getTypeInfo(resource);
@@ -120,6 +160,148 @@ public class DisplayThumbnailController implements Controller, LastModified {
         }
     }
 
+    private Thumbnail storedThumbnail(HttpServletRequest request, Resource resource, Property thumbnail,
+            Repository repository, String token) throws Exception {
+        Property status = resource.getProperty(Namespace.DEFAULT_NAMESPACE, MEDIA_METADATA_STATUS_PROP_NAME);
+        if (status != null && "GENERATE".equals(status.getStringValue())) {
+            // Content changed, thumbnail property not yet regenerated
+            return null;
+        }
+        int requestedWidth = 0;
+        String param = request.getParameter(WIDTH_PARAMETER);
+        if (param != null) {
+            try {
+                requestedWidth = Integer.parseInt(param);
+            } catch (NumberFormatException e) { }
+        }
+        int width = this.thumbnailStore.selectVariant(requestedWidth);
+        int imageWidth = intValue(resource, this.imageWidthPropDef);
+        if (imageWidth > 0 && imageWidth <= width) {
+            return null;
+        }
+        int id = resource.getID();
+        long lastModified = resource.getLastModified().getTime();
+
+        Thumbnail stored = this.thumbnailStore.get(id, lastModified, width);
+        if (stored != null) {
+            return stored;
+        }
+
+        boolean haveThumbnail = thumbnail != null && !StringUtils.isBlank(thumbnail.getBinaryContentType());
+        String format = ThumbnailStore.thumbnailFormat(resource.getContentType());
+        if (haveThumbnail && width == this.thumbnailStore.getDefaultWidth()) {
+            ContentStream binaryStream = thumbnail.getBinaryStream();
+            byte[] data = StreamUtil.readInputStream(binaryStream.getStream());
+            return this.thumbnailStore.put(id, lastModified, width, 
+                    ThumbnailStore.thumbnailFormat(thumbnail.getBinaryContentType()), data);
+        }
+
+        if (!this.generations.tryAcquire()) {
+            return null;
+        }
+        try {
+            BufferedImage source = null;
+            if (haveThumbnail && width < this.thumbnailStore.getDefaultWidth()) {
+                source = ImageIO.read(new ByteArrayInputStream(
+                        StreamUtil.readInputStream(thumbnail.getBinaryStream().getStream())));
+            } else if (imageWidth > 0 && withinLimits(resource, imageWidth)) {
+                InputStream in = repository.getInputStream(token, resource.getURI(), true);
+                try {
+                    source = ImageIO.read(in);
+                } finally {
+                    in.close();
+                }
+            }
+            if (source == null || source.getWidth() <= width) {
+                return null;
+            }
+            return this.thumbnailStore.put(id, lastModified, width, format, source);
+        } catch (Exception e) {
+            log.warn("Failed to generate thumbnail of width " + width + " for " + resource.getURI(), e);
+            return null;
+        } finally {
+            this.generations.release();
+        }
+    }
+
+    private boolean withinLimits(Resource resource, int imageWidth) {
+        if (resource.getContentLength() >= this.maxSourceImageFileSize) {
+            return false;
+        }
+        int imageHeight = intValue(resource, this.imageHeightPropDef);
+        return imageHeight > 0 
+                && (long) imageWidth * (long) imageHeight * 3 <= this.maxSourceImageRawMemoryUsage;
+    }
+
+    private int intValue(Resource resource, PropertyTypeDefinition propDef) {
+        if (propDef == null) {
+            return -1;
+        }
+        Property prop = resource.getProperty(propDef);
+        return prop == null ? -1 : prop.getIntValue();
+    }
+
+    private void serve(Thumbnail thumbnail, HttpServletRequest request, 
+            HttpServletResponse response) throws Exception {
+        String etag = thumbnail.getEtag();
+        response.setHeader("ETag", etag);
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch.trim()))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        FileInputStream in = new FileInputStream(thumbnail.getFile());
+        try {
+            long length = in.getChannel().size();
+            response.setContentType(thumbnail.getContentType());
+            response.setHeader("Content-Length", String.valueOf(length));
+            StreamUtil.transfer(in.getChannel(), 0, length, response.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Store to serve image thumbnails from. If not set, thumbnails are
+     * always read from the <code>thumbnail</code> property.
+     */
+    public void setThumbnailStore(ThumbnailStore thumbnailStore) {
+        this.thumbnailStore = thumbnailStore;
+    }
+
+    public void setImageWidthPropDef(PropertyTypeDefinition imageWidthPropDef) {
+        this.imageWidthPropDef = imageWidthPropDef;
+    }
+
+    public void setImageHeightPropDef(PropertyTypeDefinition imageHeightPropDef) {
+        this.imageHeightPropDef = imageHeightPropDef;
+    }
+
+    public void setMaxSourceImageFileSize(long maxSourceImageFileSize) {
+        if (maxSourceImageFileSize < 1) {
+            throw new IllegalArgumentException("maxSourceImageFileSize must be >= 1");
+        }
+        this.maxSourceImageFileSize = maxSourceImageFileSize;
+    }
+
+    public void setMaxSourceImageRawMemoryUsage(long maxSourceImageRawMemoryUsage) {
+        if (maxSourceImageRawMemoryUsage < 1) {
+            throw new IllegalArgumentException("maxSourceImageRawMemoryUsage must be >= 1");
+        }
+        this.maxSourceImageRawMemoryUsage = maxSourceImageRawMemoryUsage;
+    }
+
+    /**
+     * Set the maximum number of thumbnails scaled on demand at the same
+     * time. Default is 2.
+     */
+    public void setMaxConcurrentGenerations(int maxConcurrentGenerations) {
+        if (maxConcurrentGenerations < 1) {
+            throw new IllegalArgumentException("maxConcurrentGenerations must be >= 1");
+        }
+        this.generations = new Semaphore(maxConcurrentGenerations);
+    }
+
     private void setNoCache(HttpServletResponse response) {
         response.setHeader("Cache-Control", "no-cache, no-store, must-revalidate, max-age=0");
         response.setHeader("Expires", "0");
@@ -49,12 +49,11 @@ import vtk.repository.Property;
 import vtk.repository.PropertySet;
 import vtk.repository.Resource;
 import vtk.repository.resourcetype.PropertyTypeDefinition;
-import vtk.repository.search.ConfigurablePropertySelect;
+import vtk.repository.search.AggregationResult;
+import vtk.repository.search.AggregationSpec;
 import vtk.repository.search.Parser;
 import vtk.repository.search.PropertySortField;
 import vtk.repository.search.Search;
-import vtk.repository.search.Searcher;
-import vtk.repository.search.Searcher.MatchingResult;
 import vtk.repository.search.SortFieldDirection;
 import vtk.repository.search.Sorting;
 import vtk.repository.search.TypedSortField;
@@ -277,59 +276,10 @@ public class BrokenLinksReport extends DocumentReporter {
         // Set up search
         Search search = getSearch(token, currentResource, request);
         search.setLimit(Integer.MAX_VALUE);
-        ConfigurablePropertySelect cfg = new ConfigurablePropertySelect();
-        cfg.addPropertyDefinition(this.brokenLinksCountPropDef);
-        cfg.setIncludeAcl(true);
-        search.setPropertySelect(cfg);
         search.setSorting(null);
 
-        // Set up include/exclude link types sum of broken links
-        String[] includeTypes;
-        String[] excludeTypes = new String[0];
-        if (FILTER_LINK_TYPE_PARAM_DEFAULT_VALUE.equals(linkType) || linkType == null) {
-            includeTypes = new String[] { "BROKEN_LINKS_ANCHOR", "BROKEN_LINKS_IMG" };
-        } else if ("anchor".equals(linkType)) {
-            includeTypes = new String[] { "BROKEN_LINKS_ANCHOR" };
-        } else if ("img".equals(linkType)) {
-            includeTypes = new String[] { "BROKEN_LINKS_IMG" };
-        } else {
-            includeTypes = new String[] { "BROKEN_LINKS" };
-            excludeTypes = new String[] { "BROKEN_LINKS_IMG", "BROKEN_LINKS_ANCHOR" };
-        }
-
-        // Search callback which sums up broken link counts
-        @SuppressWarnings("hiding")
-        final class Accumulator implements Searcher.MatchCallback {
-            int sum = 0;
-            final String[] includeTypes;
-            final String[] excludeTypes;
-
-            Accumulator(String[] includeTypes, String[] excludeTypes) {
-                this.includeTypes = includeTypes;
-                this.excludeTypes = excludeTypes;
-            }
-
-            @Override
-            public boolean matching(MatchingResult result) throws Exception {
-                PropertySet propertySet = result.propertySet();
-                Property prop = propertySet.getProperty(brokenLinksCountPropDef);
-                if (prop == null)
-                    return true;
-                Json.MapContainer obj = prop.getJSONValue();
-                for (String includeType : this.includeTypes) {
-                    sum += obj.optIntValue(includeType, 0);
-                }
-                for (String excludeType : this.excludeTypes) {
-                    sum -= obj.optIntValue(excludeType, 0);
-                }
-
-                return true;
-            }
-        }
-
-        Accumulator accumulator = new Accumulator(includeTypes, excludeTypes);
-        searcher.iterateMatching(token, search, accumulator);
-        return accumulator.sum;
+        AggregationResult result = searcher.aggregate(token, search, brokenLinksSum(linkType));
+        return (int) result.getTotal().getSum();
     }
     
     public Map<String, CollectionStats> getAccumulatorMap(String token, Resource currentResource,
@@ -346,39 +296,34 @@ public class BrokenLinksReport extends DocumentReporter {
         // Set up search
         Search search = getSearch(token, currentResource, request);
         search.setLimit(Integer.MAX_VALUE);
-        ConfigurablePropertySelect cfg = new ConfigurablePropertySelect();
-        cfg.addPropertyDefinition(this.brokenLinksCountPropDef);
-        search.setPropertySelect(cfg);
         search.setSorting(null);
 
-        // Set up include/exclude link types sum of broken links
-        String[] includeTypes;
-        String[] excludeTypes = new String[0];
-        if (FILTER_LINK_TYPE_PARAM_DEFAULT_VALUE.equals(linkType) || linkType == null) {
-            includeTypes = new String[] { "BROKEN_LINKS_ANCHOR", "BROKEN_LINKS_IMG" };
-        } else if ("anchor".equals(linkType)) {
-            includeTypes = new String[] { "BROKEN_LINKS_ANCHOR" };
-        } else if ("img".equals(linkType)) {
-            includeTypes = new String[] { "BROKEN_LINKS_IMG" };
-        } else {
-            includeTypes = new String[] { "BROKEN_LINKS" };
-            excludeTypes = new String[] { "BROKEN_LINKS_IMG", "BROKEN_LINKS_ANCHOR" };
-        }
-
         Map<String, CollectionStats> map = new TreeMap<String, CollectionStats>();
         for (Path uri : currentResource.getChildURIs()) {
             map.put(uri.toString(), new CollectionStats());
         }
 
-        Accumulator accumulator = new Accumulator(includeTypes, excludeTypes, map,
-                currentResource.getURI().getDepth() + 1);
+        Accumulator accumulator = new Accumulator(map);
 
         // No need to do search if no children
         if (map.isEmpty()) {
             return accumulator;
         }
 
-        searcher.iterateMatching(token, search, accumulator);
+        // Sum up broken links below each child
+        AggregationSpec spec = brokenLinksSum(linkType);
+        spec.setGroupByUriDepth(currentResource.getURI().getDepth() + 1);
+        AggregationResult result = searcher.aggregate(token, search, spec);
+        for (Map.Entry<Path, AggregationResult.Bucket> group : result.getGroups().entrySet()) {
+            CollectionStats cs = map.get(group.getKey().toString());
+            if (cs == null) {
+                continue;
+            }
+            cs.linkCount = (int) group.getValue().getSum();
+            cs.documentCount = group.getValue().getPositiveCount();
+            accumulator.sum += cs.linkCount;
+            accumulator.documentSum += cs.documentCount;
+        }
 
         // Remove entries with value of 0 or less
         Iterator<Map.Entry<String, CollectionStats>> iter = accumulator.map.entrySet().iterator();
@@ -391,6 +336,34 @@ public class BrokenLinksReport extends DocumentReporter {
 
         return accumulator;
     }
+    
+    /**
+     * Aggregation which sums up broken link counts of the given link type.
+     */
+    private AggregationSpec brokenLinksSum(String linkType) {
+        // Set up include/exclude link types sum of broken links
+        String[] includeTypes;
+        String[] excludeTypes = new String[0];
+        if (FILTER_LINK_TYPE_PARAM_DEFAULT_VALUE.equals(linkType) || linkType == null) {
+            includeTypes = new String[] { "BROKEN_LINKS_ANCHOR", "BROKEN_LINKS_IMG" };
+        } else if ("anchor".equals(linkType)) {
+            includeTypes = new String[] { "BROKEN_LINKS_ANCHOR" };
+        } else if ("img".equals(linkType)) {
+            includeTypes = new String[] { "BROKEN_LINKS_IMG" };
+        } else {
+            includeTypes = new String[] { "BROKEN_LINKS" };
+            excludeTypes = new String[] { "BROKEN_LINKS_IMG", "BROKEN_LINKS_ANCHOR" };
+        }
+
+        AggregationSpec spec = new AggregationSpec();
+        for (String includeType : includeTypes) {
+            spec.addSum(this.brokenLinksCountPropDef, includeType, 1);
+        }
+        for (String excludeType : excludeTypes) {
+            spec.addSum(this.brokenLinksCountPropDef, excludeType, -1);
+        }
+        return spec;
+    }
 
     public class CollectionStats {
         int documentCount;
@@ -424,58 +397,13 @@ public class BrokenLinksReport extends DocumentReporter {
         }
     }
 
-    // Search callback which sums up broken link counts
-    final class Accumulator implements Searcher.MatchCallback {
+    // Broken link counts per child collection
+    static final class Accumulator {
         int sum = 0, documentSum = 0;
-        int depth, count, optInt;
-        final String[] includeTypes;
-        final String[] excludeTypes;
-        Map<String, CollectionStats> map;
-
-        Accumulator(String[] includeTypes, String[] excludeTypes, Map<String, CollectionStats> map, int depth) {
-            this.depth = depth;
-            this.includeTypes = includeTypes;
-            this.excludeTypes = excludeTypes;
-            this.map = map;
-        }
-
-        @Override
-        public boolean matching(MatchingResult result) throws Exception {
-            PropertySet propertySet = result.propertySet();
-            Property prop = propertySet.getProperty(brokenLinksCountPropDef);
-            if (prop == null) {
-                return true;
-            }
-
-            if (propertySet.getURI().getDepth() == depth) {
-                return true;
-            }
+        final Map<String, CollectionStats> map;
 
-            CollectionStats cs = map.get(propertySet.getURI().getPath(depth).toString());
-            if (cs == null) {
-                return true;
-            }
-
-            count = 0;
-            Json.MapContainer obj = prop.getJSONValue();
-            for (String includeType : this.includeTypes) {
-                optInt = obj.optIntValue(includeType, 0);
-                sum += optInt;
-                cs.linkCount += optInt;
-                count += optInt;
-            }
-            for (String excludeType : this.excludeTypes) {
-                optInt = obj.optIntValue(excludeType, 0);
-                sum -= optInt;
-                cs.linkCount -= optInt;
-                count -= optInt;
-            }
-            if (count > 0) {
-                cs.documentCount++;
-                documentSum++;
-            }
-
-            return true;
+        Accumulator(Map<String, CollectionStats> map) {
+            this.map = map;
         }
     }
 
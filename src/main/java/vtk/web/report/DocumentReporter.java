@@ -56,6 +56,9 @@ public abstract class DocumentReporter extends AbstractReporter {
 
     private static Log logger = LogFactory.getLog(DocumentReporter.class.getName());
 
+    // Request parameter holding cursor token for the requested page
+    private static final String CURSOR_PARAM = "cursor";
+
     private int pageSize = DEFAULT_SEARCH_LIMIT;
     private Service manageService, reportService;
     private String backReportName;
@@ -82,19 +85,32 @@ public abstract class DocumentReporter extends AbstractReporter {
         }
 
         Position pos = Position.create(request, pageSize);
-        if (pos.cursor >= Search.DEFAULT_LIMIT) {
-            return result;
+        if (pos.cursorToken != null) {
+            // Cursor token paging, page cost independent of position
+            search.setCursorToken(pos.cursorToken);
+        } else {
+            if (pos.cursor >= Search.DEFAULT_LIMIT) {
+                return result;
+            }
+            search.setCursor(pos.cursor);
         }
-        search.setCursor(pos.cursor);
         search.setLimit(pageSize);
         search.setPropertySelect(PropertySelect.ALL); // Require all props AND also ACLs
 
         ResultSet rs = searcher.execute(token, search);
-        if (pos.cursor + Math.min(pageSize, rs.getSize()) >= rs.getTotalHits()) {
-            pos.next = null;
-        }
-        if (pos.cursor + Math.min(pageSize, rs.getSize()) >= Search.DEFAULT_LIMIT) {
-            pos.next = null;
+        if (pos.cursorToken != null) {
+            if (rs.getNextCursorToken() != null) {
+                pos.next.setParameter(CURSOR_PARAM, rs.getNextCursorToken());
+            } else {
+                pos.next = null;
+            }
+        } else {
+            if (pos.cursor + Math.min(pageSize, rs.getSize()) >= rs.getTotalHits()) {
+                pos.next = null;
+            }
+            if (pos.cursor + Math.min(pageSize, rs.getSize()) >= Search.DEFAULT_LIMIT) {
+                pos.next = null;
+            }
         }
 
         result.put("from", pos.cursor + 1);
@@ -166,6 +182,7 @@ public abstract class DocumentReporter extends AbstractReporter {
     
     private static class Position {
         int cursor = 0;
+        String cursorToken = null;
         int limit = 0;
         URL next = null;
         URL prev = null;
@@ -193,7 +210,18 @@ public abstract class DocumentReporter extends AbstractReporter {
                 cursor = 0;
             }
             position.cursor = cursor;
+            
+            // First page and pages linked to with a cursor token use cursor
+            // token paging. Other pages fall back to numeric cursor.
+            String cursorParam = req.getParameter(CURSOR_PARAM);
+            if (page == 1) {
+                position.cursorToken = "";
+            } else if (cursorParam != null && !cursorParam.isEmpty()) {
+                position.cursorToken = cursorParam;
+            }
+            
             URL url = URL.create(req);
+            url.removeParameter(CURSOR_PARAM);
             position.next = new URL(url).setParameter("page", String.valueOf(page + 1));
             if (page > 1) {
                 position.prev = new URL(url).setParameter("page", String.valueOf(page - 1));
@@ -48,18 +48,15 @@ import net.sf.ehcache.Element;
 
 import org.springframework.beans.factory.annotation.Required;
 import vtk.repository.Path;
-import vtk.repository.Property;
-import vtk.repository.PropertySet;
 import vtk.repository.Repository;
 import vtk.repository.Resource;
 import vtk.repository.resourcetype.PropertyTypeDefinition;
 import vtk.repository.resourcetype.ResourceTypeDefinition;
-import vtk.repository.resourcetype.Value;
-import vtk.repository.search.ConfigurablePropertySelect;
+import vtk.repository.search.AggregationResult;
+import vtk.repository.search.AggregationSpec;
 import vtk.repository.search.QueryException;
 import vtk.repository.search.Search;
 import vtk.repository.search.Searcher;
-import vtk.repository.search.Searcher.MatchingResult;
 import vtk.repository.search.query.AndQuery;
 import vtk.repository.search.query.OrQuery;
 import vtk.repository.search.query.Query;
@@ -83,7 +80,7 @@ public class TagsReportingComponent {
 
         private static final long serialVersionUID = -8618894865163460399L;
         private final String tag;
-        private int frequency;
+        private final int frequency;
 
         private TagFrequency(String tag, int frequency) {
             this.tag = tag;
@@ -102,47 +99,6 @@ public class TagsReportingComponent {
         public String toString() {
             return tag + ":" + frequency;
         }
-
-        private void increment() {
-            ++this.frequency;
-        }
-    }
-
-    // Tag frequency collector
-    private class TagFrequencyCollector implements Searcher.MatchCallback {
-
-        private final Map<String, TagFrequency> tagFreqMap = new HashMap<String, TagFrequency>();
-
-        @Override
-        public boolean matching(MatchingResult result) throws Exception {
-            PropertySet propertySet = result.propertySet();
-            Property tags = propertySet.getProperty(tagsPropDef);
-            if (tags != null) {
-                if (tagsPropDef.isMultiple()) {
-                    for (Value value : tags.getValues()) {
-                        incrementTag(value.getStringValue());
-                    }
-                } else {
-                    Value value = tags.getValue();
-                    incrementTag(value.getStringValue());
-                }
-            }
-            return true;
-        }
-
-        private void incrementTag(final String tagValue) {
-            TagFrequency tf = this.tagFreqMap.get(tagValue);
-            if (tf == null) {
-                tf = new TagFrequency(tagValue, 1);
-                this.tagFreqMap.put(tagValue, tf);
-            } else {
-                tf.increment();
-            }
-        }
-
-        List<TagFrequency> getTagFreqList() {
-            return new ArrayList<TagFrequency>(this.tagFreqMap.values());
-        }
     }
 
     /**
@@ -232,14 +188,23 @@ public class TagsReportingComponent {
         search.setQuery(masterScopeQuery);
         search.setSorting(null);
         search.setLimit(Integer.MAX_VALUE);
-        ConfigurablePropertySelect propSelect = new ConfigurablePropertySelect();
-        propSelect.addPropertyDefinition(tagsPropDef);
-        search.setPropertySelect(propSelect);
-
-        TagFrequencyCollector tfc = new TagFrequencyCollector();
-        // Execute index iteration and collect/aggregate tag frequencies
-        searcher.iterateMatching(token, search, tfc);
-        List<TagFrequency> tagFreqs = tfc.getTagFreqList();
+
+        AggregationSpec spec = new AggregationSpec();
+        spec.setTermFrequencies(tagsPropDef);
+        if (!caseInsensitive) {
+            // No consolidation of terms, so minimum frequency and limit can be applied directly
+            if (tagOccurenceMin > -1) {
+                spec.setTermsMinCount(tagOccurenceMin);
+            }
+            spec.setTermsLimit(limit);
+        }
+
+        // Aggregate tag frequencies in index
+        AggregationResult result = searcher.aggregate(token, search, spec);
+        List<TagFrequency> tagFreqs = new ArrayList<TagFrequency>(result.getTerms().size());
+        for (AggregationResult.TermCount tc : result.getTerms()) {
+            tagFreqs.add(new TagFrequency(tc.getTerm(), tc.getCount()));
+        }
 
         // Case insensitive value consolidation
         if (caseInsensitive) {
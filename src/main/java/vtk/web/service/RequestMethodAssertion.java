@@ -30,6 +30,7 @@
  */
 package vtk.web.service;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -64,6 +65,10 @@ public class RequestMethodAssertion implements Assertion {
         }
     }
 
+    public Set<String> getMethods() {
+        return Collections.unmodifiableSet(this.methods);
+    }
+
     @Override
     public boolean conflicts(Assertion assertion) {
         if (!(assertion instanceof RequestMethodAssertion)) {
@@ -51,7 +51,7 @@ import vtk.web.RequestContext;
 public class RequestPortAssertion
   implements Assertion {
 
-    private static final int PORT_ANY = -1;
+    public static final int PORT_ANY = -1;
 
     private int[] ports;
 	
@@ -73,6 +73,15 @@ public class RequestPortAssertion
 
     }
 
+    /**
+     * @return a copy of the configured port numbers, where
+     * {@link #PORT_ANY} means that any port matches, or 
+     * <code>null</code> if not configured
+     */
+    public int[] getPorts() {
+        return this.ports != null ? this.ports.clone() : null;
+    }
+
     @Override
     public boolean conflicts(Assertion assertion) {
 
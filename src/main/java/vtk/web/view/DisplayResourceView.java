@@ -30,8 +30,17 @@
  */
 package vtk.web.view;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -42,6 +51,7 @@ import org.springframework.web.servlet.view.AbstractView;
 import vtk.repository.Resource;
 import vtk.util.io.StreamUtil;
 import vtk.util.repository.ContentTypeHelper;
+import vtk.util.web.HttpUtil;
 import vtk.web.InvalidModelException;
 import vtk.web.referencedata.ReferenceDataProvider;
 import vtk.web.referencedata.ReferenceDataProviding;
@@ -57,8 +67,24 @@ import vtk.web.referencedata.ReferenceDataProviding;
  *   <li><code>streamBufferSize</code> - (int) the size of the buffer
  *   used when executing the (read from resource, write to response)
  *   loop. The default value is <code>5000</code>.
+ *   <li><code>supportRangeRequests</code> - whether to honor
+ *   <code>Range</code> request headers. Both single and multiple byte
+ *   ranges are supported, the latter producing a
+ *   <code>multipart/byteranges</code> response. Multiple ranges must be
+ *   given in ascending, non-overlapping order, otherwise the entire
+ *   resource is sent. A range set where no range overlaps the content
+ *   gives a <code>416</code> response. An <code>If-Range</code> header
+ *   that does not match the resource's entity tag or last modified
+ *   date makes the entire resource be sent. The default value is
+ *   <code>false</code>.
  * </ul>
  *
+ * <p>When the content stream is a {@link FileInputStream} (as
+ * provided by the file system content store), content is written using
+ * positional transfers on its {@link FileChannel}, so serving a range
+ * never reads the bytes preceding it. Other streams are copied through
+ * a buffer.
+ *
  * <p>Requires the following data to be present in the model:
  * <ul>
  *   <li><code>resource</code> - the {@link Resource} object requested
@@ -81,6 +107,11 @@ public class DisplayResourceView extends AbstractView
 
     private static Log logger = LogFactory.getLog(DisplayResourceView.class);
     
+    private static final String BOUNDARY_ATTRIBUTE = 
+            DisplayResourceView.class.getName() + ".boundary";
+    private static final int MAX_RANGES = 50;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    
     private int streamBufferSize = 5000;
     private boolean supportRangeRequests = false;
 
@@ -112,9 +143,20 @@ public class DisplayResourceView extends AbstractView
                                         HttpServletResponse response) throws Exception {
         Resource resource = getResource(model, request, response);
         
-        Range range = this.supportRangeRequests ? 
+        List<Range> ranges = this.supportRangeRequests ? 
                 getRangeHeader(request, resource) : null;
-        request.setAttribute(Range.class.getName(), range);
+        if (ranges != null && ranges.isEmpty()) {
+            setStatus(response, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            setHeader(response, "Content-Range", "bytes */" + resource.getContentLength());
+            setHeader(response, "Content-Length", "0");
+            response.flushBuffer();
+            releaseResourceStream(model);
+            return;
+        }
+        request.setAttribute(Range.class.getName(), ranges);
+        if (ranges != null && ranges.size() > 1) {
+            request.setAttribute(BOUNDARY_ATTRIBUTE, UUID.randomUUID().toString());
+        }
         setHeaders(resource, model, request, response);
 
         if ("HEAD".equals(request.getMethod())) {
@@ -166,6 +208,19 @@ public class DisplayResourceView extends AbstractView
      * @param request the servlet request
      * @param response
      */
+    /**
+     * Closes a content stream already put in the model (by the controller)
+     * when no content is sent, without asking {@link #getResourceStream}
+     * for one, which may open the content.
+     */
+    @SuppressWarnings("rawtypes")
+    private void releaseResourceStream(Map model) throws IOException {
+        Object o = model.get("resourceStream");
+        if (o instanceof InputStream) {
+            ((InputStream) o).close();
+        }
+    }
+
     @SuppressWarnings("rawtypes")
     protected InputStream getResourceStream(Resource resource, Map model,
                                    HttpServletRequest request,
@@ -182,9 +237,23 @@ public class DisplayResourceView extends AbstractView
             setHeader(response, "Accept-Ranges", "0-" + (resource.getContentLength() - 1));
         }
         
-        Range range = (Range) request.getAttribute(Range.class.getName());
+        @SuppressWarnings("unchecked")
+        List<Range> ranges = (List<Range>) request.getAttribute(Range.class.getName());
+        if (ranges != null && ranges.size() > 1) {
+            String boundary = (String) request.getAttribute(BOUNDARY_ATTRIBUTE);
+            setStatus(response, HttpServletResponse.SC_PARTIAL_CONTENT);
+            setHeader(response, "Content-Type", "multipart/byteranges; boundary=" + boundary);
+            long length = multipartTrailer(boundary).length;
+            for (Range range: ranges) {
+                length += multipartHeader(resource, range, boundary).length;
+                length += range.to - range.from + 1;
+            }
+            setHeader(response, "Content-Length", String.valueOf(length));
+            return;
+        }
         setContentTypeHeader(resource, model, request, response);
-        if (range != null) {
+        if (ranges != null) {
+            Range range = ranges.get(0);
             setStatus(response, HttpServletResponse.SC_PARTIAL_CONTENT);
             setHeader(response, "Content-Range", "bytes " + range.from + "-" 
                     + range.to + "/" + resource.getContentLength());
@@ -209,21 +278,41 @@ public class DisplayResourceView extends AbstractView
     protected void writeResponse(Resource resource, InputStream resourceStream,
                                  Map model, HttpServletRequest request,
                                  HttpServletResponse response) throws Exception {
-        Range range = (Range) request.getAttribute(Range.class.getName());
+        @SuppressWarnings("unchecked")
+        List<Range> ranges = (List<Range>) request.getAttribute(Range.class.getName());
+        FileChannel channel = null;
+        if (resourceStream instanceof FileInputStream) {
+            channel = ((FileInputStream) resourceStream).getChannel();
+        }
         long bytesWritten = 0L;
-        if (range != null) {
-            long nbytes = range.to - range.from + 1;
-            if (logger.isDebugEnabled()) {
-                logger.debug("Writing range: " + range.from + "-" + range.to);
+        OutputStream out = response.getOutputStream();
+        try {
+            if (ranges == null) {
+                if (channel != null) {
+                    bytesWritten = StreamUtil.transfer(channel, 0, channel.size(), out);
+                } else {
+                    bytesWritten = StreamUtil.pipe(resourceStream, out, 
+                            this.streamBufferSize, false);
+                }
+            } else if (ranges.size() == 1) {
+                bytesWritten = writeRange(resourceStream, channel, 0, ranges.get(0), out);
+            } else {
+                String boundary = (String) request.getAttribute(BOUNDARY_ATTRIBUTE);
+                long position = 0;
+                for (Range range: ranges) {
+                    byte[] header = multipartHeader(resource, range, boundary);
+                    out.write(header);
+                    bytesWritten += header.length;
+                    bytesWritten += writeRange(resourceStream, channel, position, range, out);
+                    position = range.to + 1;
+                }
+                byte[] trailer = multipartTrailer(boundary);
+                out.write(trailer);
+                bytesWritten += trailer.length;
             }
-            bytesWritten = StreamUtil.pipe(
-                    resourceStream, response.getOutputStream(), 
-                    range.from, nbytes,
-                    this.streamBufferSize, true);
-        } else {
-            bytesWritten = StreamUtil.pipe(
-                    resourceStream, response.getOutputStream(), 
-                    this.streamBufferSize, true);
+        } finally {
+            resourceStream.close();
+            out.close();
         }
         response.flushBuffer();
         
@@ -232,6 +321,61 @@ public class DisplayResourceView extends AbstractView
         }
     }
     
+    /**
+     * Writes a single range. Channels are read at the absolute
+     * range offset, streams are skipped forward from
+     * <code>position</code>, which is the current stream offset.
+     */
+    private long writeRange(InputStream resourceStream, FileChannel channel, long position,
+            Range range, OutputStream out) throws IOException {
+        long nbytes = range.to - range.from + 1;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Writing range: " + range.from + "-" + range.to);
+        }
+        if (channel != null) {
+            return StreamUtil.transfer(channel, range.from, nbytes, out);
+        }
+        long skip = range.from - position;
+        while (skip > 0) {
+            long n = resourceStream.skip(skip);
+            if (n <= 0) {
+                if (resourceStream.read() == -1) {
+                    throw new IOException("Unable to skip to offset: " + range.from);
+                }
+                n = 1;
+            }
+            skip -= n;
+        }
+        byte[] buffer = new byte[(int) Math.min(this.streamBufferSize, nbytes)];
+        long count = 0;
+        while (count < nbytes) {
+            int n = resourceStream.read(buffer, 0, (int) Math.min(buffer.length, nbytes - count));
+            if (n == -1) {
+                break;
+            }
+            out.write(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+
+    private byte[] multipartHeader(Resource resource, Range range, String boundary) {
+        String contentType = resource.getContentType();
+        if (ContentTypeHelper.isTextContentType(contentType)
+                && resource.getCharacterEncoding() != null) {
+            contentType = contentType + ";charset=" + resource.getCharacterEncoding();
+        }
+        String header = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: bytes " + range.from + "-" + range.to + "/" 
+                + resource.getContentLength() + "\r\n\r\n";
+        return header.getBytes(US_ASCII);
+    }
+
+    private byte[] multipartTrailer(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII);
+    }
+
     protected void setStatus(HttpServletResponse response, int status) {
         if (logger.isDebugEnabled()) {
             logger.debug("Setting status: " + status);
@@ -307,41 +451,115 @@ public class DisplayResourceView extends AbstractView
         }
     }
     
-    private Range getRangeHeader(HttpServletRequest request, Resource resource) {
+    /**
+     * Parses the <code>Range</code> header (RFC 7233). Syntactically
+     * invalid headers are ignored, as are range sets that are not in
+     * ascending, non-overlapping order or that contain more than
+     * {@link #MAX_RANGES} ranges. Ranges starting beyond the end of the
+     * resource are dropped. The header is also ignored if an
+     * <code>If-Range</code> precondition fails.
+     * 
+     * @return the ranges to serve, <code>null</code> if the entire
+     * resource should be sent, or an empty list if no range is
+     * satisfiable
+     */
+    private List<Range> getRangeHeader(HttpServletRequest request, Resource resource) {
         String hdr = request.getHeader("Range");
         if (hdr == null) {
             return null;
         }
+        if (!ifRangeMatches(request, resource)) {
+            return null;
+        }
         if (!hdr.startsWith("bytes=")) {
             return null;
         }
-        StringBuilder fromStr = new StringBuilder();
-        StringBuilder toStr = new StringBuilder();
-        StringBuilder cur = fromStr;
-        for (int i = "bytes=".length(); i < hdr.length(); i++) {
-            char c = hdr.charAt(i);
-            if (c == '-') {
-                cur = toStr;
-            } else if (c < '0' || c > '9') {
+        long length = resource.getContentLength();
+        String[] specs = hdr.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<Range>();
+        for (String spec: specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
                 return null;
-            } else {
-                cur.append(c);
             }
+            String fromStr = spec.substring(0, dash);
+            String toStr = spec.substring(dash + 1);
+            if (!isDigits(fromStr) || !isDigits(toStr)) {
+                return null;
+            }
+            long from, to;
+            try {
+                if (fromStr.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    if (toStr.isEmpty()) {
+                        return null;
+                    }
+                    long suffix = Long.parseLong(toStr);
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    from = Math.max(0, length - suffix);
+                    to = length - 1;
+                } else {
+                    from = Long.parseLong(fromStr);
+                    if (toStr.isEmpty()) {
+                        to = length - 1;
+                    } else {
+                        to = Long.parseLong(toStr);
+                        if (to < from) {
+                            return null;
+                        }
+                        to = Math.min(to, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (from >= length) {
+                continue;
+            }
+            if (!ranges.isEmpty() && from <= ranges.get(ranges.size() - 1).to) {
+                return null;
+            }
+            ranges.add(new Range(from, to));
         }
-        long from = 0;
-        if (fromStr.length() > 0) {
-            from = Long.parseLong(fromStr.toString());
+        return ranges;
+    }
+
+    /**
+     * Evaluates the <code>If-Range</code> header, which matches if it is
+     * the resource's (strong) entity tag or its last modified date. Weak
+     * entity tags never match.
+     */
+    private boolean ifRangeMatches(HttpServletRequest request, Resource resource) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
         }
-        long to = resource.getContentLength() - 1;
-        if (toStr.length() > 0) {
-            to = Long.parseLong(toStr.toString());
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(resource.getEtag());
         }
-        if (to <= from) {
-            return null;
+        Date date = HttpUtil.parseHttpDate(ifRange);
+        Date lastModified = resource.getLastModified();
+        if (date == null || lastModified == null) {
+            return false;
         }
-        if (to > resource.getContentLength() - 1) {
-            return null;
+        // HTTP dates have one second resolution
+        return date.getTime() / 1000 == lastModified.getTime() / 1000;
+    }
+
+    private static boolean isDigits(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
         }
-        return new Range(from, to);
+        return true;
     }
 }
@@ -189,7 +189,8 @@ CREATE TABLE extra_prop_entry
     name VARCHAR (64) NOT NULL,
     value VARCHAR (2048) NOT NULL,
     binary_content LONGVARBINARY,
-    binary_mimetype varchar (64)
+    binary_mimetype varchar (64),
+    is_inheritable char(1) default 'N' not null
 );
 
 ALTER TABLE extra_prop_entry
@@ -208,6 +209,8 @@ ALTER TABLE extra_prop_entry
 
 CREATE INDEX extra_prop_entry_index1 ON extra_prop_entry(resource_id);
 
+CREATE INDEX extra_prop_entry_index2 ON extra_prop_entry(is_inheritable);
+
 ----------------------------------------------------------------------
 -- changelog_entry
 -----------------------------------------------------------------------------
@@ -315,6 +318,7 @@ VALUES (
 -- Insert title property for root resource:
 
 INSERT INTO extra_prop_entry 
+    (extra_prop_entry_id, resource_id, prop_type_id, name_space, name, value)
 SELECT next value for extra_prop_entry_seq_pk,
        resource_id,
        0,
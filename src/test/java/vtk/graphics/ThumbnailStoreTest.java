@@ -0,0 +1,171 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.graphics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.graphics.ThumbnailStore.Thumbnail;
+
+public class ThumbnailStoreTest {
+
+    private File root;
+    private ThumbnailStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        root = File.createTempFile("thumbnails", "");
+        root.delete();
+        store = new ThumbnailStore();
+        store.setRootDirectory(root.getAbsolutePath());
+        store.setVariantWidths(Arrays.asList(500, 100, 250));
+        store.setDefaultWidth(250);
+        store.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    @Test
+    public void selectVariant() {
+        assertEquals(250, store.selectVariant(0));
+        assertEquals(100, store.selectVariant(50));
+        assertEquals(100, store.selectVariant(100));
+        assertEquals(250, store.selectVariant(101));
+        assertEquals(500, store.selectVariant(2000));
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        assertNull(store.get(1234, 1000L, 250));
+        Thumbnail t = store.put(1234, 1000L, 250, "png", new byte[] {1, 2, 3});
+        assertEquals("image/png", t.getContentType());
+        assertEquals(3, t.getFile().length());
+
+        Thumbnail found = store.get(1234, 1000L, 250);
+        assertNotNull(found);
+        assertEquals(t.getFile(), found.getFile());
+        assertEquals(t.getEtag(), found.getEtag());
+        assertTrue(found.getEtag().startsWith("\"") && found.getEtag().endsWith("\""));
+        assertNull(store.get(1234, 1000L, 100));
+        assertNull(store.get(1234, 2000L, 250));
+    }
+
+    @Test
+    public void newVersionRemovesOld() throws Exception {
+        Thumbnail old = store.put(42, 1000L, 250, "jpeg", new byte[] {1});
+        Thumbnail current = store.put(42, 2000L, 100, "jpeg", new byte[] {2});
+        assertFalse(old.getFile().exists());
+        assertNull(store.get(42, 1000L, 250));
+        assertTrue(current.getFile().exists());
+        assertFalse(old.getEtag().equals(current.getEtag()));
+    }
+
+    @Test
+    public void putVariants() throws Exception {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        List<Thumbnail> variants = store.putVariants(7, 1000L, "jpeg", image);
+        assertEquals(2, variants.size());
+        assertNull(store.get(7, 1000L, 500));
+        BufferedImage small = ImageIO.read(store.get(7, 1000L, 100).getFile());
+        assertEquals(100, small.getWidth());
+        BufferedImage medium = ImageIO.read(store.get(7, 1000L, 250).getFile());
+        assertEquals(250, medium.getWidth());
+    }
+
+    @Test
+    public void sizeLimit() throws Exception {
+        store.setMaxSize(100);
+        Thumbnail first = store.put(1, 1000L, 250, "png", new byte[40]);
+        first.getFile().setLastModified(System.currentTimeMillis() - 20000);
+        Thumbnail second = store.put(2, 1000L, 250, "png", new byte[40]);
+        second.getFile().setLastModified(System.currentTimeMillis() - 10000);
+        assertEquals(80, store.getSize());
+
+        // Exceeding the limit removes the least recently stored thumbnails
+        Thumbnail third = store.put(3, 1000L, 250, "png", new byte[40]);
+        assertFalse(first.getFile().exists());
+        assertTrue(second.getFile().exists());
+        assertTrue(third.getFile().exists());
+        assertEquals(80, store.getSize());
+
+        // Size of an existing store is picked up on startup
+        ThumbnailStore reopened = new ThumbnailStore();
+        reopened.setRootDirectory(root.getAbsolutePath());
+        reopened.setVariantWidths(Arrays.asList(250));
+        reopened.setDefaultWidth(250);
+        reopened.setMaxSize(50);
+        reopened.afterPropertiesSet();
+        assertEquals(40, reopened.getSize());
+        assertFalse(second.getFile().exists());
+        assertTrue(third.getFile().exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putUnknownVariant() throws Exception {
+        store.put(1, 1000L, 300, "png", new byte[0]);
+    }
+
+    @Test
+    public void thumbnailFormat() {
+        assertEquals("png", ThumbnailStore.thumbnailFormat("image/gif"));
+        assertEquals("png", ThumbnailStore.thumbnailFormat("image/PNG"));
+        assertEquals("jpeg", ThumbnailStore.thumbnailFormat("image/jpeg"));
+        assertEquals("jpeg", ThumbnailStore.thumbnailFormat("image/bmp"));
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c: children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -38,6 +38,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -489,6 +490,18 @@ public class AuthorizationManagerTest {
             }
         }
         
+        @Override
+        public Map<Path, ResourceImpl> load(Collection<Path> uris) throws DataAccessException {
+            Map<Path, ResourceImpl> result = new HashMap<Path, ResourceImpl>();
+            for (Path uri: uris) {
+                ResourceImpl r = load(uri);
+                if (r != null) {
+                    result.put(uri, r);
+                }
+            }
+            return result;
+        }
+        
         @Override
         public ResourceImpl[] loadChildren(ResourceImpl parent)
                 throws DataAccessException {
@@ -0,0 +1,95 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository;
+
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Measures lock throughput of {@link PathLockManager} under a mix of
+ * shared reads of paths and exclusive subtree writes, and prints the
+ * resulting contention statistics.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.repository.PathLockManagerBenchmark</code>
+ */
+public class PathLockManagerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final PathLockManager lockManager = new PathLockManager();
+        lockManager.setLockTimeoutSeconds(30);
+        final int folders = 10;
+        final int numWorkers = 16;
+        final int iterationsPerWorker = 20000;
+
+        Thread[] threads = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            final int worker = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(worker);
+                    for (int n = 0; n < iterationsPerWorker; n++) {
+                        int folder = random.nextInt(folders);
+                        PathLockManager.Claim claim;
+                        if (n % 100 == 0) {
+                            claim = lockManager.lock(Collections.<Path>emptyList(), 
+                                    Collections.singletonList(Path.fromString("/f" + folder)), true);
+                            Thread.yield();
+                        } else {
+                            Path uri = Path.fromString("/f" + folder + "/c" + random.nextInt(10) 
+                                    + "/r" + random.nextInt(100));
+                            claim = lockManager.lock(uri, n % 10 == 0);
+                        }
+                        lockManager.unlock(claim);
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread t: threads) {
+            t.start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        long end = System.currentTimeMillis();
+
+        long operations = (long) numWorkers * iterationsPerWorker;
+        System.out.println(operations + " lock operations in " + (end - start) + " ms");
+        for (PathLockManager.ContentionStatistics stats: lockManager.getStatistics().values()) {
+            if (stats.getWaits() > 0) {
+                System.out.println(stats);
+            }
+        }
+    }
+}
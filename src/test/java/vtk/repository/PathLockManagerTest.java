@@ -0,0 +1,278 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PathLockManagerTest {
+
+    private PathLockManager lockManager;
+
+    @Before
+    public void setUp() {
+        this.lockManager = new PathLockManager();
+        this.lockManager.setLockTimeoutSeconds(1);
+    }
+
+    @Test
+    public void sharedAndExclusive() throws Exception {
+        PathLockManager.Claim claim = this.lockManager.lock(path("/a"), false);
+        assertTrue(lockedByOtherThread(paths("/a"), false));
+        assertFalse(lockedByOtherThread(paths("/a"), true));
+        this.lockManager.unlock(claim);
+
+        claim = this.lockManager.lock(path("/a"), true);
+        assertFalse(lockedByOtherThread(paths("/a"), false));
+        // Plain path locks do not cover descendants
+        assertTrue(lockedByOtherThread(paths("/a/b"), true));
+        this.lockManager.unlock(claim);
+        assertTrue(lockedByOtherThread(paths("/a"), true));
+    }
+
+    @Test
+    public void subtree() throws Exception {
+        PathLockManager.Claim claim = subtree("/a", true);
+        assertFalse(lockedByOtherThread(paths("/a/b/c"), false));
+        assertFalse(lockedByOtherThread(paths("/a"), false));
+        assertTrue(lockedByOtherThread(paths("/b", "/ab"), true));
+        this.lockManager.unlock(claim);
+
+        // Descendants locked by others block subtree locks
+        claim = this.lockManager.lock(path("/a/b/c"), false);
+        assertTrue(lockedByOtherThread(Collections.<Path>emptyList(), paths("/a"), false));
+        assertFalse(lockedByOtherThread(Collections.<Path>emptyList(), paths("/a"), true));
+        assertTrue(lockedByOtherThread(Collections.<Path>emptyList(), paths("/a/d"), true));
+        this.lockManager.unlock(claim);
+
+        claim = subtree("/a", false);
+        assertTrue(lockedByOtherThread(paths("/a/b"), false));
+        assertFalse(lockedByOtherThread(paths("/a/b"), true));
+        this.lockManager.unlock(claim);
+    }
+
+    // Intention locks on the root are taken on a single stripe, so every
+    // other root lock mode must see intention locks from any thread
+    @Test
+    public void rootSubtree() throws Exception {
+        PathLockManager.Claim claim = subtree("/", true);
+        assertEquals(paths("/"), claim.getPaths());
+        assertFalse(lockedByOtherThread(paths("/a"), false));
+        assertFalse(lockedByOtherThread(paths("/b/c"), true));
+        PathLockManager.Claim inner = this.lockManager.lock(path("/a/b"), true);
+        this.lockManager.unlock(inner);
+        this.lockManager.unlock(claim);
+
+        claim = this.lockManager.lock(path("/a/b"), false);
+        assertFalse(lockedByOtherThread(Collections.<Path>emptyList(), paths("/"), true));
+        assertTrue(lockedByOtherThread(Collections.<Path>emptyList(), paths("/"), false));
+        assertTrue(lockedByOtherThread(paths("/"), true));
+        this.lockManager.unlock(claim);
+
+        claim = this.lockManager.lock(path("/a/b"), true);
+        assertFalse(lockedByOtherThread(Collections.<Path>emptyList(), paths("/"), false));
+        this.lockManager.unlock(claim);
+        assertTrue(lockedByOtherThread(Collections.<Path>emptyList(), paths("/"), true));
+    }
+
+    @Test
+    public void claimedPaths() {
+        PathLockManager.Claim claim = this.lockManager.lock(
+                paths("/a/b/c", "/x", "/a/b/c"), paths("/a/b"), true);
+        assertEquals(paths("/", "/a", "/a/b", "/x"), claim.getPaths());
+        assertTrue(claim.isExclusive());
+        this.lockManager.unlock(claim);
+        try {
+            this.lockManager.unlock(claim);
+            fail("Released claim twice");
+        } catch (IllegalStateException e) { }
+    }
+
+    @Test
+    public void reentrantExclusive() throws Exception {
+        PathLockManager.Claim outer = subtree("/a", true);
+        PathLockManager.Claim inner = this.lockManager.lock(path("/a"), true);
+        PathLockManager.Claim innermost = subtree("/a", true);
+        this.lockManager.unlock(innermost);
+        this.lockManager.unlock(inner);
+        assertFalse(lockedByOtherThread(paths("/a"), false));
+        this.lockManager.unlock(outer);
+        assertTrue(lockedByOtherThread(paths("/a"), true));
+    }
+
+    @Test
+    public void statistics() throws Exception {
+        this.lockManager.setStatisticsDepth(1);
+        PathLockManager.Claim claim = this.lockManager.lock(path("/a/b"), true);
+        assertFalse(lockedByOtherThread(paths("/a/b"), true));
+        this.lockManager.unlock(this.lockManager.lock(path("/c"), false));
+
+        Map<Path, PathLockManager.ContentionStatistics> stats = this.lockManager.getStatistics();
+        PathLockManager.ContentionStatistics a = stats.get(path("/a"));
+        assertEquals(1, a.getAcquisitions());
+        assertEquals(1, a.getWaits());
+        assertEquals(1, a.getTimeouts());
+        assertTrue(a.getMaxWaitMillis() > 0);
+        assertEquals(0, stats.get(path("/c")).getWaits());
+        this.lockManager.unlock(claim);
+
+        this.lockManager.resetStatistics();
+        assertTrue(this.lockManager.getStatistics().isEmpty());
+    }
+
+    // Mixes shared reads of paths with exclusive subtree writes, and checks
+    // that no path is read while its subtree is being written.
+    @Test
+    public void multithreadedSubtrees() throws Exception {
+        this.lockManager.setLockTimeoutSeconds(30);
+        final int folders = 10;
+        final int numWorkers = 16;
+        final int iterationsPerWorker = 2000;
+        final AtomicInteger[] readers = new AtomicInteger[folders];
+        final AtomicInteger[] writers = new AtomicInteger[folders];
+        for (int i = 0; i < folders; i++) {
+            readers[i] = new AtomicInteger(0);
+            writers[i] = new AtomicInteger(0);
+        }
+
+        Thread[] threads = new Thread[numWorkers];
+        final Throwable[] failures = new Throwable[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            final int worker = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(worker);
+                        for (int n = 0; n < iterationsPerWorker; n++) {
+                            int folder = random.nextInt(folders);
+                            if (n % 100 == 0) {
+                                PathLockManager.Claim claim = lockManager.lock(Collections.<Path>emptyList(), 
+                                        paths("/f" + folder), true);
+                                try {
+                                    writers[folder].incrementAndGet();
+                                    assertEquals(0, readers[folder].get());
+                                    assertEquals(1, writers[folder].get());
+                                    Thread.yield();
+                                    writers[folder].decrementAndGet();
+                                } finally {
+                                    lockManager.unlock(claim);
+                                }
+                            } else {
+                                Path uri = path("/f" + folder + "/c" + random.nextInt(10) + "/r" + random.nextInt(100));
+                                PathLockManager.Claim claim = lockManager.lock(uri, n % 10 == 0);
+                                try {
+                                    readers[folder].incrementAndGet();
+                                    assertEquals(0, writers[folder].get());
+                                    readers[folder].decrementAndGet();
+                                } finally {
+                                    lockManager.unlock(claim);
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[worker] = t;
+                    }
+                }
+            });
+        }
+
+        for (Thread t: threads) {
+            t.start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        for (int i = 0; i < numWorkers; i++) {
+            if (failures[i] != null) {
+                throw new AssertionError("Worker # " + i + " failed: " + failures[i]);
+            }
+        }
+    }
+
+    private PathLockManager.Claim subtree(String uri, boolean exclusive) {
+        return this.lockManager.lock(Collections.<Path>emptyList(), paths(uri), exclusive);
+    }
+
+    private boolean lockedByOtherThread(List<Path> uris, boolean exclusive) throws Exception {
+        return lockedByOtherThread(uris, Collections.<Path>emptyList(), exclusive);
+    }
+
+    // Blocked lock requests are interrupted instead of waiting for the
+    // lock timeout
+    private boolean lockedByOtherThread(final List<Path> uris, final List<Path> subtrees, 
+            final boolean exclusive) throws Exception {
+        final boolean[] result = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PathLockManager.Claim claim = lockManager.lock(uris, subtrees, exclusive);
+                    lockManager.unlock(claim);
+                    result[0] = true;
+                } catch (RuntimeException e) {
+                    result[0] = false;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        thread.start();
+        if (!done.await(200, TimeUnit.MILLISECONDS)) {
+            thread.interrupt();
+        }
+        thread.join();
+        return result[0];
+    }
+
+    private static Path path(String uri) {
+        return Path.fromString(uri);
+    }
+
+    private static List<Path> paths(String... uris) {
+        Path[] paths = new Path[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            paths[i] = Path.fromString(uris[i]);
+        }
+        return Arrays.asList(paths);
+    }
+}
@@ -0,0 +1,418 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.document.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.support.lob.DefaultLobHandler;
+import org.springframework.orm.ibatis.SqlMapClientFactoryBean;
+
+import vtk.repository.Acl;
+import vtk.repository.Namespace;
+import vtk.repository.Path;
+import vtk.repository.PropertySet;
+import vtk.repository.index.consistency.ConsistencyCheck;
+import vtk.repository.index.mapping.DocumentMapper;
+import vtk.repository.resourcetype.PropertyType;
+import vtk.repository.resourcetype.PropertyTypeDefinition;
+import vtk.repository.resourcetype.PropertyTypeDefinitionImpl;
+import vtk.repository.resourcetype.ValueFactory;
+import vtk.repository.resourcetype.ValueFactoryImpl;
+import vtk.repository.store.db.SqlMapDataAccessor;
+import vtk.repository.store.db.SqlMapIndexDao;
+import vtk.security.PrincipalFactory;
+import vtk.testing.mocktypes.MockResourceTypeTree;
+
+import com.ibatis.sqlmap.client.SqlMapClient;
+
+/**
+ * Re-indexes resources seeded in an in-memory HSQLDB database, streaming
+ * property sets from the database through the re-indexing pipeline.
+ */
+public class DirectReindexerTest {
+
+    // More resources than fit in the streaming buffer, pipeline queue and
+    // a single batch
+    private static final int COLLECTIONS = 30;
+    private static final int FILES_PER_COLLECTION = 100;
+
+    private DriverManagerDataSource dataSource;
+    private SqlMapIndexDao indexDao;
+    private DocumentMapper documentMapper;
+    private IndexManager indexManager;
+    private final List<Path> expectedUris = new ArrayList<Path>();
+
+    @Before
+    public void setUp() throws Exception {
+        this.dataSource = new DriverManagerDataSource("jdbc:hsqldb:mem:reindex", "sa", "");
+        Connection conn = this.dataSource.getConnection();
+        try {
+            runScript(conn, new File("src/main/sql/hsqldb-schema.sql"));
+            seed(conn);
+        } finally {
+            conn.close();
+        }
+
+        SqlMapClientFactoryBean factory = new SqlMapClientFactoryBean();
+        factory.setConfigLocation(
+                new ClassPathResource("vtk/repository/store/db/ibatis/hsqldb-sql-map-config.xml"));
+        factory.setDataSource(this.dataSource);
+        factory.setLobHandler(new DefaultLobHandler());
+        factory.afterPropertiesSet();
+        SqlMapClient client = (SqlMapClient) factory.getObject();
+
+        // Resolves pseudo principals, unlike MockPrincipalFactory, so that
+        // ACLs read back from the index compare equal to those in the database
+        PrincipalFactory principalFactory = new PrincipalFactory();
+        ValueFactoryImpl valueFactory = new ValueFactoryImpl();
+        valueFactory.setPrincipalFactory(principalFactory);
+        TypedResourceTypeTree resourceTypeTree = new TypedResourceTypeTree(valueFactory);
+
+        SqlMapDataAccessor dataAccessor = new SqlMapDataAccessor();
+        dataAccessor.setSqlMapClient(client);
+        dataAccessor.setSqlMaps(Collections.<String, String>emptyMap());
+        dataAccessor.setPrincipalFactory(principalFactory);
+        dataAccessor.setValueFactory(valueFactory);
+        dataAccessor.setResourceTypeTree(resourceTypeTree);
+
+        this.indexDao = new SqlMapIndexDao();
+        this.indexDao.setSqlMapClient(client);
+        this.indexDao.setSqlMaps(Collections.<String, String>emptyMap());
+        this.indexDao.setSqlMapDataAccessor(dataAccessor);
+        this.indexDao.setPrincipalFactory(principalFactory);
+        this.indexDao.setResourceTypeTree(resourceTypeTree);
+
+        this.documentMapper = new DocumentMapper();
+        this.documentMapper.setLocale(Locale.getDefault());
+        this.documentMapper.setResourceTypeTree(resourceTypeTree);
+        this.documentMapper.setPrincipalFactory(principalFactory);
+        this.documentMapper.setValueFactory(valueFactory);
+        this.documentMapper.afterPropertiesSet();
+
+        this.indexManager = new IndexManager();
+        this.indexManager.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.indexManager.close();
+        Connection conn = this.dataSource.getConnection();
+        try {
+            conn.createStatement().execute("SHUTDOWN");
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void indexesEveryResourceOnce() throws Exception {
+        PropertySetIndexImpl index = index();
+        assertEquals(this.expectedUris.size(), new DirectReindexer(index, this.indexDao, 4).run());
+        assertEquals(this.expectedUris, indexedUris(index));
+
+        // Same result as sequential re-indexing, also when run again
+        assertEquals(this.expectedUris.size(), new DirectReindexer(index, this.indexDao, 1).run());
+        assertEquals(this.expectedUris, indexedUris(index));
+        assertEquals(this.expectedUris.size(), new DirectReindexer(index, this.indexDao, 2).run());
+        assertEquals(this.expectedUris, indexedUris(index));
+    }
+
+    // The index built by the pipeline matches the database in every
+    // respect checked by the consistency check, not just the set of URIs
+    @Test
+    public void pipelineIndexIsConsistent() throws Exception {
+        PropertySetIndexImpl index = index();
+        assertEquals(this.expectedUris.size(), new DirectReindexer(index, this.indexDao, 4).run());
+        ConsistencyCheck check = ConsistencyCheck.run(index, this.indexDao);
+        assertEquals(String.valueOf(check.getErrors()), 0, check.getErrors().size());
+    }
+
+    @Test
+    public void mappingErrorPropagates() throws Exception {
+        final Path failing = this.expectedUris.get(this.expectedUris.size() / 2);
+        PropertySetIndexImpl index = new PropertySetIndexImpl() {
+            @Override
+            Document createDocument(PropertySet propertySet, Acl acl) throws IndexException {
+                if (propertySet.getURI().equals(failing)) {
+                    throw new IndexException("Mapping failed for " + failing);
+                }
+                return super.createDocument(propertySet, acl);
+            }
+        };
+        index.setDocumentMapper(this.documentMapper);
+        index.setIndexAccessor(this.indexManager);
+
+        try {
+            new DirectReindexer(index, this.indexDao, 4).run();
+            fail("Expected re-indexing to fail");
+        } catch (IndexException e) {
+            assertTrue(String.valueOf(e.getCause()), rootCause(e).getMessage().contains(failing.toString()));
+        }
+        assertMapperThreadsStopped();
+
+        // Index lock is released, and re-indexing can be run again
+        assertEquals(this.expectedUris.size(), new DirectReindexer(index(), this.indexDao, 4).run());
+    }
+
+    @Test
+    public void databaseErrorPropagates() throws Exception {
+        Connection conn = this.dataSource.getConnection();
+        try {
+            conn.createStatement().execute("drop table extra_prop_entry cascade");
+        } finally {
+            conn.close();
+        }
+
+        try {
+            new DirectReindexer(index(), this.indexDao, 4).run();
+            fail("Expected re-indexing to fail");
+        } catch (IndexException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof DataAccessException);
+        }
+        assertMapperThreadsStopped();
+    }
+
+    private PropertySetIndexImpl index() {
+        PropertySetIndexImpl index = new PropertySetIndexImpl();
+        index.setDocumentMapper(this.documentMapper);
+        index.setIndexAccessor(this.indexManager);
+        return index;
+    }
+
+    private List<Path> indexedUris(PropertySetIndexImpl index) throws Exception {
+        List<Path> uris = new ArrayList<Path>();
+        Iterator<Path> it = index.orderedUriIterator();
+        try {
+            while (it.hasNext()) {
+                uris.add(it.next());
+            }
+        } finally {
+            index.close(it);
+        }
+        assertEquals(uris.size(), index.countAllInstances());
+        return uris;
+    }
+
+    private static Throwable rootCause(Throwable t) {
+        while (t.getCause() != null && t.getCause() != t) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    private static void assertMapperThreadsStopped() throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            boolean alive = false;
+            for (Thread t: Thread.getAllStackTraces().keySet()) {
+                String name = t.getName();
+                if (t.isAlive() && (name.startsWith("reindexer-")
+                        || name.equals(SqlMapIndexDao.STREAMER_THREAD_NAME))) {
+                    alive = true;
+                }
+            }
+            if (!alive) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Re-indexing threads still running after failure");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Seeds COLLECTIONS collections below the root, each with
+     * FILES_PER_COLLECTION files. Every resource has a title.
+     */
+    private void seed(Connection conn) throws Exception {
+        // The schema grants 'pseudo:owner' on the root, a pseudo principal
+        // which no longer exists and cannot be read back from the index
+        Statement stmt = conn.createStatement();
+        stmt.execute("delete from acl_entry where user_or_group_name = 'pseudo:owner'");
+        stmt.close();
+
+        PreparedStatement resource = conn.prepareStatement(
+                "insert into vortex_resource (resource_id, uri, depth, creation_time, created_by, "
+                + "content_last_modified, properties_last_modified, last_modified, content_modified_by, "
+                + "properties_modified_by, modified_by, resource_owner, resource_type, is_collection, "
+                + "content_length, acl_inherited_from) values (?, ?, ?, ?, 'root@localhost', ?, ?, ?, "
+                + "'root@localhost', 'root@localhost', 'root@localhost', 'root@localhost', ?, ?, ?, 1000)");
+        PreparedStatement title = conn.prepareStatement(
+                "insert into extra_prop_entry (extra_prop_entry_id, resource_id, prop_type_id, name_space, "
+                + "name, value) values (?, ?, 0, null, 'title', ?)");
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int id = 2000;
+        List<Path> uris = new ArrayList<Path>();
+        uris.add(Path.ROOT);
+        for (int c = 0; c < COLLECTIONS; c++) {
+            Path collection = Path.ROOT.extend("c" + c);
+            insert(resource, title, now, id++, collection, true);
+            uris.add(collection);
+            for (int f = 0; f < FILES_PER_COLLECTION; f++) {
+                Path file = collection.extend("f" + f + ".html");
+                insert(resource, title, now, id++, file, false);
+                uris.add(file);
+            }
+        }
+        resource.close();
+        title.close();
+
+        // Same order as the database iteration, and the index, use
+        Map<String, Path> sorted = new TreeMap<String, Path>();
+        for (Path uri: uris) {
+            sorted.put(uri.toString(), uri);
+        }
+        this.expectedUris.addAll(sorted.values());
+    }
+
+    private void insert(PreparedStatement resource, PreparedStatement title, Timestamp now,
+            int id, Path uri, boolean collection) throws Exception {
+        resource.setInt(1, id);
+        resource.setString(2, uri.toString());
+        resource.setInt(3, uri.getDepth());
+        resource.setTimestamp(4, now);
+        resource.setTimestamp(5, now);
+        resource.setTimestamp(6, now);
+        resource.setTimestamp(7, now);
+        resource.setString(8, collection ? "collection" : "file");
+        resource.setString(9, collection ? "Y" : "N");
+        resource.setLong(10, collection ? 0 : 100);
+        resource.executeUpdate();
+
+        title.setInt(1, id);
+        title.setInt(2, id);
+        title.setString(3, uri.getName());
+        title.executeUpdate();
+    }
+
+    private void runScript(Connection conn, File script) throws Exception {
+        StringBuilder sql = new StringBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(script), "utf-8");
+        try {
+            char[] buf = new char[4096];
+            int n;
+            while ((n = reader.read(buf)) > 0) {
+                sql.append(buf, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        String stripped = sql.toString()
+                .replaceAll("(?s)/\\*.*?\\*/", "")
+                .replaceAll("--[^\\n]*", "");
+        Statement stmt = conn.createStatement();
+        for (String s: stripped.split(";")) {
+            if (!s.trim().isEmpty()) {
+                stmt.execute(s);
+            }
+        }
+        stmt.close();
+    }
+
+    /**
+     * Resource type tree with definitions of the standard properties
+     * assembled from the resource table.
+     */
+    private static class TypedResourceTypeTree extends MockResourceTypeTree {
+        private static final Map<String, PropertyType.Type> TYPES = new HashMap<String, PropertyType.Type>();
+        static {
+            TYPES.put(PropertyType.COLLECTION_PROP_NAME, PropertyType.Type.BOOLEAN);
+            TYPES.put(PropertyType.CONTENTLENGTH_PROP_NAME, PropertyType.Type.LONG);
+            for (String name: new String[] {PropertyType.CREATIONTIME_PROP_NAME,
+                    PropertyType.LASTMODIFIED_PROP_NAME, PropertyType.CONTENTLASTMODIFIED_PROP_NAME,
+                    PropertyType.PROPERTIESLASTMODIFIED_PROP_NAME}) {
+                TYPES.put(name, PropertyType.Type.TIMESTAMP);
+            }
+            for (String name: new String[] {PropertyType.CREATEDBY_PROP_NAME, PropertyType.OWNER_PROP_NAME,
+                    PropertyType.MODIFIEDBY_PROP_NAME, PropertyType.CONTENTMODIFIEDBY_PROP_NAME,
+                    PropertyType.PROPERTIESMODIFIEDBY_PROP_NAME}) {
+                TYPES.put(name, PropertyType.Type.PRINCIPAL);
+            }
+        }
+
+        private final ValueFactory valueFactory;
+        private final Map<String, PropertyTypeDefinition> definitions
+                = new HashMap<String, PropertyTypeDefinition>();
+
+        TypedResourceTypeTree(ValueFactory valueFactory) {
+            this.valueFactory = valueFactory;
+        }
+
+        @Override
+        public Namespace getNamespace(String namespaceUrl) {
+            return namespaceUrl == null ? Namespace.DEFAULT_NAMESPACE : Namespace.getNamespace(namespaceUrl);
+        }
+
+        @Override
+        public synchronized PropertyTypeDefinition getPropertyTypeDefinition(Namespace namespace, String name) {
+            String key = namespace.getUri() + ":" + name;
+            PropertyTypeDefinition def = this.definitions.get(key);
+            if (def == null) {
+                PropertyTypeDefinitionImpl impl = new PropertyTypeDefinitionImpl();
+                impl.setNamespace(namespace);
+                impl.setName(name);
+                PropertyType.Type type = TYPES.get(name);
+                impl.setType(type != null ? type : PropertyType.Type.STRING);
+                impl.setValueFactory(this.valueFactory);
+                def = impl;
+                this.definitions.put(key, def);
+            }
+            return def;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.index;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.After;
+import org.junit.Test;
+
+public class IndexManagerTest {
+
+    private IndexManager index;
+
+    @After
+    public void tearDown() throws Exception {
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    @Test
+    public void visibleAfterCommit() throws Exception {
+        index = new IndexManager();
+        index.afterPropertiesSet();
+
+        assertEquals(0, numDocs());
+        addDocument("/a");
+        assertEquals(0, numDocs());
+        index.commit();
+        assertEquals(1, numDocs());
+    }
+
+    @Test
+    public void visibleAfterCommitWithBackgroundRefresh() throws Exception {
+        index = new IndexManager();
+        index.setMaxSearcherStaleSeconds(60);
+        index.afterPropertiesSet();
+
+        assertEquals(0, numDocs());
+        for (int i = 0; i < 3; i++) {
+            addDocument("/" + i);
+            index.commit();
+            // Waits for a refresh covering the commit
+            assertEquals(i + 1, numDocs());
+        }
+    }
+
+    @Test
+    public void dirtyAgeWithBackgroundRefresh() throws Exception {
+        index = new IndexManager();
+        index.setMaxSearcherStaleSeconds(60);
+        index.afterPropertiesSet();
+
+        addDocument("/a");
+        index.commit();
+        // Commit is younger than accepted dirty age, and the first 
+        // background refresh is not due yet
+        assertEquals(0, numDocs(60));
+        assertEquals(1, numDocs(0));
+        assertEquals(1, numDocs(60));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void minStaleGreaterThanMax() throws Exception {
+        index = new IndexManager();
+        index.setMaxSearcherStaleSeconds(1);
+        index.setMinSearcherStaleSeconds(2);
+        index.afterPropertiesSet();
+    }
+
+    private void addDocument(String uri) throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField("uri", uri, Field.Store.YES));
+        index.getIndexWriter().addDocument(doc);
+    }
+
+    private int numDocs() throws Exception {
+        IndexSearcher searcher = index.getIndexSearcher();
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            index.releaseIndexSearcher(searcher);
+        }
+    }
+
+    private int numDocs(int maxDirtyAge) throws Exception {
+        IndexSearcher searcher = index.getIndexSearcher(maxDirtyAge);
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            index.releaseIndexSearcher(searcher);
+        }
+    }
+}
@@ -34,7 +34,9 @@ import java.util.Date;
 import java.util.List;
 
 import org.apache.lucene.document.DateTools;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
 
 import vtk.repository.resourcetype.PropertyType;
 import vtk.repository.resourcetype.PropertyType.Type;
@@ -163,6 +165,42 @@ public class FieldValuesTest {
         }
     }
     
+    @Test
+    public void sortFields() {
+        List<IndexableField> a = pf.makeSortFields("s_name", "a");
+        List<IndexableField> b = pf.makeSortFields("s_name", "B");
+        assertEquals(2, a.size());
+        
+        IndexableField aDocValues = null, bDocValues = null;
+        for (IndexableField f : a) {
+            if (f.fieldType().docValueType() != null) aDocValues = f;
+        }
+        for (IndexableField f : b) {
+            if (f.fieldType().docValueType() != null) bDocValues = f;
+        }
+        assertNotNull(aDocValues);
+        assertEquals(FieldInfo.DocValuesType.SORTED, aDocValues.fieldType().docValueType());
+        assertEquals("s_name", aDocValues.name());
+        
+        // Collation keys, not raw values, decide order
+        assertTrue(aDocValues.binaryValue().compareTo(bDocValues.binaryValue()) < 0);
+        assertTrue(new BytesRef("a").compareTo(new BytesRef("B")) > 0);
+    }
+    
+    @Test
+    public void docValuesFields() {
+        IndexableField single = pf.makeDocValuesField("p_foo", "bar", false);
+        assertEquals(FieldInfo.DocValuesType.SORTED, single.fieldType().docValueType());
+        assertEquals(new BytesRef("bar"), single.binaryValue());
+        
+        IndexableField multi = pf.makeDocValuesField("p_foo", "bar", true);
+        assertEquals(FieldInfo.DocValuesType.SORTED_SET, multi.fieldType().docValueType());
+        
+        IndexableField numeric = pf.makeDocValuesField("p_num", 1024L);
+        assertEquals(FieldInfo.DocValuesType.NUMERIC, numeric.fieldType().docValueType());
+        assertEquals(1024L, numeric.numericValue().longValue());
+    }
+    
     @Test
     public void isLowercaseField() {
         assertFalse(PropertyFields.isLowercaseField("p_foo"));
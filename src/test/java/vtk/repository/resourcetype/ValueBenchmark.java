@@ -0,0 +1,150 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.resourcetype;
+
+import vtk.repository.resourcetype.PropertyType.Type;
+import vtk.util.text.Json;
+
+/**
+ * Compares reparsing a large JSON value on every access, which is what
+ * Value.getJSONValue() used to do, with the parsed form kept by the
+ * value. The access pattern is that of indexing (one pass over the
+ * top level fields) followed by rendering (a few lookups). Also compares
+ * loading a value from binary storage by copying it to a string before
+ * parsing, with parsing it directly from the loaded bytes.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.repository.resourcetype.ValueBenchmark</code>
+ */
+public class ValueBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String s = largeJsonObject(200, 20);
+        int accesses = 5;
+        int rounds = 200;
+
+        // Warm up
+        for (int i = 0; i < rounds; i++) {
+            reparse(s, accesses);
+            memoized(new Value(s, Type.JSON), accesses);
+        }
+
+        long start = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < rounds; i++) {
+            n += reparse(s, accesses);
+        }
+        long reparse = (System.nanoTime() - start) / rounds;
+
+        start = System.nanoTime();
+        int m = 0;
+        for (int i = 0; i < rounds; i++) {
+            m += memoized(new Value(s, Type.JSON), accesses);
+        }
+        long memoized = (System.nanoTime() - start) / rounds;
+        if (n != m) {
+            throw new IllegalStateException("Results differ: " + n + ", " + m);
+        }
+
+        System.out.println(s.length() + " chars, " 
+                + accesses + " accesses per value: reparse " + (reparse / 1000) 
+                + " us, memoized " + (memoized / 1000) + " us");
+
+        byte[] bytes = s.getBytes("UTF-8");
+        for (int i = 0; i < rounds; i++) {
+            copied(bytes);
+            streamed(bytes);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            n += copied(bytes);
+        }
+        long copied = (System.nanoTime() - start) / rounds;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            m += streamed(bytes);
+        }
+        long streamed = (System.nanoTime() - start) / rounds;
+        if (n != m) {
+            throw new IllegalStateException("Results differ: " + n + ", " + m);
+        }
+        System.out.println(bytes.length + " bytes loaded from binary storage: copied to string " 
+                + (copied / 1000) + " us, streamed " + (streamed / 1000) + " us");
+    }
+
+    private static int copied(byte[] bytes) throws Exception {
+        return new Value(new String(bytes, "UTF-8"), Type.JSON).getUnmodifiableJSONValue().size();
+    }
+
+    private static int streamed(byte[] bytes) {
+        BinaryValue binary = new BufferedBinaryValue(bytes, "application/json");
+        return new Value(binary, Type.JSON).getUnmodifiableJSONValue().size();
+    }
+
+    private static int reparse(String s, int accesses) {
+        int n = 0;
+        for (int i = 0; i < accesses; i++) {
+            n += Json.parseToContainer(s).asObject().size();
+        }
+        return n;
+    }
+
+    private static int memoized(Value value, int accesses) {
+        int n = 0;
+        for (int i = 0; i < accesses; i++) {
+            n += value.getUnmodifiableJSONValue().size();
+        }
+        return n;
+    }
+
+    private static String largeJsonObject(int fields, int items) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < fields; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("\"field").append(i).append("\": ");
+            if (i % 2 == 0) {
+                sb.append("\"value ").append(i).append("\"");
+            } else {
+                sb.append("[");
+                for (int j = 0; j < items; j++) {
+                    if (j > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append("{\"id\": ").append(j).append(", \"title\": \"Item ").append(j).append("\"}");
+                }
+                sb.append("]");
+            }
+        }
+        return sb.append("}").toString();
+    }
+}
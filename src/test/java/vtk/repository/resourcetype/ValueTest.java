@@ -0,0 +1,117 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.resourcetype;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import vtk.repository.ContentStream;
+import vtk.repository.resourcetype.PropertyType.Type;
+import vtk.util.text.Json;
+
+public class ValueTest {
+
+    @Test
+    public void jsonValueParsedOnce() {
+        Value value = new Value("{\"a\": [1, 2, {\"b\": \"c\"}]}", Type.JSON);
+        Map<String, Object> json = value.getUnmodifiableJSONValue();
+        assertSame(json, value.getUnmodifiableJSONValue());
+        assertSame(json, ((Value) value.clone()).getUnmodifiableJSONValue());
+        try {
+            json.put("x", "y");
+            fail("Parsed value should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            ((List<?>) json.get("a")).clear();
+            fail("Nested values should be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void jsonValueCopy() {
+        Value value = new Value("{\"a\": [1, 2, {\"b\": \"c\"}]}", Type.JSON);
+        Json.MapContainer copy = value.getJSONValue();
+        assertNotSame(copy, value.getJSONValue());
+        assertEquals(value.getUnmodifiableJSONValue(), copy);
+
+        copy.arrayValue("a").objectValue(2).put("b", "d");
+        copy.put("x", "y");
+        assertEquals("c", value.getJSONValue().arrayValue("a").objectValue(2).get("b"));
+        assertEquals(null, value.getJSONValue().get("x"));
+    }
+
+    @Test
+    public void jsonValueFromBinary() throws Exception {
+        String s = "{\"a\": \"æøå\", \"b\": [true, null]}";
+        final BufferedBinaryValue binary = new BufferedBinaryValue(s, "application/json");
+        final boolean[] loaded = new boolean[1];
+        Value value = new Value(new BinaryValue() {
+            @Override
+            public String getContentType() {
+                return binary.getContentType();
+            }
+            @Override
+            public ContentStream getContentStream() {
+                throw new IllegalStateException("Binary value should be read once");
+            }
+            @Override
+            public byte[] getBytes() {
+                if (loaded[0]) {
+                    throw new IllegalStateException("Binary value should be read once");
+                }
+                loaded[0] = true;
+                return binary.getBytes();
+            }
+        }, Type.JSON);
+        // Read at load time, since stored binary values may be replaced 
+        // before they are used
+        assertTrue(loaded[0]);
+        // Parsed from the buffered bytes
+        assertEquals("æøå", value.getUnmodifiableJSONValue().get("a"));
+        Value clone = (Value) value.clone();
+        assertSame(value.getUnmodifiableJSONValue(), clone.getUnmodifiableJSONValue());
+        assertEquals(s, clone.getStringValue());
+        assertEquals(s, value.getStringValue());
+        assertEquals(new Value(s, Type.JSON), value);
+        assertEquals("application/json", value.getBinaryValue().getContentType());
+        assertEquals(s, new String(value.getBinaryValue().getBytes(), "UTF-8"));
+    }
+}
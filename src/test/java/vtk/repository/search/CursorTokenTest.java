@@ -0,0 +1,239 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+public class CursorTokenTest {
+
+    private static final Sort ALL_TYPES = new Sort(
+            new SortField("a", SortField.Type.STRING),
+            new SortField("b", SortField.Type.STRING),
+            new SortField("c", SortField.Type.LONG),
+            new SortField("d", SortField.Type.INT),
+            new SortField("e", SortField.Type.DOUBLE),
+            new SortField("f", SortField.Type.FLOAT));
+
+    private static final Sort TYPE_URI = new Sort(
+            new SortField("type", SortField.Type.STRING),
+            new SortField("uri", SortField.Type.STRING));
+
+    @Test
+    public void roundTrip() throws Exception {
+        Object[] values = {new BytesRef("/a/b/ø"), null, Long.MIN_VALUE, 42, -1.5d, Float.MAX_VALUE};
+        String token = CursorToken.encode(ALL_TYPES, new FieldDoc(7, 1.0f, values));
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+
+        FieldDoc decoded = CursorToken.decode(ALL_TYPES, token);
+        assertArrayEquals(values, decoded.fields);
+        assertEquals(token, CursorToken.encode(ALL_TYPES, decoded));
+
+        // Slices of larger arrays are encoded as their own bytes
+        BytesRef slice = new BytesRef("xx/sliceyy".getBytes("utf-8"), 2, 6);
+        token = CursorToken.encode(TYPE_URI, new FieldDoc(0, 1.0f, new Object[]{slice, null}));
+        decoded = CursorToken.decode(TYPE_URI, token);
+        assertEquals(new BytesRef("/slice"), decoded.fields[0]);
+        assertNull(decoded.fields[1]);
+    }
+
+    @Test
+    public void rejectsTamperedTokens() throws Exception {
+        String token = CursorToken.encode(TYPE_URI,
+                new FieldDoc(0, 1.0f, new Object[]{new BytesRef("file"), new BytesRef("/a")}));
+        byte[] bytes = Base64.decodeBase64(token);
+
+        assertRejected(TYPE_URI, "");
+        assertRejected(TYPE_URI, "not a token");
+        assertRejected(TYPE_URI, token.substring(0, token.length() - 2));
+
+        // Version
+        byte[] tampered = bytes.clone();
+        tampered[0] = 9;
+        assertRejected(TYPE_URI, Base64.encodeBase64URLSafeString(tampered));
+
+        // Sort checksum
+        tampered = bytes.clone();
+        tampered[2] ^= 1;
+        assertRejected(TYPE_URI, Base64.encodeBase64URLSafeString(tampered));
+
+        // Unknown value type, after version, checksum and field count
+        tampered = bytes.clone();
+        tampered[7] = 99;
+        assertRejected(TYPE_URI, Base64.encodeBase64URLSafeString(tampered));
+
+        // Value length beyond end of token
+        tampered = bytes.clone();
+        tampered[8] = 0x7f;
+        assertRejected(TYPE_URI, Base64.encodeBase64URLSafeString(tampered));
+    }
+
+    @Test
+    public void rejectsStaleTokens() throws Exception {
+        // Tokens from a search with different sorting cannot be used
+        String token = CursorToken.encode(TYPE_URI,
+                new FieldDoc(0, 1.0f, new Object[]{new BytesRef("file"), new BytesRef("/a")}));
+        assertRejected(new Sort(new SortField("type", SortField.Type.STRING, true),
+                new SortField("uri", SortField.Type.STRING)), token);
+        assertRejected(new Sort(new SortField("title", SortField.Type.STRING),
+                new SortField("uri", SortField.Type.STRING)), token);
+        assertRejected(new Sort(new SortField("uri", SortField.Type.STRING)), token);
+        CursorToken.decode(TYPE_URI, token);
+    }
+
+    @Test
+    public void pagingAcrossEqualSortKeys() throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(Version.LATEST, new KeywordAnalyzer()));
+        // Few distinct sort keys, spread over several segments
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            String type = i % 3 == 0 ? "article" : "file";
+            writer.addDocument(doc(type, "/" + (1000 + i)));
+            if (i % 3 == 0) {
+                expected.add("/" + (1000 + i));
+            }
+            if (i % 20 == 19) {
+                writer.commit();
+            }
+        }
+        writer.commit();
+        for (int i = 0; i < 50; i++) {
+            if (i % 3 != 0) {
+                expected.add("/" + (1000 + i));
+            }
+        }
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            for (int pageSize: new int[]{1, 7, 17, 50}) {
+                assertEquals("page size " + pageSize, expected, pages(reader, pageSize, null));
+            }
+
+            // Paging continues from the sort values of the last hit, so
+            // documents added in between are neither repeated nor skipped,
+            // unless they sort before the cursor.
+            List<String> seen = new ArrayList<String>();
+            String token = page(reader, null, 10, seen);
+            writer.addDocument(doc("article", "/0"));
+            writer.addDocument(doc("file", "/2000"));
+            writer.commit();
+            DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+            try {
+                while (token != null) {
+                    token = page(newReader, token, 10, seen);
+                }
+            } finally {
+                newReader.close();
+            }
+            List<String> withAdded = new ArrayList<String>(expected);
+            withAdded.add("/2000");
+            assertEquals(withAdded, seen);
+        } finally {
+            reader.close();
+            writer.close();
+            directory.close();
+        }
+    }
+
+    private static List<String> pages(DirectoryReader reader, int pageSize, String token) throws Exception {
+        List<String> uris = new ArrayList<String>();
+        do {
+            token = page(reader, token, pageSize, uris);
+        } while (token != null);
+        assertEquals(uris.size(), new HashSet<String>(uris).size());
+        return uris;
+    }
+
+    /**
+     * Fetch a page the way the searcher does, with one extra hit to know
+     * if there is a next page.
+     */
+    private static String page(DirectoryReader reader, String token, int pageSize, List<String> uris)
+            throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        FieldDoc after = token != null ? CursorToken.decode(TYPE_URI, token) : null;
+        TopDocs docs = searcher.searchAfter(after, new MatchAllDocsQuery(), null, pageSize + 1, TYPE_URI);
+        ScoreDoc[] hits = docs.scoreDocs;
+        for (int i = 0; i < Math.min(pageSize, hits.length); i++) {
+            uris.add(searcher.doc(hits[i].doc).get("uri"));
+        }
+        if (hits.length > pageSize) {
+            return CursorToken.encode(TYPE_URI, (FieldDoc) hits[pageSize - 1]);
+        }
+        return null;
+    }
+
+    private static Document doc(String type, String uri) {
+        Document doc = new Document();
+        doc.add(new StringField("type", type, Field.Store.NO));
+        doc.add(new StringField("uri", uri, Field.Store.YES));
+        return doc;
+    }
+
+    private static void assertRejected(Sort sort, String token) {
+        try {
+            CursorToken.decode(sort, token);
+            fail("Expected token to be rejected: " + token);
+        } catch (QueryException expected) {
+            assertFalse(expected.getMessage().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.repository.Namespace;
+import vtk.repository.Path;
+import vtk.repository.index.mapping.ResourceFields;
+import vtk.repository.resourcetype.PropertyType;
+import vtk.repository.resourcetype.PropertyTypeDefinitionImpl;
+
+import static org.junit.Assert.*;
+
+public class IndexAggregatorTest {
+
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private PropertyTypeDefinitionImpl tagsPropDef;
+    private PropertyTypeDefinitionImpl countPropDef;
+
+    @Before
+    public void setUp() throws IOException {
+        tagsPropDef = new PropertyTypeDefinitionImpl();
+        tagsPropDef.setNamespace(Namespace.DEFAULT_NAMESPACE);
+        tagsPropDef.setName("tags");
+        tagsPropDef.setType(PropertyType.Type.STRING);
+        tagsPropDef.setMultiple(true);
+
+        countPropDef = new PropertyTypeDefinitionImpl();
+        countPropDef.setNamespace(Namespace.DEFAULT_NAMESPACE);
+        countPropDef.setName("count");
+        countPropDef.setType(PropertyType.Type.JSON);
+
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, 
+                new IndexWriterConfig(Version.LATEST, new KeywordAnalyzer()));
+        writer.addDocument(doc("/a", 5, 1, "foo"));
+        writer.addDocument(doc("/a/x", 3, 1, "foo", "bar"));
+        writer.commit();
+        // Second segment
+        writer.addDocument(doc("/a/y/z", 2, 4, "bar", "foo"));
+        writer.addDocument(doc("/b/x", 1, 0, "baz"));
+        writer.addDocument(doc("/c", 0, 0));
+        writer.close();
+
+        reader = DirectoryReader.open(directory);
+        assertEquals(2, reader.leaves().size());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    private Document doc(String uri, long a, long b, String... tags) {
+        Document doc = new Document();
+        doc.add(new SortedDocValuesField(ResourceFields.URI_FIELD_NAME, new BytesRef(uri)));
+        doc.add(new NumericDocValuesField("p_count@a", a));
+        doc.add(new NumericDocValuesField("p_count@b", b));
+        for (String tag : tags) {
+            doc.add(new SortedSetDocValuesField("p_tags", new BytesRef(tag)));
+        }
+        return doc;
+    }
+
+    @Test
+    public void termFrequencies() throws IOException {
+        AggregationSpec spec = new AggregationSpec();
+        spec.setTermFrequencies(tagsPropDef);
+        AggregationResult result = new IndexAggregator(spec).aggregate(reader, null);
+
+        assertEquals(5, result.getTotal().getCount());
+        assertEquals(3, result.getTerms().size());
+        assertEquals("foo", result.getTerms().get(0).getTerm());
+        assertEquals(3, result.getTerms().get(0).getCount());
+        assertEquals("bar", result.getTerms().get(1).getTerm());
+        assertEquals(2, result.getTerms().get(1).getCount());
+        assertEquals("baz", result.getTerms().get(2).getTerm());
+
+        spec.setTermsMinCount(2);
+        spec.setTermsLimit(1);
+        result = new IndexAggregator(spec).aggregate(reader, null);
+        assertEquals(1, result.getTerms().size());
+        assertEquals("foo", result.getTerms().get(0).getTerm());
+    }
+
+    @Test
+    public void weightedSum() throws IOException {
+        AggregationSpec spec = new AggregationSpec();
+        spec.addSum(countPropDef, "a", 1);
+        spec.addSum(countPropDef, "b", -1);
+        AggregationResult result = new IndexAggregator(spec).aggregate(reader, null);
+
+        // Per doc: 4, 2, -2, 1, 0
+        assertEquals(5, result.getTotal().getSum());
+        assertEquals(3, result.getTotal().getPositiveCount());
+        assertTrue(result.getGroups().isEmpty());
+        assertTrue(result.getTerms().isEmpty());
+    }
+
+    @Test
+    public void groupByUriDepth() throws IOException {
+        AggregationSpec spec = new AggregationSpec();
+        spec.addSum(countPropDef, "a", 1);
+        spec.setGroupByUriDepth(1);
+        AggregationResult result = new IndexAggregator(spec).aggregate(reader, null);
+
+        // Only documents below depth 1 are grouped
+        Map<Path, AggregationResult.Bucket> groups = result.getGroups();
+        assertEquals(2, groups.size());
+        Iterator<Map.Entry<Path, AggregationResult.Bucket>> it = groups.entrySet().iterator();
+        Map.Entry<Path, AggregationResult.Bucket> a = it.next();
+        assertEquals(Path.fromString("/a"), a.getKey());
+        assertEquals(2, a.getValue().getCount());
+        assertEquals(5, a.getValue().getSum());
+        Map.Entry<Path, AggregationResult.Bucket> b = it.next();
+        assertEquals(Path.fromString("/b"), b.getKey());
+        assertEquals(1, b.getValue().getSum());
+
+        spec.setGroupByUriDepth(0);
+        result = new IndexAggregator(spec).aggregate(reader, null);
+        assertEquals(1, result.getGroups().size());
+        assertEquals(5, result.getGroups().get(Path.ROOT).getCount());
+    }
+
+    @Test
+    public void segmentWithoutDocValues() throws IOException {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, 
+                new IndexWriterConfig(Version.LATEST, new KeywordAnalyzer()));
+        // Old format segment, with indexed and stored fields only
+        writer.addDocument(storedDoc("/a/x", "{\"a\": 3, \"b\": 1}", "foo", "bar", "foo"));
+        writer.addDocument(storedDoc("/b/x", "{\"a\": \"2\"}", "baz"));
+        writer.addDocument(storedDoc("/c", null));
+        writer.commit();
+        writer.addDocument(doc("/a/y", 5, 1, "foo"));
+        writer.close();
+
+        DirectoryReader r = DirectoryReader.open(dir);
+        try {
+            assertEquals(2, r.leaves().size());
+
+            AggregationSpec spec = new AggregationSpec();
+            spec.setTermFrequencies(tagsPropDef);
+            spec.addSum(countPropDef, "a", 1);
+            spec.addSum(countPropDef, "b", -1);
+            spec.setGroupByUriDepth(1);
+            AggregationResult result = new IndexAggregator(spec).aggregate(r, null);
+
+            assertEquals(4, result.getTotal().getCount());
+            // Per doc: 2, 2, 0, 4
+            assertEquals(8, result.getTotal().getSum());
+            assertEquals(3, result.getTotal().getPositiveCount());
+
+            assertEquals(3, result.getTerms().size());
+            assertEquals("foo", result.getTerms().get(0).getTerm());
+            assertEquals(2, result.getTerms().get(0).getCount());
+            assertEquals("bar", result.getTerms().get(1).getTerm());
+            assertEquals(1, result.getTerms().get(1).getCount());
+            assertEquals("baz", result.getTerms().get(2).getTerm());
+
+            assertEquals(2, result.getGroups().size());
+            assertEquals(6, result.getGroups().get(Path.fromString("/a")).getSum());
+            assertEquals(2, result.getGroups().get(Path.fromString("/b")).getSum());
+        } finally {
+            r.close();
+            dir.close();
+        }
+    }
+
+    private Document storedDoc(String uri, String json, String... tags) {
+        Document doc = new Document();
+        doc.add(new StringField(ResourceFields.URI_FIELD_NAME, uri, Field.Store.YES));
+        if (json != null) {
+            doc.add(new StoredField("p_count", json));
+            doc.add(new LongField("p_count@a", 0, Field.Store.NO));
+            doc.add(new LongField("p_count@b", 0, Field.Store.NO));
+        }
+        for (String tag : tags) {
+            doc.add(new StringField("p_tags", tag, Field.Store.YES));
+        }
+        return doc;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sumOfMultiValueProperty() {
+        new AggregationSpec().addSum(tagsPropDef);
+    }
+
+}
@@ -0,0 +1,246 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.repository.Acl;
+import vtk.repository.Path;
+import vtk.repository.PropertySetImpl;
+import vtk.repository.index.mapping.DocumentMapper;
+import vtk.repository.index.mapping.ResourceFields;
+import vtk.repository.resourcetype.ValueFactoryImpl;
+import vtk.security.PrincipalFactory;
+import vtk.testing.mocktypes.MockPrincipalFactory;
+import vtk.testing.mocktypes.MockResourceTypeTree;
+
+public class ParallelMatchIteratorTest {
+
+    private static final String[] TYPES = {"article", "event", "file"};
+
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private DocumentMapper documentMapper;
+    private SearcherImpl sequential;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        PrincipalFactory pf = new MockPrincipalFactory();
+        documentMapper = new DocumentMapper();
+        documentMapper.setLocale(Locale.getDefault());
+        documentMapper.setResourceTypeTree(new MockResourceTypeTree());
+        documentMapper.setPrincipalFactory(pf);
+        ValueFactoryImpl vf = new ValueFactoryImpl();
+        vf.setPrincipalFactory(pf);
+        documentMapper.setValueFactory(vf);
+        documentMapper.afterPropertiesSet();
+
+        // Several segments, each spanning more than one batch, and with
+        // equal resource types (sort keys) in all of them
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, 
+                new IndexWriterConfig(Version.LATEST, new KeywordAnalyzer()));
+        int id = 0;
+        for (int segment = 0; segment < 3; segment++) {
+            for (int i = 0; i < 400; i++, id++) {
+                writer.addDocument(doc(id, TYPES[(id * 7) % TYPES.length]));
+            }
+            writer.commit();
+        }
+        // Deleted docs are never delivered
+        for (int i = 0; i < id; i += 11) {
+            writer.deleteDocuments(new Term(ResourceFields.URI_FIELD_NAME, uri(i).toString()));
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        assertTrue(reader.leaves().size() > 1);
+        assertTrue(reader.numDocs() < reader.maxDoc());
+
+        sequential = new SearcherImpl();
+        sequential.setDocumentMapper(documentMapper);
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void sortedSameAsSequential() throws Exception {
+        String field = ResourceFields.RESOURCETYPE_FIELD_NAME;
+        int[][] cursorLimits = {{0, Integer.MAX_VALUE}, {0, 1}, {10, 100}, {390, 400}, {5000, 10}};
+        for (int[] cl: cursorLimits) {
+            Collector expected = new Collector(-1);
+            sequential.iterateOnField(field, null, reader, PropertySelect.NONE, cl[0], cl[1], expected);
+            Collector actual = new Collector(-1);
+            parallel().iterate(reader, null, field, cl[0], cl[1], actual);
+            assertEquals("cursor " + cl[0] + ", limit " + cl[1], expected.uris, actual.uris);
+        }
+
+        Filter filter = typeFilter("event");
+        Collector expected = new Collector(-1);
+        sequential.iterateOnField(field, filter, reader, PropertySelect.NONE, 0, Integer.MAX_VALUE, expected);
+        Collector actual = new Collector(-1);
+        parallel().iterate(reader, filter, field, 0, Integer.MAX_VALUE, actual);
+        assertTrue(expected.uris.size() > 0);
+        assertEquals(expected.uris, actual.uris);
+    }
+
+    @Test
+    public void unsortedSameAsSequential() throws Exception {
+        Collector expected = new Collector(-1);
+        sequential.iterate(null, reader, PropertySelect.NONE, 0, Integer.MAX_VALUE, expected);
+        Collector actual = new Collector(-1);
+        parallel().iterate(reader, null, null, 0, Integer.MAX_VALUE, actual);
+        assertEquals(reader.numDocs(), actual.uris.size());
+        assertEquals(expected.uris, actual.uris);
+
+        Filter filter = typeFilter("file");
+        expected = new Collector(-1);
+        sequential.iterate(filter, reader, PropertySelect.NONE, 0, Integer.MAX_VALUE, expected);
+        actual = new Collector(-1);
+        parallel().iterate(reader, filter, null, 0, Integer.MAX_VALUE, actual);
+        assertTrue(expected.uris.size() > 0);
+        assertEquals(expected.uris, actual.uris);
+    }
+
+    // Paging through unsorted matches with a cursor gives the same pages as
+    // sequential iteration, so that every match is seen exactly once. Pages
+    // span batch and segment boundaries.
+    @Test
+    public void unsortedPagingSameAsSequential() throws Exception {
+        Filter[] filters = {null, typeFilter("article")};
+        for (Filter filter: filters) {
+            int pageSize = 97;
+            List<Path> all = new ArrayList<Path>();
+            for (int cursor = 0; ; cursor += pageSize) {
+                Collector expected = new Collector(-1);
+                sequential.iterate(filter, reader, PropertySelect.NONE, cursor, pageSize, expected);
+                Collector actual = new Collector(-1);
+                parallel().iterate(reader, filter, null, cursor, pageSize, actual);
+                assertEquals("cursor " + cursor, expected.uris, actual.uris);
+                if (actual.uris.isEmpty()) {
+                    break;
+                }
+                all.addAll(actual.uris);
+            }
+            assertEquals(all.size(), new HashSet<Path>(all).size());
+            Collector complete = new Collector(-1);
+            sequential.iterate(filter, reader, PropertySelect.NONE, 0, Integer.MAX_VALUE, complete);
+            assertEquals(complete.uris, all);
+        }
+    }
+
+    @Test
+    public void earlyTermination() throws Exception {
+        String field = ResourceFields.RESOURCETYPE_FIELD_NAME;
+        Collector expected = new Collector(5);
+        sequential.iterateOnField(field, null, reader, PropertySelect.NONE, 0, Integer.MAX_VALUE, expected);
+        Collector actual = new Collector(5);
+        parallel().iterate(reader, null, field, 0, Integer.MAX_VALUE, actual);
+        assertEquals(5, actual.uris.size());
+        assertEquals(expected.uris, actual.uris);
+
+        expected = new Collector(5);
+        sequential.iterate(null, reader, PropertySelect.NONE, 0, Integer.MAX_VALUE, expected);
+        actual = new Collector(5);
+        parallel().iterate(reader, null, null, 0, Integer.MAX_VALUE, actual);
+        assertEquals(5, actual.uris.size());
+        assertEquals(expected.uris, actual.uris);
+
+        // Nothing delivered with a non-positive limit
+        actual = new Collector(-1);
+        parallel().iterate(reader, null, null, 0, 0, actual);
+        assertTrue(actual.uris.isEmpty());
+    }
+
+    private ParallelMatchIterator parallel() {
+        return new ParallelMatchIterator(executor, documentMapper, PropertySelect.NONE);
+    }
+
+    private Filter typeFilter(String type) {
+        return new QueryWrapperFilter(new TermQuery(new Term(ResourceFields.RESOURCETYPE_FIELD_NAME, type)));
+    }
+
+    private org.apache.lucene.document.Document doc(int id, String type) throws Exception {
+        PropertySetImpl propSet = new PropertySetImpl();
+        propSet.setUri(uri(id));
+        propSet.setID(id);
+        propSet.setResourceType(type);
+        return documentMapper.getDocument(propSet, Acl.EMPTY_ACL);
+    }
+
+    private static Path uri(int id) {
+        return Path.fromString("/r" + id);
+    }
+
+    // Collects URIs, stopping after a number of matches if not negative
+    private static class Collector implements Searcher.MatchCallback {
+        private final int stopAfter;
+        final List<Path> uris = new ArrayList<Path>();
+
+        Collector(int stopAfter) {
+            this.stopAfter = stopAfter;
+        }
+
+        @Override
+        public boolean matching(Searcher.MatchingResult result) {
+            this.uris.add(result.propertySet().getURI());
+            return this.uris.size() != this.stopAfter;
+        }
+    }
+}
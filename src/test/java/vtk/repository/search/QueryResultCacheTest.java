@@ -0,0 +1,252 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.repository.search.query.TermOperator;
+import vtk.repository.search.query.UriTermQuery;
+
+public class QueryResultCacheTest {
+
+    private RAMDirectory directory;
+    private IndexWriter writer;
+    private DirectoryReader reader;
+    private QueryResultCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        writer = new IndexWriter(directory, new IndexWriterConfig(Version.LATEST, new KeywordAnalyzer()));
+        addDoc("/a");
+        reader = DirectoryReader.open(directory);
+        cache = new QueryResultCache();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void keys() {
+        // Cursor, limit and property selection are not part of the key
+        Search first = search("/a").setCursor(0).setLimit(10);
+        Search second = search("/a").setCursor(5).setLimit(100).setPropertySelect(PropertySelect.NONE);
+        assertEquals(cache.key(first, null, reader), cache.key(second, null, reader));
+        assertEquals(cache.key(first, null, reader).hashCode(), cache.key(second, null, reader).hashCode());
+
+        assertFalse(cache.key(first, null, reader).equals(cache.key(search("/b"), null, reader)));
+        Sort sort = new Sort(new SortField("uri", SortField.Type.STRING));
+        assertFalse(cache.key(first, null, reader).equals(cache.key(first, sort, reader)));
+        assertEquals(cache.key(first, sort, reader), cache.key(second, new Sort(new SortField("uri", SortField.Type.STRING)), reader));
+        Search unfiltered = search("/a").clearAllFilterFlags();
+        assertFalse(cache.key(first, null, reader).equals(cache.key(unfiltered, null, reader)));
+    }
+
+    @Test
+    public void covers() {
+        // Ten top hits of a hundred
+        QueryResultCache.Entry partial = entry(10, 100);
+        assertTrue(partial.covers(1));
+        assertTrue(partial.covers(10));
+        assertFalse(partial.covers(11));
+
+        // All hits
+        QueryResultCache.Entry complete = entry(5, 5);
+        assertTrue(complete.covers(5));
+        assertTrue(complete.covers(1000));
+
+        // A page is served if the entry has hits up to its end (cursor + limit)
+        QueryResultCache.Key key = cache.key(search("/a"), null, reader);
+        cache.put(key, partial);
+        assertSame(partial, cache.get(key, 5 + 5));
+        assertSame(partial, cache.get(key, 0 + 10));
+        assertNull(cache.get(key, 5 + 10));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictionUnderMaxBytes() {
+        QueryResultCache.Key a = cache.key(search("/a"), null, reader);
+        QueryResultCache.Key b = cache.key(search("/b"), null, reader);
+        QueryResultCache.Key c = cache.key(search("/c"), null, reader);
+        QueryResultCache.Entry entry = entry(100, 1000);
+        long entryBytes = a.bytes() + entry.bytes();
+        // A single segment, so that eviction is least recently used over all keys
+        cache.setSegments(1);
+        cache.setMaxBytes(2 * entryBytes);
+
+        cache.put(a, entry);
+        cache.put(b, entry(100, 1000));
+        assertEquals(2, cache.getSize());
+        assertEquals(2 * entryBytes, cache.getBytes());
+
+        // Least recently used entry is evicted first
+        assertNotNull(cache.get(a, 10));
+        cache.put(c, entry(100, 1000));
+        assertEquals(2, cache.getSize());
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+        assertNotNull(cache.get(a, 10));
+        assertNull(cache.get(b, 10));
+        assertNotNull(cache.get(c, 10));
+
+        // Replacing an entry does not count it twice
+        cache.put(c, entry(100, 1000));
+        assertEquals(2 * entryBytes, cache.getBytes());
+
+        // Entries larger than the cache are not stored
+        cache.put(b, entry(100000, 1000000));
+        assertNull(cache.get(b, 10));
+        assertEquals(2, cache.getSize());
+    }
+
+    // Each segment is bounded by its share of the maximum size, and
+    // concurrent use keeps the size accounting consistent
+    @Test
+    public void segmentedConcurrentUse() throws Exception {
+        final QueryResultCache.Entry entry = entry(100, 1000);
+        long entryBytes = cache.key(search("/r100"), null, reader).bytes() + entry.bytes();
+        cache.setSegments(4);
+        cache.setMaxBytes(40 * entryBytes);
+
+        Thread[] threads = new Thread[4];
+        final Throwable[] failures = new Throwable[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int worker = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            QueryResultCache.Key key = cache.key(search("/r" + (100 + (i * 7 + worker) % 200)), null, reader);
+                            if (cache.get(key, 10) == null) {
+                                cache.put(key, entry);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[worker] = t;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            if (failures[t] != null) {
+                throw new AssertionError(failures[t]);
+            }
+        }
+
+        assertEquals(4 * 2000, cache.getHits() + cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+        assertTrue(cache.getSize() > 0);
+        assertEquals(cache.getSize() * entryBytes, cache.getBytes());
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getHits() + cache.getMisses());
+    }
+
+    @Test
+    public void invalidatedByNewReaderVersion() throws Exception {
+        QueryResultCache.Key oldKey = cache.key(search("/a"), null, reader);
+        cache.put(oldKey, entry(1, 1));
+        assertNotNull(cache.get(oldKey, 1));
+
+        addDoc("/b");
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        assertNotNull(newReader);
+        try {
+            QueryResultCache.Key newKey = cache.key(search("/a"), null, newReader);
+            assertFalse(oldKey.equals(newKey));
+            assertNull(cache.get(newKey, 1));
+            // All entries of older readers are dropped
+            assertEquals(0, cache.getSize());
+            assertEquals(0, cache.getBytes());
+
+            // Results from an older reader are not stored
+            cache.put(oldKey, entry(1, 1));
+            assertEquals(0, cache.getSize());
+            assertNull(cache.get(oldKey, 1));
+
+            cache.put(newKey, entry(2, 2));
+            assertNotNull(cache.get(newKey, 2));
+        } finally {
+            newReader.close();
+        }
+    }
+
+    private void addDoc(String uri) throws Exception {
+        Document doc = new Document();
+        doc.add(new StringField("uri", uri, Field.Store.YES));
+        writer.addDocument(doc);
+        writer.commit();
+    }
+
+    private static Search search(String uri) {
+        return new Search().setQuery(new UriTermQuery(uri, TermOperator.EQ));
+    }
+
+    private static QueryResultCache.Entry entry(int docs, int totalHits) {
+        ScoreDoc[] scoreDocs = new ScoreDoc[docs];
+        for (int i = 0; i < docs; i++) {
+            scoreDocs[i] = new ScoreDoc(i, 1.0f);
+        }
+        return new QueryResultCache.Entry(scoreDocs, totalHits);
+    }
+}
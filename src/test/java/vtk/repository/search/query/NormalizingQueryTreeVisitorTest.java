@@ -0,0 +1,107 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search.query;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NormalizingQueryTreeVisitorTest {
+
+    private String normalize(Query query) {
+        return (String) query.accept(new NormalizingQueryTreeVisitor(), null);
+    }
+
+    @Test
+    public void subQueryOrder() {
+        AndQuery a = new AndQuery();
+        a.add(new UriPrefixQuery("/foo"));
+        a.add(new TypeTermQuery("file", TermOperator.IN));
+
+        AndQuery b = new AndQuery();
+        b.add(new TypeTermQuery("file", TermOperator.IN));
+        b.add(new UriPrefixQuery("/foo"));
+
+        assertEquals(normalize(a), normalize(b));
+    }
+
+    @Test
+    public void flattenAndDeduplicate() {
+        AndQuery nested = new AndQuery();
+        nested.add(new UriPrefixQuery("/foo"));
+        nested.add(new NameTermQuery("index.html", TermOperator.EQ));
+        AndQuery a = new AndQuery();
+        a.add(nested);
+        a.add(new UriPrefixQuery("/foo"));
+
+        AndQuery b = new AndQuery();
+        b.add(new NameTermQuery("index.html", TermOperator.EQ));
+        b.add(new UriPrefixQuery("/foo"));
+
+        assertEquals(normalize(b), normalize(a));
+
+        OrQuery single = new OrQuery();
+        single.add(new UriPrefixQuery("/foo"));
+        assertEquals(normalize(new UriPrefixQuery("/foo")), normalize(single));
+    }
+
+    @Test
+    public void andIsNotOr() {
+        AndQuery a = new AndQuery();
+        a.add(new UriPrefixQuery("/foo"));
+        a.add(new UriPrefixQuery("/bar"));
+        OrQuery o = new OrQuery();
+        o.add(new UriPrefixQuery("/foo"));
+        o.add(new UriPrefixQuery("/bar"));
+        assertFalse(normalize(a).equals(normalize(o)));
+    }
+
+    @Test
+    public void attributesDistinguish() {
+        assertFalse(normalize(new UriPrefixQuery("/foo")).equals(normalize(new UriPrefixQuery("/foo", true))));
+        assertFalse(normalize(new TypeTermQuery("file", TermOperator.IN))
+                .equals(normalize(new TypeTermQuery("file", TermOperator.EQ))));
+        // Values cannot be confused with structure
+        assertFalse(normalize(new NameTermQuery("a,1:b", TermOperator.EQ))
+                .equals(normalize(new NameTermQuery("a", TermOperator.EQ))));
+    }
+
+    @Test
+    public void uriSetOrder() {
+        UriSetQuery a = new UriSetQuery(new LinkedHashSet<String>(Arrays.asList("/a", "/b")));
+        UriSetQuery b = new UriSetQuery(new LinkedHashSet<String>(Arrays.asList("/b", "/a")));
+        assertEquals(normalize(a), normalize(b));
+    }
+
+}
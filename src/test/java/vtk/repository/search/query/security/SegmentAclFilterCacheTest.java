@@ -0,0 +1,241 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.search.query.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentAclFilterCacheTest {
+
+    private static final String URI_FIELD = "uri";
+    private static final String ACL_FIELD = "acl";
+
+    private RAMDirectory directory;
+    private IndexWriter writer;
+    private SegmentAclFilterCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new RAMDirectory();
+        writer = new IndexWriter(directory, new IndexWriterConfig(Version.LATEST, new KeywordAnalyzer()));
+        cache = new SegmentAclFilterCache(1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void reusedPerSegment() throws Exception {
+        addDoc("/a", "alice");
+        addDoc("/b", "bob");
+        writer.commit();
+        addDoc("/c", "alice");
+        writer.commit();
+
+        CountingFilter counting = new CountingFilter("alice");
+        Filter filter = cache.wrap(counting, counting.terms);
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertEquals(2, reader.leaves().size());
+        assertEquals(set("/a", "/c"), search(reader, filter));
+        assertEquals(2, counting.computed.get());
+        assertEquals(2, cache.getSize());
+
+        // Another filter instance for the same ACL terms, as built by a later request
+        CountingFilter sameTerms = new CountingFilter("alice");
+        assertEquals(set("/a", "/c"), search(reader, cache.wrap(sameTerms, sameTerms.terms)));
+        assertEquals(0, sameTerms.computed.get());
+
+        // A new segment only needs its own bitset
+        addDoc("/d", "alice");
+        writer.commit();
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        assertEquals(3, newReader.leaves().size());
+        assertEquals(set("/a", "/c", "/d"), search(newReader, filter));
+        assertEquals(3, counting.computed.get());
+        assertEquals(3, cache.getSize());
+
+        // Other ACL terms get entries of their own
+        CountingFilter bob = new CountingFilter("bob");
+        assertEquals(set("/b"), search(newReader, cache.wrap(bob, bob.terms)));
+        assertEquals(3, bob.computed.get());
+        assertEquals(6, cache.getSize());
+
+        reader.close();
+        newReader.close();
+    }
+
+    @Test
+    public void invalidatedByAclChange() throws Exception {
+        addDoc("/a", "alice");
+        addDoc("/b", "bob");
+        writer.commit();
+
+        CountingFilter counting = new CountingFilter("alice");
+        Filter filter = cache.wrap(counting, counting.terms);
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertEquals(set("/a"), search(reader, filter));
+
+        // Changing ACLs re-indexes the documents into a new segment
+        updateDoc("/a", "bob");
+        updateDoc("/b", "alice");
+        writer.commit();
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        // Old segment bitset is reused, its updated documents are deleted
+        assertEquals(set("/b"), search(newReader, filter));
+        assertEquals(2, counting.computed.get());
+
+        // Bitsets of the old segment are dropped once all its readers are closed
+        writer.forceMerge(1);
+        writer.commit();
+        DirectoryReader mergedReader = DirectoryReader.openIfChanged(newReader);
+        assertEquals(set("/b"), search(mergedReader, filter));
+        assertEquals(3, counting.computed.get());
+        assertEquals(3, cache.getSize());
+        reader.close();
+        newReader.close();
+        assertEquals(1, cache.getSize());
+        assertTrue(cache.getBytes() > 0);
+
+        mergedReader.close();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void boundedByMaxBytes() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            addDoc("/" + i, "alice");
+            writer.commit();
+        }
+        DirectoryReader reader = DirectoryReader.open(directory);
+        CountingFilter counting = new CountingFilter("alice");
+
+        SegmentAclFilterCache unbounded = new SegmentAclFilterCache(1024 * 1024);
+        search(reader, unbounded.wrap(counting, counting.terms));
+        long entryBytes = unbounded.getBytes() / reader.leaves().size();
+
+        cache = new SegmentAclFilterCache(2 * entryBytes);
+        Filter filter = cache.wrap(counting, counting.terms);
+        assertEquals(set("/0", "/1", "/2", "/3"), search(reader, filter));
+        assertEquals(2, cache.getSize());
+        assertTrue(cache.getBytes() <= 2 * entryBytes);
+        reader.close();
+    }
+
+    private void addDoc(String uri, String acl) throws IOException {
+        writer.addDocument(doc(uri, acl));
+    }
+
+    private void updateDoc(String uri, String acl) throws IOException {
+        writer.updateDocument(new Term(URI_FIELD, uri), doc(uri, acl));
+    }
+
+    private static Document doc(String uri, String acl) {
+        Document doc = new Document();
+        doc.add(new StringField(URI_FIELD, uri, Field.Store.YES));
+        doc.add(new StringField(ACL_FIELD, acl, Field.Store.NO));
+        return doc;
+    }
+
+    private static Set<String> search(DirectoryReader reader, Filter filter) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TopDocs docs = searcher.search(new MatchAllDocsQuery(), filter, 100);
+        Set<String> uris = new HashSet<String>();
+        for (ScoreDoc doc : docs.scoreDocs) {
+            uris.add(searcher.doc(doc.doc).get(URI_FIELD));
+        }
+        return uris;
+    }
+
+    private static Set<String> set(String... values) {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+
+    private static class CountingFilter extends Filter {
+        final List<String> terms;
+        final Filter filter;
+        final AtomicInteger computed = new AtomicInteger();
+
+        CountingFilter(String... terms) {
+            List<String> sorted = new ArrayList<String>(Arrays.asList(terms));
+            Collections.sort(sorted);
+            this.terms = Collections.unmodifiableList(sorted);
+            List<Term> termList = new ArrayList<Term>();
+            for (String t : sorted) {
+                termList.add(new Term(ACL_FIELD, t));
+            }
+            this.filter = new TermsFilter(termList);
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            this.computed.incrementAndGet();
+            return this.filter.getDocIdSet(context, acceptDocs);
+        }
+    }
+}
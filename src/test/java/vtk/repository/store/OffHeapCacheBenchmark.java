@@ -0,0 +1,196 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import vtk.repository.Acl;
+import vtk.repository.Namespace;
+import vtk.repository.Path;
+import vtk.repository.Privilege;
+import vtk.repository.PropertyImpl;
+import vtk.repository.ResourceImpl;
+import vtk.repository.resourcetype.PropertyType.Type;
+import vtk.repository.resourcetype.PropertyTypeDefinition;
+import vtk.repository.resourcetype.PropertyTypeDefinitionImpl;
+import vtk.repository.resourcetype.Value;
+import vtk.security.Principal;
+import vtk.security.PrincipalFactory;
+import vtk.security.PrincipalImpl;
+import vtk.testing.mocktypes.MockPrincipalFactory;
+import vtk.testing.mocktypes.MockResourceTypeTree;
+
+/**
+ * Compares hit latency and memory footprint of on-heap ({@link Cache})
+ * and off-heap ({@link OffHeapCache}) storage of typical resources.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.repository.store.OffHeapCacheBenchmark</code>
+ */
+public class OffHeapCacheBenchmark {
+
+    private static final Map<String, PropertyTypeDefinition> definitions = 
+            new HashMap<String, PropertyTypeDefinition>();
+
+    public static void main(String[] args) {
+        def("title", Type.STRING, false);
+        def("tags", Type.STRING, true);
+        def("lastModified", Type.TIMESTAMP, false);
+        def("contentLength", Type.LONG, false);
+        def("published", Type.BOOLEAN, false);
+        def("owner", Type.PRINCIPAL, false);
+        def("numberOfComments", Type.INT, false);
+        def("publish-date", Type.DATE, false);
+        def("introduction", Type.HTML, false);
+
+        int n = 20000;
+        int lookups = 500000;
+
+        Cache heapCache = new Cache();
+        System.gc();
+        long heapBefore = usedHeap();
+        Cache.Items heap = heapCache.createItems(n);
+        for (int i = 0; i < n; i++) {
+            heap.put(newResource(uri(i), i));
+        }
+        System.gc();
+        long heapBytes = usedHeap() - heapBefore;
+        measure("Cache", heap, n, lookups, heapBytes, 0);
+        heap.clear();
+        heap = null;
+
+        OffHeapCache cache = new OffHeapCache();
+        cache.setPrincipalFactory(new MockPrincipalFactory());
+        cache.setResourceTypeTree(new MockResourceTypeTree() {
+            @Override
+            public PropertyTypeDefinition getPropertyTypeDefinition(Namespace namespace, String name) {
+                return definitions.get(name);
+            }
+        });
+        cache.setSlabSize(1024 * 1024);
+        cache.setMaxMemory(256 * 1024 * 1024);
+        System.gc();
+        heapBefore = usedHeap();
+        Cache.Items offHeap = cache.createItems(n);
+        for (int i = 0; i < n; i++) {
+            offHeap.put(newResource(uri(i), i));
+        }
+        System.gc();
+        heapBytes = usedHeap() - heapBefore;
+        measure("OffHeapCache", offHeap, n, lookups, heapBytes, cache.getMemoryUsed());
+    }
+
+    private static void measure(String name, Cache.Items items, int n, int lookups, 
+            long heapBytes, long offHeapBytes) {
+        Random random = new Random(0);
+        long checksum = 0;
+        // Warm up
+        for (int i = 0; i < lookups / 10; i++) {
+            checksum += items.get(uri(random.nextInt(n))).getID();
+        }
+        Path[] uris = new Path[1000];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = uri(random.nextInt(n));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            ResourceImpl r = items.get(uris[i % uris.length]);
+            checksum += r.getProperties().size();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": " + (elapsed / lookups) + " ns per hit, "
+                + (heapBytes / n) + " heap bytes per entry, " 
+                + (offHeapBytes / n) + " off-heap bytes per entry (checksum " + checksum + ")");
+    }
+
+    private static Path uri(int i) {
+        return Path.fromString("/folder" + (i % 100) + "/resource" + i + ".html");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static ResourceImpl newResource(Path uri, int id) {
+        ResourceImpl resource = new ResourceImpl(uri);
+        resource.setID(id);
+        resource.setResourceType("article");
+        Map<Privilege, Set<Principal>> actionSets = new EnumMap<Privilege, Set<Principal>>(Privilege.class);
+        Set<Principal> all = new HashSet<Principal>();
+        all.add(new PrincipalImpl("vortex@localhost", Principal.Type.USER));
+        all.add(new PrincipalImpl("admins@localhost", Principal.Type.GROUP));
+        actionSets.put(Privilege.ALL, all);
+        Set<Principal> read = new HashSet<Principal>();
+        read.add(PrincipalFactory.ALL);
+        actionSets.put(Privilege.READ, read);
+        resource.setAcl(new Acl(actionSets));
+
+        resource.addProperty(prop("title", new Value("Resource number " + id, Type.STRING)));
+        resource.addProperty(prop("tags", new Value("tag" + (id % 7), Type.STRING), new Value("common", Type.STRING)));
+        resource.addProperty(prop("lastModified", new Value(new Date(1400000000000L + id), false)));
+        resource.addProperty(prop("contentLength", new Value((long) id * 1000)));
+        resource.addProperty(prop("published", new Value(true)));
+        resource.addProperty(prop("owner", new Value(
+                new PrincipalImpl("user" + (id % 50) + "@localhost", Principal.Type.USER))));
+        resource.addProperty(prop("numberOfComments", new Value(id % 5)));
+        resource.addProperty(prop("publish-date", new Value(new Date(1400000000000L), true)));
+        resource.addProperty(prop("introduction", new Value("<p>Introduction to " + id + "</p>", Type.HTML)));
+        return resource;
+    }
+
+    private static PropertyImpl prop(String name, Value... values) {
+        PropertyTypeDefinition def = definitions.get(name);
+        PropertyImpl prop = new PropertyImpl();
+        prop.setDefinition(def);
+        if (def.isMultiple()) {
+            prop.setValues(values, false);
+        } else {
+            prop.setValue(values[0], false);
+        }
+        return prop;
+    }
+
+    private static void def(String name, Type type, boolean multiple) {
+        PropertyTypeDefinitionImpl def = new PropertyTypeDefinitionImpl();
+        def.setNamespace(Namespace.DEFAULT_NAMESPACE);
+        def.setName(name);
+        def.setType(type);
+        def.setMultiple(multiple);
+        definitions.put(name, def);
+    }
+}
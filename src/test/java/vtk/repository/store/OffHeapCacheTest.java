@@ -0,0 +1,283 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import vtk.repository.Acl;
+import vtk.repository.LockImpl;
+import vtk.repository.Namespace;
+import vtk.repository.Path;
+import vtk.repository.Privilege;
+import vtk.repository.PropertyImpl;
+import vtk.repository.Repository;
+import vtk.repository.ResourceImpl;
+import vtk.repository.resourcetype.PropertyType.Type;
+import vtk.repository.resourcetype.PropertyTypeDefinition;
+import vtk.repository.resourcetype.PropertyTypeDefinitionImpl;
+import vtk.repository.resourcetype.Value;
+import vtk.security.Principal;
+import vtk.security.PrincipalFactory;
+import vtk.security.PrincipalImpl;
+import vtk.testing.mocktypes.MockPrincipalFactory;
+import vtk.testing.mocktypes.MockResourceTypeTree;
+
+public class OffHeapCacheTest {
+
+    private final Map<String, PropertyTypeDefinition> definitions = new HashMap<String, PropertyTypeDefinition>();
+    private final List<PropertyTypeDefinition> propDefs = new ArrayList<PropertyTypeDefinition>();
+    private OffHeapCache cache;
+
+    @Before
+    public void setUp() {
+        def("title", Type.STRING, false);
+        def("tags", Type.STRING, true);
+        def("lastModified", Type.TIMESTAMP, false);
+        def("contentLength", Type.LONG, false);
+        def("published", Type.BOOLEAN, false);
+        def("owner", Type.PRINCIPAL, false);
+        def("numberOfComments", Type.INT, false);
+        def("publish-date", Type.DATE, false);
+        def("introduction", Type.HTML, false);
+
+        this.cache = new OffHeapCache();
+        this.cache.setPrincipalFactory(new MockPrincipalFactory());
+        this.cache.setResourceTypeTree(new MockResourceTypeTree() {
+            @Override
+            public PropertyTypeDefinition getPropertyTypeDefinition(Namespace namespace, String name) {
+                return definitions.get(name);
+            }
+        });
+        this.cache.setSlabSize(16 * 1024);
+        this.cache.setMaxMemory(1024 * 1024);
+    }
+
+    @Test
+    public void roundTrip() {
+        Cache.Items items = this.cache.createItems(1000);
+        ResourceImpl resource = newResource(Path.fromString("/a/b"), 42);
+        resource.setChildURIs(list(Path.fromString("/a/b/c"), Path.fromString("/a/b/d.html")));
+        resource.setLock(new LockImpl("opaquelocktoken:1234", principal("vortex@localhost"),
+                "owner info", Repository.Depth.INF, new Date(1500000000000L)));
+        items.put(resource);
+
+        ResourceImpl cached = items.get(resource.getURI());
+        assertNotSame(resource, cached);
+        assertEquals(resource.getURI(), cached.getURI());
+        assertEquals(resource.getID(), cached.getID());
+        assertEquals(resource.getResourceType(), cached.getResourceType());
+        assertEquals(resource.isInheritedAcl(), cached.isInheritedAcl());
+        assertEquals(resource.getAclInheritedFrom(), cached.getAclInheritedFrom());
+        assertEquals(resource.getAcl(), cached.getAcl());
+        assertEquals(resource.getChildURIs(), cached.getChildURIs());
+        assertEquals(resource.getLock().getLockToken(), cached.getLock().getLockToken());
+        assertEquals(resource.getLock().getPrincipal(), cached.getLock().getPrincipal());
+        assertEquals(resource.getLock().getOwnerInfo(), cached.getLock().getOwnerInfo());
+        assertEquals(resource.getLock().getDepth(), cached.getLock().getDepth());
+        assertEquals(resource.getLock().getTimeout(), cached.getLock().getTimeout());
+        assertEquals(resource.getProperties().size(), cached.getProperties().size());
+        for (PropertyTypeDefinition def: this.propDefs) {
+            assertEquals(resource.getProperty(def), cached.getProperty(def));
+            // Definitions are interned through the resource type tree
+            assertSame(def, cached.getProperty(def).getDefinition());
+        }
+
+        // Null child list, no lock and inherited ACL
+        ResourceImpl inherited = new ResourceImpl(Path.fromString("/a/b/c"));
+        inherited.setID(43);
+        inherited.setAcl(resource.getAcl());
+        inherited.setAclInheritedFrom(42);
+        items.put(inherited);
+        ResourceImpl cachedInherited = items.get(inherited.getURI());
+        assertNull(cachedInherited.getChildURIs());
+        assertNull(cachedInherited.getLock());
+        assertTrue(cachedInherited.isInheritedAcl());
+        assertEquals(42, cachedInherited.getAclInheritedFrom());
+        assertEquals(2, items.size());
+    }
+
+    @Test
+    public void fallbackToHeap() {
+        Cache.Items items = this.cache.createItems(1000);
+        ResourceImpl resource = new ResourceImpl(Path.fromString("/a"));
+        // Multiplicity does not match definition in resource type tree
+        PropertyTypeDefinitionImpl def = new PropertyTypeDefinitionImpl();
+        def.setNamespace(Namespace.DEFAULT_NAMESPACE);
+        def.setName("tags");
+        def.setType(Type.STRING);
+        PropertyImpl prop = new PropertyImpl();
+        prop.setDefinition(def);
+        prop.setValue(new Value("foo", Type.STRING), false);
+        resource.addProperty(prop);
+        items.put(resource);
+
+        assertSame(resource, items.get(resource.getURI()));
+        assertEquals(0, this.cache.getMemoryUsed());
+    }
+
+    @Test
+    public void eviction() {
+        Cache.Items items = this.cache.createItems(500);
+        for (int i = 0; i < 2000; i++) {
+            items.put(newResource(Path.fromString("/d" + (i % 10) + "/r" + i), i));
+            assertTrue(items.size() <= 500);
+        }
+        // Most recently added resources are retained
+        ResourceImpl last = items.get(Path.fromString("/d9/r1999"));
+        assertNotNull(last);
+        assertEquals(1999, last.getID());
+        assertEquals(items.size(), items.descendants(Path.ROOT).size());
+
+        items.remove(Path.fromString("/d9"), true);
+        assertNull(items.get(Path.fromString("/d9/r1999")));
+        assertTrue(items.descendants(Path.fromString("/d9")).isEmpty());
+
+        // Memory bound is honored when entries are many, but few
+        this.cache.setSlabSize(1024);
+        this.cache.setMaxMemory(8 * 1024);
+        items = this.cache.createItems(100000);
+        for (int i = 0; i < 2000; i++) {
+            items.put(newResource(Path.fromString("/r" + i), i));
+            assertTrue(this.cache.getMemoryUsed() <= 8 * 1024);
+        }
+        assertNotNull(items.get(Path.fromString("/r1999")));
+        assertTrue(items.size() < 2000);
+
+        items.clear();
+        assertEquals(0, items.size());
+        assertEquals(0, this.cache.getMemoryUsed());
+    }
+
+    @Test
+    public void principalsResolvedOutsideLock() {
+        final Cache.Items[] items = new Cache.Items[1];
+        final List<String> lookups = new ArrayList<String>();
+        this.cache.setPrincipalFactory(new MockPrincipalFactory() {
+            @Override
+            public Principal getPrincipal(String id, Principal.Type type) {
+                assertFalse("Principal factory called under lock", Thread.holdsLock(items[0]));
+                lookups.add(id);
+                if (id.startsWith("user")) {
+                    throw new IllegalStateException("Lookup failed");
+                }
+                return super.getPrincipal(id, type);
+            }
+        });
+        items[0] = this.cache.createItems(1000);
+        ResourceImpl resource = newResource(Path.fromString("/a"), 1);
+        resource.setLock(new LockImpl("opaquelocktoken:1", principal("user1@localhost"),
+                "owner info", Repository.Depth.ZERO, new Date(1500000000000L)));
+        items[0].put(resource);
+        assertTrue(lookups.contains("vortex@localhost"));
+        assertTrue(lookups.contains("user1@localhost"));
+
+        // Principals which cannot be looked up are encoded as is
+        ResourceImpl cached = items[0].get(resource.getURI());
+        assertNotSame(resource, cached);
+        assertEquals(resource.getLock().getPrincipal(), cached.getLock().getPrincipal());
+        assertEquals(resource.getAcl(), cached.getAcl());
+
+        // Resolved principals are interned only once
+        int n = lookups.size();
+        items[0].put(newResource(Path.fromString("/b"), 1));
+        assertEquals(n, lookups.size());
+    }
+
+    private ResourceImpl newResource(Path uri, int id) {
+        ResourceImpl resource = new ResourceImpl(uri);
+        resource.setID(id);
+        resource.setResourceType("article");
+        Map<Privilege, Set<Principal>> actionSets = new EnumMap<Privilege, Set<Principal>>(Privilege.class);
+        Set<Principal> all = new HashSet<Principal>();
+        all.add(principal("vortex@localhost"));
+        all.add(new PrincipalImpl("admins@localhost", Principal.Type.GROUP));
+        actionSets.put(Privilege.ALL, all);
+        Set<Principal> read = new HashSet<Principal>();
+        read.add(PrincipalFactory.ALL);
+        actionSets.put(Privilege.READ, read);
+        resource.setAcl(new Acl(actionSets));
+
+        resource.addProperty(prop("title", new Value("Resource number " + id, Type.STRING)));
+        resource.addProperty(prop("tags", new Value("tag" + (id % 7), Type.STRING), new Value("common", Type.STRING)));
+        resource.addProperty(prop("lastModified", new Value(new Date(1400000000000L + id), false)));
+        resource.addProperty(prop("contentLength", new Value((long) id * 1000)));
+        resource.addProperty(prop("published", new Value(true)));
+        resource.addProperty(prop("owner", new Value(principal("user" + (id % 50) + "@localhost"))));
+        resource.addProperty(prop("numberOfComments", new Value(id % 5)));
+        resource.addProperty(prop("publish-date", new Value(new Date(1400000000000L), true)));
+        resource.addProperty(prop("introduction", new Value("<p>Introduction to " + id + "</p>", Type.HTML)));
+        return resource;
+    }
+
+    private PropertyImpl prop(String name, Value... values) {
+        PropertyTypeDefinition def = this.definitions.get(name);
+        PropertyImpl prop = new PropertyImpl();
+        prop.setDefinition(def);
+        if (def.isMultiple()) {
+            prop.setValues(values, false);
+        } else {
+            prop.setValue(values[0], false);
+        }
+        return prop;
+    }
+
+    private void def(String name, Type type, boolean multiple) {
+        PropertyTypeDefinitionImpl def = new PropertyTypeDefinitionImpl();
+        def.setNamespace(Namespace.DEFAULT_NAMESPACE);
+        def.setName(name);
+        def.setType(type);
+        def.setMultiple(multiple);
+        this.definitions.put(name, def);
+        this.propDefs.add(def);
+    }
+
+    private Principal principal(String id) {
+        return new PrincipalImpl(id, Principal.Type.USER);
+    }
+
+    private List<Path> list(Path... paths) {
+        List<Path> list = new ArrayList<Path>();
+        for (Path p: paths) {
+            list.add(p);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import vtk.repository.Path;
+
+public class PathIndexTest {
+
+    @Test
+    public void descendants() {
+        PathIndex index = new PathIndex();
+        index.add(Path.ROOT);
+        index.add(Path.fromString("/a"));
+        index.add(Path.fromString("/a/b/c"));
+        index.add(Path.fromString("/a/d"));
+        index.add(Path.fromString("/ab"));
+
+        List<Path> descendants = index.descendants(Path.fromString("/a"));
+        assertEquals(2, descendants.size());
+        assertTrue(descendants.contains(Path.fromString("/a/b/c")));
+        assertTrue(descendants.contains(Path.fromString("/a/d")));
+
+        // Intermediate nodes are not themselves present
+        assertFalse(index.contains(Path.fromString("/a/b")));
+        assertTrue(index.contains(Path.fromString("/a/b/c")));
+
+        assertEquals(4, index.descendants(Path.ROOT).size());
+        assertTrue(index.descendants(Path.fromString("/x")).isEmpty());
+        assertTrue(index.descendants(Path.fromString("/a/d")).isEmpty());
+    }
+
+    @Test
+    public void remove() {
+        PathIndex index = new PathIndex();
+        index.add(Path.fromString("/a"));
+        index.add(Path.fromString("/a/b/c"));
+
+        index.remove(Path.fromString("/a/b/c"));
+        assertFalse(index.contains(Path.fromString("/a/b/c")));
+        assertTrue(index.descendants(Path.fromString("/a")).isEmpty());
+        assertTrue(index.contains(Path.fromString("/a")));
+
+        // Removing an ancestor leaves descendants in place
+        index.add(Path.fromString("/a/b/c"));
+        index.remove(Path.fromString("/a"));
+        assertFalse(index.contains(Path.fromString("/a")));
+        assertEquals(1, index.descendants(Path.ROOT).size());
+
+        index.clear();
+        assertTrue(index.descendants(Path.ROOT).isEmpty());
+    }
+
+    @Test
+    public void concurrentModification() throws Exception {
+        final PathIndex index = new PathIndex();
+        final int numWorkers = 8;
+        Thread[] threads = new Thread[numWorkers];
+        final Throwable[] failures = new Throwable[numWorkers];
+
+        for (int i = 0; i < numWorkers; i++) {
+            final int worker = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Each worker owns its own leaf paths, but all share
+                        // the intermediate nodes.
+                        Random random = new Random(worker);
+                        for (int n = 0; n < 50000; n++) {
+                            Path uri = Path.fromString("/x/" + random.nextInt(5) + "/" + worker + "-"
+                                    + random.nextInt(20));
+                            if (random.nextBoolean()) {
+                                index.add(uri);
+                                assertTrue(index.contains(uri));
+                            } else {
+                                index.remove(uri);
+                                assertFalse(index.contains(uri));
+                            }
+                        }
+                        for (int d = 0; d < 5; d++) {
+                            for (int k = 0; k < 20; k++) {
+                                index.remove(Path.fromString("/x/" + d + "/" + worker + "-" + k));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[worker] = t;
+                    }
+                }
+            });
+        }
+        for (Thread t: threads) {
+            t.start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        for (int i = 0; i < numWorkers; i++) {
+            if (failures[i] != null) {
+                throw new AssertionError("Worker # " + i + " failed: " + failures[i]);
+            }
+        }
+        assertTrue(index.descendants(Path.ROOT).isEmpty());
+    }
+}
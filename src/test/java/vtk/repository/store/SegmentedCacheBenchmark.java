@@ -0,0 +1,112 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.util.Random;
+
+import vtk.repository.Path;
+import vtk.repository.ResourceImpl;
+
+/**
+ * Compares throughput and hit ratio of {@link Cache} and
+ * {@link SegmentedCache} with concurrent skewed reads and occasional
+ * writes. Loads from the wrapped accessor are given a small latency, as
+ * database round trips dominate the cost of a miss.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.repository.store.SegmentedCacheBenchmark</code>
+ */
+public class SegmentedCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxItems = 2000;
+
+        Cache fifo = new Cache();
+        SegmentedCacheTest.TestDataAccessor fifoDao = new SegmentedCacheTest.TestDataAccessor(50000);
+        fifo.setWrappedAccessor(fifoDao);
+        fifo.setMaxItems(maxItems);
+        fifo.afterPropertiesSet();
+
+        SegmentedCache segmented = new SegmentedCache();
+        SegmentedCacheTest.TestDataAccessor segmentedDao = new SegmentedCacheTest.TestDataAccessor(50000);
+        segmented.setWrappedAccessor(segmentedDao);
+        segmented.setMaxItems(maxItems);
+        segmented.afterPropertiesSet();
+
+        run("Cache", fifo, fifoDao, maxItems);
+        System.gc();
+        run("SegmentedCache", segmented, segmentedDao, maxItems);
+    }
+
+    private static void run(String name, final Cache cache, SegmentedCacheTest.TestDataAccessor dao, 
+            int maxItems) throws Exception {
+        final int numWorkers = 16;
+        final int iterationsPerWorker = 20000;
+        final int keySpace = maxItems * 10;
+
+        Thread[] threads = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            final int worker = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(worker);
+                    for (int n = 0; n < iterationsPerWorker; n++) {
+                        // Skewed towards low numbers
+                        int key = (int) (Math.pow(random.nextDouble(), 3) * keySpace);
+                        Path uri = Path.fromString("/f" + (key % 100) + "/r" + key);
+                        if (n % 100 == 0) {
+                            cache.store(new ResourceImpl(uri));
+                        } else if (n % 1000 == 1) {
+                            cache.flushFromCache(uri.getParent(), true);
+                        } else {
+                            cache.load(uri);
+                        }
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread t: threads) {
+            t.start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        long end = System.currentTimeMillis();
+
+        long operations = (long) numWorkers * iterationsPerWorker;
+        System.out.println(name + ": " + operations + " operations in "
+                + (end - start) + " ms, " + dao.loads.get() + " loads from wrapped accessor, size at end: "
+                + cache.size());
+    }
+}
@@ -0,0 +1,345 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import vtk.repository.Path;
+import vtk.repository.PropertySet;
+import vtk.repository.RecoverableResource;
+import vtk.repository.ResourceImpl;
+import vtk.security.Principal;
+
+public class SegmentedCacheTest {
+
+    @Test
+    public void boundedSize() {
+        SegmentedCache cache = newCache(new TestDataAccessor(), 100);
+        for (int i = 0; i < 1000; i++) {
+            assertNotNull(cache.load(Path.fromString("/r" + i)));
+        }
+        assertTrue("Size " + cache.size() + " exceeds maximum", cache.size() <= 100);
+    }
+
+    @Test
+    public void usableBeforeInitialization() {
+        // Plain FIFO storage until afterPropertiesSet() is called
+        Cache cache = new Cache();
+        cache.setWrappedAccessor(new TestDataAccessor());
+        assertNotNull(cache.load(Path.fromString("/a")));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void flushDescendants() {
+        TestDataAccessor dao = new TestDataAccessor();
+        SegmentedCache cache = newCache(dao, 1000);
+        cache.load(Path.fromString("/a"));
+        cache.load(Path.fromString("/a/b"));
+        cache.load(Path.fromString("/a/b/c"));
+        cache.load(Path.fromString("/ab"));
+        cache.load(Path.fromString("/x"));
+        assertEquals(5, cache.size());
+
+        List<Path> descendants = cache.getCachedDescendantPaths(Path.fromString("/a"));
+        assertEquals(2, descendants.size());
+        assertTrue(descendants.contains(Path.fromString("/a/b")));
+        assertTrue(descendants.contains(Path.fromString("/a/b/c")));
+
+        cache.flushFromCache(Path.fromString("/a"), true);
+        assertEquals(2, cache.size());
+        assertTrue(cache.getCachedDescendantPaths(Path.fromString("/a")).isEmpty());
+
+        long loads = dao.loads.get();
+        cache.load(Path.fromString("/ab"));
+        cache.load(Path.fromString("/x"));
+        assertEquals(loads, dao.loads.get());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertTrue(cache.getCachedDescendantPaths(Path.ROOT).isEmpty());
+    }
+
+    @Test
+    public void bulkLoad() {
+        TestDataAccessor dao = new TestDataAccessor();
+        SegmentedCache cache = newCache(dao, 1000);
+        List<Path> uris = new ArrayList<Path>();
+        for (int i = 0; i < 10; i++) {
+            uris.add(Path.fromString("/a/" + i));
+        }
+        cache.load(uris.get(0));
+        cache.load(uris.get(1));
+
+        Map<Path, ResourceImpl> result = cache.load(uris);
+        assertEquals(10, result.size());
+        assertEquals(1, dao.bulkLoads.get());
+        assertEquals(10, dao.loads.get());
+
+        // Missing children of a mostly cached collection are loaded in one call
+        ResourceImpl parent = new ResourceImpl(Path.fromString("/a"));
+        for (Path uri: uris) {
+            parent.addChildURI(uri);
+        }
+        cache.flushFromCache(uris.get(5), false);
+        cache.setLoadChildrenSelectivelyThreshold(0.5f);
+        assertEquals(10, cache.loadChildren(parent).length);
+        assertEquals(2, dao.bulkLoads.get());
+        assertEquals(11, dao.loads.get());
+    }
+
+    @Test
+    public void frequentlyUsedSurviveScan() {
+        TestDataAccessor dao = new TestDataAccessor();
+        SegmentedCache cache = newCache(dao, 100);
+
+        List<Path> hot = new ArrayList<Path>();
+        for (int i = 0; i < 50; i++) {
+            hot.add(Path.fromString("/hot/" + i));
+        }
+        for (int round = 0; round < 10; round++) {
+            for (Path uri: hot) {
+                cache.load(uri);
+            }
+        }
+
+        // One-off scan of many resources should not flush the hot set
+        for (int i = 0; i < 1000; i++) {
+            cache.load(Path.fromString("/scan/" + i));
+        }
+
+        long loads = dao.loads.get();
+        for (Path uri: hot) {
+            cache.load(uri);
+        }
+        long misses = dao.loads.get() - loads;
+        assertTrue("Too many hot resources evicted: " + misses, misses <= 5);
+    }
+
+    // Concurrent skewed reads, writes and flushes keep the cache consistent
+    // and bounded.
+    @Test
+    public void multithreadedAccess() throws Exception {
+        final int maxItems = 2000;
+        final SegmentedCache cache = newCache(new TestDataAccessor(), maxItems);
+        final int numWorkers = 8;
+        final int iterationsPerWorker = 5000;
+        final int keySpace = maxItems * 10;
+
+        Thread[] threads = new Thread[numWorkers];
+        final Throwable[] failures = new Throwable[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            final int worker = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(worker);
+                        for (int n = 0; n < iterationsPerWorker; n++) {
+                            // Skewed towards low numbers
+                            int key = (int) (Math.pow(random.nextDouble(), 3) * keySpace);
+                            Path uri = Path.fromString("/f" + (key % 100) + "/r" + key);
+                            if (n % 100 == 0) {
+                                cache.store(new ResourceImpl(uri));
+                            } else if (n % 1000 == 1) {
+                                cache.flushFromCache(uri.getParent(), true);
+                            } else {
+                                assertEquals(uri, cache.load(uri).getURI());
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[worker] = t;
+                    }
+                }
+            });
+        }
+        for (Thread t: threads) {
+            t.start();
+        }
+        for (Thread t: threads) {
+            t.join();
+        }
+        for (int i = 0; i < numWorkers; i++) {
+            if (failures[i] != null) {
+                throw new AssertionError("Worker # " + i + " failed: " + failures[i]);
+            }
+        }
+        assertTrue(cache.size() <= maxItems);
+    }
+
+    private SegmentedCache newCache(DataAccessor dao, int maxItems) {
+        SegmentedCache cache = new SegmentedCache();
+        cache.setWrappedAccessor(dao);
+        cache.setMaxItems(maxItems);
+        cache.afterPropertiesSet();
+        return cache;
+    }
+
+    static class TestDataAccessor implements DataAccessor {
+
+        final AtomicLong loads = new AtomicLong(0);
+        final AtomicLong bulkLoads = new AtomicLong(0);
+        private final long loadLatencyNanos;
+
+        TestDataAccessor() {
+            this(0);
+        }
+
+        TestDataAccessor(long loadLatencyNanos) {
+            this.loadLatencyNanos = loadLatencyNanos;
+        }
+
+        @Override
+        public boolean validate() throws DataAccessException {
+            return true;
+        }
+
+        @Override
+        public ResourceImpl load(Path uri) throws DataAccessException {
+            this.loads.incrementAndGet();
+            if (this.loadLatencyNanos > 0) {
+                LockSupport.parkNanos(this.loadLatencyNanos);
+            }
+            return new ResourceImpl(uri);
+        }
+
+        @Override
+        public Map<Path, ResourceImpl> load(Collection<Path> uris) throws DataAccessException {
+            this.bulkLoads.incrementAndGet();
+            Map<Path, ResourceImpl> result = new HashMap<Path, ResourceImpl>();
+            for (Path uri: uris) {
+                result.put(uri, load(uri));
+            }
+            return result;
+        }
+
+        @Override
+        public ResourceImpl[] loadChildren(ResourceImpl parent) throws DataAccessException {
+            List<ResourceImpl> children = new ArrayList<ResourceImpl>();
+            for (Path uri: parent.getChildURIs()) {
+                children.add(load(uri));
+            }
+            return children.toArray(new ResourceImpl[children.size()]);
+        }
+
+        @Override
+        public ResourceImpl store(ResourceImpl r) throws DataAccessException {
+            return r;
+        }
+
+        @Override
+        public ResourceImpl storeACL(ResourceImpl r) throws DataAccessException {
+            return r;
+        }
+
+        @Override
+        public ResourceImpl storeLock(ResourceImpl r) throws DataAccessException {
+            return r;
+        }
+
+        @Override
+        public void delete(ResourceImpl resource) throws DataAccessException {
+        }
+
+        @Override
+        public void markDeleted(ResourceImpl resource, ResourceImpl parent, Principal principal, String trashID)
+                throws DataAccessException {
+        }
+
+        @Override
+        public List<RecoverableResource> getRecoverableResources(int parentResourceId) throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResourceImpl recover(Path parentUri, RecoverableResource recoverableResource)
+                throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteRecoverable(RecoverableResource recoverableResource) throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RecoverableResource> getTrashCanOverdue(int overdueLimit) throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RecoverableResource> getTrashCanOrphans() throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteExpiredLocks(Date expireDate) throws DataAccessException {
+        }
+
+        @Override
+        public ResourceImpl copy(ResourceImpl resource, ResourceImpl destParent, PropertySet newResource,
+                boolean copyACLs, PropertySet fixedProperties, Set<String> deleteProperties)
+                throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResourceImpl move(ResourceImpl resource, ResourceImpl newResource) throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Path[] discoverLocks(Path uri) throws DataAccessException {
+            return new Path[0];
+        }
+
+        @Override
+        public Path[] discoverACLs(Path uri) throws DataAccessException {
+            return new Path[0];
+        }
+
+        @Override
+        public Set<Principal> discoverGroups() throws DataAccessException {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store.db;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import vtk.repository.Path;
+
+/**
+ * Compares loading the ancestor chain data (nearest ACLs and inheritable
+ * properties) one resource at a time, as done when resources are loaded
+ * individually, with loading the union of the ancestor chains for a whole
+ * set of resources at once. Uses the deep trees seeded in an in-memory
+ * HSQLDB database by {@link SqlMapDataAccessorAncestorsTest}.
+ * 
+ * <p>Not part of the test suite, run with the test classpath from the
+ * project directory:
+ * <code>java vtk.repository.store.db.SqlMapDataAccessorAncestorsBenchmark</code>
+ */
+public class SqlMapDataAccessorAncestorsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = 20;
+        SqlMapDataAccessorAncestorsTest fixture = new SqlMapDataAccessorAncestorsTest();
+        fixture.setUp();
+        try {
+            SqlMapDataAccessor dao = fixture.dao;
+            Set<Path> ancestors = new HashSet<Path>();
+            for (Path uri: fixture.deepFiles) {
+                ancestors.addAll(uri.getParent().getPaths());
+            }
+
+            // Warm up
+            for (int i = 0; i < 5; i++) {
+                perResource(dao, fixture);
+                batched(dao, fixture, ancestors);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                perResource(dao, fixture);
+            }
+            long perResource = (System.nanoTime() - start) / rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                batched(dao, fixture, ancestors);
+            }
+            long batched = (System.nanoTime() - start) / rounds;
+
+            System.out.println(fixture.deepFiles.size()
+                    + " resources in the three deepest levels: per resource "
+                    + (perResource / 1000) + " us (" + (2 * fixture.deepFiles.size()) 
+                    + " queries), batched " + (batched / 1000) + " us (2 queries)");
+        } finally {
+            fixture.tearDown();
+        }
+    }
+
+    private static void perResource(SqlMapDataAccessor dao, SqlMapDataAccessorAncestorsTest fixture) {
+        for (Path uri: fixture.deepFiles) {
+            dao.findNearestACLs(Collections.singletonList(uri));
+            dao.loadInheritablePropHolders(uri.getParent().getPaths());
+        }
+    }
+
+    private static void batched(SqlMapDataAccessor dao, SqlMapDataAccessorAncestorsTest fixture, 
+            Set<Path> ancestors) {
+        dao.findNearestACLs(fixture.deepFiles);
+        dao.loadInheritablePropHolders(ancestors);
+    }
+}
@@ -0,0 +1,277 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.store.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.support.lob.DefaultLobHandler;
+import org.springframework.orm.ibatis.SqlMapClientFactoryBean;
+import vtk.repository.Path;
+import vtk.repository.store.db.SqlDaoUtils.PropHolder;
+
+import com.ibatis.sqlmap.client.SqlMapClient;
+
+/**
+ * Loads inheritable properties and nearest ACLs for the ancestor chains of
+ * resources in deep trees, seeded in an in-memory HSQLDB database, and
+ * compares loading per resource with loading for a whole set of resources.
+ */
+public class SqlMapDataAccessorAncestorsTest {
+
+    private static final int TREES = 4;
+    private static final int DEPTH = 12;
+    private static final int FILES_PER_LEVEL = 10;
+
+    private DriverManagerDataSource dataSource;
+    private final Map<Path, Integer> expectedNearestAcl = new HashMap<Path, Integer>();
+    private final Set<Path> inheritablePropertyNodes = new HashSet<Path>();
+
+    // Also used by SqlMapDataAccessorAncestorsBenchmark
+    SqlMapDataAccessor dao;
+    final List<Path> deepFiles = new ArrayList<Path>();
+
+    private int nextId = 2000;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dataSource = new DriverManagerDataSource("jdbc:hsqldb:mem:ancestors", "sa", "");
+        Connection conn = this.dataSource.getConnection();
+        try {
+            runScript(conn, new File("src/main/sql/hsqldb-schema.sql"));
+            seed(conn);
+        } finally {
+            conn.close();
+        }
+
+        SqlMapClientFactoryBean factory = new SqlMapClientFactoryBean();
+        factory.setConfigLocation(
+                new ClassPathResource("vtk/repository/store/db/ibatis/hsqldb-sql-map-config.xml"));
+        factory.setDataSource(this.dataSource);
+        factory.setLobHandler(new DefaultLobHandler());
+        factory.afterPropertiesSet();
+
+        this.dao = new SqlMapDataAccessor();
+        this.dao.setSqlMapClient((SqlMapClient) factory.getObject());
+        this.dao.setSqlMaps(Collections.<String, String>emptyMap());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Connection conn = this.dataSource.getConnection();
+        try {
+            conn.createStatement().execute("SHUTDOWN");
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void nearestAcl() {
+        Map<Path, Integer> nearest = this.dao.findNearestACLs(this.expectedNearestAcl.keySet());
+        assertEquals(this.expectedNearestAcl, nearest);
+
+        Path uri = this.deepFiles.get(0);
+        assertEquals(this.expectedNearestAcl.get(uri), nearest.get(uri));
+        assertEquals(Collections.singletonMap(Path.ROOT, 1000), this.dao.findNearestACLs(
+                Collections.singletonList(Path.ROOT)));
+    }
+
+    @Test
+    public void inheritableProperties() {
+        Path uri = this.deepFiles.get(this.deepFiles.size() - 1);
+        Map<Path, List<PropHolder>> holders = this.dao.loadInheritablePropHolders(uri.getParent().getPaths());
+
+        Set<Path> expected = new HashSet<Path>();
+        for (Path p: uri.getParent().getPaths()) {
+            if (this.inheritablePropertyNodes.contains(p)) {
+                expected.add(p);
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, holders.keySet());
+        for (List<PropHolder> list: holders.values()) {
+            assertEquals(1, list.size());
+            assertEquals(2, list.get(0).values.size());
+        }
+    }
+
+    // Loading the ancestor chain data one resource at a time, as done when
+    // resources are loaded individually, gives the same result as loading
+    // the union of the ancestor chains for all resources at once.
+    @Test
+    public void batchedSameAsPerResource() {
+        Map<Path, Integer> perResourceAcls = new HashMap<Path, Integer>();
+        Map<Path, List<PropHolder>> perResourceProps = new HashMap<Path, List<PropHolder>>();
+        Set<Path> ancestors = new HashSet<Path>();
+        for (Path uri: this.deepFiles) {
+            perResourceAcls.putAll(this.dao.findNearestACLs(Collections.singletonList(uri)));
+            perResourceProps.putAll(this.dao.loadInheritablePropHolders(uri.getParent().getPaths()));
+            ancestors.addAll(uri.getParent().getPaths());
+        }
+
+        Map<Path, Integer> batchedAcls = this.dao.findNearestACLs(this.deepFiles);
+        Map<Path, List<PropHolder>> batchedProps = this.dao.loadInheritablePropHolders(ancestors);
+
+        assertEquals(perResourceAcls, batchedAcls);
+        assertEquals(perResourceProps.keySet(), batchedProps.keySet());
+    }
+
+    /**
+     * Seeds TREES chains of DEPTH collections below the root, each
+     * collection having FILES_PER_LEVEL files. Every fourth level has an
+     * ACL, and every third level has a multi-valued inheritable property.
+     */
+    private void seed(Connection conn) throws Exception {
+        PreparedStatement resource = conn.prepareStatement(
+                "insert into vortex_resource (resource_id, uri, depth, creation_time, created_by, "
+                + "content_last_modified, properties_last_modified, last_modified, content_modified_by, "
+                + "properties_modified_by, modified_by, resource_owner, resource_type, is_collection, "
+                + "acl_inherited_from) values (?, ?, ?, ?, 'root@localhost', ?, ?, ?, 'root@localhost', "
+                + "'root@localhost', 'root@localhost', 'root@localhost', ?, ?, ?)");
+        PreparedStatement acl = conn.prepareStatement(
+                "insert into acl_entry (acl_entry_id, resource_id, action_type_id, user_or_group_name, "
+                + "is_user, granted_by_user_name, granted_date) values (?, ?, 1, ?, 'Y', 'root@localhost', ?)");
+        PreparedStatement prop = conn.prepareStatement(
+                "insert into extra_prop_entry (extra_prop_entry_id, resource_id, prop_type_id, name_space, "
+                + "name, value, is_inheritable) values (?, ?, 0, null, ?, ?, 'Y')");
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        this.expectedNearestAcl.put(Path.ROOT, 1000);
+
+        for (int t = 0; t < TREES; t++) {
+            Path parent = Path.ROOT;
+            int nearestAcl = 1000;
+            for (int depth = 1; depth <= DEPTH; depth++) {
+                Path collection = parent.extend(depth == 1 ? "tree" + t : "level" + depth);
+                int id = this.nextId++;
+                boolean hasAcl = depth % 4 == 0;
+                insertResource(resource, now, id, collection, true, hasAcl ? null : nearestAcl);
+                if (hasAcl) {
+                    nearestAcl = id;
+                    acl.setInt(1, this.nextId++);
+                    acl.setInt(2, id);
+                    acl.setString(3, "user" + depth + "@localhost");
+                    acl.setTimestamp(4, now);
+                    acl.executeUpdate();
+                    acl.setInt(1, this.nextId++);
+                    acl.setString(3, "pseudo:all");
+                    acl.executeUpdate();
+                }
+                if (depth % 3 == 0) {
+                    this.inheritablePropertyNodes.add(collection);
+                    for (int v = 0; v < 2; v++) {
+                        prop.setInt(1, this.nextId++);
+                        prop.setInt(2, id);
+                        prop.setString(3, "prop" + depth);
+                        prop.setString(4, "value" + v);
+                        prop.executeUpdate();
+                    }
+                }
+                this.expectedNearestAcl.put(collection, nearestAcl);
+
+                for (int f = 0; f < FILES_PER_LEVEL; f++) {
+                    Path file = collection.extend("file" + f + ".html");
+                    insertResource(resource, now, this.nextId++, file, false, nearestAcl);
+                    this.expectedNearestAcl.put(file, nearestAcl);
+                    if (depth >= DEPTH - 2) {
+                        this.deepFiles.add(file);
+                    }
+                }
+                parent = collection;
+            }
+        }
+        resource.close();
+        acl.close();
+        prop.close();
+    }
+
+    private void insertResource(PreparedStatement stmt, Timestamp now, int id, Path uri,
+            boolean collection, Integer aclInheritedFrom) throws Exception {
+        stmt.setInt(1, id);
+        stmt.setString(2, uri.toString());
+        stmt.setInt(3, uri.getDepth());
+        stmt.setTimestamp(4, now);
+        stmt.setTimestamp(5, now);
+        stmt.setTimestamp(6, now);
+        stmt.setTimestamp(7, now);
+        stmt.setString(8, collection ? "collection" : "file");
+        stmt.setString(9, collection ? "Y" : "N");
+        if (aclInheritedFrom == null) {
+            stmt.setNull(10, java.sql.Types.INTEGER);
+        } else {
+            stmt.setInt(10, aclInheritedFrom);
+        }
+        stmt.executeUpdate();
+    }
+
+    private void runScript(Connection conn, File script) throws Exception {
+        StringBuilder sql = new StringBuilder();
+        Reader reader = new InputStreamReader(new FileInputStream(script), "utf-8");
+        try {
+            char[] buf = new char[4096];
+            int n;
+            while ((n = reader.read(buf)) > 0) {
+                sql.append(buf, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        String stripped = sql.toString()
+                .replaceAll("(?s)/\\*.*?\\*/", "")
+                .replaceAll("--[^\\n]*", "");
+        Statement stmt = conn.createStatement();
+        for (String s: stripped.split(";")) {
+            if (!s.trim().isEmpty()) {
+                stmt.execute(s);
+            }
+        }
+        stmt.close();
+    }
+}
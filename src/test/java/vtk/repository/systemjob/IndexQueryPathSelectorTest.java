@@ -0,0 +1,186 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.repository.systemjob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.repository.Acl;
+import vtk.repository.Path;
+import vtk.repository.PropertySet;
+import vtk.repository.PropertySetImpl;
+import vtk.repository.search.AggregationResult;
+import vtk.repository.search.AggregationSpec;
+import vtk.repository.search.Parser;
+import vtk.repository.search.PropertySelect;
+import vtk.repository.search.QueryException;
+import vtk.repository.search.ResultSet;
+import vtk.repository.search.ResultSetImpl;
+import vtk.repository.search.Search;
+import vtk.repository.search.Searcher;
+import vtk.repository.search.Sorting;
+import vtk.repository.search.query.Query;
+import vtk.repository.search.query.UriPrefixQuery;
+
+public class IndexQueryPathSelectorTest {
+
+    private static final List<Path> MATCHES = Arrays.asList(
+            Path.fromString("/a"), Path.fromString("/b"), Path.fromString("/c"));
+
+    private final Query query = new UriPrefixQuery("/");
+    private Sorting sorting;
+    private StubSearcher searcher;
+    private IndexQueryPathSelector selector;
+
+    @Before
+    public void setUp() {
+        sorting = null;
+        searcher = new StubSearcher();
+        selector = new IndexQueryPathSelector();
+        selector.setSearcher(searcher);
+        selector.setParser(new Parser() {
+            @Override
+            public Query parse(String queryString) {
+                return query;
+            }
+
+            @Override
+            public Sorting parseSortString(String sortString) {
+                return sorting;
+            }
+        });
+        selector.setQueryString("uri = /*");
+        selector.setLimit(100);
+    }
+
+    @Test
+    public void unsortedUsesParallelIteration() throws Exception {
+        Collector callback = new Collector();
+        selector.selectWithCallback(null, null, callback);
+
+        assertNull(searcher.executed);
+        Search search = searcher.iterated;
+        assertTrue(search.isParallelIteration());
+        assertSame(query, search.getQuery());
+        assertEquals(100, search.getLimit());
+        assertSame(PropertySelect.NONE, search.getPropertySelect());
+        assertEquals(MATCHES.size(), callback.total);
+        assertEquals(MATCHES, callback.selected);
+    }
+
+    @Test
+    public void sortedUsesSearch() throws Exception {
+        sorting = new Sorting();
+        Collector callback = new Collector();
+        selector.selectWithCallback(null, null, callback);
+
+        assertNull(searcher.iterated);
+        Search search = searcher.executed;
+        assertFalse(search.isParallelIteration());
+        assertSame(sorting, search.getSorting());
+        assertEquals(100, search.getLimit());
+        assertEquals(MATCHES.size(), callback.total);
+        assertEquals(MATCHES, callback.selected);
+    }
+
+    private static PropertySet propertySet(Path uri) {
+        PropertySetImpl propSet = new PropertySetImpl();
+        propSet.setUri(uri);
+        return propSet;
+    }
+
+    private static class StubSearcher implements Searcher {
+        Search executed;
+        Search iterated;
+
+        @Override
+        public ResultSet execute(String token, Search search) throws QueryException {
+            this.executed = search;
+            ResultSetImpl rs = new ResultSetImpl();
+            for (Path uri: MATCHES) {
+                rs.addResult(propertySet(uri));
+            }
+            return rs;
+        }
+
+        @Override
+        public void iterateMatching(String token, Search search, MatchCallback callback) throws QueryException {
+            this.iterated = search;
+            try {
+                for (final Path uri: MATCHES) {
+                    callback.matching(new MatchingResult() {
+                        @Override
+                        public PropertySet propertySet() {
+                            return IndexQueryPathSelectorTest.propertySet(uri);
+                        }
+
+                        @Override
+                        public Acl acl() {
+                            return Acl.EMPTY_ACL;
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                throw new QueryException("Callback failed", e);
+            }
+        }
+
+        @Override
+        public AggregationResult aggregate(String token, Search search, AggregationSpec spec) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Collector implements PathSelectCallback {
+        int total = -1;
+        final List<Path> selected = new ArrayList<Path>();
+
+        @Override
+        public void beginBatch(int total) {
+            this.total = total;
+        }
+
+        @Override
+        public void select(Path path) {
+            this.selected.add(path);
+        }
+    }
+}
@@ -31,15 +31,19 @@
 package vtk.resourcemanagement;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import vtk.resourcemanagement.property.PropertyDescription;
+import vtk.util.text.Json;
 
 public class StructuredResourceTest {
 
@@ -69,6 +73,58 @@ public class StructuredResourceTest {
         testCreate("course-schedule");
     }
 
+    @Test
+    public void testCreateImmutable() throws Exception {
+        StructuredResource sr = createImmutable("person");
+        assertTrue(sr.getPropertyNames().size() > 0);
+
+        // Shared documents are converted to JSON only once
+        Map<String, Object> json = sr.toJSON();
+        assertSame(json, sr.toJSON());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutableAddProperty() throws Exception {
+        createImmutable("person").addProperty("name", "value");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutableRemoveProperty() throws Exception {
+        createImmutable("person").removeProperty("username");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutableListValue() throws Exception {
+        List<Object> tags = (List<Object>) createImmutable("person").getProperty("tags");
+        tags.add("value");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutableNestedValue() throws Exception {
+        List<Object> projects = (List<Object>) createImmutable("person").getProperty("projects");
+        ((Map<String, Object>) projects.get(0)).put("projectName", "value");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutableJSON() throws Exception {
+        createImmutable("person").toJSON().put("resourcetype", "value");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutableJSONProperties() throws Exception {
+        Map<String, Object> json = createImmutable("person").toJSON();
+        ((Map<String, Object>) json.get("properties")).put("name", "value");
+    }
+
+    private StructuredResource createImmutable(String resourceTypeName) throws Exception {
+        InputStream stream = this.getClass().getResourceAsStream(resourceTypeName.concat(".json"));
+        Object document = Json.unmodifiable(Json.parseToContainer(stream));
+        return StructuredResource.createImmutable(DUMMY_DESC, document);
+    }
+
     private void testCreate(String resourceTypeName) throws Exception {
         InputStream stream = this.getClass().getResourceAsStream(resourceTypeName.concat(".json"));
         StructuredResource sr = StructuredResource.create(DUMMY_DESC, stream);
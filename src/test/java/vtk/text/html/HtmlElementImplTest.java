@@ -44,4 +44,22 @@ public class HtmlElementImplTest {
         assertNotNull(childElements);
         assertEquals(1, childElements.length);
     }
+
+    @Test
+    public void markupExpandedOnAccess() {
+        HtmlElementImpl element = new HtmlElementImpl("div",  false, false);
+        element.addContent(new HtmlMarkup("<p>para</p>text", new HtmlPageParser()));
+
+        // Serialized verbatim
+        assertEquals("<div><p>para</p>text</div>", element.getEnclosedContent());
+
+        HtmlElement[] childElements = element.getChildElements("p");
+        assertEquals(1, childElements.length);
+        assertEquals("para", childElements[0].getContent());
+
+        HtmlContent[] childNodes = element.getChildNodes();
+        assertEquals(2, childNodes.length);
+        assertTrue(childNodes[1] instanceof HtmlText);
+        assertEquals("<div><p>para</p>text</div>", element.getEnclosedContent());
+    }
 }
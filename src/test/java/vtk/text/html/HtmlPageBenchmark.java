@@ -0,0 +1,85 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.text.html;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares CPU time and allocation of serializing a page through one
+ * string per element, as {@link HtmlPage} used to do, with serializing it
+ * into a single buffer, as {@link HtmlPage#getStringRepresentation()} does.
+ * Uses the representative page of {@link HtmlPageTest}.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.text.html.HtmlPageBenchmark</code>
+ */
+public class HtmlPageBenchmark {
+
+    public static void main(String[] args) {
+        final HtmlPage page = HtmlPageTest.representativePage(20, 10);
+        int rounds = 200;
+        // Warm up
+        for (int i = 0; i < rounds; i++) {
+            HtmlPageTest.nestedStrings(page);
+            page.getStringRepresentation();
+        }
+        long[] nested = measure(new Runnable() {
+            public void run() {
+                HtmlPageTest.nestedStrings(page);
+            }
+        }, rounds);
+        long[] single = measure(new Runnable() {
+            public void run() {
+                page.getStringRepresentation();
+            }
+        }, rounds);
+        System.out.println("Page serialization per request: nested strings "
+                + nested[0] / 1000 + " us, " + nested[1] / 1024 + " KiB allocated; single buffer "
+                + single[0] / 1000 + " us, " + single[1] / 1024 + " KiB allocated");
+    }
+
+    private static long[] measure(Runnable task, int rounds) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocBean = null;
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            allocBean = (com.sun.management.ThreadMXBean) bean;
+        }
+        long id = Thread.currentThread().getId();
+        long allocated = allocBean != null ? allocBean.getThreadAllocatedBytes(id) : 0;
+        long cpu = bean.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            task.run();
+        }
+        cpu = bean.getCurrentThreadCpuTime() - cpu;
+        allocated = allocBean != null ? allocBean.getThreadAllocatedBytes(id) - allocated : 0;
+        return new long[] { cpu / rounds, allocated / rounds };
+    }
+}
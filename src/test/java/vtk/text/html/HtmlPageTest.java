@@ -0,0 +1,185 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.text.html;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.text.html.HtmlPageFilter.NodeResult;
+
+public class HtmlPageTest {
+
+    private HtmlPage page;
+
+    @Before
+    public void setUp() {
+        this.page = representativePage(20, 10);
+    }
+
+    @Test
+    public void serialization() {
+        HtmlElementImpl root = new HtmlElementImpl("html", true, false);
+        HtmlElementImpl body = new HtmlElementImpl("body", true, false);
+        HtmlElementImpl br = new HtmlElementImpl("br", true, true);
+        HtmlElementImpl a = new HtmlElementImpl("a", true, false);
+        a.addAttribute(new HtmlAttributeImpl("href", "/x", false));
+        a.addAttribute(new HtmlAttributeImpl("title", "t", true));
+        a.addAttribute(new HtmlAttributeImpl("hidden", null, false));
+        a.addContent(new HtmlTextImpl("link"));
+        body.addContent(a);
+        body.addContent(br);
+        body.addContent(new HtmlCommentImpl(new HtmlTextImpl(" c ")));
+        root.addContent(body);
+        HtmlPage p = new HtmlPage(root, HtmlPage.DOCTYPE_XHTML10_TRANS, "utf-8", 
+                new HashSet<String>(Arrays.asList("br")));
+        assertEquals("<!DOCTYPE " + HtmlPage.DOCTYPE_XHTML10_TRANS + ">\n"
+                + "<html><body><a href=\"/x\" title='t' hidden=\"\">link</a><br/><!-- c --></body></html>",
+                p.getStringRepresentation());
+    }
+
+    @Test
+    public void serializationMatchesNestedStrings() {
+        assertEquals(nestedStrings(this.page), this.page.getStringRepresentation());
+    }
+
+    @Test
+    public void filterChainMatchesSequentialFilters() {
+        List<HtmlPageFilter> filters = new ArrayList<HtmlPageFilter>();
+        filters.add(new NameFilter("span", NodeResult.skip));
+        filters.add(new NameFilter("em", NodeResult.exclude));
+        filters.add(new NameFilter("p", NodeResult.skip));
+
+        HtmlPage expected = representativePage(5, 4);
+        for (HtmlPageFilter filter: filters) {
+            expected.filter(filter);
+        }
+        HtmlPage actual = representativePage(5, 4);
+        actual.filter(filters);
+        assertEquals(expected.getStringRepresentation(), actual.getStringRepresentation());
+    }
+
+    // Page with a typical decorated layout: nested div containers
+    // holding paragraphs of text with inline markup. Also used by
+    // HtmlPageBenchmark.
+    static HtmlPage representativePage(int sections, int depth) {
+        HtmlElementImpl root = new HtmlElementImpl("html", true, false);
+        HtmlElementImpl head = new HtmlElementImpl("head", true, false);
+        HtmlElementImpl title = new HtmlElementImpl("title", true, false);
+        title.addContent(new HtmlTextImpl("Page title"));
+        head.addContent(title);
+        root.addContent(head);
+        HtmlElementImpl body = new HtmlElementImpl("body", true, false);
+        root.addContent(body);
+        for (int s = 0; s < sections; s++) {
+            HtmlElementImpl parent = body;
+            for (int d = 0; d < depth; d++) {
+                HtmlElementImpl div = new HtmlElementImpl("div", true, false);
+                div.addAttribute(new HtmlAttributeImpl("class", "level-" + d, false));
+                parent.addContent(div);
+                parent = div;
+            }
+            for (int i = 0; i < 10; i++) {
+                HtmlElementImpl p = new HtmlElementImpl("p", true, false);
+                p.addContent(new HtmlTextImpl("Lorem ipsum dolor sit amet, "));
+                HtmlElementImpl span = new HtmlElementImpl("span", true, false);
+                HtmlElementImpl em = new HtmlElementImpl("em", true, false);
+                em.addContent(new HtmlTextImpl("consectetur"));
+                span.addContent(em);
+                span.addContent(new HtmlTextImpl(" adipiscing elit"));
+                p.addContent(span);
+                p.addContent(new HtmlElementImpl("br", true, true));
+                parent.addContent(p);
+            }
+        }
+        return new HtmlPage(root, HtmlPage.DOCTYPE_XHTML10_TRANS, "utf-8", 
+                new HashSet<String>(Arrays.asList("br")));
+    }
+
+    // Serialization building one string per element, as HtmlPage
+    // used to do.
+    static String nestedStrings(HtmlPage page) {
+        return "<!DOCTYPE " + page.getDoctype() + ">\n" + nestedStrings(page.getRootElement());
+    }
+
+    private static String nestedStrings(HtmlElement element) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<").append(element.getName());
+        for (HtmlAttribute attr: element.getAttributes()) {
+            sb.append(" ").append(attr.getName()).append("=\"").append(attr.getValue()).append("\"");
+        }
+        HtmlContent[] children = element.getChildNodes();
+        if (children.length == 0 && "br".equals(element.getName())) {
+            return sb.append("/>").toString();
+        }
+        sb.append(">");
+        StringBuilder content = new StringBuilder();
+        for (HtmlContent child: children) {
+            if (child instanceof HtmlElement) {
+                content.append(nestedStrings((HtmlElement) child));
+            } else {
+                content.append(child.getContent());
+            }
+        }
+        sb.append(content.toString());
+        sb.append("</").append(element.getName()).append(">");
+        return sb.toString();
+    }
+
+    private static class NameFilter implements HtmlPageFilter {
+        private String name;
+        private NodeResult result;
+
+        NameFilter(String name, NodeResult result) {
+            this.name = name;
+            this.result = result;
+        }
+
+        @Override
+        public boolean match(HtmlPage page) {
+            return true;
+        }
+
+        @Override
+        public NodeResult filter(HtmlContent node) {
+            if (node instanceof HtmlElement && this.name.equals(((HtmlElement) node).getName())) {
+                return this.result;
+            }
+            return NodeResult.keep;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.text.tl;
+
+/**
+ * Measures rendering of the listing template of
+ * {@link TemplateRenderingTest}, shaped like the view of a dynamic list
+ * component, with 20 items.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.text.tl.TemplateRenderingBenchmark</code>
+ */
+public class TemplateRenderingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        TemplateRenderingTest fixture = new TemplateRenderingTest();
+        fixture.setUp();
+        NodeList template = fixture.parse(TemplateRenderingTest.LISTING_TEMPLATE);
+        int rounds = 2000;
+        // Warm up
+        for (int i = 0; i < rounds; i++) {
+            fixture.render(template, 20);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            fixture.render(template, 20);
+        }
+        long duration = System.nanoTime() - start;
+        System.out.println("TL listing template: " + (duration / rounds / 1000) + " us per render");
+    }
+}
@@ -0,0 +1,235 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.text.tl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.text.tl.expr.Concat;
+import vtk.text.tl.expr.Function;
+
+public class TemplateRenderingTest {
+
+    // Shaped like the view of a dynamic list component: nested
+    // lists, conditionals, accessors, operators and function calls
+    // on variables from enclosing scopes. Also used by
+    // TemplateRenderingBenchmark.
+    static final String LISTING_TEMPLATE =
+            "[def count 0]"
+            + "<div class=\"[val css-class]\">"
+            + "[if title != null && title != \"\"]<h2>[val title]</h2>[endif]"
+            + "<ul>"
+            + "[list items item]"
+            + "[def count count + 1]"
+            + "<li class=\"[if _first]first[elseif _last]last[else]item-[val _index][endif]\">"
+            + "<a href=\"[val item.url]\">[val item.title]</a>"
+            + "[if show-dates && item.date != null] <span>[val concat(\"(\", item.date, \")\")]</span>[endif]"
+            + "[if item.tags != null && ! (item.url ~ \"^/hidden/.*\")]"
+            + "[list item.tags tag]<em>[val tag][if ! _last], [endif]</em>[endlist]"
+            + "[endif]"
+            + "[if _index * 2 > _size || _index = 0] *[endif]"
+            + "</li>"
+            + "[endlist]"
+            + "</ul>"
+            + "<p>[val count] of [val max-items]</p>"
+            + "</div>";
+
+    private List<DirectiveHandler> directiveHandlers;
+
+    @Before
+    public void setUp() {
+        Set<Function> functions = new HashSet<Function>();
+        functions.add(new Concat(new Symbol("concat")));
+        this.directiveHandlers = Arrays.asList(new DirectiveHandler[] {
+                new IfHandler(functions),
+                new ValHandler(null, functions),
+                new ListHandler(functions),
+                new DefineHandler(functions)
+        });
+    }
+
+    @Test
+    public void listing() throws Exception {
+        NodeList template = parse(LISTING_TEMPLATE);
+        assertEquals(expectedListing(3), render(template, 3));
+        assertEquals(expectedListing(25), render(template, 25));
+    }
+
+    @Test
+    public void operatorSemantics() throws Exception {
+        Context ctx = new Context(Locale.getDefault());
+        ctx.define("n", null, true);
+        ctx.define("t", true, true);
+        ctx.define("s", "abc", true);
+        // A null left operand short-circuits to false:
+        assertEquals("false", render(parse("[val n || t]"), ctx));
+        assertEquals("false", render(parse("[val n && t]"), ctx));
+        assertEquals("true", render(parse("[val t || n]"), ctx));
+        assertEquals("true", render(parse("[val ! n]"), ctx));
+        assertEquals("false", render(parse("[val ! s]"), ctx));
+        assertEquals("true", render(parse("[val \"true\" && t]"), ctx));
+        assertEquals("true", render(parse("[val n = null]"), ctx));
+        assertEquals("true", render(parse("[val s != n]"), ctx));
+        assertEquals("true", render(parse("[val s ~ \"a.c\"]"), ctx));
+        assertEquals("false", render(parse("[val s ~ \"b\"]"), ctx));
+        assertEquals("false", render(parse("[val n ~ \"b\"]"), ctx));
+        ctx.define("p", "^a", true);
+        assertEquals("true", render(parse("[val s ~ concat(p, \".*\")]"), ctx));
+        assertEquals("abcnull", render(parse("[val s + n]"), ctx));
+        assertEquals("3", render(parse("[val 1 + 2]"), ctx));
+    }
+
+    @Test
+    public void scopes() throws Exception {
+        Context ctx = new Context(Locale.getDefault());
+        ctx.define("x", 1, false);
+        ctx.push();
+        ctx.define("x", 2, false);
+        ctx.push();
+        assertEquals(2, ctx.get("x"));
+        ctx.define("x", 3, true);
+        assertEquals(3, ctx.get("x"));
+        ctx.pop();
+        assertEquals(3, ctx.get("x"));
+        ctx.pop();
+        assertEquals(3, ctx.get("x"));
+        assertEquals(false, ctx.isDefined("y"));
+        assertEquals(true, ctx.isDefined("null"));
+        for (int i = 0; i < 100; i++) {
+            ctx.push();
+        }
+        ctx.define("y", 4, true);
+        for (int i = 0; i < 100; i++) {
+            ctx.pop();
+        }
+        assertEquals(4, ctx.get("y"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidName() {
+        new Context(Locale.getDefault()).define("a-", 1, false);
+    }
+
+    String render(NodeList template, int size) throws Exception {
+        Context ctx = new Context(Locale.getDefault());
+        ctx.define("css-class", "vrtx-list", true);
+        ctx.define("title", "Listing", true);
+        ctx.define("show-dates", true, true);
+        ctx.define("max-items", size, true);
+        ctx.define("items", items(size), true);
+        return render(template, ctx);
+    }
+
+    private List<Map<String, Object>> items(int size) {
+        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < size; i++) {
+            Map<String, Object> item = new LinkedHashMap<String, Object>();
+            item.put("url", (i % 5 == 4 ? "/hidden/" : "/docs/") + i + ".html");
+            item.put("title", "Document " + i);
+            item.put("date", i % 3 == 0 ? null : "2014-01-" + (i % 28 + 1));
+            item.put("tags", i % 2 == 0 ? Arrays.asList("a" + i, "b" + i) : null);
+            items.add(item);
+        }
+        return items;
+    }
+
+    private String expectedListing(int size) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<div class=\"vrtx-list\"><h2>Listing</h2><ul>");
+        List<Map<String, Object>> items = items(size);
+        for (int i = 0; i < size; i++) {
+            Map<String, Object> item = items.get(i);
+            sb.append("<li class=\"");
+            sb.append(i == 0 ? "first" : i == size - 1 ? "last" : "item-" + i);
+            sb.append("\"><a href=\"").append(item.get("url")).append("\">");
+            sb.append(item.get("title")).append("</a>");
+            if (item.get("date") != null) {
+                sb.append(" <span>(").append(item.get("date")).append(")</span>");
+            }
+            @SuppressWarnings("unchecked")
+            List<String> tags = (List<String>) item.get("tags");
+            if (tags != null && !((String) item.get("url")).startsWith("/hidden/")) {
+                for (int j = 0; j < tags.size(); j++) {
+                    sb.append("<em>").append(tags.get(j));
+                    if (j < tags.size() - 1) {
+                        sb.append(", ");
+                    }
+                    sb.append("</em>");
+                }
+            }
+            if (i * 2 > size || i == 0) {
+                sb.append(" *");
+            }
+            sb.append("</li>");
+        }
+        sb.append("</ul><p>").append(size).append(" of ").append(size).append("</p></div>");
+        return sb.toString();
+    }
+
+    private String render(NodeList template, Context ctx) throws Exception {
+        StringWriter out = new StringWriter();
+        template.render(ctx, out);
+        return out.toString();
+    }
+
+    NodeList parse(String template) {
+        Reader reader = new StringReader(template);
+        final NodeList result = new NodeList();
+        TemplateParser parser = new TemplateParser(reader, this.directiveHandlers, new TemplateHandler() {
+            @Override
+            public void success(NodeList nodeList) {
+                for (Node node: nodeList) {
+                    result.add(node);
+                }
+            }
+            @Override
+            public void error(String message, int line) {
+                throw new RuntimeException("Error at line " + line + ": " + message);
+            }
+        });
+        parser.parse();
+        return result;
+    }
+}
@@ -43,6 +43,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -277,6 +278,104 @@ public class ContentCacheImplTest {
         }
     }
 
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        final AtomicLong loaderCallCount = new AtomicLong(0);
+        final CountDownLatch loading = new CountDownLatch(1);
+        cache.setCacheLoader(new ContentCacheLoader<String, String>() {
+            @Override
+            public String load(String identifier) throws Exception {
+                loaderCallCount.incrementAndGet();
+                loading.await();
+                return "value";
+            }
+        });
+        cache.setCacheMilliSeconds(5000);
+        cache.afterPropertiesSet();
+
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(es.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return cache.get("foo");
+                }
+            }));
+        }
+        while (cache.getInFlightLoads() == 0) {
+            sleep(5);
+        }
+        sleep(50);
+        loading.countDown();
+        for (Future<String> f: results) {
+            assertEquals("value", f.get());
+        }
+        es.shutdown();
+
+        assertEquals(1, loaderCallCount.get());
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(0, cache.getInFlightLoads());
+    }
+
+    @Test
+    public void asyncRefreshServesStale() throws Exception {
+        final AtomicLong loaderCallCount = new AtomicLong(0);
+        cache.setCacheLoader(new ContentCacheLoader<String, String>() {
+            @Override
+            public String load(String identifier) throws Exception {
+                return "value" + loaderCallCount.incrementAndGet();
+            }
+        });
+        cache.setCacheMilliSeconds(100);
+        cache.setAsynchronousRefresh(true);
+        cache.setRefreshAheadFraction(0);
+        cache.afterPropertiesSet();
+
+        assertEquals("value1", cache.get("foo"));
+        assertEquals("value1", cache.get("foo"));
+        sleep(150);
+        assertEquals("value1", cache.get("foo"));
+        assertEquals(1, cache.getStaleHits());
+        while (cache.getLoadCount() < 2) {
+            sleep(5);
+        }
+        assertEquals("value2", cache.get("foo"));
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void sizeLimitByWeight() throws Exception {
+        cache.setCacheLoader(new ContentCacheLoader<String, String>() {
+            @Override
+            public String load(String identifier) throws Exception {
+                return identifier;
+            }
+        });
+        cache.setWeigher(new ContentCacheWeigher<String, String>() {
+            @Override
+            public int weigh(String identifier, String value) {
+                return value.length();
+            }
+        });
+        cache.setMaxWeight(10);
+        cache.setCacheMilliSeconds(5000);
+        cache.afterPropertiesSet();
+
+        cache.get("aaaa");
+        cache.get("bbbb");
+        assertEquals(8, cache.getWeight());
+        cache.get("cccc");
+        assertEquals(2, cache.getSize());
+        assertEquals(8, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+
+        cache.get("dd");
+        assertEquals(3, cache.getSize());
+        assertEquals(10, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
 //    @Test
 //    public void sharedCaches() throws Exception {
 //        context.checking(new Expectations(){{
@@ -473,6 +473,32 @@ public class StreamUtilTest {
         tempFile.delete();
         destFile.delete();
     }
+
+    @Test
+    public void transferTest() throws Exception {
+        byte[] data = generateRandomDataBuffer(10000);
+        StreamUtil.TempFile tempFile = StreamUtil.streamToTempFile(new ByteArrayInputStream(data));
+        FileInputStream in = tempFile.getFileInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(100, StreamUtil.transfer(in.getChannel(), 9000, 100, out));
+            assertEquals(500, StreamUtil.transfer(in.getChannel(), 10, 500, out));
+            byte[] expected = new byte[600];
+            System.arraycopy(data, 9000, expected, 0, 100);
+            System.arraycopy(data, 10, expected, 100, 500);
+            assertTrue(buffersEqual(expected, out.toByteArray()));
+            assertEquals(0, in.getChannel().position());
+
+            try {
+                StreamUtil.transfer(in.getChannel(), 9900, 200, out);
+                fail("Expected IOException when transferring past end of file");
+            } catch (IOException e) {
+            }
+        } finally {
+            in.close();
+            tempFile.delete();
+        }
+    }
     
     private boolean buffersEqual(byte[] a, byte[] b) {
         if (a.length != b.length) {
@@ -0,0 +1,88 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import vtk.web.service.Service;
+
+/**
+ * Compares service resolution by the compiled {@link ServiceDispatcher}
+ * with a plain depth-first walk of the service tree, on the service tree
+ * set up by {@link ServiceDispatcherTest}.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.web.ServiceDispatcherBenchmark</code>
+ */
+public class ServiceDispatcherBenchmark {
+
+    public static void main(String[] args) {
+        ServiceDispatcherTest fixture = new ServiceDispatcherTest();
+        fixture.setUp();
+        List<HttpServletRequest> requests = new ArrayList<HttpServletRequest>();
+        for (int i = 0; i < ServiceDispatcherTest.ACTIONS; i++) {
+            requests.add(fixture.request("GET", "www.example.com", 80, null, i));
+            requests.add(fixture.request("POST", "www.example.com", 80, "action" + i, -1));
+            requests.add(fixture.request("GET", "www.example.com", 8080, "action" + i, -1));
+        }
+
+        // Warm up
+        int checksum = 0;
+        for (int round = 0; round < 200; round++) {
+            for (HttpServletRequest request: requests) {
+                checksum += fixture.walk(request).hashCode() ^ fixture.resolve(request).hashCode();
+            }
+        }
+
+        int rounds = 2000;
+        long walkTime = 0, compiledTime = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (HttpServletRequest request: requests) {
+                Service service = fixture.walk(request);
+                checksum += service.hashCode();
+            }
+            walkTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            for (HttpServletRequest request: requests) {
+                Service service = fixture.resolve(request);
+                checksum += service.hashCode();
+            }
+            compiledTime += System.nanoTime() - start;
+        }
+        long n = (long) rounds * requests.size();
+        System.out.println("Service resolution: tree walk " + (walkTime / n)
+                + " ns/request, compiled " + (compiledTime / n) + " ns/request (checksum " + checksum + ")");
+    }
+}
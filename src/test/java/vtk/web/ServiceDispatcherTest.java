@@ -0,0 +1,338 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.OrderComparator;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import vtk.repository.Resource;
+import vtk.security.Principal;
+import vtk.web.service.Assertion;
+import vtk.web.service.RequestHostNameAssertion;
+import vtk.web.service.RequestMethodAssertion;
+import vtk.web.service.RequestParameterAssertion;
+import vtk.web.service.RequestPortAssertion;
+import vtk.web.service.Service;
+import vtk.web.service.ServiceImpl;
+import vtk.web.service.URL;
+
+public class ServiceDispatcherTest {
+
+    // Fixture and helpers are also used by ServiceDispatcherBenchmark
+    static final int ACTIONS = 40;
+
+    private List<Service> roots;
+    private Map<Service, List<Service>> children;
+    private CountingAssertion expensive;
+    private ServiceDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        this.roots = new ArrayList<Service>();
+        this.children = new HashMap<Service, List<Service>>();
+        this.expensive = new CountingAssertion();
+
+        RequestHostNameAssertion host = new RequestHostNameAssertion();
+        host.setHostName("www.example.com, example.com");
+        RequestPortAssertion port = new RequestPortAssertion();
+        port.setPort("80, 8080");
+        ServiceImpl root = service("root", null, 0, host, port);
+
+        for (int i = 0; i < ACTIONS; i++) {
+            ServiceImpl action = service("action" + i, root, i,
+                    parameter("action" + i, null), method("POST"), this.expensive);
+            service("action" + i + ".get", action, 0, method("GET"));
+        }
+        service("multi", root, ACTIONS,
+                parameter(null, new HashSet<String>(Arrays.asList("x", "y"))));
+        // Expensive assertion before the cheap one must still be evaluated first:
+        service("late", root, ACTIONS + 1, this.expensive, parameter("late", null));
+
+        ServiceImpl view = service("view", root, ACTIONS + 2, method("GET"));
+        for (int i = 0; i < ACTIONS; i++) {
+            service("view.type" + i, view, i, this.expensive, new ValueAssertion(i));
+        }
+
+        // Second root with a wildcard host:
+        RequestHostNameAssertion any = new RequestHostNameAssertion();
+        any.setHostName("*");
+        service("fallback", null, 1, any);
+
+        OrderComparator comparator = new OrderComparator();
+        Collections.sort(this.roots, comparator);
+        for (List<Service> list: this.children.values()) {
+            Collections.sort(list, comparator);
+        }
+        this.dispatcher = new ServiceDispatcher(this.roots, this.children);
+    }
+
+    @Test
+    public void sameResultAsTreeWalk() {
+        String[] hosts = { "www.example.com", "other.example.com" };
+        int[] ports = { 80, 443 };
+        String[] methods = { "GET", "POST", "PUT" };
+        List<String> actions = new ArrayList<String>(Arrays.asList(
+                null, "x", "y", "late", "unknown"));
+        for (int i = 0; i < ACTIONS; i += 7) {
+            actions.add("action" + i);
+        }
+        for (String host: hosts) {
+            for (int port: ports) {
+                for (String method: methods) {
+                    for (String action: actions) {
+                        for (int value = -1; value < ACTIONS + 1; value += 5) {
+                            HttpServletRequest request = request(method, host, port, action, value);
+                            Service expected = walk(request);
+                            Service actual = resolve(request);
+                            assertSame(request.getMethod() + " " + host + ":" + port
+                                    + " vrtx=" + action + " value=" + value, expected, actual);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void assertionsMemoizedWithinRequest() {
+        HttpServletRequest request = request("GET", "www.example.com", 80, null, ACTIONS - 1);
+        this.expensive.count = 0;
+        ServiceDispatcher.Resolution resolution = this.dispatcher.resolution(request, null, null);
+        assertTrue(resolution.resolve(this.roots.get(0)));
+        assertEquals("view.type" + (ACTIONS - 1), resolution.getService().getName());
+        assertEquals(1, this.expensive.count);
+        // The expensive assertion, the parameter assertion of "late", which 
+        // follows the expensive one and so is not compiled, and one value 
+        // assertion per type
+        assertEquals(2 + ACTIONS, resolution.getEvaluatedAssertions());
+    }
+
+    @Test
+    public void siblingsIndexedOnAction() {
+        HttpServletRequest request = request("POST", "www.example.com", 80, "action" + (ACTIONS - 1), -1);
+        ServiceDispatcher.Resolution resolution = this.dispatcher.resolution(request, null, null);
+        assertTrue(resolution.resolve(this.roots.get(0)));
+        assertEquals("action" + (ACTIONS - 1), resolution.getService().getName());
+        // Only the expensive assertion is evaluated; other actions are never visited
+        assertEquals(1, resolution.getEvaluatedAssertions());
+    }
+
+    @Test
+    public void unmatchedRoot() {
+        HttpServletRequest request = request("GET", "other.example.com", 80, null, -1);
+        ServiceDispatcher.Resolution resolution = this.dispatcher.resolution(request, null, null);
+        assertFalse(resolution.resolve(this.roots.get(0)));
+        assertTrue(resolution.resolve(this.roots.get(1)));
+        assertEquals("fallback", resolution.getService().getName());
+    }
+
+    @Test
+    public void emptyAssertionsMatchNothing() {
+        this.roots.clear();
+        this.children.clear();
+        RequestPortAssertion noPorts = new RequestPortAssertion();
+        noPorts.setPort("");
+        service("noPorts", null, 0, noPorts);
+        RequestHostNameAssertion any = new RequestHostNameAssertion();
+        any.setHostName("*");
+        service("fallback", null, 1, any);
+        this.dispatcher = new ServiceDispatcher(this.roots, this.children);
+
+        HttpServletRequest request = request("GET", "www.example.com", 80, null, -1);
+        assertSame(walk(request), resolve(request));
+        assertEquals("fallback", resolve(request).getName());
+    }
+
+    @Test
+    public void parameterWithoutValue() {
+        this.roots.clear();
+        this.children.clear();
+        RequestParameterAssertion nullValue = parameter(null, null);
+        nullValue.setParameterValue(null);
+        service("root", null, 0, nullValue);
+        this.dispatcher = new ServiceDispatcher(this.roots, this.children);
+
+        // Left to the assertion itself, which does not treat a null value
+        // as matching an absent parameter
+        HttpServletRequest request = request("GET", "www.example.com", 80, null, -1);
+        ServiceDispatcher.Resolution resolution = this.dispatcher.resolution(request, null, null);
+        try {
+            resolution.resolve(this.roots.get(0));
+            fail("Expected same behaviour as the assertion");
+        } catch (NullPointerException e) {
+        }
+        try {
+            walk(request);
+            fail("Expected NullPointerException from assertion");
+        } catch (NullPointerException e) {
+        }
+    }
+
+    Service resolve(HttpServletRequest request) {
+        ServiceDispatcher.Resolution resolution = this.dispatcher.resolution(request, null, null);
+        for (Service root: this.roots) {
+            if (resolution.resolve(root)) {
+                return resolution.getService();
+            }
+        }
+        return null;
+    }
+
+    // Reference implementation: plain depth-first tree walk
+    Service walk(HttpServletRequest request) {
+        for (Service root: this.roots) {
+            Service result = walk(root, request);
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private Service walk(Service service, HttpServletRequest request) {
+        for (Assertion assertion: service.getAssertions()) {
+            if (!assertion.matches(request, null, null)) {
+                return null;
+            }
+        }
+        List<Service> list = this.children.get(service);
+        if (list != null) {
+            for (Service child: list) {
+                Service result = walk(child, request);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return service;
+    }
+
+    private ServiceImpl service(String name, Service parent, int order, Assertion... assertions) {
+        ServiceImpl service = new ServiceImpl();
+        service.setBeanName(name);
+        service.setOrder(order);
+        service.setAssertions(new ArrayList<Assertion>(Arrays.asList(assertions)));
+        if (parent == null) {
+            this.roots.add(service);
+        } else {
+            service.setParent(parent);
+            List<Service> list = this.children.get(parent);
+            if (list == null) {
+                list = new ArrayList<Service>();
+                this.children.put(parent, list);
+            }
+            list.add(service);
+        }
+        return service;
+    }
+
+    private RequestParameterAssertion parameter(String value, Set<String> legalValues) {
+        RequestParameterAssertion assertion = new RequestParameterAssertion();
+        assertion.setParameterName(ServiceDispatcher.ACTION_PARAMETER);
+        if (value != null) {
+            assertion.setParameterValue(value);
+        }
+        assertion.setLegalValueParameters(legalValues);
+        return assertion;
+    }
+
+    private RequestMethodAssertion method(String method) {
+        RequestMethodAssertion assertion = new RequestMethodAssertion();
+        assertion.setMethod(method);
+        return assertion;
+    }
+
+    HttpServletRequest request(String method, String host, int port, String action, int value) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/");
+        request.setServerName(host);
+        request.setServerPort(port);
+        if (action != null) {
+            request.setParameter(ServiceDispatcher.ACTION_PARAMETER, action);
+        }
+        if (value >= 0) {
+            request.setParameter("value", String.valueOf(value));
+        }
+        return request;
+    }
+
+    private static abstract class TestAssertion implements Assertion {
+        @Override
+        public boolean processURL(URL url, Resource resource, Principal principal, boolean match) {
+            return true;
+        }
+        @Override
+        public void processURL(URL url) {
+        }
+        @Override
+        public boolean conflicts(Assertion assertion) {
+            return false;
+        }
+    }
+
+    private static class CountingAssertion extends TestAssertion {
+        int count = 0;
+        @Override
+        public boolean matches(HttpServletRequest request, Resource resource, Principal principal) {
+            this.count++;
+            return true;
+        }
+    }
+
+    private static class ValueAssertion extends TestAssertion {
+        private final String value;
+        ValueAssertion(int value) {
+            this.value = String.valueOf(value);
+        }
+        @Override
+        public boolean matches(HttpServletRequest request, Resource resource, Principal principal) {
+            return this.value.equals(request.getParameter("value"));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web.decorating;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.support.StaticWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+
+import vtk.text.html.HtmlPage;
+import vtk.text.html.HtmlPageParser;
+import vtk.util.io.URLInputSource;
+
+/**
+ * Compares rendering of the standard article decorator template
+ * (<code>vtk/decorator-templates/article.template</code>) with and
+ * without a {@link ConcurrentComponentRenderer}. Uses the real template
+ * parser, component parser and page stitching; the components are
+ * stand-ins writing fixed markup, three of which (authors, tags and
+ * comments) wait a given number of milliseconds, like components backed
+ * by repository searches or feeds. A latency of zero measures the
+ * overhead of submitting renderings and stitching in their results.
+ * 
+ * <p>Not part of the test suite, run with the test classpath:
+ * <code>java vtk.web.decorating.ConcurrentComponentRendererBenchmark [latency-ms]</code>
+ */
+public class ConcurrentComponentRendererBenchmark {
+
+    private static final String TEMPLATE = "classpath://vtk/decorator-templates/article.template";
+
+    private static final String[] COMPONENTS = {
+        "resource:comments-feed-link", "article:css", "article:title",
+        "resource:introduction-image", "resource:introduction", "resource:media-player",
+        "resource:published-date", "article:content"
+    };
+
+    private static final String[] SLOW_COMPONENTS = {
+        "resource:authors", "resource:tags", "resource:comments"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int latency = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        for (int l: new int[] { 0, latency }) {
+            Resolver resolver = new Resolver(l);
+            ConcurrentComponentRenderer renderer = new ConcurrentComponentRenderer();
+            Map<String, Integer> concurrent = new HashMap<String, Integer>();
+            for (String name: SLOW_COMPONENTS) {
+                concurrent.put(name, 10000);
+            }
+            renderer.setComponents(concurrent);
+            renderer.afterPropertiesSet();
+            try {
+                long sequential = measure(template(resolver, null), l == 0 ? 2000 : 100);
+                long parallel = measure(template(resolver, renderer), l == 0 ? 2000 : 100);
+                System.out.println("article.template, " + SLOW_COMPONENTS.length 
+                        + " components of " + l + " ms: sequential " + sequential / 1000 
+                        + " us, concurrent " + parallel / 1000 + " us per render");
+            } finally {
+                renderer.destroy();
+            }
+        }
+    }
+
+    private static ParsedHtmlDecoratorTemplate template(ComponentResolver resolver, 
+            ConcurrentComponentRenderer renderer) throws Exception {
+        return new ParsedHtmlDecoratorTemplate(new HtmlPageParser(), new DollarSyntaxComponentParser(), 
+                resolver, new URLInputSource(TEMPLATE, "utf-8"), renderer);
+    }
+
+    // Returns nanoseconds per render, after as many warm-up rounds
+    private static long measure(ParsedHtmlDecoratorTemplate template, int rounds) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/article.html");
+        StaticWebApplicationContext context = new StaticWebApplicationContext();
+        context.refresh();
+        request.setAttribute(DispatcherServlet.WEB_APPLICATION_CONTEXT_ATTRIBUTE, context);
+        Map<String, Object> model = new HashMap<String, Object>();
+
+        long duration = 0;
+        for (int round = 0; round < 2; round++) {
+            // The template replaces the contents of the user page
+            List<HtmlPage> pages = new ArrayList<HtmlPage>(rounds);
+            for (int i = 0; i < rounds; i++) {
+                pages.add(userPage());
+            }
+            long start = System.nanoTime();
+            for (HtmlPage page: pages) {
+                template.newTemplateExecution(new HtmlPageContentImpl("utf-8", page), 
+                        request, model, null).render();
+            }
+            duration = System.nanoTime() - start;
+        }
+        return duration / rounds;
+    }
+
+    private static HtmlPage userPage() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><title>Article</title></head><body>");
+        for (int i = 0; i < 20; i++) {
+            sb.append("<p>Paragraph ").append(i).append(" of the <a href=\"/a.html\">article</a>.</p>");
+        }
+        sb.append("</body></html>");
+        return new HtmlPageParser().parse(new ByteArrayInputStream(sb.toString().getBytes("utf-8")), "utf-8");
+    }
+
+    private static class Resolver implements ComponentResolver {
+        private final Map<String, DecoratorComponent> components = new HashMap<String, DecoratorComponent>();
+
+        Resolver(int latency) {
+            for (String name: COMPONENTS) {
+                add(name, 0);
+            }
+            for (String name: SLOW_COMPONENTS) {
+                add(name, latency);
+            }
+        }
+
+        private void add(String name, int latency) {
+            String[] ref = name.split(":");
+            this.components.put(name, new Component(ref[0], ref[1], latency));
+        }
+
+        @Override
+        public DecoratorComponent resolveComponent(String namespace, String name) {
+            return this.components.get(namespace + ":" + name);
+        }
+
+        @Override
+        public List<DecoratorComponent> listComponents() {
+            return new ArrayList<DecoratorComponent>(this.components.values());
+        }
+    }
+
+    private static class Component implements DecoratorComponent {
+        private final String namespace;
+        private final String name;
+        private final int latency;
+
+        Component(String namespace, String name, int latency) {
+            this.namespace = namespace;
+            this.name = name;
+            this.latency = latency;
+        }
+
+        @Override
+        public String getNamespace() {
+            return this.namespace;
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public String getDescription() {
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getParameterDescriptions() {
+            return null;
+        }
+
+        @Override
+        public Collection<UsageExample> getUsageExamples() {
+            return null;
+        }
+
+        @Override
+        public void render(DecoratorRequest request, DecoratorResponse response) throws Exception {
+            if (this.latency > 0) {
+                Thread.sleep(this.latency);
+            }
+            response.getWriter().write("<div class=\"" + this.name + "\"><span>" 
+                    + this.namespace + ":" + this.name + "</span></div>");
+        }
+    }
+}
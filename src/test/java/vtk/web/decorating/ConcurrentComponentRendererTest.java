@@ -0,0 +1,257 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web.decorating;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.web.decorating.ConcurrentComponentRenderer.Rendering;
+
+public class ConcurrentComponentRendererTest {
+
+    private ConcurrentComponentRenderer renderer;
+
+    @Before
+    public void setUp() {
+        renderer = new ConcurrentComponentRenderer();
+        Map<String, Integer> components = new HashMap<String, Integer>();
+        components.put("include:slow", 10000);
+        components.put("include:timeout", 100);
+        renderer.setComponents(components);
+        renderer.setFallbackContent("<!-- timeout -->");
+        renderer.setThreads(4);
+        renderer.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        renderer.destroy();
+    }
+
+    @Test
+    public void rendersConcurrently() throws Exception {
+        DecoratorComponent slow = new Component("include", "slow");
+        // Each rendering waits until all four have started, which only
+        // happens if they run at the same time
+        final CountDownLatch started = new CountDownLatch(4);
+        List<Rendering<String>> renderings = new ArrayList<Rendering<String>>();
+        for (int i = 0; i < 4; i++) {
+            final String result = "result" + i;
+            renderings.add(renderer.submit(slow, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    started.countDown();
+                    if (!started.await(5, TimeUnit.SECONDS)) {
+                        return "not concurrent";
+                    }
+                    return result;
+                }
+            }));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals("result" + i, renderings.get(i).get());
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(false);
+        Rendering<String> rendering = renderer.submit(new Component("include", "timeout"), 
+                new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                running.set(true);
+                try {
+                    started.countDown();
+                    release.await();
+                    return "late";
+                } finally {
+                    running.set(false);
+                }
+            }
+        });
+        // Let a rendering thread pick up the task, otherwise get() renders it inline
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertNull(rendering.get());
+        assertEquals("<!-- timeout -->", rendering.getFallbackContent());
+        // The rendering was interrupted and has stopped
+        assertFalse(running.get());
+        assertEquals(1, release.getCount());
+    }
+
+    @Test
+    public void cancelBeforeStart() throws Exception {
+        // Occupy all rendering threads so that the next rendering is queued
+        final CountDownLatch busy = new CountDownLatch(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        DecoratorComponent slow = new Component("include", "slow");
+        List<Rendering<String>> blockers = new ArrayList<Rendering<String>>();
+        for (int i = 0; i < 4; i++) {
+            blockers.add(renderer.submit(slow, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    busy.countDown();
+                    release.await();
+                    return "done";
+                }
+            }));
+        }
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+
+        final AtomicBoolean invoked = new AtomicBoolean(false);
+        Rendering<String> queued = renderer.submit(slow, new Callable<String>() {
+            @Override
+            public String call() {
+                invoked.set(true);
+                return "queued";
+            }
+        });
+        assertNotNull(queued);
+        queued.cancel();
+        release.countDown();
+        for (Rendering<String> blocker: blockers) {
+            assertEquals("done", blocker.get());
+        }
+        // A cancelled rendering is not started inline, and yields the fallback
+        assertNull(queued.get());
+        assertFalse(invoked.get());
+    }
+
+    @Test
+    public void cancelRunning() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(false);
+        Rendering<String> rendering = renderer.submit(new Component("include", "slow"), 
+                new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                running.set(true);
+                try {
+                    started.countDown();
+                    new CountDownLatch(1).await();
+                    return "never";
+                } finally {
+                    running.set(false);
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        rendering.cancel();
+        assertFalse(running.get());
+    }
+
+    @Test
+    public void notConfigured() {
+        DecoratorComponent other = new Component("include", "other");
+        assertNull(renderer.submit(other, value("x")));
+        assertTrue(renderer.isConcurrent(new Component("include", "slow")));
+        assertTrue(!renderer.isConcurrent(other));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failure() throws Exception {
+        Rendering<String> rendering = renderer.submit(new Component("include", "slow"), new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("failed");
+            }
+        });
+        assertNotNull(rendering);
+        rendering.get();
+    }
+
+    private static Callable<String> value(final String result) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return result;
+            }
+        };
+    }
+
+    private static class Component implements DecoratorComponent {
+        private final String namespace;
+        private final String name;
+
+        Component(String namespace, String name) {
+            this.namespace = namespace;
+            this.name = name;
+        }
+
+        @Override
+        public String getNamespace() {
+            return this.namespace;
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public String getDescription() {
+            return null;
+        }
+
+        @Override
+        public Map<String, String> getParameterDescriptions() {
+            return null;
+        }
+
+        @Override
+        public Collection<UsageExample> getUsageExamples() {
+            return null;
+        }
+
+        @Override
+        public void render(DecoratorRequest request, DecoratorResponse response) {
+        }
+    }
+}
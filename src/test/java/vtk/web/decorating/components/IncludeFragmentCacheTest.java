@@ -0,0 +1,162 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web.decorating.components;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import vtk.repository.Path;
+import vtk.web.decorating.components.IncludeFragmentCache.Fragment;
+import vtk.web.decorating.components.IncludeFragmentCache.Key;
+import vtk.web.service.URL;
+
+public class IncludeFragmentCacheTest {
+
+    private IncludeFragmentCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new IncludeFragmentCache();
+        cache.setMaxItems(3);
+    }
+
+    @Test
+    public void keys() {
+        assertEquals(key("http://localhost/footer.html?a=1&b=2"), key("http://localhost/footer.html?b=2&a=1"));
+        assertEquals(key("http://localhost/footer.html?a=1&b=2").hashCode(), 
+                key("http://localhost/footer.html?b=2&a=1").hashCode());
+        assertFalse(key("http://localhost/footer.html?a=1").equals(key("http://localhost/footer.html")));
+        assertFalse(new Key(URL.parse("http://localhost/footer.html"), "html.body", null)
+                .equals(key("http://localhost/footer.html")));
+        assertFalse(new Key(URL.parse("http://localhost/footer.html"), null, "user@localhost")
+                .equals(key("http://localhost/footer.html")));
+    }
+
+    @Test
+    public void keysIncludeOrigin() {
+        Key key = key("http://localhost/footer.html");
+        assertFalse(key.equals(key("https://localhost/footer.html")));
+        assertFalse(key.equals(key("http://example.com/footer.html")));
+        assertFalse(key.equals(key("http://localhost:8080/footer.html")));
+        assertEquals(key, key("http://localhost/footer.html"));
+    }
+
+    @Test
+    public void validatedAgainstLastModified() {
+        Key key = key("http://localhost/footer.html");
+        Fragment fragment = Fragment.content("<p>footer</p>", 1000L);
+        cache.put(key, fragment);
+        assertSame(fragment, cache.get(key, 1000L));
+        assertNull(cache.get(key, 2000L));
+        // Stale fragment is dropped
+        assertEquals(0, cache.getSize());
+        assertNull(cache.get(key, 1000L));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void invalidate() {
+        Key file = key("http://localhost/a/b/footer.html");
+        Key collection = key("http://localhost/a/b/");
+        Key other = key("http://localhost/c/header.html");
+        cache.put(file, Fragment.content("1", 1L));
+        cache.put(collection, Fragment.content("2", 1L));
+        cache.put(other, Fragment.content("3", 1L));
+
+        // Index file change invalidates the collection, not siblings' descendants
+        cache.invalidate(Path.fromString("/a/b/index.html"));
+        assertNull(cache.get(collection, 1L));
+        assertNotNull(cache.get(file, 1L));
+
+        // Any ancestor may display the changed resource
+        Key root = key("http://localhost/");
+        cache.put(root, Fragment.content("4", 1L));
+        cache.invalidate(Path.fromString("/a/b/c/d.html"));
+        assertNull(cache.get(root, 1L));
+        assertNotNull(cache.get(file, 1L));
+
+        cache.put(collection, Fragment.content("2", 1L));
+        cache.invalidate(Path.fromString("/a"));
+        assertNull(cache.get(collection, 1L));
+        assertNull(cache.get(file, 1L));
+        assertNotNull(cache.get(other, 1L));
+    }
+
+    @Test
+    public void sizeLimit() {
+        for (int i = 0; i < 3; i++) {
+            cache.put(key("http://localhost/" + i), Fragment.content("x", 1L));
+        }
+        // Least recently used is evicted
+        assertNotNull(cache.get(key("http://localhost/0"), 1L));
+        cache.put(key("http://localhost/3"), Fragment.content("x", 1L));
+        assertEquals(3, cache.getSize());
+        assertNull(cache.get(key("http://localhost/1"), 1L));
+        assertNotNull(cache.get(key("http://localhost/0"), 1L));
+        assertNotNull(cache.get(key("http://localhost/3"), 1L));
+
+        // Evicted fragments are no longer indexed
+        cache.put(key("http://localhost/1"), Fragment.content("x", 1L));
+        cache.invalidate(Path.fromString("/1"));
+        assertEquals(2, cache.getSize());
+        assertNotNull(cache.get(key("http://localhost/0"), 1L));
+        assertNotNull(cache.get(key("http://localhost/3"), 1L));
+    }
+
+    @Test
+    public void invalidateAllVariants() {
+        cache.setMaxItems(10);
+        cache.put(key("http://localhost/a/footer.html"), Fragment.content("1", 1L));
+        cache.put(key("http://localhost/a/footer.html?x=1"), Fragment.content("2", 1L));
+        cache.put(new Key(URL.parse("http://localhost/a/footer.html"), "html.body", null), 
+                Fragment.content("3", 1L));
+        cache.put(key("http://localhost/a/b/c/header.html"), Fragment.content("4", 1L));
+        cache.put(key("http://localhost/b/header.html"), Fragment.content("5", 1L));
+        cache.invalidate(Path.fromString("/a/footer.html"));
+        assertEquals(2, cache.getSize());
+        cache.invalidate(Path.fromString("/a"));
+        assertEquals(1, cache.getSize());
+        assertNotNull(cache.get(key("http://localhost/b/header.html"), 1L));
+        cache.invalidate(Path.ROOT);
+        assertEquals(0, cache.getSize());
+    }
+
+    private static Key key(String url) {
+        return new Key(URL.parse(url), null, null);
+    }
+}
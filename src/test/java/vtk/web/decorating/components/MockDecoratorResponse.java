@@ -31,12 +31,16 @@
 package vtk.web.decorating.components;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.List;
 import java.util.Locale;
 
+import vtk.text.html.EnclosingHtmlContent;
+import vtk.text.html.HtmlContent;
 import vtk.text.html.HtmlElement;
 import vtk.text.html.HtmlPage;
 import vtk.text.html.HtmlPageParser;
@@ -73,6 +77,20 @@ public class MockDecoratorResponse implements DecoratorResponse {
         return new OutputStreamWriter(this.outputStream, this.charset);
     }
 
+    public void writeMarkup(String markup) throws IOException {
+        this.outputStream.write(markup.getBytes(this.charset.name()));
+    }
+
+    public void writeContent(List<HtmlContent> content) throws IOException {
+        for (HtmlContent c: content) {
+            if (c instanceof EnclosingHtmlContent) {
+                writeMarkup(((EnclosingHtmlContent) c).getEnclosedContent());
+            } else {
+                writeMarkup(c.getContent());
+            }
+        }
+    }
+
     public String getResult() throws Exception {
         return new String(this.outputStream.toByteArray(), this.charset.name());
     }
@@ -0,0 +1,220 @@
+/* Copyright (c) 2014, University of Oslo, Norway
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the University of Oslo nor the names of its
+ *    contributors may be used to endorse or promote products derived from
+ *    this software without specific prior written permission.
+ *      
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER
+ * OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package vtk.web.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import vtk.repository.Resource;
+import vtk.util.web.HttpUtil;
+
+public class DisplayResourceViewTest {
+
+    private static final String CONTENT;
+    static {
+        StringBuilder sb = new StringBuilder();
+        for (char c = '!'; c <= 'z'; c++) {
+            sb.append(c);
+        }
+        CONTENT = sb.toString();
+    }
+    private static final String ETAG = "\"42\"";
+    private static final Date LAST_MODIFIED = new Date(1400000000000L);
+
+    private final Mockery context = new Mockery();
+    private Resource resource;
+    private DisplayResourceView view;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        resource = context.mock(Resource.class);
+        context.checking(new Expectations() {{
+            allowing(resource).getContentLength(); will(returnValue((long) CONTENT.length()));
+            allowing(resource).getContentType(); will(returnValue("application/octet-stream"));
+            allowing(resource).getCharacterEncoding(); will(returnValue(null));
+            allowing(resource).getEtag(); will(returnValue(ETAG));
+            allowing(resource).getLastModified(); will(returnValue(LAST_MODIFIED));
+        }});
+        view = new DisplayResourceView();
+        view.setSupportRangeRequests(true);
+
+        file = File.createTempFile("display-resource-view", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(CONTENT.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void noRange() throws Exception {
+        for (boolean channel: new boolean[] {true, false}) {
+            MockHttpServletResponse response = render(null, null, channel);
+            assertEquals(200, response.getStatus());
+            assertEquals(CONTENT, response.getContentAsString());
+            assertEquals(String.valueOf(CONTENT.length()), response.getHeader("Content-Length"));
+        }
+
+        view.setSupportRangeRequests(false);
+        MockHttpServletResponse response = render("bytes=0-1", null, true);
+        assertEquals(200, response.getStatus());
+        assertEquals(CONTENT, response.getContentAsString());
+    }
+
+    @Test
+    public void singleRange() throws Exception {
+        for (boolean channel: new boolean[] {true, false}) {
+            assertPartial(render("bytes=10-19", null, channel), 10, 19);
+            assertPartial(render("bytes=80-", null, channel), 80, 89);
+            // End beyond content is truncated
+            assertPartial(render("bytes=85-1000", null, channel), 85, 89);
+            // Unsatisfiable ranges in a set are dropped
+            assertPartial(render("bytes=0-4, 100-200", null, channel), 0, 4);
+        }
+    }
+
+    @Test
+    public void suffixRange() throws Exception {
+        for (boolean channel: new boolean[] {true, false}) {
+            assertPartial(render("bytes=-5", null, channel), 85, 89);
+            assertPartial(render("bytes=-1000", null, channel), 0, 89);
+        }
+    }
+
+    @Test
+    public void multipleRanges() throws Exception {
+        for (boolean channel: new boolean[] {true, false}) {
+            MockHttpServletResponse response = render("bytes=0-4, 10-14,-3", null, channel);
+            assertEquals(206, response.getStatus());
+            String contentType = response.getHeader("Content-Type");
+            assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="));
+            String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+            String expected = part(boundary, 0, 4) + part(boundary, 10, 14) + part(boundary, 87, 89)
+                    + "\r\n--" + boundary + "--\r\n";
+            assertEquals(expected, response.getContentAsString());
+            assertEquals(String.valueOf(expected.length()), response.getHeader("Content-Length"));
+        }
+    }
+
+    @Test
+    public void unsatisfiable() throws Exception {
+        for (String range: new String[] {"bytes=90-100", "bytes=1000-", "bytes=-0", "bytes=95-99,100-"}) {
+            MockHttpServletResponse response = render(range, null, true);
+            assertEquals(range, 416, response.getStatus());
+            assertEquals("bytes */" + CONTENT.length(), response.getHeader("Content-Range"));
+            assertEquals("", response.getContentAsString());
+        }
+    }
+
+    @Test
+    public void invalidRangesIgnored() throws Exception {
+        for (String range: new String[] {"bytes=10-5", "items=0-1", "bytes=0-10,5-15",
+                "bytes=10-14,0-4", "bytes=a-b", "bytes=5"}) {
+            MockHttpServletResponse response = render(range, null, true);
+            assertEquals(range, 200, response.getStatus());
+            assertEquals(range, CONTENT, response.getContentAsString());
+        }
+    }
+
+    @Test
+    public void ifRange() throws Exception {
+        assertPartial(render("bytes=10-19", ETAG, true), 10, 19);
+        assertPartial(render("bytes=10-19", HttpUtil.getHttpDateString(LAST_MODIFIED), true), 10, 19);
+
+        // Mismatch gives the entire resource
+        String[] mismatches = {"\"43\"", "W/" + ETAG,
+                HttpUtil.getHttpDateString(new Date(LAST_MODIFIED.getTime() - 60000)), "not a date"};
+        for (String ifRange: mismatches) {
+            MockHttpServletResponse response = render("bytes=10-19", ifRange, true);
+            assertEquals(ifRange, 200, response.getStatus());
+            assertEquals(ifRange, CONTENT, response.getContentAsString());
+            assertEquals(null, response.getHeader("Content-Range"));
+        }
+    }
+
+    private void assertPartial(MockHttpServletResponse response, int from, int to) throws Exception {
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes " + from + "-" + to + "/" + CONTENT.length(), 
+                response.getHeader("Content-Range"));
+        assertEquals(String.valueOf(to - from + 1), response.getHeader("Content-Length"));
+        assertEquals(CONTENT.substring(from, to + 1), response.getContentAsString());
+    }
+
+    private static String part(String boundary, int from, int to) {
+        return "\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes " + from + "-" + to + "/" + CONTENT.length() + "\r\n\r\n"
+                + CONTENT.substring(from, to + 1);
+    }
+
+    private MockHttpServletResponse render(String range, String ifRange, boolean channel) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file.bin");
+        if (range != null) {
+            request.addHeader("Range", range);
+        }
+        if (ifRange != null) {
+            request.addHeader("If-Range", ifRange);
+        }
+        InputStream stream = channel ? new FileInputStream(file)
+                : new ByteArrayInputStream(CONTENT.getBytes("US-ASCII"));
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("resource", resource);
+        model.put("resourceStream", stream);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        view.render(model, request, response);
+        return response;
+    }
+}